@@ -0,0 +1,211 @@
+package be.ac.ulg.montefiore.run.jahmm.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import be.ac.ulg.montefiore.run.jahmm.Hmm;
+import be.ac.ulg.montefiore.run.jahmm.ObservationInteger;
+import be.ac.ulg.montefiore.run.jahmm.ObservationReal;
+import be.ac.ulg.montefiore.run.jahmm.ObservationVector;
+import be.ac.ulg.montefiore.run.jahmm.OpdfGaussian;
+import be.ac.ulg.montefiore.run.jahmm.OpdfInteger;
+import be.ac.ulg.montefiore.run.jahmm.OpdfMultiGaussian;
+
+
+/**
+ * This class reads Hidden Markov Models written by
+ * {@link HmmFlatWriter HmmFlatWriter}.
+ * <p>
+ * The file is mapped in memory rather than parsed: only the initial vector
+ * and the transition matrix are copied. {@link OpdfVector OpdfVector}s read
+ * their probabilities in place from the mapped file, so that loading a model
+ * takes no time whatever its size, and processes reading the same file share
+ * its pages. The other Opdfs are built from their few parameters.
+ */
+public class HmmFlatReader
+{
+	/**
+	 * Reads a HMM from a file, mapped in memory.  The file must not be
+	 * modified while the HMM is used; write a new file and read it instead.
+	 *
+	 * @param file The file the HMM is read from.
+	 * @return The {@link be.ac.ulg.montefiore.run.jahmm.Hmm HMM} read.
+	 */
+	static public Hmm<?> read(File file)
+	throws IOException, FileFormatException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			// the mapping stays valid once the file is closed
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size()));
+		} finally {
+			raf.close();
+		}
+	}
+
+
+	/**
+	 * Reads a HMM from a byte buffer holding a flat HMM from its position.
+	 *
+	 * @param buffer The buffer the HMM is read from; it is not modified.
+	 * @return The {@link be.ac.ulg.montefiore.run.jahmm.Hmm HMM} read.
+	 */
+	static public Hmm<?> read(ByteBuffer buffer)
+	throws FileFormatException
+	{
+		ByteBuffer bytes = buffer.slice(); // big-endian
+		if (bytes.remaining() < HmmFlatWriter.HEADER_SIZE ||
+				bytes.getInt(0) != HmmFlatWriter.MAGIC)
+			throw new FileFormatException("Not a flat HMM");
+		if (bytes.getInt(4) != HmmFlatWriter.VERSION)
+			throw new FileFormatException("Unsupported flat HMM version: " +
+					bytes.getInt(4));
+
+		int kind = bytes.getInt(8);
+		int nbStates = bytes.getInt(12);
+		int size = bytes.getInt(16);
+		int dimension = bytes.getInt(20);
+
+		long length = HmmFlatWriter.HEADER_SIZE + 8L * nbStates *
+			(1L + nbStates + size);
+		if (nbStates <= 0 || size <= 0 || bytes.remaining() < length)
+			throw new FileFormatException("Truncated flat HMM");
+
+		bytes.position(HmmFlatWriter.HEADER_SIZE);
+		DoubleBuffer doubles = bytes.slice().asDoubleBuffer();
+
+		double[] pi = new double[nbStates];
+		doubles.get(pi);
+
+		double[][] a = new double[nbStates][nbStates];
+		for (int i = 0; i < nbStates; i++)
+			doubles.get(a[i]);
+
+		int offset = nbStates + nbStates * nbStates;
+
+		switch (kind) {
+		case HmmFlatWriter.OPDF_VECTOR:
+			List<OpdfVector> vectors = new ArrayList<OpdfVector>(nbStates);
+			for (int i = 0; i < nbStates; i++)
+				vectors.add(new OpdfVector(region(doubles, offset + i * size,
+						size)));
+			return new Hmm<ObservationVector>(pi, a, vectors);
+
+		case HmmFlatWriter.OPDF_INTEGER:
+			List<OpdfInteger> integers = new ArrayList<OpdfInteger>(nbStates);
+			for (int i = 0; i < nbStates; i++)
+				integers.add(new OpdfInteger(copy(doubles, offset + i * size,
+						size)));
+			return new Hmm<ObservationInteger>(pi, a, integers);
+
+		case HmmFlatWriter.OPDF_GAUSSIAN:
+			List<OpdfGaussian> gaussians =
+				new ArrayList<OpdfGaussian>(nbStates);
+			for (int i = 0; i < nbStates; i++)
+				gaussians.add(new OpdfGaussian(doubles.get(offset + i * size),
+						doubles.get(offset + i * size + 1)));
+			return new Hmm<ObservationReal>(pi, a, gaussians);
+
+		case HmmFlatWriter.OPDF_MULTI_GAUSSIAN:
+			if (size != dimension + dimension * dimension)
+				throw new FileFormatException("Invalid multi-gaussian " +
+						"dimension: " + dimension);
+
+			List<OpdfMultiGaussian> multis =
+				new ArrayList<OpdfMultiGaussian>(nbStates);
+			for (int i = 0; i < nbStates; i++) {
+				int base = offset + i * size;
+				double[] mean = copy(doubles, base, dimension);
+				double[][] covariance = new double[dimension][];
+				for (int r = 0; r < dimension; r++)
+					covariance[r] = copy(doubles,
+							base + dimension * (r + 1), dimension);
+				multis.add(new OpdfMultiGaussian(mean, covariance));
+			}
+			return new Hmm<ObservationVector>(pi, a, multis);
+
+		default:
+			throw new FileFormatException("Unknown Opdf kind: " + kind);
+		}
+	}
+
+
+	/**
+	 * Tells whether a file holds a flat HMM, from its magic number.
+	 *
+	 * @param file The file to check.
+	 * @return true if the file starts like a flat HMM.
+	 */
+	static public boolean isFlat(File file)
+	{
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(file));
+			return in.readInt() == HmmFlatWriter.MAGIC;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Tells the kind of Opdf of a flat HMM file, from its header.
+	 *
+	 * @param file The flat HMM file.
+	 * @return One of the OPDF_ constants of
+	 *         {@link HmmFlatWriter HmmFlatWriter}, or -1 if the file is not
+	 *         a flat HMM.
+	 */
+	static public int opdfKind(File file)
+	{
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(file));
+			if (in.readInt() != HmmFlatWriter.MAGIC)
+				return -1;
+			in.readInt(); // version
+			return in.readInt();
+		} catch (IOException e) {
+			return -1;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+
+	/* Shares the doubles [offset, offset+length) of a buffer */
+	static private DoubleBuffer region(DoubleBuffer doubles, int offset,
+			int length)
+	{
+		DoubleBuffer region = doubles.duplicate();
+		region.position(offset);
+		region.limit(offset + length);
+		return region.slice();
+	}
+
+
+	static private double[] copy(DoubleBuffer doubles, int offset, int length)
+	{
+		double[] values = new double[length];
+		region(doubles, offset, length).get(values);
+		return values;
+	}
+}
@@ -0,0 +1,165 @@
+package be.ac.ulg.montefiore.run.jahmm.io;
+
+import java.io.*;
+
+import be.ac.ulg.montefiore.run.jahmm.Hmm;
+import be.ac.ulg.montefiore.run.jahmm.ObservationInteger;
+import be.ac.ulg.montefiore.run.jahmm.Opdf;
+import be.ac.ulg.montefiore.run.jahmm.OpdfGaussian;
+import be.ac.ulg.montefiore.run.jahmm.OpdfInteger;
+import be.ac.ulg.montefiore.run.jahmm.OpdfMultiGaussian;
+
+
+/**
+ * This class writes Hidden Markov Models in a flat binary format, that
+ * {@link HmmFlatReader HmmFlatReader} maps in memory instead of parsing it.
+ * <p>
+ * The file is a header of {@link #HEADER_SIZE HEADER_SIZE} bytes (magic
+ * number, version, kind of Opdf, number of states, number of parameters per
+ * Opdf, dimension of the observations), followed by contiguous big-endian
+ * doubles: the initial vector, the transition matrix row by row, then the
+ * parameters of the Opdf of each state:
+ * <ul>
+ * <li>{@link OpdfVector OpdfVector}: the probability of each vector value;</li>
+ * <li>{@link OpdfInteger OpdfInteger}: the probability of each integer;</li>
+ * <li>{@link OpdfGaussian OpdfGaussian}: the mean and the variance;</li>
+ * <li>{@link OpdfMultiGaussian OpdfMultiGaussian}: the mean vector, then the
+ *     covariance matrix row by row.</li>
+ * </ul>
+ * All the states must have the same kind of Opdf, with the same number of
+ * parameters.
+ */
+public class HmmFlatWriter
+{
+	/** "JHMF" */
+	static public final int MAGIC = 0x4A484D46;
+	static public final int VERSION = 1;
+	static public final int HEADER_SIZE = 32;
+
+	static public final int OPDF_VECTOR = 1;
+	static public final int OPDF_INTEGER = 2;
+	static public final int OPDF_GAUSSIAN = 3;
+	static public final int OPDF_MULTI_GAUSSIAN = 4;
+
+
+	/**
+	 * Writes a HMM to a file.
+	 *
+	 * @param file The file the HMM is written to.
+	 * @param hmm The HMM to write.
+	 */
+	static public void write(File file, Hmm<?> hmm)
+	throws IOException
+	{
+		OutputStream stream = new FileOutputStream(file);
+		try {
+			write(stream, hmm);
+		} finally {
+			stream.close();
+		}
+	}
+
+
+	/**
+	 * Writes a HMM to a byte stream.
+	 *
+	 * @param stream Holds the byte stream the HMM is written to.
+	 * @param hmm The HMM to write.
+	 * @throws IllegalArgumentException if the Opdfs are not supported, or
+	 *         differ from one state to another.
+	 */
+	static public void write(OutputStream stream, Hmm<?> hmm)
+	throws IOException
+	{
+		int nbStates = hmm.nbStates();
+		FlatOpdf first = flatten(hmm.getOpdf(0));
+		int size = first.parameters.length;
+
+		DataOutputStream out =
+			new DataOutputStream(new BufferedOutputStream(stream));
+
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(first.kind);
+		out.writeInt(nbStates);
+		out.writeInt(size);
+		out.writeInt(first.dimension);
+		out.writeInt(0); // reserved; keeps the doubles aligned
+		out.writeInt(0);
+
+		for (int i = 0; i < nbStates; i++)
+			out.writeDouble(hmm.getPi(i));
+
+		for (int i = 0; i < nbStates; i++)
+			for (int j = 0; j < nbStates; j++)
+				out.writeDouble(hmm.getAij(i, j));
+
+		for (int i = 0; i < nbStates; i++) {
+			FlatOpdf opdf = (i == 0) ? first : flatten(hmm.getOpdf(i));
+			if (opdf.kind != first.kind || opdf.parameters.length != size)
+				throw new IllegalArgumentException("Opdf of state " + i +
+				" differs from the one of state 0");
+
+			for (double parameter : opdf.parameters)
+				out.writeDouble(parameter);
+		}
+
+		out.flush();
+	}
+
+
+	/* The kind, dimension and parameters of an Opdf, as they are written */
+	static private class FlatOpdf
+	{
+		final int kind;
+		final int dimension;
+		final double[] parameters;
+
+		FlatOpdf(int kind, int dimension, double[] parameters)
+		{
+			this.kind = kind;
+			this.dimension = dimension;
+			this.parameters = parameters;
+		}
+	}
+
+
+	static private FlatOpdf flatten(Opdf<?> opdf)
+	{
+		if (opdf instanceof OpdfVector) {
+			OpdfVector vector = (OpdfVector) opdf;
+			double[] parameters = new double[vector.nbValues()];
+			for (int k = 0; k < parameters.length; k++)
+				parameters[k] = vector.probability(k);
+			return new FlatOpdf(OPDF_VECTOR, vector.dimension(), parameters);
+		}
+
+		if (opdf instanceof OpdfInteger) {
+			OpdfInteger integer = (OpdfInteger) opdf;
+			double[] parameters = new double[integer.nbEntries()];
+			for (int k = 0; k < parameters.length; k++)
+				parameters[k] = integer.probability(new ObservationInteger(k));
+			return new FlatOpdf(OPDF_INTEGER, 1, parameters);
+		}
+
+		if (opdf instanceof OpdfGaussian) {
+			OpdfGaussian gaussian = (OpdfGaussian) opdf;
+			return new FlatOpdf(OPDF_GAUSSIAN, 1,
+					new double[] { gaussian.mean(), gaussian.variance() });
+		}
+
+		if (opdf instanceof OpdfMultiGaussian) {
+			OpdfMultiGaussian multi = (OpdfMultiGaussian) opdf;
+			int d = multi.dimension();
+			double[] parameters = new double[d + d * d];
+			System.arraycopy(multi.mean(), 0, parameters, 0, d);
+			double[][] covariance = multi.covariance();
+			for (int r = 0; r < d; r++)
+				System.arraycopy(covariance[r], 0, parameters, d * (r + 1), d);
+			return new FlatOpdf(OPDF_MULTI_GAUSSIAN, d, parameters);
+		}
+
+		throw new IllegalArgumentException("Unsupported Opdf: " +
+				opdf.getClass().getName());
+	}
+}
@@ -68,6 +68,106 @@ public class ObservationSequencesReader
 	}
 	
 	
+	/**
+	 * Reads the observations of a sequences file one at a time, without
+	 * holding the sequences in memory, so that files larger than the heap can
+	 * be processed.
+	 *
+	 * @param or An observation reader.
+	 * @param reader Holds the character stream reader the sequences are read 
+	 *               from.
+	 * @return A stream of the observations of all the sequences, in order.
+	 */
+	static public <O extends Observation> ObservationStream<O>
+	streamSequences(ObservationReader<O> or, Reader reader)
+	{
+		return new ObservationStream<O>(or, reader);
+	}
+	
+	
+	/**
+	 * Stream of the observations of a sequences file, read one at a time.
+	 * The syntax is the one of {@link ObservationSequencesReader#readSequences
+	 * readSequences}.
+	 */
+	static public class ObservationStream<O extends Observation>
+	{
+		private final ObservationReader<O> or;
+		private final StreamTokenizer st;
+		private boolean inSequence = false;
+		private boolean sequenceStart = false;
+		private long sequences = 0;
+		
+		
+		ObservationStream(ObservationReader<O> or, Reader reader)
+		{
+			this.or = or;
+			this.st = new StreamTokenizer(reader);
+			initSyntaxTable(st);
+		}
+		
+		
+		/**
+		 * Reads the next observation.
+		 *
+		 * @return The next observation, or null at the end of the file.
+		 */
+		public O read()
+		throws IOException, FileFormatException
+		{
+			if (!inSequence) {
+				for (st.nextToken(); st.ttype == StreamTokenizer.TT_EOL;
+				st.nextToken());
+				if (st.ttype == StreamTokenizer.TT_EOF)
+					return null;
+				
+				st.pushBack();
+				inSequence = true;
+				sequenceStart = true;
+				sequences++;
+			} else
+				sequenceStart = false;
+			
+			O o = or.read(st);
+			
+			if (st.nextToken() == '\\') { /* New lines can be escaped by '\' */
+				if (st.nextToken() != StreamTokenizer.TT_EOL)
+					throw new FileFormatException("'\' token is not followed " +
+					"by a new line");
+				st.nextToken();
+			}
+			
+			if (st.ttype == StreamTokenizer.TT_EOF)
+				throw new FileFormatException("Unexpected token: EOF");
+			if (st.ttype == StreamTokenizer.TT_EOL)
+				inSequence = false;
+			else
+				st.pushBack();
+			
+			return o;
+		}
+		
+		
+		/**
+		 * Returns whether the last observation read is the first of its
+		 * sequence.
+		 */
+		public boolean isSequenceStart()
+		{
+			return sequenceStart;
+		}
+		
+		
+		/**
+		 * Returns the number of sequences started so far.
+		 */
+		public long getSequences()
+		{
+			return sequences;
+		}
+	}
+	
+	
 	/* Initialize the syntax table of a stream tokenizer */
 	static void initSyntaxTable(StreamTokenizer st)
 	{
@@ -1,5 +1,6 @@
 package be.ac.ulg.montefiore.run.jahmm.io;
 
+import java.nio.DoubleBuffer;
 import java.text.NumberFormat;
 import java.util.Collection;
 import java.util.LinkedHashMap;
@@ -18,7 +19,14 @@ public class OpdfVector implements Opdf<ObservationVector> {
 	
 	private static final long serialVersionUID = -6795564904406631043L;
 	
-	protected Map<Integer, Double> probs; // where Integer represents the integer form of the vector value in ObservationVector
+	protected Map<Integer, Double> probs; // where Integer represents the integer form of the vector value in ObservationVector; see getProbs()
+
+	/**
+	 * Probabilities by integer form of the vector value, read in place from a flat model file
+	 * instead of probs; null if probs is used.
+	 * @see HmmFlatReader
+	 */
+	protected transient DoubleBuffer values;
 
 	protected int NUM_OBSERVATION_DIM;
 
@@ -46,6 +54,34 @@ public class OpdfVector implements Opdf<ObservationVector> {
 		}
 	}
 	
+	/**
+	 * Emission PDF backed by a buffer, e.g. a region of a memory-mapped flat model file,
+	 * instead of a map: nothing is copied.
+	 * @param b_i b[i] where i is a state; read from index 0 to its limit
+	 */
+	public OpdfVector(DoubleBuffer b_i) {
+		values = b_i;
+		
+		NUM_VALUES = b_i.limit();
+		NUM_OBSERVATION_DIM = (int)(Math.log(NUM_VALUES) / Math.log(NUM_OBSERVATION_VALS));
+	}
+	
+	/**
+	 * Returns the probabilities by integer form of the vector value. For a
+	 * buffer backed PDF, they are copied from the buffer the first time.
+	 * @return the map of the probabilities
+	 */
+	protected synchronized Map<Integer, Double> getProbs() {
+		if (probs == null) {
+			Map<Integer, Double> copy = new LinkedHashMap<Integer, Double>();
+			for (int j = 0; j < NUM_VALUES; j++) {
+				copy.put(j, values.get(j));
+			}
+			probs = copy;
+		}
+		return probs;
+	}
+	
 	/**
 	 * Number of permutations that can be formed from binary values of each element of the vector
 	 * @return
@@ -90,9 +126,28 @@ public class OpdfVector implements Opdf<ObservationVector> {
 	@Override
 	public OpdfVector clone() {
 		OpdfVector clone = new OpdfVector();
-		clone.probs = new LinkedHashMap<Integer, Double>(this.probs);
+		if (values != null) {
+			clone.values = values.duplicate();
+		}
+		else {
+			clone.probs = new LinkedHashMap<Integer, Double>(getProbs());
+		}
+		clone.NUM_VALUES = NUM_VALUES;
+		clone.NUM_OBSERVATION_DIM = NUM_OBSERVATION_DIM;
 		return clone;
 	}
+	
+	/**
+	 * A buffer backed PDF is serialized as a map backed one.
+	 */
+	private Object writeReplace() {
+		if (values == null) {
+			return this;
+		}
+		double[] b_i = new double[NUM_VALUES];
+		values.duplicate().get(b_i);
+		return new OpdfVector(b_i);
+	}
 
 	@Override
 	public void fit(ObservationVector... o) {
@@ -123,7 +178,10 @@ public class OpdfVector implements Opdf<ObservationVector> {
 	@Override
 	public double probability(ObservationVector obs) {
 		int val = getIntegerEquivalent(obs.values(), NUM_OBSERVATION_VALS);
-		return probs.get(val);
+		if (values != null) {
+			return values.get(val);
+		}
+		return getProbs().get(val);
 	}
 	
 	public static double EPSILON = 1e-10;
@@ -134,7 +192,10 @@ public class OpdfVector implements Opdf<ObservationVector> {
 	 * @return
 	 */
 	public double probability(int k) {
-		Double prob = probs.get(k);
+		if (values != null) {
+			return (k >= 0 && k < NUM_VALUES) ? values.get(k) : EPSILON;
+		}
+		Double prob = getProbs().get(k);
 		
 		if (prob == null) { // means vector value was never encountered before, and so the count is theoretically 0
 			return EPSILON; // using Laplace smoothing to avoid multiplication by zero
@@ -2,6 +2,7 @@ package context.arch;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.UnknownHostException;
@@ -320,6 +321,19 @@ public class BaseObject implements MessageHandler, CommunicationsHandler {
 		return parser.encodeData(communicationData);
 	}
 
+	/**
+	 * Stub method that encodes the given data to a writer using ParserObject
+	 *
+	 * @param communicationData Data to be encoded
+	 * @param out Writer to write the encoded data to
+	 * @exception context.arch.comm.language.EncodeException thrown if the parser can't encode the given data
+	 * @exception context.arch.comm.language.InvalidEncoderException thrown if the parser can't create the necessary encoder
+	 * @see context.arch.comm.language.ParserObject#encodeData(context.arch.comm.DataObject, java.io.Writer)
+	 */
+	public void encodeData(DataObject communicationData, Writer out) throws EncodeException, InvalidEncoderException {
+		parser.encodeData(communicationData, out);
+	}
+
 	/**
 	 * Method that submits a user request for polling/subscription.  The request
 	 * is in the form of a DataObject.  It is encoded, sent out and the reply is
@@ -1376,6 +1390,9 @@ public class BaseObject implements MessageHandler, CommunicationsHandler {
 		if (methodType.equals(AbstractSubscriber.SUBSCRIPTION_CALLBACK)) {
 			return userCallback(data);
 		}
+		if (methodType.equals(AbstractSubscriber.SUBSCRIPTION_CALLBACKS)) {
+			return userCallbacks(data);
+		}
 		if (methodType.equals(Constants.QUERY_VERSION)) {
 			return queryVersion(data);
 		}
@@ -1472,6 +1489,28 @@ public class BaseObject implements MessageHandler, CommunicationsHandler {
 		return new DataObject(Subscriber.SUBSCRIPTION_CALLBACK_REPLY,v);
 	}
 
+	/**
+	 * This method is called when a message containing several callbacks is
+	 * received: a widget sends the callbacks of one update to all the
+	 * subscriptions of this object in one message. Each callback is handled
+	 * by userCallback, and the replies are returned together.
+	 *
+	 * @param data DataObject containing the SUBSCRIPTION_CALLBACK requests
+	 * @return DataObject containing the SUBSCRIPTION_CALLBACK_REPLY replies
+	 * @see #userCallback(context.arch.comm.DataObject)
+	 * @see context.arch.widget.CallbackDispatcher
+	 */
+	public DataObject userCallbacks(DataObject data) {
+		debugprintln(DEBUG, "\nBaseObject <userCallbacks> get batched subscription notifications");
+		DataObjects v = new DataObjects();
+		for (DataObject callback : data.getChildren()) {
+			if (AbstractSubscriber.SUBSCRIPTION_CALLBACK.equals(callback.getName())) {
+				v.addElement(userCallback(callback));
+			}
+		}
+		return new DataObject(AbstractSubscriber.SUBSCRIPTION_CALLBACKS_REPLY, v);
+	}
+
 	/**
 	 * Returns the list of handlers this object made. A handler is defined
 	 * for a subscription to a widget, or the discoverer
@@ -2416,6 +2455,20 @@ public class BaseObject implements MessageHandler, CommunicationsHandler {
 		myLease = lease;
 	}
 
+	/**
+	 * Sets how this object runs its incoming requests, independent requests
+	 * and multicast messages, independently of the other objects of the process.
+	 *
+	 * @param mode One of the EXECUTION_ constants of CommunicationsExecutors
+	 * @see context.arch.comm.CommunicationsExecutors
+	 * @see context.arch.comm.CommunicationsObject#DEFAULT_EXECUTION_MODE
+	 */
+	public void setExecutionMode(String mode) {
+		if (communications != null) {
+			communications.setExecutionMode(mode);
+		}
+	}
+
 	/** Print a message if the DEBUG mode is active
 	 *
 	 * @param s Any object, even null
@@ -0,0 +1,170 @@
+package context.arch.comm;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class creates the executors a CommunicationsObject can use to run
+ * incoming requests, independent (asynchronous) client requests and
+ * multicast messages.
+ *
+ * Three execution modes are available:
+ * <ul>
+ * <li>EXECUTION_THREAD_PER_REQUEST: the historical behaviour, a new thread
+ * per incoming request and the ClientsPool for independent requests;</li>
+ * <li>EXECUTION_BOUNDED_POOL: a bounded pool of platform threads, rejecting
+ * the tasks when the pool and its queue are full;</li>
+ * <li>EXECUTION_VIRTUAL_THREADS: a virtual thread per task, when the Java
+ * runtime provides them (Java 21 and later), otherwise a pool of daemon
+ * threads growing on demand.</li>
+ * </ul>
+ *
+ * A rejected task is never run by the calling thread, which may be the thread
+ * accepting connections or the selector of the NIOServerSocket: the servers
+ * answer the rejected requests with 503 Service Unavailable, multicast messages
+ * are dropped and independent requests go to the ClientsPool.
+ *
+ * The mode is set per BaseObject, or for all of them with
+ * CommunicationsObject.DEFAULT_EXECUTION_MODE.
+ *
+ * @see context.arch.comm.CommunicationsObject#setExecutionMode(String)
+ * @see context.arch.BaseObject#setExecutionMode(String)
+ */
+public class CommunicationsExecutors {
+
+	/**
+	 * A new thread per incoming request, the ClientsPool for independent requests
+	 */
+	public static final String EXECUTION_THREAD_PER_REQUEST = "threadPerRequest";
+
+	/**
+	 * A bounded pool of platform threads
+	 */
+	public static final String EXECUTION_BOUNDED_POOL = "boundedPool";
+
+	/**
+	 * A virtual thread per task, if the Java runtime provides them
+	 */
+	public static final String EXECUTION_VIRTUAL_THREADS = "virtualThreads";
+
+	/**
+	 * The default number of threads of the bounded pool
+	 */
+	public static int DEFAULT_POOL_THREADS = 32;
+
+	/**
+	 * The default number of tasks waiting for a thread of the bounded pool
+	 */
+	public static int DEFAULT_POOL_QUEUE_SIZE = 1024;
+
+	/**
+	 * Creates the executor of the given execution mode.
+	 *
+	 * @param mode One of the EXECUTION_ constants
+	 * @return the executor, or null for EXECUTION_THREAD_PER_REQUEST
+	 * @exception IllegalArgumentException if the mode is unknown
+	 */
+	public static ExecutorService create(String mode) {
+		if (mode == null || mode.equals(EXECUTION_THREAD_PER_REQUEST)) {
+			return null;
+		}
+		if (mode.equals(EXECUTION_BOUNDED_POOL)) {
+			return newBoundedPool(DEFAULT_POOL_THREADS, DEFAULT_POOL_QUEUE_SIZE);
+		}
+		if (mode.equals(EXECUTION_VIRTUAL_THREADS)) {
+			return newVirtualThreadExecutor();
+		}
+		throw new IllegalArgumentException("CommunicationsExecutors unknown execution mode: " + mode);
+	}
+
+	/**
+	 * Creates a bounded pool of daemon platform threads. When all threads are
+	 * busy and the queue is full, the task is rejected with a
+	 * RejectedExecutionException.
+	 *
+	 * @param threads Number of threads
+	 * @param queueSize Number of tasks waiting for a thread
+	 * @return the executor
+	 */
+	public static ExecutorService newBoundedPool(int threads, int queueSize) {
+		threads = Math.max(1, threads);
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+				new DaemonThreadFactory("comm-pool"),
+				new ThreadPoolExecutor.AbortPolicy());
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Creates an executor starting a virtual thread per task. Virtual threads
+	 * only exist from Java 21: the executor is looked up by reflection, and on
+	 * older runtimes a pool of daemon threads growing on demand is returned.
+	 *
+	 * @return the executor
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (Exception e) {
+			System.out.println("CommunicationsExecutors virtual threads not available, using a cached thread pool: " + e);
+			return Executors.newCachedThreadPool(new DaemonThreadFactory("comm-cached"));
+		}
+	}
+
+	/**
+	 * Runs the task with the given executor, or in a new thread if the
+	 * executor is null.
+	 *
+	 * @param executor The executor, may be null
+	 * @param task The task to run
+	 * @exception RejectedExecutionException if the executor is saturated or shut down
+	 */
+	public static void execute(Executor executor, Runnable task) throws RejectedExecutionException {
+		if (executor == null) {
+			new Thread(task).start();
+		}
+		else {
+			executor.execute(task);
+		}
+	}
+
+	/**
+	 * Returns whether tasks are waiting for a thread of the executor. A thread
+	 * idling on a persistent connection then gives it up for them.
+	 *
+	 * @param executor The executor, may be null
+	 * @return true if the executor is a pool with queued tasks
+	 */
+	public static boolean hasWaitingTasks(Executor executor) {
+		return executor instanceof ThreadPoolExecutor && !((ThreadPoolExecutor) executor).getQueue().isEmpty();
+	}
+
+	/**
+	 * Names the threads and makes them daemon, so that they don't keep the
+	 * JVM alive.
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private String prefix;
+		private int count = 0;
+
+		private DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + "#" + (count++));
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+}
@@ -6,8 +6,14 @@ import context.arch.comm.protocol.ProtocolException;
 import context.arch.comm.protocol.RequestData;
 import context.arch.comm.protocol.HTTPServerSocket;
 import context.arch.comm.protocol.HTTPClientSocket;
+import context.arch.comm.protocol.HTTPConnection;
+import context.arch.comm.protocol.HTTPConnectionPool;
+import context.arch.comm.protocol.MessageBuffer;
 import context.arch.comm.protocol.HTTPMulticastUDPSocket;
 import context.arch.comm.language.MessageHandler;
+import context.arch.comm.language.BinaryDecoder;
+import context.arch.comm.language.BinaryEncoder;
+import context.arch.comm.language.XMLEncoder;
 import context.arch.comm.language.DecodeException;
 import context.arch.comm.language.EncodeException;
 import context.arch.comm.language.InvalidDecoderException;
@@ -17,16 +23,23 @@ import context.arch.MethodException;
 import context.arch.InvalidMethodException;
 import context.arch.discoverer.Discoverer;
 import context.arch.util.Error;
+import context.arch.comm.clients.Client;
 import context.arch.comm.clients.ClientsPool;
 import context.arch.comm.clients.IndependentCommunication;
 import context.arch.BaseObject;
 
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.net.Socket;
 import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.Writer;
 import java.net.DatagramPacket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This class handles the network communications for the calling class.
@@ -80,6 +93,12 @@ public class CommunicationsObject {
 	 */
 	public static final String HTTP_CLIENT = "context.arch.comm.protocol.HTTPClientSocket";
 
+	/**
+	 * The non-blocking (NIO) HTTP server protocol class. It serves all the
+	 * connections with one selector thread and a bounded pool of workers.
+	 */
+	public static final String NIO_SERVER = "context.arch.comm.protocol.NIOServerSocket";
+
 	/**
 	 * The default HTTP multicast server/client protocol class
 	 */
@@ -121,6 +140,41 @@ public class CommunicationsObject {
 	 */
 	//	private int poolClientsNumber;
 
+	/**
+	 * Whether requests are sent on persistent (keep-alive) connections by default.
+	 */
+	public static boolean DEFAULT_KEEP_ALIVE = true;
+
+	/**
+	 * The persistent connections to the remote servers, shared by all the
+	 * requests sent by this object. Null if connections are not kept alive.
+	 */
+	private HTTPConnectionPool connectionPool;
+
+	/**
+	 * The default execution mode of the incoming requests, independent requests
+	 * and multicast messages.
+	 *
+	 * @see context.arch.comm.CommunicationsExecutors
+	 */
+	public static String DEFAULT_EXECUTION_MODE = CommunicationsExecutors.EXECUTION_THREAD_PER_REQUEST;
+
+	/**
+	 * The executor running incoming requests, independent requests and multicast
+	 * messages. Null to use a thread per request and the ClientsPool.
+	 */
+	private volatile Executor executor;
+
+	/**
+	 * Whether the executor was created by this object, and must be shut down with it
+	 */
+	private boolean ownsExecutor = false;
+
+	/**
+	 * The constructor of the client class, looked up once
+	 */
+	private Constructor<?> clientConstructor;
+
 
 	/**
 	 * Basic constructor for CommunicationsObject using given
@@ -154,11 +208,14 @@ public class CommunicationsObject {
 		} else {
 			this.serverPort = serverPort;
 		}
+		if (DEFAULT_KEEP_ALIVE) {
+			connectionPool = new HTTPConnectionPool();
+		}
+		setExecutionMode(DEFAULT_EXECUTION_MODE);
 		// Starts the threaded clients pool
 		int nbClients = ((poolClientsNumber < 1) ? DEFAULT_POOL_CLIENTS_NUMBER : poolClientsNumber);
 		BaseObject.debugprintln(DEBUG, "CO constructor nb th=" + nbClients);
 		independentCom = new ClientsPool(nbClients, this); // the threaded communication client
-		independentCom.start();
 	}
 
 	/**
@@ -316,6 +373,20 @@ public class CommunicationsObject {
 		return handler.encodeData(message);
 	}
 
+	/**
+	 * This stub method calls the encodeData method in MessageHandler, writing
+	 * the encoded message directly to the given writer.
+	 *
+	 * @param message Message to be encoded in the form of a DataObject
+	 * @param out Writer to write the encoded message to
+	 * @exception context.arch.comm.language.EncodeException if the message can't be encoded
+	 * @exception context.arch.comm.language.InvalidEncoderException if the encoder can't be created
+	 * @see context.arch.comm.language.MessageHandler#encodeData(DataObject, Writer)
+	 */
+	public void encodeData(DataObject message, Writer out) throws EncodeException, InvalidEncoderException {
+		handler.encodeData(message, out);
+	}
+
 	/**
 	 * This method gets the communications protocol being used by the
 	 * object that implements the CommunicationsServer interface
@@ -386,9 +457,13 @@ public class CommunicationsObject {
 		}
 		else {
 			try {
-				client = (CommunicationsClient) Class.forName(clientClass)
-													 .getConstructor(new Class<?>[] {CommunicationsObject.class, String.class, Integer.class})
-													 .newInstance(new Object[] {this, host, port});
+				Constructor<?> constructor = clientConstructor;
+				if (constructor == null || !constructor.getDeclaringClass().getName().equals(clientClass)) {
+					constructor = Class.forName(clientClass)
+									   .getConstructor(new Class<?>[] {CommunicationsObject.class, String.class, Integer.class});
+					clientConstructor = constructor;
+				}
+				client = (CommunicationsClient) constructor.newInstance(new Object[] {this, host, port});
 			} catch (NoSuchMethodException nsme) {
 				System.out.println("CommunicationsObject NoSuchMethod: "+nsme);
 				throw new InvalidProtocolException(clientClass);
@@ -589,8 +664,82 @@ public class CommunicationsObject {
 		handler.handleIndependentReply(independentComm);
 	}
 
-	public void sendIndependentRequest(IndependentCommunication request){
-		independentCom.addRequest(request);
+	/**
+	 * This method sends an independent request: with the executor if this
+	 * object has one, otherwise with a Client thread of the ClientsPool.
+	 *
+	 * @param request The IndependentCommunication to send
+	 * @see context.arch.comm.clients.Client#send(CommunicationsObject, IndependentCommunication, String)
+	 */
+	public void sendIndependentRequest(final IndependentCommunication request){
+		Executor e = executor;
+		if (e == null) {
+			independentCom.addRequest(request);
+		}
+		else {
+			try {
+				e.execute(new Runnable() {
+					public void run() {
+						Client.send(CommunicationsObject.this, request, Thread.currentThread().getName());
+					}
+				});
+			} catch (RejectedExecutionException ree) {
+				// the executor is saturated: the request waits for a Client thread instead
+				independentCom.addRequest(request);
+			}
+		}
+	}
+
+	/**
+	 * Returns the pool of Client threads sending the independent requests
+	 * when there is no executor.
+	 *
+	 * @return the clients pool
+	 */
+	public ClientsPool getClientsPool() {
+		return independentCom;
+	}
+
+	/**
+	 * Returns the executor running incoming requests, independent requests
+	 * and multicast messages.
+	 *
+	 * @return the executor, or null if a thread per request and the ClientsPool are used
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Sets the executor running incoming requests, independent requests
+	 * and multicast messages. The executor is not shut down by this object.
+	 *
+	 * @param executor the executor, or null to use a thread per request and the ClientsPool
+	 */
+	public void setExecutor(Executor executor) {
+		shutdownExecutor();
+		this.executor = executor;
+		this.ownsExecutor = false;
+	}
+
+	/**
+	 * Sets the execution mode of incoming requests, independent requests
+	 * and multicast messages.
+	 *
+	 * @param mode One of the EXECUTION_ constants of CommunicationsExecutors
+	 * @see context.arch.comm.CommunicationsExecutors#create(String)
+	 */
+	public void setExecutionMode(String mode) {
+		shutdownExecutor();
+		this.executor = CommunicationsExecutors.create(mode);
+		this.ownsExecutor = (executor != null);
+	}
+
+	private void shutdownExecutor() {
+		if (ownsExecutor && executor instanceof ExecutorService) {
+			((ExecutorService) executor).shutdown();
+		}
+		ownsExecutor = false;
 	}
 
 	/**
@@ -622,6 +771,35 @@ public class CommunicationsObject {
 	 */
 	public void quit() {
 		server.quit();
+		if (connectionPool != null) {
+			connectionPool.close();
+		}
+		shutdownExecutor();
+	}
+
+	/**
+	 * Returns the pool of persistent connections used to send requests.
+	 *
+	 * @return the connection pool, or null if connections are not kept alive
+	 * @see context.arch.comm.protocol.HTTPConnectionPool
+	 */
+	public HTTPConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+
+	/**
+	 * Sets the pool of persistent connections used to send requests.
+	 * The previous pool, if any, is closed. Setting null disables keep-alive:
+	 * each request then opens and closes its own connection.
+	 *
+	 * @param connectionPool the connection pool, or null
+	 */
+	public void setConnectionPool(HTTPConnectionPool connectionPool) {
+		HTTPConnectionPool previous = this.connectionPool;
+		this.connectionPool = connectionPool;
+		if (previous != null && previous != connectionPool) {
+			previous.close();
+		}
 	}
 
 	/**
@@ -640,37 +818,141 @@ public class CommunicationsObject {
 	/**
 	 * This method handles an incoming request on the given socket and sends
 	 * a reply.  It should only be called by the underlying CommunicationsServer
-	 * object
+	 * object. With the HTTPServerSocket, the request is decoded directly from
+	 * the connection and the reply is encoded in a buffer written directly to
+	 * the socket, so that large messages are not copied into intermediate Strings.
 	 *
 	 * @param socket Socket on which the request is being received
 	 * @see context.arch.comm.language.MessageHandler#runMethod(String, DataObject)
+	 * @see #handleIncomingRequest(RequestData)
 	 */
 	public void handleIncomingRequest(Socket socket) {
+		RequestData data = null;
+		try {
+			data = server.stripRequestProtocol(socket);
+		} catch (ProtocolException pe) {
+			System.out.println("CommunicationsObject handleIncomingRequest Protocol: "+pe);
+		}
+
+		if (!(server instanceof HTTPServerSocket)) {
+			writeReply(socket, handleIncomingRequest(data));
+			return;
+		}
+
+		boolean binaryRequest = isBinaryRequest(data);
+		DataObject results = runRequest(data);
+		MessageBuffer encoded = MessageBuffer.get();
+		try {
+			encodeReply(results, binaryRequest, encoded);
+			((HTTPServerSocket) server).writeReply(socket, encoded);
+			BaseObject.debugprintln(DEBUG, "wrote a reply of " + encoded.size() + " characters to socket");
+			return;
+		} catch (EncodeException ee) {
+			System.out.println("CommunicationsObject handleIncomingRequest Encode: "+ee);
+			ee.printStackTrace();
+		} catch (InvalidEncoderException iee) {
+			System.out.println("CommunicationsObject handleIncomingRequest InvalidEncoder: "+iee);
+		} catch (IOException ioe) {
+			System.out.println("CommunicationsObject handleIncomingRequest IO: "+ioe);
+			return;
+		}
+		try {
+			((HTTPServerSocket) server).writeFatalReply(socket);
+		} catch (IOException ioe) {
+			System.out.println("CommunicationsObject handleIncomingRequest IO: "+ioe);
+		}
+	}
+
+	/**
+	 * Writes a reply with the protocol already added to the socket
+	 */
+	private void writeReply(Socket socket, String reply) {
+		try {
+			PrintWriter printWriter = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), HTTPConnection.WIRE_CHARSET));
+			printWriter.println(reply);
+			printWriter.flush();
+			BaseObject.debugprintln(DEBUG, "wrote this reply to socket: " +reply);
+		} catch (IOException ioe) {
+			System.out.println("CommunicationsObject handleIncomingRequest IO: "+ioe);
+			// what do I do here??
+		}
+	}
+
+	/**
+	 * This method handles a request already stripped of its protocol and
+	 * returns the reply to send, with the protocol added. It is used by
+	 * CommunicationsServer objects that do the reading and writing themselves
+	 * (for instance without a blocking Socket).
+	 *
+	 * @param data The request with the protocol stripped away, or null if
+	 * the protocol couldn't be stripped
+	 * @return the reply with the protocol added, or the fatal message of the
+	 * server if the reply can't be encoded
+	 * @see context.arch.comm.CommunicationsServer#addReplyProtocol(String)
+	 */
+	public String handleIncomingRequest(RequestData data) {
 		String reply = null;
-		DataObject results = null;
-		String encoded = null;
+		boolean binaryRequest = isBinaryRequest(data);
+		DataObject results = runRequest(data);
 		try {
-			RequestData data = server.stripRequestProtocol(socket);
+			MessageBuffer encoded = MessageBuffer.get();
+			encodeReply(results, binaryRequest, encoded);
+
+			reply = server.addReplyProtocol(encoded.toString());
+			BaseObject.debugprintln(DEBUG, "reply = "+reply);
+
+		} catch (EncodeException ee) {
+			System.out.println("CommunicationsObject handleIncomingRequest Encode: "+ee);
+			ee.printStackTrace();
+			reply = server.getFatalMessage();
+		} catch (InvalidEncoderException iee) {
+			System.out.println("CommunicationsObject handleIncomingRequest InvalidEncoder: "+iee);
+			reply = server.getFatalMessage();
+		} catch (ProtocolException ee) {
+			System.out.println("CommunicationsObject handleIncomingRequest Protocol: "+ee);
+			reply = server.getFatalMessage();
+		}
+		return reply;
+	}
 
+	/**
+	 * Returns whether the request is in the binary language, without consuming it
+	 */
+	private boolean isBinaryRequest(RequestData data) {
+		return data != null && RequestData.DECODE.equals(data.getType())
+				&& BinaryDecoder.isBinary(data.getData());
+	}
+
+	/**
+	 * Decodes the request and runs the requested method. The reader of the
+	 * request is closed once decoded, which frees the connection for the next
+	 * request.
+	 *
+	 * @param data The request with the protocol stripped away, may be null
+	 * @return the results of the method, or the error message of the server
+	 */
+	private DataObject runRequest(RequestData data) {
+		if (data == null) {
+			return server.getErrorMessage();
+		}
+		DataObject results = null;
+		try {
 			BaseObject.debugprintln(DEBUG, "\n\nCommObject data received " + data.getData());
 
 			DataObject decoded = null;
 			if (data.getType().equals(RequestData.DECODE)) {
-				decoded = decodeData(data.getData());
+				try {
+					decoded = decodeData(data.getData());
+				} finally {
+					closeRequest(data);
+				}
 			}
 
 			BaseObject.debugprintln(DEBUG, "CommunicationsObject decoded = "+decoded);
 
-//			System.out.println();
-//			System.out.println("decoded");
-//			System.out.println("CommunicationsObject.handleIncomingRequest decoded DataObject: "+decoded);
-//			System.out.println();
 			results = runMethod(data.getLine(), decoded);
 			BaseObject.debugprintln(DEBUG, "CommunicationsObject result is "+results);
 
-		} catch (ProtocolException pe) {
-			System.out.println("CommunicationsObject handleIncomingRequest Protocol: "+pe);
-			results = server.getErrorMessage();
 		} catch (DecodeException de) {
 			System.out.println("CommunicationsObject handleIncomingRequest Decode: "+de);
 			results = server.getErrorMessage();
@@ -684,32 +966,30 @@ public class CommunicationsObject {
 			System.out.println("CommunicationsObject handleIncomingRequest Method: "+me);
 			results = server.getErrorMessage();
 		}
+		return results;
+	}
 
-		try {
-			encoded = encodeData(results);
-
-			reply = server.addReplyProtocol(encoded);
-			BaseObject.debugprintln(DEBUG, "reply = "+reply);
-
-		} catch (EncodeException ee) {
-			System.out.println("CommunicationsObject handleIncomingRequest Encode: "+ee);
-			ee.printStackTrace();
-			reply = server.getFatalMessage();
-		} catch (InvalidEncoderException iee) {
-			System.out.println("CommunicationsObject handleIncomingRequest InvalidEncoder: "+iee);
-			reply = server.getFatalMessage();
-		} catch (ProtocolException ee) {
-			System.out.println("CommunicationsObject handleIncomingRequest Protocol: "+ee);
-			reply = server.getFatalMessage();
+	private void closeRequest(RequestData data) {
+		if (data.getData() == null) {
+			return;
 		}
 		try {
-			PrintWriter printWriter = new PrintWriter(socket.getOutputStream());
-			printWriter.println(reply);
-			printWriter.flush();
-			BaseObject.debugprintln(DEBUG, "wrote this reply to socket: " +reply);
+			data.getData().close();
 		} catch (IOException ioe) {
 			System.out.println("CommunicationsObject handleIncomingRequest IO: "+ioe);
-			// what do I do here??
+		}
+	}
+
+	/**
+	 * Encodes the reply in the buffer. A client that sent XML gets an XML
+	 * reply, even if this object encodes in the binary language.
+	 */
+	private void encodeReply(DataObject results, boolean binaryRequest, MessageBuffer out) throws EncodeException, InvalidEncoderException {
+		handler.encodeData(results, out);
+		if (!binaryRequest && out.startsWith(BinaryEncoder.MAGIC)) {
+			// the client sent XML and may not understand the binary language: reply in XML
+			out.reset();
+			new XMLEncoder().encodeData(results, (Writer) out);
 		}
 	}
 
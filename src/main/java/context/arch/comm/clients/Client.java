@@ -35,6 +35,12 @@ public class Client extends ClientsPool {
 	 */
 	protected IndependentCommunication indComm;
 
+	/**
+	 * The pool whose queues the Client takes the requests from, null if the
+	 * requests are given with setRequest
+	 */
+	protected ClientsPool pool;
+
 
 	/** 
 	 * Creates new Client.
@@ -47,40 +53,51 @@ public class Client extends ClientsPool {
 		this.comm = commObject;
 	}
 
+	/**
+	 * Creates a Client of the given pool, taking its requests from the
+	 * queues of the pool.
+	 *
+	 * @param pool The pool of the Client
+	 * @param name The name of the client
+	 */
+	public Client (ClientsPool pool, String name) {
+		this(pool.comm, name);
+		this.pool = pool;
+		setName(name);
+	}
+
 	/**
 	 * The method called to start the Client.
-	 * It waits for the next IndependentCommunication object sent by the ClientsPool,
-	 * and then sends the RequestObject. It adds the reply and the exception occured
+	 * If the Client belongs to a pool, it takes the next request from the
+	 * queues of the pool until it is interrupted. Otherwise, it waits for the
+	 * next IndependentCommunication object given with setRequest.
+	 * It then sends the RequestObject. It adds the reply and the exception occured
 	 * in the same IndependentCommunication object. If an IndependentCommunications 
 	 * object is defined in the IndependentCommunication object, it adds the last
 	 * in the groups and calls the handleIndependentReply of the BaseObject.
-	 * It adds itself back to the pool of thread of the ClientsPool and then it 
-	 * waits for the next IndependentCommunication.
+	 *
+	 * @see context.arch.comm.clients.ClientsPool#addRequest(IndependentCommunication)
 	 */
 	public void run () {
+		if (pool != null) {
+			while (!isInterrupted()) {
+				try {
+					pool.sendNext(this);
+				} catch (InterruptedException ie) {
+					break;
+				} catch (RuntimeException e) {
+					System.out.println(id + " exception in run " + e);
+				}
+			}
+			debugprintln("\n" +id + " <run> stopped");
+			return;
+		}
 		while (true){
 			waitForRequest();
 			debugprintln("\n\nThread will send its message" + this.id);
-			try {
-				RequestObject ro = indComm.getRequest();
-				RequestData reply = comm.sendRequest (ro);
-
-				debugprintln("\nThread has got the reply" + this.id);
-				indComm.setNonDecodedReply (reply);
-			}
-			catch (Exception e) {
-				System.out.println(id + " exception in run " + e);
-				indComm.addException(e);
-			}
-
-			// sends the results to the baseobject
-			sendReply();
-			// adds this thread back to the pool or not
-			synchronized (ClientsPool.threads) {
-				if (! (ClientsPool.threads.size () >= ClientsPool.clientsNumber)) {
-					ClientsPool.threads.put(this);
-				}
-			}
+			// sends the request and the results to the baseobject
+			send(comm, indComm, id);
+			releaseRequest();
 			debugprintln("\n" +id + " <run> end");
 		}
 	}
@@ -137,6 +154,32 @@ public class Client extends ClientsPool {
 		//System.out.println(" The sendReply of" + id + " has ended");
 	}
 
+	/**
+	 * This method sends the RequestObject of the given IndependentCommunication,
+	 * adds the reply or the exception to it, and sends it back to the BaseObject
+	 * if the response is required. It is used by the Client threads of the pool,
+	 * and by the executor of the CommunicationsObject when it has one.
+	 *
+	 * @param commObject The communications object sending the request
+	 * @param independentCommunication The IndependentCommunication to send
+	 * @param name The name of the caller, for error messages
+	 * @see context.arch.comm.CommunicationsObject#sendIndependentRequest(IndependentCommunication)
+	 */
+	public static void send(CommunicationsObject commObject, IndependentCommunication independentCommunication, String name) {
+		try {
+			RequestObject ro = independentCommunication.getRequest();
+			RequestData reply = commObject.sendRequest (ro);
+			independentCommunication.setNonDecodedReply (reply);
+		}
+		catch (Exception e) {
+			System.out.println(name + " exception in run " + e);
+			independentCommunication.addException(e);
+		}
+		if (independentCommunication.getResponseRequired ()){ //Send the response to the handler of communications
+			commObject.handleIndependentReply(independentCommunication);
+		}
+	}
+
 	/**
 	 * This method allows to clear the IndependentCommunication of the Client
 	 */
@@ -188,6 +231,10 @@ public class Client extends ClientsPool {
   }
 	 */
 
+	public String toString() {
+		return "Client " + id;
+	}
+
 	/** Print a message if the DEBUG mode is active
 	 *
 	 * @param s Any object, even null
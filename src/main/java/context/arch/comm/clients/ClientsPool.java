@@ -6,24 +6,41 @@
 
 package context.arch.comm.clients;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import context.arch.comm.CommunicationsObject;
-import context.arch.util.SynchFIFO;
+import context.arch.comm.RequestObject;
+import context.arch.util.BoundedWorkQueue;
 
 /**
  * This class defines a pool of threads that can handle a communication.
  * When a BaseObject wants to send an asynchronous message to another CTK object,
  * it creates the RequestObject, added it to a IndependentCommunication object,
  * which is the parameter of the BaseObject.independentUserRequest() call.
- * This IndependentCommunication is added to a synchronized FIFO vector (SynchFIFO
- * object) from which the ClientsPool get the request to send.
+ * This IndependentCommunication is added to the queue of its destination
+ * (host and port of the request), a bounded lock-free FIFO (BoundedWorkQueue).
  *
- * Then, as soon as a IndependentCommunication is added to the SynchFIFO, the ClientsPool object 
- * removes it to give it to a thread (Client object) from the pool. 
- * When a Client object is asked to handle an IndependentCommunication, it is
- * also removed from the pool.
+ * The Client threads of the pool take the requests from the queues of the
+ * destinations that have some, in turn. At most clientsPerDestination Clients
+ * send requests to the same destination at the same time, so that a host that
+ * doesn't answer can't hold all the Clients while requests to other hosts wait.
+ * A destination is forgotten once its queue is empty and no Client sends to it,
+ * so that at most DEFAULT_MAX_DESTINATIONS destinations have requests at the
+ * same time, however many are contacted over the life of the pool.
  * The Client object sends the request to the given CTK object, and get the 
  * reply and the exceptions.
  *
+ * When the queue of a destination is full, the overflow policy applies: the
+ * caller waits for room (OVERFLOW_BLOCK), the oldest request of the queue is
+ * dropped (OVERFLOW_DROP_OLDEST) or the new request is rejected (OVERFLOW_REJECT).
+ * A request dropped or rejected gets a RejectedExecutionException and is sent
+ * back to the BaseObject handleIndependentReply method, if a response is required.
+ *
  * In order for the BaseObject to get the reply, the IndependentCommunication contains
  * also 2 useful attributes : the DataObject reply and the Vector exceptions.
  * Then the Client object adds the reply to the same object it gets as well as 
@@ -52,17 +69,27 @@ import context.arch.util.SynchFIFO;
  *
  * @author  Agathe
  * @see context.arch.comm.clients.Client
- * @see context.arch.util.SynchFIFO
+ * @see context.arch.util.BoundedWorkQueue
  */
 public class ClientsPool extends Thread {
 
   /** Debug flag*/
   public static boolean DEBUG = false;
-  
+
+  /**
+   * Overflow policy: the caller waits until there is room in the queue
+   */
+  public static final int OVERFLOW_BLOCK = 0;
+
+  /**
+   * Overflow policy: the oldest request of the queue is dropped
+   */
+  public static final int OVERFLOW_DROP_OLDEST = 1;
+
   /**
-   * The synchronized vector of threads
+   * Overflow policy: the new request is rejected
    */
-  protected static SynchFIFO threads = new SynchFIFO();
+  public static final int OVERFLOW_REJECT = 2;
   
   /**
    * The number of authorized clients
@@ -73,6 +100,28 @@ public class ClientsPool extends Thread {
    * The default number of clients
    */
   public static int DEFAULT_CLIENTS_NUMBER = 6;
+
+  /**
+   * The default maximum number of requests waiting for the same destination
+   */
+  public static int DEFAULT_DESTINATION_CAPACITY = 512;
+
+  /**
+   * The default maximum number of destinations with requests waiting or
+   * being sent. A request to a new destination beyond it is rejected.
+   */
+  public static int DEFAULT_MAX_DESTINATIONS = 256;
+
+  /**
+   * The default maximum number of Clients sending to the same destination
+   * at the same time
+   */
+  public static int DEFAULT_CLIENTS_PER_DESTINATION = 2;
+
+  /**
+   * The default overflow policy
+   */
+  public static int DEFAULT_OVERFLOW_POLICY = OVERFLOW_BLOCK;
   
   /**
    * The Communications object
@@ -80,10 +129,30 @@ public class ClientsPool extends Thread {
   public CommunicationsObject comm;
 
   /**
-   * This FIFO object contains the IndependentCommunication object that 
-   * contain the RequestObject to send
+   * The Client threads of the pool
+   */
+  protected Client[] clients;
+
+  /**
+   * key = host:port => requests waiting for this destination
+   */
+  protected Map<String, Destination> destinations;
+
+  /**
+   * The destinations having requests waiting and a Client available,
+   * each at most once
    */
-  protected SynchFIFO fifo;
+  protected BoundedWorkQueue<Destination> ready;
+
+  private int destinationCapacity = DEFAULT_DESTINATION_CAPACITY;
+  private int clientsPerDestination = DEFAULT_CLIENTS_PER_DESTINATION;
+  private int overflowPolicy = DEFAULT_OVERFLOW_POLICY;
+
+  private AtomicLong submitted = new AtomicLong();
+  private AtomicLong sent = new AtomicLong();
+  private AtomicLong dropped = new AtomicLong();
+  private AtomicLong rejected = new AtomicLong();
+  private AtomicLong blocked = new AtomicLong();
   
   /** 
    * Creates a generic ClientsPool. It creates the pool of numberOfClients threads.
@@ -97,11 +166,14 @@ public class ClientsPool extends Thread {
     
 //    if (DEBUG) commObject.println("ClientsPool constructor nb th=" + clientsNumber);
     
-    fifo = new SynchFIFO();
+    destinations = new ConcurrentHashMap<String, Destination>();
+    ready = new BoundedWorkQueue<Destination>(Math.max(1, DEFAULT_MAX_DESTINATIONS));
     // start clients
+    clients = new Client[clientsNumber];
     for (int i = 0; i < clientsNumber; i++) {
-      Client c = new Client(comm, "client#" + i);
-      threads.put(c);
+      Client c = new Client(this, "client#" + i);
+      clients[i] = c;
+      c.setDaemon(true);
       c.start ();
     }
   }
@@ -120,69 +192,359 @@ public class ClientsPool extends Thread {
    * Creates a new empty ClientsPool.
    */
   public ClientsPool (){
-    fifo = null;
     comm = null;
   }
   
   /**
-   * The run method called to start the thread.
-   * The ClientsPool waits for a new IndependentCommunication object in the
-   * fifo object.
-   * As soon as a new one is added, the ClientsPool waits for the next available
-   * Client to handle the request.
+   * The Client threads take the requests from the queues themselves: there
+   * is nothing left to dispatch, this thread ends immediately. It is kept
+   * for the code starting the pool.
    * 
-   * @see context.arch.util.SynchFIFO
    * @see context.arch.comm.clients.Client
    */
   public void run(){
-    while (true){
-      // Get the next request or is blocked waiting for the next
-      IndependentCommunication request = (IndependentCommunication) fifo.getNext ();
-      // The client that will be in charge of the request
-      Client c = null;
-      c = (Client) threads.getNext();
-//      String clientId = c.id; // not being used
-      c.setRequest(request);
-    }
   }
   
   
   /**
    * This method is called to add an IndependentCommunication object containing
-   * the RequestObject to send, to the fifo object.
+   * the RequestObject to send, to the queue of its destination. If the queue
+   * is full, the overflow policy applies.
    *
    * @param request The IndependentCommunication object containing the RequestObject
-   * @see context.arch.util.SynchFIFO
+   * @see #setOverflowPolicy(int)
    */
-  public synchronized void addRequest(IndependentCommunication request) {
-    fifo.put (request);
+  public void addRequest(IndependentCommunication request) {
+    submitted.incrementAndGet();
+    Destination destination = getDestination(request.getRequest());
+    if (destination == null) {
+      rejected.incrementAndGet();
+      reject(request, "too many destinations");
+      return;
+    }
+    try {
+      enqueue(destination, request);
+    } finally {
+      destination.producers.decrementAndGet();
+      retire(destination); // if it was all sent meanwhile
+    }
+  }
+
+  /**
+   * Adds the request to the queue of its destination, applying the overflow
+   * policy, and schedules the destination
+   */
+  private void enqueue(Destination destination, IndependentCommunication request) {
+    if (!destination.queue.offer(request)) {
+      switch (overflowPolicy) {
+      case OVERFLOW_DROP_OLDEST:
+        do {
+          IndependentCommunication oldest = destination.queue.poll();
+          if (oldest != null) {
+            dropped.incrementAndGet();
+            reject(oldest, "queue full for " + destination.key);
+          }
+        } while (!destination.queue.offer(request));
+        break;
+      case OVERFLOW_REJECT:
+        rejected.incrementAndGet();
+        reject(request, "queue full for " + destination.key);
+        return;
+      default:
+        blocked.incrementAndGet();
+        debugprintln("ClientsPool <addRequest> queue full for " + destination.key);
+        try {
+          destination.queue.put(request);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          rejected.incrementAndGet();
+          reject(request, "interrupted");
+          return;
+        }
+      }
+    }
+    schedule(destination);
+  }
+
+  /**
+   * Returns the queue of the destination of the request, created if needed,
+   * and counts the caller as one of its producers until it decrements
+   * Destination.producers: the destination is not forgotten meanwhile.
+   *
+   * @return the destination, or null if there are already too many destinations
+   */
+  private Destination getDestination(RequestObject request) {
+    String key = request.getServerHostname() + ":" + request.getPort();
+    while (true) {
+      Destination destination = destinations.get(key);
+      if (destination == null) {
+        synchronized (destinations) {
+          destination = destinations.get(key);
+          if (destination == null) {
+            if (destinations.size() >= ready.capacity()) {
+              return null;
+            }
+            destination = new Destination(key, destinationCapacity);
+            destinations.put(key, destination);
+          }
+        }
+      }
+      destination.producers.incrementAndGet();
+      if (!destination.retired) {
+        return destination;
+      }
+      // forgotten in the meantime: a new one replaces it
+      destination.producers.decrementAndGet();
+    }
+  }
+
+  /**
+   * Forgets the destination if it has no request waiting, no Client sending
+   * to it and no producer adding to it
+   */
+  private void retire(Destination destination) {
+    if (!destination.queue.isEmpty() || destination.active.get() > 0) {
+      return;
+    }
+    synchronized (destinations) {
+      if (destination.producers.get() == 0 && destination.queue.isEmpty()
+          && destination.active.get() == 0 && !destination.scheduled.get()) {
+        // a producer counted after this check sees the flag and looks again
+        destination.retired = true;
+        destinations.remove(destination.key);
+      }
+    }
+  }
+
+  /**
+   * Adds the destination to the ready queue, if it has requests waiting, a
+   * Client slot available and is not there yet
+   */
+  private void schedule(Destination destination) {
+    if (destination.queue.isEmpty() || destination.active.get() >= clientsPerDestination) {
+      return;
+    }
+    if (destination.scheduled.compareAndSet(false, true)) {
+      // each destination is at most once in the ready queue: there is room
+      ready.offer(destination);
+    }
+  }
+
+  /**
+   * Sends the next request of a ready destination. Called in loop by the
+   * Client threads.
+   *
+   * @param client The Client sending the request
+   * @throws InterruptedException if the Client is interrupted while waiting
+   */
+  void sendNext(Client client) throws InterruptedException {
+    Destination destination = ready.take();
+    destination.scheduled.set(false);
+    // it may have been scheduled again since a Client took the last slot:
+    // that Client schedules it again when it is done
+    int active;
+    do {
+      active = destination.active.get();
+      if (active >= clientsPerDestination) {
+        return;
+      }
+    } while (!destination.active.compareAndSet(active, active + 1));
+    try {
+      IndependentCommunication request = destination.queue.poll();
+      if (request == null) {
+        return;
+      }
+      schedule(destination); // another Client may take the next request
+      try {
+        client.setRequest(request);
+        Client.send(comm, request, client.id);
+        sent.incrementAndGet();
+      } finally {
+        client.releaseRequest();
+      }
+    } finally {
+      destination.active.decrementAndGet();
+      schedule(destination);
+      retire(destination);
+    }
+  }
+
+  /**
+   * Sends the request back to the BaseObject with a RejectedExecutionException
+   */
+  private void reject(IndependentCommunication request, String reason) {
+    debugprintln("ClientsPool <reject> " + reason);
+    request.addException(new RejectedExecutionException("ClientsPool " + reason));
+    if (request.getResponseRequired() && comm != null) {
+      comm.handleIndependentReply(request);
+    }
   }
  
   
   /**
-   *
+   * Interrupts the Clients not sending a request
    */
   public void stopAllIdleClients (){
-    Object [] obj = threads.removeAll ();
-    for (int i = 0 ; i < obj.length ; i++){
-      ((Client) obj[i]).interrupt ();
+    if (clients == null) {
+      return;
+    }
+    for (int i = 0 ; i < clients.length ; i++){
+      if (!clients[i].getRequest()) {
+        clients[i].interrupt ();
+      }
     }
   }
-  
+
   /**
-   * to finish : add an array of the working Clients to interrupt them
+   * Returns the overflow policy applied when the queue of a destination is full
+   *
+   * @return one of the OVERFLOW_ constants
    */
-  /*public void stopAllClients(){
-    stopAllIdleClients ();
-    // Give the threads a quick chance to die
-    try {
-      Thread.sleep(1000);
+  public int getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  /**
+   * Sets the overflow policy applied when the queue of a destination is full
+   *
+   * @param overflowPolicy one of the OVERFLOW_ constants
+   */
+  public void setOverflowPolicy(int overflowPolicy) {
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  /**
+   * Sets the maximum number of Clients sending to the same destination at
+   * the same time
+   *
+   * @param clientsPerDestination the number of Clients, at least 1
+   */
+  public void setClientsPerDestination(int clientsPerDestination) {
+    this.clientsPerDestination = Math.max(1, clientsPerDestination);
+  }
+
+  public int getClientsPerDestination() {
+    return clientsPerDestination;
+  }
+
+  /**
+   * Sets the maximum number of requests waiting for the same destination.
+   * Applies to the destinations not seen yet.
+   *
+   * @param destinationCapacity the capacity of the queue of a destination
+   */
+  public void setDestinationCapacity(int destinationCapacity) {
+    this.destinationCapacity = Math.max(1, destinationCapacity);
+  }
+
+  public int getDestinationCapacity() {
+    return destinationCapacity;
+  }
+
+  /**
+   * Returns the number of requests waiting to be sent, for all destinations
+   *
+   * @return the queue depth
+   */
+  public int getQueueDepth() {
+    int depth = 0;
+    if (destinations != null) {
+      for (Destination destination : destinations.values()) {
+        depth += destination.queue.size();
+      }
+    }
+    return depth;
+  }
+
+  /**
+   * Returns the number of destinations with requests waiting or being sent
+   *
+   * @return the number of destinations
+   */
+  public int getDestinationCount() {
+    return (destinations == null) ? 0 : destinations.size();
+  }
+
+  /**
+   * Returns the number of requests waiting to be sent to the given destination
+   *
+   * @param hostname Host of the destination
+   * @param port Port of the destination
+   * @return the queue depth of the destination
+   */
+  public int getQueueDepth(String hostname, int port) {
+    Destination destination = (destinations == null) ? null : destinations.get(hostname + ":" + port);
+    return (destination == null) ? 0 : destination.queue.size();
+  }
+
+  public long getSubmittedCount() {
+    return submitted.get();
+  }
+
+  public long getSentCount() {
+    return sent.get();
+  }
+
+  /**
+   * Returns the number of requests dropped by OVERFLOW_DROP_OLDEST
+   *
+   * @return the number of dropped requests
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * Returns the number of requests rejected, by OVERFLOW_REJECT or because
+   * there were too many destinations
+   *
+   * @return the number of rejected requests
+   */
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * Returns the number of callers that waited for room, by OVERFLOW_BLOCK
+   *
+   * @return the number of blocked requests
+   */
+  public long getBlockedCount() {
+    return blocked.get();
+  }
+
+  /** Print a message if the DEBUG mode is active
+   *
+   * @param s Any object, even null
+   */
+  public void debugprintln(Object s){
+    if (DEBUG) {
+      System.out.println("" + s);
     }
-    catch (InterruptedException ie){}
-    //Stop all remaining Clients
-    synchronized (this.threads){
-      for (
+  }
+
+  public String toString() {
+    return "ClientsPool depth=" + getQueueDepth() + " - submitted=" + getSubmittedCount()
+    + " - sent=" + getSentCount() + " - dropped=" + getDroppedCount()
+    + " - rejected=" + getRejectedCount() + " - blocked=" + getBlockedCount();
+  }
+
+  /**
+   * The requests waiting for a host and port, the number of Clients sending
+   * to it and of callers adding requests to it
+   */
+  protected static class Destination {
+    final String key;
+    final BoundedWorkQueue<IndependentCommunication> queue;
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicInteger producers = new AtomicInteger();
+    final AtomicBoolean scheduled = new AtomicBoolean();
+    volatile boolean retired = false;
+
+    Destination(String key, int capacity) {
+      this.key = key;
+      this.queue = new BoundedWorkQueue<IndependentCommunication>(capacity);
     }
-  }*/
+  }
   
 }//end
@@ -0,0 +1,303 @@
+package context.arch.comm.language;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import context.arch.comm.DataObject;
+import context.arch.comm.DataObjects;
+
+/**
+ * This class decodes the messages encoded by the BinaryEncoder. Messages
+ * that don't start with the binary header are decoded with the SAX_XMLDecoder,
+ * so that a component using the binary language still understands the
+ * components using XML.
+ *
+ * @see context.arch.comm.language.BinaryEncoder
+ * @see context.arch.comm.language.ParserObject#BINARY_DECODER
+ */
+public class BinaryDecoder implements StreamDecoderInterface {
+
+	/**
+	 * Debug flag. Set to true to see debug messages.
+	 */
+	public static boolean DEBUG = false;
+
+	/**
+	 * The language for this class is binary
+	 */
+	public static final String LANGUAGE = BinaryEncoder.LANGUAGE;
+
+	/**
+	 * Maximum length in bytes of a string, to detect corrupted messages
+	 */
+	public static int MAX_STRING_LENGTH = 16 * 1024 * 1024;
+
+	private List<String> strings = new ArrayList<String>();
+	private byte[] buffer = new byte[256];
+
+	/**
+	 * Basic constructor
+	 */
+	public BinaryDecoder() {
+	}
+
+	/**
+	 * This method decodes the given message. Each character of the message
+	 * stands for one byte (ISO-8859-1), as produced by BinaryEncoder.encodeData.
+	 * If the message is not binary, it is decoded as XML.
+	 *
+	 * @param message Message to be decoded
+	 * @return the DataObject containing the decoded message
+	 * @exception context.arch.comm.language.DecodeException when the
+	 *		message can not be decoded
+	 */
+	public DataObject decodeData(Reader message) throws DecodeException {
+		int length = BinaryEncoder.MAGIC.length;
+		PushbackReader reader = new PushbackReader(message, length);
+		try {
+			char[] header = new char[length];
+			int read = 0;
+			while (read < length) {
+				int n = reader.read(header, read, length - read);
+				if (n < 0) {
+					break;
+				}
+				read += n;
+			}
+			boolean binary = read == length;
+			for (int i = 0; binary && i < length; i++) {
+				binary = header[i] == BinaryEncoder.MAGIC[i];
+			}
+			if (!binary) {
+				reader.unread(header, 0, read);
+				debugprintln("BinaryDecoder <decodeData> not binary, decoding XML");
+				return decodeXML(reader);
+			}
+			return decodeBody(new BufferedInputStream(new ReaderInputStream(reader)));
+		} catch (IOException ioe) {
+			System.out.println("BinaryDecoder decodeData IOException: "+ioe);
+			throw new DecodeException("BinaryDecoder: " + ioe);
+		}
+	}
+
+	/**
+	 * This method decodes the message read from the given stream. If the
+	 * message is not binary, it is decoded as XML encoded in UTF-8.
+	 *
+	 * @param in Stream containing the message to be decoded
+	 * @return the DataObject containing the decoded message
+	 * @exception context.arch.comm.language.DecodeException when the
+	 *		message can not be decoded
+	 */
+	public DataObject decodeData(InputStream in) throws DecodeException {
+		int length = BinaryEncoder.MAGIC.length;
+		PushbackInputStream stream = new PushbackInputStream(in, length);
+		try {
+			byte[] header = new byte[length];
+			int read = 0;
+			while (read < length) {
+				int n = stream.read(header, read, length - read);
+				if (n < 0) {
+					break;
+				}
+				read += n;
+			}
+			boolean binary = read == length;
+			for (int i = 0; binary && i < length; i++) {
+				binary = header[i] == BinaryEncoder.MAGIC[i];
+			}
+			if (!binary) {
+				stream.unread(header, 0, read);
+				debugprintln("BinaryDecoder <decodeData> not binary, decoding XML");
+				return decodeXML(new InputStreamReader(stream, BinaryEncoder.CHARSET));
+			}
+			return decodeBody(stream);
+		} catch (IOException ioe) {
+			System.out.println("BinaryDecoder decodeData IOException: "+ioe);
+			throw new DecodeException("BinaryDecoder: " + ioe);
+		}
+	}
+
+	/**
+	 * Decodes the message following the MAGIC header
+	 */
+	private DataObject decodeBody(InputStream in) throws DecodeException, IOException {
+		int version = in.read();
+		if (version != BinaryEncoder.VERSION) {
+			throw new DecodeException("BinaryDecoder: unsupported version " + version);
+		}
+		strings.clear();
+		return readElement(in);
+	}
+
+	private DataObject readElement(InputStream in) throws DecodeException, IOException {
+		String name = readString(in);
+		int flags = read(in);
+		String value = null;
+		if ((flags & BinaryEncoder.FLAG_VALUE) != 0) {
+			value = readString(in);
+		}
+		DataObjects children = new DataObjects();
+		if ((flags & BinaryEncoder.FLAG_CHILDREN) != 0) {
+			int count = readVarint(in);
+			for (int i = 0; i < count; i++) {
+				children.add(readElement(in));
+			}
+		}
+		return new DataObject(name, value, children);
+	}
+
+	private String readString(InputStream in) throws DecodeException, IOException {
+		int ref = readVarint(in);
+		if (ref >= BinaryEncoder.REF_TABLE) {
+			int index = ref - BinaryEncoder.REF_TABLE;
+			if (index >= strings.size()) {
+				throw new DecodeException("BinaryDecoder: unknown string reference " + ref);
+			}
+			return strings.get(index);
+		}
+
+		int length = readVarint(in);
+		if (length > MAX_STRING_LENGTH) {
+			throw new DecodeException("BinaryDecoder: string too long " + length);
+		}
+		if (buffer.length < length) {
+			buffer = new byte[Math.max(length, buffer.length * 2)];
+		}
+		int read = 0;
+		while (read < length) {
+			int n = in.read(buffer, read, length - read);
+			if (n < 0) {
+				throw new EOFException("BinaryDecoder: message ends in a string");
+			}
+			read += n;
+		}
+		String s = new String(buffer, 0, length, BinaryEncoder.CHARSET);
+		if (ref == BinaryEncoder.REF_NEW) {
+			strings.add(s);
+		}
+		return s;
+	}
+
+	private static int readVarint(InputStream in) throws DecodeException, IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = read(in);
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				if (value < 0) {
+					break;
+				}
+				return value;
+			}
+		}
+		throw new DecodeException("BinaryDecoder: invalid varint");
+	}
+
+	private static int read(InputStream in) throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException("BinaryDecoder: unexpected end of message");
+		}
+		return b;
+	}
+
+	private DataObject decodeXML(Reader message) throws DecodeException {
+		try {
+			return new SAX_XMLDecoder().decodeData(message);
+		} catch (InvalidDecoderException ide) {
+			System.out.println("BinaryDecoder XML fallback InvalidDecoder: "+ide);
+			throw new DecodeException("BinaryDecoder: no XML decoder");
+		}
+	}
+
+	/**
+	 * Returns whether the message of the given reader is binary, without
+	 * consuming it. The reader must support mark.
+	 *
+	 * @param message Reader of the message
+	 * @return true if the message starts with the binary header, false if it
+	 * doesn't or if the reader doesn't support mark
+	 */
+	public static boolean isBinary(Reader message) {
+		if (message == null || !message.markSupported()) {
+			return false;
+		}
+		try {
+			message.mark(BinaryEncoder.MAGIC.length);
+			try {
+				for (int i = 0; i < BinaryEncoder.MAGIC.length; i++) {
+					if (message.read() != BinaryEncoder.MAGIC[i]) {
+						return false;
+					}
+				}
+				return true;
+			} finally {
+				message.reset();
+			}
+		} catch (IOException ioe) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the language being used in decoding
+	 *
+	 * @return the language being used in decoding
+	 * @see #LANGUAGE
+	 */
+	public String getLanguage() {
+		return LANGUAGE;
+	}
+
+	/**
+	 * Returns the name of the class being used for decoding
+	 *
+	 * @return the name of the class being used for decoding
+	 */
+	public String getClassName() {
+		return this.getClass().getName();
+	}
+
+	private void debugprintln(Object s) {
+		if (DEBUG) {
+			System.out.println("" + s);
+		}
+	}
+
+	/**
+	 * Reads the characters of a Reader as bytes, one byte per character (ISO-8859-1)
+	 */
+	private static class ReaderInputStream extends InputStream {
+		private Reader reader;
+
+		private ReaderInputStream(Reader reader) {
+			this.reader = reader;
+		}
+
+		public int read() throws IOException {
+			int c = reader.read();
+			return (c < 0) ? -1 : (c & 0xFF);
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			char[] chars = new char[Math.min(len, 2048)];
+			int n = reader.read(chars, 0, chars.length);
+			for (int i = 0; i < n; i++) {
+				b[off + i] = (byte) chars[i];
+			}
+			return n;
+		}
+	}
+}
@@ -0,0 +1,307 @@
+package context.arch.comm.language;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import context.arch.comm.DataObject;
+import context.arch.comm.DataObjects;
+
+/**
+ * This class encodes DataObjects in a compact binary form, as an alternative
+ * to the XMLEncoder. It is selected with the encoder class of the ParserObject
+ * (BaseObject constructors), together with the BinaryDecoder on the other end.
+ *
+ * A message is made of the header (MAGIC followed by VERSION) and of the root
+ * element. Each element is written as:
+ * <ul>
+ * <li>its name, as a string reference;</li>
+ * <li>a flags byte (FLAG_VALUE, FLAG_CHILDREN);</li>
+ * <li>its value, as a string reference, if FLAG_VALUE is set;</li>
+ * <li>the number of children (varint) followed by the children, if FLAG_CHILDREN is set.</li>
+ * </ul>
+ * Strings are written once per message: a string reference is a varint that
+ * is either REF_NEW followed by a literal added to the string table, REF_LITERAL
+ * followed by a literal not added to the table (long values), or the index of
+ * the string in the table plus REF_TABLE. A literal is its length in UTF-8 bytes
+ * (varint) followed by these bytes. Varints are unsigned, 7 bits per byte, least
+ * significant group first.
+ *
+ * Repeated tag names (attributeNameValue, attributeName, CANVS, NCANVS...) and
+ * short repeated values therefore only cost one or two bytes after their first use.
+ *
+ * When the message has to be a String (EncoderInterface), each byte is mapped
+ * to the character of the same value (ISO-8859-1), so that the message keeps
+ * the same length in characters and in bytes on the wire.
+ *
+ * @see context.arch.comm.language.BinaryDecoder
+ * @see context.arch.comm.language.ParserObject#BINARY_ENCODER
+ */
+public class BinaryEncoder implements StreamEncoderInterface {
+
+	/**
+	 * Language used to encode
+	 */
+	public static final String LANGUAGE = "BINARY";
+
+	/**
+	 * First bytes of a binary message. The first byte can't start an XML message.
+	 */
+	public static final byte[] MAGIC = { 0x00, 'C', 'T', 'K' };
+
+	/**
+	 * Content type of the HTTP messages in the binary language
+	 */
+	public static final String CONTENT_TYPE = "application/x-ctk-binary";
+
+	/**
+	 * Returns whether the message starts with the binary header
+	 *
+	 * @param message Encoded message, may be null
+	 * @return true if the message is in the binary language
+	 */
+	public static boolean isBinary(CharSequence message) {
+		if (message == null || message.length() < MAGIC.length) {
+			return false;
+		}
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (message.charAt(i) != MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Version of the binary format, written after MAGIC
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * Flag set when the element has a value
+	 */
+	public static final int FLAG_VALUE = 0x01;
+
+	/**
+	 * Flag set when the element has children
+	 */
+	public static final int FLAG_CHILDREN = 0x02;
+
+	/**
+	 * String reference announcing a literal added to the string table
+	 */
+	public static final int REF_NEW = 0;
+
+	/**
+	 * String reference announcing a literal not added to the string table
+	 */
+	public static final int REF_LITERAL = 1;
+
+	/**
+	 * Offset of the string table indexes in the string references
+	 */
+	public static final int REF_TABLE = 2;
+
+	/**
+	 * Values longer than this number of characters are not added to the string table
+	 */
+	public static final int MAX_TABLE_VALUE_LENGTH = 64;
+
+	/**
+	 * Charset of the strings
+	 */
+	public static final String CHARSET = "UTF-8";
+
+	/**
+	 * Charset mapping each byte to one character
+	 */
+	public static final String BYTE_CHARSET = "ISO-8859-1";
+
+	private Map<String, Integer> strings = new HashMap<String, Integer>();
+
+	/**
+	 * Constructor for BinaryEncoder
+	 */
+	public BinaryEncoder() {
+	}
+
+	/**
+	 * Method used to encode data to a String, one character per byte
+	 *
+	 * @param data Data to be encoded
+	 * @return the encoded message
+	 * @exception context.arch.comm.language.EncodeException if the data can't be encoded
+	 * @see #encodeData(DataObject, OutputStream)
+	 */
+	public String encodeData(DataObject data) throws EncodeException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		encodeData(data, out);
+		try {
+			return out.toString(BYTE_CHARSET);
+		} catch (UnsupportedEncodingException uee) {
+			throw new EncodeException("BinaryEncoder: " + uee);
+		}
+	}
+
+	/**
+	 * Method used to encode data directly to a stream. The stream is flushed
+	 * but not closed.
+	 *
+	 * @param data Data to be encoded
+	 * @param out Stream to write the encoded message to
+	 * @exception context.arch.comm.language.EncodeException if the data can't be encoded or written
+	 */
+	public void encodeData(DataObject data, OutputStream out) throws EncodeException {
+		if (data == null) {
+			throw new EncodeException("data is null");
+		}
+		strings.clear();
+		OutputStream buffered = out;
+		if (!(out instanceof BufferedOutputStream) && !(out instanceof ByteArrayOutputStream)) {
+			buffered = new BufferedOutputStream(out);
+		}
+		try {
+			buffered.write(MAGIC);
+			buffered.write(VERSION);
+			writeElement(data, buffered);
+			buffered.flush();
+		} catch (IOException ioe) {
+			throw new EncodeException("BinaryEncoder: " + ioe);
+		}
+	}
+
+	/**
+	 * Method used to encode data directly to a writer, one character per
+	 * byte. The writer is flushed but not closed.
+	 *
+	 * @param data Data to be encoded
+	 * @param out Writer to write the encoded message to
+	 * @exception context.arch.comm.language.EncodeException if the data can't be encoded or written
+	 */
+	public void encodeData(DataObject data, Writer out) throws EncodeException {
+		encodeData(data, new CharOutputStream(out));
+	}
+
+	private void writeElement(DataObject elt, OutputStream out) throws EncodeException, IOException {
+		String name = elt.getName();
+		if (name == null) {
+			// same behaviour as the XMLEncoder
+			throw new EncodeException("tag is null");
+		}
+		String value = elt.getValue();
+		DataObjects children = elt.getChildren();
+		boolean hasChildren = children != null && !children.isEmpty();
+
+		writeString(name, true, out);
+		out.write((value != null ? FLAG_VALUE : 0) | (hasChildren ? FLAG_CHILDREN : 0));
+		if (value != null) {
+			writeString(value, value.length() <= MAX_TABLE_VALUE_LENGTH, out);
+		}
+		if (hasChildren) {
+			writeVarint(children.size(), out);
+			for (DataObject child : children) {
+				writeElement(child, out);
+			}
+		}
+	}
+
+	private void writeString(String s, boolean shared, OutputStream out) throws IOException {
+		if (shared) {
+			Integer index = strings.get(s);
+			if (index != null) {
+				writeVarint(index.intValue() + REF_TABLE, out);
+				return;
+			}
+			strings.put(s, strings.size());
+			writeVarint(REF_NEW, out);
+		}
+		else {
+			writeVarint(REF_LITERAL, out);
+		}
+		byte[] bytes = s.getBytes(CHARSET);
+		writeVarint(bytes.length, out);
+		out.write(bytes);
+	}
+
+	private static void writeVarint(int value, OutputStream out) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Returns whether the given message is a binary message
+	 *
+	 * @param message Encoded message
+	 * @return true if the message starts with MAGIC
+	 */
+	public static boolean isBinary(String message) {
+		if (message == null || message.length() < MAGIC.length) {
+			return false;
+		}
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (message.charAt(i) != MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes each byte as the character of the same value (ISO-8859-1)
+	 */
+	private static class CharOutputStream extends OutputStream {
+		private Writer writer;
+		private char[] chars = new char[512];
+
+		private CharOutputStream(Writer writer) {
+			this.writer = writer;
+		}
+
+		public void write(int b) throws IOException {
+			writer.write(b & 0xFF);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = Math.min(len, chars.length);
+				for (int i = 0; i < n; i++) {
+					chars[i] = (char) (b[off + i] & 0xFF);
+				}
+				writer.write(chars, 0, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		public void flush() throws IOException {
+			writer.flush();
+		}
+	}
+
+	/**
+	 * Returns language used to encode
+	 *
+	 * @return language used to encode
+	 * @see #LANGUAGE
+	 */
+	public String getLanguage() {
+		return LANGUAGE;
+	}
+
+	/**
+	 * Returns name of class used to encode
+	 *
+	 * @return name of class used to encode
+	 */
+	public String getClassName() {
+		return this.getClass().getName();
+	}
+}
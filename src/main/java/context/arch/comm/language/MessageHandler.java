@@ -6,6 +6,7 @@ import context.arch.InvalidMethodException;
 import context.arch.comm.clients.IndependentCommunication;
 
 import java.io.Reader;
+import java.io.Writer;
 
 /**
  * This interface specifies all the methods for encoding outgoing messages
@@ -38,6 +39,18 @@ public interface MessageHandler {
    */
   public abstract String encodeData(DataObject data) throws EncodeException, InvalidEncoderException;
 
+  /** 
+   * Method to encode the incoming data directly to a writer
+   *
+   * @param data Data to be encoded
+   * @param out Writer to write the encoded message to
+   * @exception context.arch.comm.language.EncodeException thrown when the given
+   *		data can not be encoded or written successfully
+   * @exception context.arch.comm.language.InvalidEncoderException thrown when the
+   *		encoder can not be run successfully
+   */
+  public abstract void encodeData(DataObject data, Writer out) throws EncodeException, InvalidEncoderException;
+
   /**
    * This method handles both the system-defined, callbacks and user-defined RPCs.  
    *
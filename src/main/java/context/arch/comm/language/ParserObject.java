@@ -1,6 +1,8 @@
 package context.arch.comm.language;
 
+import java.io.IOException;
 import java.io.Reader;
+import java.io.Writer;
 
 import context.arch.comm.DataObject;
 
@@ -34,6 +36,17 @@ public class ParserObject {
    */
   public static final String XML_ENCODER = "context.arch.comm.language.XMLEncoder";
 
+  /**
+   * The binary encoder class is "context.arch.comm.language.BinaryEncoder".
+   */
+  public static final String BINARY_ENCODER = "context.arch.comm.language.BinaryEncoder";
+
+  /**
+   * The binary decoder class is "context.arch.comm.language.BinaryDecoder".
+   * It also decodes XML messages.
+   */
+  public static final String BINARY_DECODER = "context.arch.comm.language.BinaryDecoder";
+
   private String encoderClass = null;
   private String decoderClass = null;
 
@@ -134,7 +147,9 @@ public class ParserObject {
 
   /**
    * This method tries to create a DecoderInterface object and decode the given
-   * message in the Reader.
+   * message in the Reader. The decoder is picked per message: a message in the
+   * binary language is decoded by the BinaryDecoder whatever the decoder of this
+   * object, so that a component configured for XML still understands a binary peer.
    *
    * @param message Reader containing a message to be decoded
    * @return decoded message in a DataObject
@@ -143,6 +158,9 @@ public class ParserObject {
    * @see context.arch.comm.language.DecoderInterface#decodeData(Reader)
    */
   public DataObject decodeData(Reader message) throws DecodeException, InvalidDecoderException {
+    if (!BINARY_DECODER.equals(decoderClass) && BinaryDecoder.isBinary(message)) {
+      return decodeData(BINARY_DECODER, message);
+    }
     return decodeData(decoderClass, message);
   }
 
@@ -191,5 +209,44 @@ public class ParserObject {
     EncoderInterface encoder = createEncoder(className);
     return encoder.encodeData(message);
   }
-}
 
+  /**
+   * This method tries to create a EncoderInterface object and encode the given
+   * message in the DataObject directly to the given writer.
+   *
+   * @param message DataObject containing a message to be encoded
+   * @param out Writer to write the encoded message to
+   * @exception context.arch.comm.language.EncodeException if the message can't be encoded
+   * @exception context.arch.comm.language.InvalidEncoderException if the encoder can't be created
+   * @see context.arch.comm.language.StreamEncoderInterface#encodeData(DataObject, Writer)
+   */
+  public void encodeData(DataObject message, Writer out) throws EncodeException, InvalidEncoderException {
+    encodeData(encoderClass, message, out);
+  }
+
+  /**
+   * This method tries to create a EncoderInterface object using the given class
+   * and encode the given message in the DataObject directly to the given writer.
+   * Encoders that don't implement StreamEncoderInterface encode the message
+   * to a String first.
+   *
+   * @param className Class to use to instantiate a encoder
+   * @param message DataObject containing a message to be encoded
+   * @param out Writer to write the encoded message to
+   * @exception context.arch.comm.language.EncodeException if the message can't be encoded
+   * @exception context.arch.comm.language.InvalidEncoderException if the encoder can't be created
+   * @see context.arch.comm.language.StreamEncoderInterface#encodeData(DataObject, Writer)
+   */
+  public void encodeData(String className, DataObject message, Writer out) throws EncodeException, InvalidEncoderException {
+    EncoderInterface encoder = createEncoder(className);
+    if (encoder instanceof StreamEncoderInterface) {
+      ((StreamEncoderInterface) encoder).encodeData(message, out);
+      return;
+    }
+    try {
+      out.write(encoder.encodeData(message));
+    } catch (IOException ioe) {
+      throw new EncodeException("ParserObject: " + ioe);
+    }
+  }
+}
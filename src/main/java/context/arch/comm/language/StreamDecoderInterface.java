@@ -0,0 +1,27 @@
+package context.arch.comm.language;
+
+import java.io.InputStream;
+
+import context.arch.comm.DataObject;
+
+/**
+ * This interface is implemented by the decoders that can read the message
+ * directly from an InputStream, without building the whole message
+ * as a String first.
+ *
+ * @see context.arch.comm.language.DecoderInterface
+ * @see context.arch.comm.language.BinaryDecoder
+ */
+public interface StreamDecoderInterface extends DecoderInterface {
+
+  /**
+   * Method to decode the data read from the given stream
+   *
+   * @param in Stream containing the message to be decoded
+   * @return the decoded message in a DataObject
+   * @exception context.arch.comm.language.DecodeException thrown when the given
+   *		data can not be read or decoded successfully
+   */
+  public abstract DataObject decodeData(InputStream in) throws DecodeException;
+
+}
@@ -0,0 +1,39 @@
+package context.arch.comm.language;
+
+import java.io.OutputStream;
+import java.io.Writer;
+
+import context.arch.comm.DataObject;
+
+/**
+ * This interface is implemented by the encoders that can write the encoded
+ * data directly to an OutputStream or a Writer, without building the whole
+ * message as a String first.
+ *
+ * @see context.arch.comm.language.EncoderInterface
+ * @see context.arch.comm.language.BinaryEncoder
+ */
+public interface StreamEncoderInterface extends EncoderInterface {
+
+  /**
+   * Method to encode the incoming data to the given stream
+   *
+   * @param data Data to be encoded
+   * @param out Stream to write the encoded message to
+   * @exception context.arch.comm.language.EncodeException thrown when the given
+   *		data can not be encoded or written successfully
+   */
+  public abstract void encodeData(DataObject data, OutputStream out) throws EncodeException;
+
+  /**
+   * Method to encode the incoming data to the given writer, for the
+   * transports that count the message in characters
+   *
+   * @param data Data to be encoded
+   * @param out Writer to write the encoded message to
+   * @exception context.arch.comm.language.EncodeException thrown when the given
+   *		data can not be encoded or written successfully
+   */
+  public abstract void encodeData(DataObject data, Writer out) throws EncodeException;
+
+}
@@ -1,11 +1,16 @@
 package context.arch.comm.language;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.StringBuffer;
 
 import context.arch.comm.DataObject;
 import context.arch.comm.DataObjects;
 
-public class XMLEncoder implements EncoderInterface {
+public class XMLEncoder implements StreamEncoderInterface {
 
 	/**
 	 * Language used to encode
@@ -28,6 +33,11 @@ public class XMLEncoder implements EncoderInterface {
 
 	private static final String	XML_HEADER = "<?xml version=\"" + XML_VERSION + "\"?>" + END_OF_LINE;
 
+	/**
+	 * Charset used when encoding to an OutputStream
+	 */
+	public static final String CHARSET = "UTF-8";
+
 	private StringBuffer xmlText = new StringBuffer();
 
 	/**
@@ -50,6 +60,41 @@ public class XMLEncoder implements EncoderInterface {
 		return getXML();
 	}
 
+	/**
+	 * Method used to encode data directly to a writer. The writer is flushed
+	 * but not closed.
+	 *
+	 * @param data Data to be encoded
+	 * @param out Writer to write the XML to
+	 * @exception context.arch.comm.language.EncodeException if the data can't be encoded or written
+	 */
+	public void encodeData(DataObject data, Writer out) throws EncodeException {
+		try {
+			out.write(XML_HEADER);
+			appendXMLElement(data, out);
+			out.flush();
+		} catch (IOException ioe) {
+			throw new EncodeException("XMLEncoder: " + ioe);
+		}
+	}
+
+	/**
+	 * Method used to encode data directly to a stream, in UTF-8. The stream
+	 * is flushed but not closed.
+	 *
+	 * @param data Data to be encoded
+	 * @param out Stream to write the XML to
+	 * @exception context.arch.comm.language.EncodeException if the data can't be encoded or written
+	 * @see #CHARSET
+	 */
+	public void encodeData(DataObject data, OutputStream out) throws EncodeException {
+		try {
+			encodeData(data, new BufferedWriter(new OutputStreamWriter(out, CHARSET)));
+		} catch (IOException ioe) {
+			throw new EncodeException("XMLEncoder: " + ioe);
+		}
+	}
+
 	/**
 	 * Method to start XML element - creates opening tag
 	 *
@@ -99,28 +144,31 @@ public class XMLEncoder implements EncoderInterface {
 	 * @exception context.arch.comm.language.EncodeException if the element can't be added
 	 */
 	public void addElement(DataObject elt) throws EncodeException {
-		xmlText.append(addXMLElement(elt));
+		try {
+			appendXMLElement(elt, xmlText);
+		} catch (IOException ioe) {
+			// a StringBuffer doesn't throw IOException
+			throw new EncodeException("XMLEncoder: " + ioe);
+		}
 	}
 
 	/**
-	 * Private method to add XML element
+	 * Private method to add XML element. The element and its children are
+	 * appended to the same buffer or writer, instead of building one String
+	 * per element.
 	 *
 	 * @param elt DataObject element being added 
-	 * @return String that contains encoding for element
+	 * @param out Buffer or writer receiving the encoding of the element
 	 * @exception context.arch.comm.language.EncodeException if the element can't be added
+	 * @exception java.io.IOException if the encoding can't be written
 	 */
-	private String addXMLElement(DataObject elt) throws EncodeException {
+	private void appendXMLElement(DataObject elt, Appendable out) throws EncodeException, IOException {
 		String name = elt.getName ();
-//		Map<String, String> atts = elt.getAttributes();
-//		Vector val = elt.getValue();
 		String val = elt.getValue();
 		DataObjects children = elt.getChildren();		
-		String xmlElement = new String ();
-		String xmlAttributes = new String ();
 
 		// throw exception if no name
 		if (name == null) { 
-			//System.out.println("elt = " + elt);
 			// may be null if one part of the DataObject is empty, i.e.: new DataObject()
 			// so should return null instead, if returning nothing
 			throw new EncodeException("tag is null");
@@ -128,26 +176,24 @@ public class XMLEncoder implements EncoderInterface {
 		
 		// no value or children
 		if (val == null && children.isEmpty()) {
-			xmlElement = singleTag(name);
+			out.append('<').append(name).append("/>").append(END_OF_LINE); // single tag
 		}
 		
 		else {
-			xmlElement = beginTag(name, xmlAttributes); // start tag
+			out.append('<').append(name).append('>'); // start tag
 	
 			// handle value; assume only 1
 			if (val != null) {
-				xmlElement += val;
+				out.append(val);
 			}
 			
 			// handle children
 			for (DataObject child : children) {
-				xmlElement += addXMLElement(child);
+				appendXMLElement(child, out);
 			}
 
-			xmlElement += endTag (name); // end tag
+			out.append("</").append(name).append('>').append(END_OF_LINE); // end tag
 		}
-
-		return xmlElement;
 	}
 
 	/**
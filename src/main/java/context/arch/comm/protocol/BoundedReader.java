@@ -0,0 +1,114 @@
+package context.arch.comm.protocol;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * This class gives access to the body of a message directly from the reader
+ * of the connection, without copying it first. It never reads more than the
+ * Content-Length of the message, so that the next message on a persistent
+ * connection is left untouched.
+ *
+ * Closing this reader does not close the connection: it skips what is left
+ * of the body, so that the connection is ready for the next message.
+ *
+ * @see context.arch.comm.protocol.HTTPServerSocket#stripRequestProtocol(java.net.Socket)
+ */
+public class BoundedReader extends Reader {
+
+	private Reader in;
+	private int remaining;
+	private int markedRemaining = -1;
+	private boolean closed = false;
+
+	/**
+	 * Creates a reader giving access to the next length characters of the given reader
+	 *
+	 * @param in Reader of the connection
+	 * @param length Number of characters of the message body
+	 */
+	public BoundedReader(Reader in, int length) {
+		this.in = in;
+		this.remaining = length;
+	}
+
+	/**
+	 * Returns the number of characters of the body not read yet
+	 *
+	 * @return the number of characters left
+	 */
+	public int getRemaining() {
+		return remaining;
+	}
+
+	public int read() throws IOException {
+		if (closed || remaining <= 0) {
+			return -1;
+		}
+		int c = in.read();
+		if (c < 0) {
+			throw new IOException("BoundedReader: stream closed with " + remaining + " characters left");
+		}
+		remaining--;
+		return c;
+	}
+
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (closed || remaining <= 0) {
+			return -1;
+		}
+		if (len == 0) {
+			return 0;
+		}
+		int n = in.read(cbuf, off, Math.min(len, remaining));
+		if (n < 0) {
+			throw new IOException("BoundedReader: stream closed with " + remaining + " characters left");
+		}
+		remaining -= n;
+		return n;
+	}
+
+	public boolean ready() throws IOException {
+		return !closed && remaining > 0 && in.ready();
+	}
+
+	public boolean markSupported() {
+		return in.markSupported();
+	}
+
+	public void mark(int readAheadLimit) throws IOException {
+		in.mark(Math.min(readAheadLimit, remaining));
+		markedRemaining = remaining;
+	}
+
+	public void reset() throws IOException {
+		if (markedRemaining < 0) {
+			throw new IOException("BoundedReader: not marked");
+		}
+		in.reset();
+		remaining = markedRemaining;
+	}
+
+	/**
+	 * Skips what is left of the body. The reader of the connection stays open.
+	 *
+	 * @exception IOException if the rest of the body can't be read
+	 */
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		while (remaining > 0) {
+			long n = in.skip(remaining);
+			if (n <= 0) {
+				if (in.read() < 0) {
+					throw new IOException("BoundedReader: stream closed with " + remaining + " characters left");
+				}
+				n = 1;
+			}
+			remaining -= n;
+		}
+	}
+
+}
@@ -3,19 +3,20 @@ package context.arch.comm.protocol;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.StringTokenizer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.io.BufferedReader;
 import java.io.StringReader;
 import java.io.InputStreamReader;
 import java.io.BufferedOutputStream;
-import java.io.OutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
 import context.arch.comm.CommunicationsClient;
 import context.arch.comm.CommunicationsObject;
 import context.arch.comm.DataObject;
+import context.arch.comm.language.BinaryEncoder;
 
 /**
  * This class subclasses TCPClientSocket, creating and sending HTTP requests.
@@ -54,7 +55,6 @@ public class HTTPClientSocket extends TCPClientSocket implements CommunicationsC
 	 */
 	public static final int DEFAULT_PORT = 5555;
 
-	@SuppressWarnings("unused")
 	private CommunicationsObject commObject;
 
 	/** 
@@ -119,6 +119,7 @@ public class HTTPClientSocket extends TCPClientSocket implements CommunicationsC
 		}
 
 		xmlLen += 2*eol.length(); // add length of end of lines at the end
+		boolean keepAlive = getConnectionPool() != null;
 		if (type.equals (POST)) {
 			text.append(POST +  " " + url + " HTTP/1.0" + eol);
 		} 
@@ -127,8 +128,12 @@ public class HTTPClientSocket extends TCPClientSocket implements CommunicationsC
 		}
 		text.append("User-Agent: Context Client" + eol);
 		text.append("Host: " + thisMachine + eol);
+		if (keepAlive) {
+			// HTTP/1.0 keep-alive, so that replies are always delimited by their Content-Length
+			text.append("Connection: " + HTTPConnection.KEEP_ALIVE + eol);
+		}
 		if (type.equals (POST)) {
-			text.append("Content-Type: text/xml" + eol);
+			text.append("Content-Type: " + (BinaryEncoder.isBinary(data) ? BinaryEncoder.CONTENT_TYPE : "text/xml") + eol);
 			text.append("Content-Length: " + xmlLen + eol);
 			text.append(eol);
 			text.append(data + eol);
@@ -139,7 +144,10 @@ public class HTTPClientSocket extends TCPClientSocket implements CommunicationsC
 	}
 
 	/** 
-	 * Method that strips away the HTTP protocol from a reply message
+	 * Method that strips away the HTTP protocol from a reply message.
+	 * If the socket belongs to a pooled connection, the connection is given
+	 * back to the pool once the reply has been read: it is kept open if the
+	 * server accepted to keep it alive, closed otherwise.
 	 *
 	 * @param socket Socket on which reply is coming from
 	 * @return the reply with the HTTP protocol stripped away
@@ -147,71 +155,120 @@ public class HTTPClientSocket extends TCPClientSocket implements CommunicationsC
 	 *		can not be stripped away
 	 */
 	public RequestData stripReplyProtocol(Socket data) throws ProtocolException {
+		HTTPConnectionPool pool = getConnectionPool();
+		HTTPConnection connection = (pool == null) ? null : pool.getLeased(data);
+		String request = (connection != null && connection.isReused()) ? connection.getRequest() : null;
+		try {
+			return readReply(data, pool, connection, request != null);
+		} catch (StaleConnectionException sce) {
+			// the server closed the reused connection before answering: send the request once more on a new one
+			LOGGER.info("HTTPClientSocket <stripReplyProtocol> stale connection to " + connection.getRoute() + ", retrying: " + sce.getMessage());
+			Socket socket = sendPooledRequest(pool, request, false);
+			if (socket == null) {
+				return null;
+			}
+			try {
+				return readReply(socket, pool, pool.getLeased(socket), false);
+			} catch (StaleConnectionException e) {
+				return null; // not thrown for a new connection
+			}
+		}
+	}
 
-		BufferedReader bufferedReader = null;
+	/**
+	 * Thrown when a reused connection is closed before the reply starts
+	 */
+	private static class StaleConnectionException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		private StaleConnectionException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Reads the reply on the socket, and gives the connection back to the pool.
+	 * If retryable, a connection closed before the start of the reply is reported
+	 * as stale instead of as a missing reply.
+	 */
+	private RequestData readReply(Socket data, HTTPConnectionPool pool, HTTPConnection connection, boolean retryable) throws ProtocolException, StaleConnectionException {
+		boolean complete = false;
 		try {
-			
-			bufferedReader = new BufferedReader(new InputStreamReader(data.getInputStream()));
-			String get = bufferedReader.readLine();
+			BufferedReader bufferedReader;
+			if (connection != null) {
+				bufferedReader = connection.getReader();
+			}
+			else {
+				bufferedReader = new BufferedReader(new InputStreamReader(data.getInputStream(), HTTPConnection.WIRE_CHARSET));
+			}
+			String get;
+			try {
+				get = bufferedReader.readLine();
+				// skips the line breaks left after a previous reply on a persistent connection
+				while (get != null && get.trim().length() == 0) {
+					get = bufferedReader.readLine();
+				}
+			} catch (IOException ioe) {
+				if (retryable) {
+					throw new StaleConnectionException(ioe.toString());
+				}
+				throw ioe;
+			}
 			
 			if (get == null) { // may be because port is open, but in the midst of being shut down by the OS, or used by something else unrelated to the toolkit
+				if (retryable) {
+					throw new StaleConnectionException("closed by the server");
+				}
 				return null;
 			}
 			
-//			StringTokenizer tokenizer = new StringTokenizer(get);
-			int bytesRead = 0;
-			int bytesReadThisTime = 0;
-			char [] tempdata;
-
-			String marker = "content-length:";
-			while (get != null &&
-					!get.toLowerCase().startsWith(marker)) {
-				get = bufferedReader.readLine();
-				//System.out.println("BaseObject get = " + get + ": " + (get == null));
-			}
+			StringTokenizer tokenizer = new StringTokenizer(get);
+			String version = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : null;
+			String status = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : null;
+			String connectionHeader = null;
+			boolean binary = false;
+			int length = -1;
+
+			get = bufferedReader.readLine();
 			// get may be null in later lines...don't know why, maybe when there is no network connectivity
-			if (get == null) { return null; }
-			
-			int length = 0;
-			try {
-				length = new Integer(get.substring(marker.length()).trim()).intValue();
-			} catch (NumberFormatException nfe) {
-				System.out.println("RequestServerSocket run error: "+nfe);
-				throw new ProtocolException();
+			while (get != null && get.trim().length() > 0) {
+				String header = get.toLowerCase();
+				if (header.startsWith(HTTPConnection.CONTENT_LENGTH_MARKER)) {
+					try {
+						length = Integer.parseInt(get.substring(HTTPConnection.CONTENT_LENGTH_MARKER.length()).trim());
+					} catch (NumberFormatException nfe) {
+						System.out.println("RequestServerSocket run error: "+nfe);
+						throw new ProtocolException();
+					}
+				}
+				else if (header.startsWith(HTTPConnection.CONNECTION_MARKER)) {
+					connectionHeader = get.substring(HTTPConnection.CONNECTION_MARKER.length());
+				}
+				else if (header.startsWith(HTTPConnection.CONTENT_TYPE_MARKER)) {
+					binary = get.substring(HTTPConnection.CONTENT_TYPE_MARKER.length()).trim().equals(BinaryEncoder.CONTENT_TYPE);
+				}
+				get = bufferedReader.readLine();
 			}
+			if (get == null || length < 0) { return null; }
 
 			if (DEBUG) {
 				System.out.println ("Content-Length is: " + length);
 			}
 
-			while (!(get.trim().equals(""))) {
-				get = bufferedReader.readLine();
+			char[] tempdata = HTTPConnection.readFully(bufferedReader, length);
+			complete = true;
+			if (connection != null) {
+				connection.setRequest(null);
+				connection.setKeepAlive(HTTPConnection.isKeepAlive(version, connectionHeader));
 			}
 
-			char[] postdata = new char[length];
-
-			tempdata = new char [length];
-
-			while (bytesRead < length) {
-				if (bufferedReader.ready()){
-					int ix = bytesRead;	// index to current end of tempdata
-					bytesReadThisTime = bufferedReader.read(postdata, 0, length);  // DS: check we've read what we should
-					bytesRead += bytesReadThisTime;
-
-					if (DEBUG) {
-						System.out.println ("read " + bytesReadThisTime + " more bytes, "+bytesRead);
-					}
-
-					for (int i = 0; (i < bytesReadThisTime) && (ix + i < length); i++) {
-						tempdata[ix + i] = postdata[i];
-					}
-
-					postdata = new char[length];
-
-				}
+			if (status != null && !status.startsWith("2")) { // for instance 503 when the server is saturated
+				LOGGER.info("HTTPClientSocket <stripReplyProtocol> request refused with status " + status);
+				return null;
 			}
 
-			String readerData = new String(tempdata);
+			String readerData = HTTPConnection.fromWire(tempdata, binary);
 			//if (DEBUG) commObject.println("\nHTTPClientSocket : stripReplyProtocol :" + readerData);
 
 			StringReader sreader = new StringReader(readerData);
@@ -221,10 +278,30 @@ public class HTTPClientSocket extends TCPClientSocket implements CommunicationsC
 		} catch (IOException ioe) {
 			System.out.println("HTTPClientSocket stripReplyProtocol IOException: "+ioe);
 			throw new ProtocolException();
+		} catch (ProtocolException pe) {
+			throw pe;
+		} catch (StaleConnectionException sce) {
+			throw sce;
 		} catch (Exception e) {		// DS, 9/1/98: catch all (the request failed)
 			e.printStackTrace ();
 			System.out.println("HTTPClientSocket stripReplyProtocol Exception: "+e);
 			throw new ProtocolException();
+		} finally {
+			if (connection != null) {
+				if (complete) {
+					pool.release(connection);
+				}
+				else {
+					pool.discard(connection);
+				}
+			}
+			else {
+				try {
+					data.close();
+				} catch (IOException ioe) {
+					LOGGER.info("HTTPClientSocket <stripReplyProtocol> while closing socket: " + ioe);
+				}
+			}
 		}
 	}
 
@@ -256,13 +333,16 @@ public class HTTPClientSocket extends TCPClientSocket implements CommunicationsC
 
 
 	/** 
-	 * This method sends a request to a remote server
+	 * This method sends a request to a remote server.
+	 * If the communications object has a connection pool, the request is
+	 * sent on a persistent connection to the remote server, reusing an idle
+	 * one when possible.
 	 * 
 	 * @param content The request to send
 	 * @return socket for the connection
+	 * @see context.arch.comm.protocol.HTTPConnectionPool
 	 */
 	public Socket sendRequest(String content) throws IOException{
-		OutputStream rawOut = null;
 		String requestToSend = content;
 
 		//if (content == null)
@@ -273,6 +353,11 @@ public class HTTPClientSocket extends TCPClientSocket implements CommunicationsC
 			System.out.println("HTTPClientSocket <sendRequest> CONTENT is:\n" + requestToSend);
 		}
 
+		HTTPConnectionPool pool = getConnectionPool();
+		if (pool != null) {
+			return sendPooledRequest(pool, content, true);
+		}
+
 		Socket socket = null;
 		try {
 			socket = new Socket(remoteServer, portNumber);
@@ -287,23 +372,66 @@ public class HTTPClientSocket extends TCPClientSocket implements CommunicationsC
 
 		if (socket != null){
 			try {
-				rawOut = socket.getOutputStream();
+				writeRequest(socket, content);
 			} catch (Exception e) {
-				System.out.println ("While getting OutputStream in sendRequest: " + e);
+				System.out.println ("While creating socket in sendRequest: " + e);
 			}
+		}
+		return socket;
+	}
 
-			if (rawOut != null){
-				BufferedOutputStream buffOut = new BufferedOutputStream(rawOut);
-				DataOutputStream out = new DataOutputStream(buffOut);
-				try {
-					out.writeBytes(content);
-					out.flush();
-				} catch (Exception e) {
+	/**
+	 * Sends the request on a connection of the pool. If writing on a reused
+	 * connection fails (the server may have closed it in the meantime), the
+	 * request is sent once more on a new connection. The request is kept with
+	 * the connection until its reply is read.
+	 *
+	 * @param reuse false to send on a new connection
+	 * @see #stripReplyProtocol(Socket)
+	 */
+	private Socket sendPooledRequest(HTTPConnectionPool pool, String content, boolean reuse) {
+		for (int attempt = 0; attempt < 2; attempt++) {
+			HTTPConnection connection = null;
+			try {
+				connection = pool.acquire(remoteServer, portNumber, reuse);
+			} catch (IOException e) {
+				LOGGER.info("HTTPClientSocket <sendRequest> While getting a connection in sendRequest (remoteServer = " + remoteServer + ", portNumber = " + portNumber + "): " + e);
+				return null;
+			}
+			try {
+				writeRequest(connection.getSocket(), content);
+				connection.setRequest(content);
+				return connection.getSocket();
+			} catch (IOException e) {
+				pool.discard(connection);
+				if (!connection.isReused()) {
 					System.out.println ("While creating socket in sendRequest: " + e);
+					return null;
 				}
+				LOGGER.info("HTTPClientSocket <sendRequest> stale connection to " + connection.getRoute() + ", retrying: " + e);
+				reuse = false;
 			}
 		}
-		return socket;
+		return null;
+	}
+
+	private void writeRequest(Socket socket, String content) throws IOException {
+		BufferedOutputStream buffOut = new BufferedOutputStream(socket.getOutputStream());
+		DataOutputStream out = new DataOutputStream(buffOut);
+		out.writeBytes(content);
+		out.flush();
+	}
+
+	/**
+	 * Returns the connection pool of the communications object, if any
+	 *
+	 * @return the connection pool, or null if connections are not pooled
+	 */
+	private HTTPConnectionPool getConnectionPool() {
+		if (commObject == null) {
+			return null;
+		}
+		return commObject.getConnectionPool();
 	}
 
 	/** 
@@ -0,0 +1,414 @@
+package context.arch.comm.protocol;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import context.arch.comm.language.BinaryEncoder;
+
+/**
+ * This class wraps a socket that may carry more than one HTTP message
+ * (HTTP keep-alive). It keeps the buffered reader of the socket for the
+ * whole life of the connection, so that characters read ahead while
+ * parsing one message are not lost for the next one.
+ *
+ * It is used on the client side by the HTTPConnectionPool and on the
+ * server side by the HTTPServerSocket.
+ *
+ * @see context.arch.comm.protocol.HTTPConnectionPool
+ * @see context.arch.comm.protocol.HTTPServerSocket
+ */
+public class HTTPConnection {
+
+	/**
+	 * Value of the Connection header asking for a persistent connection
+	 */
+	public static final String KEEP_ALIVE = "keep-alive";
+
+	/**
+	 * Value of the Connection header asking to close the connection
+	 */
+	public static final String CLOSE = "close";
+
+	/**
+	 * Marker of the Connection header (lower case)
+	 */
+	public static final String CONNECTION_MARKER = "connection:";
+
+	/**
+	 * Marker of the Content-Length header (lower case)
+	 */
+	public static final String CONTENT_LENGTH_MARKER = "content-length:";
+
+	/**
+	 * Charset of the requests: the HTTPClientSocket writes one byte per
+	 * character (DataOutputStream.writeBytes), so the server reads them
+	 * back one character per byte. This keeps binary messages intact.
+	 *
+	 * @see context.arch.comm.language.BinaryEncoder
+	 */
+	public static final String REQUEST_CHARSET = "ISO-8859-1";
+
+	/**
+	 * Marker of the Content-Type header (lower case)
+	 */
+	public static final String CONTENT_TYPE_MARKER = "content-type:";
+
+	/**
+	 * Charset of the body of text replies. It keeps every character intact,
+	 * whatever the default charset of the two hosts. Binary replies are
+	 * written as is, one byte per character.
+	 *
+	 * @see #toWire(String)
+	 */
+	public static final String REPLY_CHARSET = "UTF-8";
+
+	/**
+	 * Charset the replies are written and read with once their body is in
+	 * bytes (one character per byte), so that their Content-length counts
+	 * the bytes sent.
+	 *
+	 * @see #toWire(String)
+	 * @see #fromWire(char[], boolean)
+	 */
+	public static final String WIRE_CHARSET = "ISO-8859-1";
+
+	private Socket socket;
+	private BufferedReader reader;
+	private String route;
+	private boolean keepAlive = false;
+	private boolean reused = false;
+	private long lastUsed;
+	private String request;
+	private boolean endOfStream = false;
+
+	/**
+	 * Creates a connection wrapping the given socket
+	 *
+	 * @param socket Connected socket
+	 * @exception IOException if the input stream of the socket can't be read
+	 */
+	public HTTPConnection(Socket socket) throws IOException {
+		this(null, socket);
+	}
+
+	/**
+	 * Creates a connection wrapping the given socket, for the given route
+	 *
+	 * @param route The host:port key of the remote end, may be null
+	 * @param socket Connected socket
+	 * @exception IOException if the input stream of the socket can't be read
+	 */
+	public HTTPConnection(String route, Socket socket) throws IOException {
+		this(route, socket, null);
+	}
+
+	/**
+	 * Creates a connection wrapping the given socket, for the given route,
+	 * reading the messages with the given charset
+	 *
+	 * @param route The host:port key of the remote end, may be null
+	 * @param socket Connected socket
+	 * @param charset Charset of the incoming messages, null for the default charset
+	 * @exception IOException if the input stream of the socket can't be read
+	 * @see #REQUEST_CHARSET
+	 */
+	public HTTPConnection(String route, Socket socket, String charset) throws IOException {
+		this.route = route;
+		this.socket = socket;
+		InputStreamReader in = (charset == null) ? new InputStreamReader(socket.getInputStream())
+				: new InputStreamReader(socket.getInputStream(), charset);
+		this.reader = new BufferedReader(in, 2048);
+		this.lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the socket of this connection
+	 *
+	 * @return the socket of this connection
+	 */
+	public Socket getSocket() {
+		return socket;
+	}
+
+	/**
+	 * Returns the reader to use for every message received on this connection
+	 *
+	 * @return the reader of this connection
+	 */
+	public BufferedReader getReader() {
+		return reader;
+	}
+
+	/**
+	 * Returns the host:port key of the remote end
+	 *
+	 * @return the route of this connection, or null on the server side
+	 */
+	public String getRoute() {
+		return route;
+	}
+
+	/**
+	 * Returns whether the last message exchanged allows to keep the
+	 * connection open
+	 *
+	 * @return true if the connection can be reused
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Sets whether the connection can be reused after the current message
+	 *
+	 * @param keepAlive true if the connection can be reused
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Returns whether this connection has already carried a message
+	 *
+	 * @return true if the connection was taken from the idle connections
+	 */
+	public boolean isReused() {
+		return reused;
+	}
+
+	/**
+	 * Sets whether this connection has already carried a message
+	 *
+	 * @param reused true if the connection was taken from the idle connections
+	 */
+	public void setReused(boolean reused) {
+		this.reused = reused;
+	}
+
+	/**
+	 * Returns the request waiting for its reply on this connection
+	 *
+	 * @return the request with its protocol, or null
+	 */
+	public String getRequest() {
+		return request;
+	}
+
+	/**
+	 * Keeps the request sent on this connection until its reply is read, so
+	 * that it can be sent again if the connection turns out to be stale
+	 *
+	 * @param request the request with its protocol, or null once answered
+	 */
+	public void setRequest(String request) {
+		this.request = request;
+	}
+
+	/**
+	 * Returns the time this connection was last used
+	 *
+	 * @return time in milliseconds
+	 */
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * Marks the connection as used now
+	 */
+	public void touch() {
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Checks that the connection can carry another message: the socket must
+	 * be open and the remote end must not have closed it or sent unexpected
+	 * data. If checkRemote is false, only the local state of the socket is
+	 * checked, which does not cost a read.
+	 *
+	 * @param checkRemote true to check that the remote end is still there
+	 * @return true if the connection looks usable
+	 */
+	public boolean isAlive(boolean checkRemote) {
+		if (socket.isClosed() || !socket.isConnected()
+				|| socket.isInputShutdown() || socket.isOutputShutdown()) {
+			return false;
+		}
+		try {
+			// Consume the line breaks left after the previous message
+			while (reader.ready()) {
+				int c = reader.read();
+				if (c != '\r' && c != '\n') {
+					return false; // unsolicited data, the stream is out of sync
+				}
+			}
+			if (!checkRemote) {
+				return true;
+			}
+			int timeout = socket.getSoTimeout();
+			socket.setSoTimeout(1);
+			try {
+				reader.read(); // -1 if closed by the remote end, or unsolicited data
+				return false;
+			} catch (SocketTimeoutException ste) {
+				return true; // nothing to read, the remote end is still there
+			} finally {
+				socket.setSoTimeout(timeout);
+			}
+		} catch (IOException ioe) {
+			endOfStream = true;
+			return false;
+		}
+	}
+
+	/**
+	 * Returns whether the remote end closed the connection, as seen by awaitMessage
+	 *
+	 * @return true if no more message can come
+	 * @see #awaitMessage(int)
+	 */
+	public boolean isEndOfStream() {
+		return endOfStream;
+	}
+
+	/**
+	 * Waits for the beginning of the next message on this connection,
+	 * skipping the line breaks left after the previous one.
+	 *
+	 * @param timeout Time to wait in milliseconds (0 waits forever)
+	 * @return true if a message is coming, false if the connection was
+	 * closed by the remote end or the timeout expired
+	 */
+	public boolean awaitMessage(int timeout) {
+		try {
+			int previous = socket.getSoTimeout();
+			socket.setSoTimeout(timeout);
+			try {
+				while (true) {
+					reader.mark(1);
+					int c = reader.read();
+					if (c == -1) {
+						endOfStream = true;
+						return false;
+					}
+					if (c != '\r' && c != '\n') {
+						reader.reset();
+						return true;
+					}
+				}
+			} finally {
+				socket.setSoTimeout(previous);
+			}
+		} catch (SocketTimeoutException ste) {
+			return false;
+		} catch (IOException ioe) {
+			return false;
+		}
+	}
+
+	/**
+	 * Closes the connection
+	 */
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException ioe) {
+			System.out.println("HTTPConnection close error: "+ioe);
+		}
+	}
+
+	/**
+	 * Returns whether a connection is persistent, given the HTTP version of
+	 * the message and the value of its Connection header. HTTP/1.1 messages
+	 * are persistent unless they ask to close, HTTP/1.0 messages are persistent
+	 * only if they ask for keep-alive.
+	 *
+	 * @param version HTTP version of the message (eg HTTP/1.0), may be null
+	 * @param connectionHeader Value of the Connection header, may be null
+	 * @return true if the connection can be kept open after the message
+	 */
+	public static boolean isKeepAlive(String version, String connectionHeader) {
+		if (connectionHeader != null) {
+			String value = connectionHeader.trim().toLowerCase();
+			if (value.equals(CLOSE)) {
+				return false;
+			}
+			if (value.equals(KEEP_ALIVE)) {
+				return true;
+			}
+		}
+		return version != null && version.trim().equals("HTTP/1.1");
+	}
+
+	/**
+	 * Reads exactly length characters from the given reader. It never reads
+	 * beyond the end of the message, so that the next message on a persistent
+	 * connection is left untouched.
+	 *
+	 * @param reader Reader to read from
+	 * @param length Number of characters to read
+	 * @return the characters read
+	 * @exception IOException if the stream ends before length characters are read
+	 */
+	public static char[] readFully(BufferedReader reader, int length) throws IOException {
+		char[] data = new char[length];
+		int read = 0;
+		while (read < length) {
+			int n = reader.read(data, read, length - read);
+			if (n < 0) {
+				throw new IOException("HTTPConnection: stream closed after " + read + " of " + length + " characters");
+			}
+			read += n;
+		}
+		return data;
+	}
+
+	/**
+	 * Returns the body of a reply as it is sent: a binary message is kept as
+	 * is, a text message is encoded in REPLY_CHARSET, one character per byte.
+	 * The length of the result is the number of bytes of the body.
+	 *
+	 * @param data Body of the reply
+	 * @return the body, to be written in WIRE_CHARSET
+	 */
+	public static String toWire(String data) {
+		if (BinaryEncoder.isBinary(data)) {
+			return data;
+		}
+		try {
+			return new String(data.getBytes(REPLY_CHARSET), WIRE_CHARSET);
+		} catch (UnsupportedEncodingException uee) {
+			return data;
+		}
+	}
+
+	/**
+	 * Returns the body of a reply read in WIRE_CHARSET: a binary message is
+	 * kept as is, a text message is decoded from REPLY_CHARSET.
+	 *
+	 * @param body Characters of the body, one per byte
+	 * @param binary Whether the reply has the binary content type
+	 * @return the body of the reply
+	 * @see #toWire(String)
+	 */
+	public static String fromWire(char[] body, boolean binary) {
+		String data = new String(body);
+		if (binary) {
+			return data;
+		}
+		try {
+			return new String(data.getBytes(WIRE_CHARSET), REPLY_CHARSET);
+		} catch (UnsupportedEncodingException uee) {
+			return data;
+		}
+	}
+
+	public String toString() {
+		return "HTTPConnection route=" + route + " - socket=" + socket + " - keepAlive=" + keepAlive;
+	}
+
+}
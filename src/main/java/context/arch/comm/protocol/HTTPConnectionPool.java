@@ -0,0 +1,459 @@
+package context.arch.comm.protocol;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps persistent (keep-alive) HTTP connections open to the
+ * remote components, so that consecutive requests to the same host and port
+ * reuse the same socket instead of opening a new TCP connection each time.
+ *
+ * Connections are grouped by route (host:port). By default there is no limit
+ * on the connections open to a route, so that synchronous requests are not
+ * serialized; at most maxIdlePerRoute of them are kept open once released.
+ * If maxConnectionsPerRoute is set, a caller asking for a connection when all
+ * of them are in use waits for one to be released. Idle connections are
+ * checked before being reused and closed after idleTimeout milliseconds
+ * without use.
+ *
+ * The pool is owned by the CommunicationsObject and used by the
+ * HTTPClientSocket.
+ *
+ * @see context.arch.comm.protocol.HTTPConnection
+ * @see context.arch.comm.protocol.HTTPClientSocket
+ * @see context.arch.comm.CommunicationsObject#getConnectionPool()
+ */
+public class HTTPConnectionPool {
+
+	/**
+	 * Debug flag. Set to true to see debug messages.
+	 */
+	public static boolean DEBUG = false;
+
+	/**
+	 * The default maximum number of connections open to the same host and port,
+	 * 0 for no limit
+	 */
+	public static int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 0;
+
+	/**
+	 * The default maximum number of idle connections kept open to the same host and port
+	 */
+	public static int DEFAULT_MAX_IDLE_PER_ROUTE = 8;
+
+	/**
+	 * The default time (ms) after which an idle connection is closed
+	 */
+	public static long DEFAULT_IDLE_TIMEOUT = 15000;
+
+	/**
+	 * The default time (ms) of inactivity after which an idle connection is
+	 * checked with the remote end before being reused
+	 */
+	public static long DEFAULT_VALIDATE_AFTER_INACTIVITY = 1000;
+
+	/**
+	 * The default time (ms) to wait for a free connection
+	 */
+	public static long DEFAULT_ACQUIRE_TIMEOUT = 10000;
+
+	/**
+	 * Timer shared by all pools to evict idle connections
+	 */
+	private static Timer evictionTimer;
+
+	private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+	private int maxIdlePerRoute = DEFAULT_MAX_IDLE_PER_ROUTE;
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private long validateAfterInactivity = DEFAULT_VALIDATE_AFTER_INACTIVITY;
+	private long acquireTimeout = DEFAULT_ACQUIRE_TIMEOUT;
+
+	private Map<String, Route> routes = new ConcurrentHashMap<String, Route>();
+	private Map<Socket, HTTPConnection> leased = new ConcurrentHashMap<Socket, HTTPConnection>();
+	private TimerTask evictionTask;
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a pool with the default settings
+	 *
+	 * @see #DEFAULT_MAX_CONNECTIONS_PER_ROUTE
+	 * @see #DEFAULT_IDLE_TIMEOUT
+	 */
+	public HTTPConnectionPool() {
+		this(DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/**
+	 * Creates a pool with the given settings
+	 *
+	 * @param maxConnectionsPerRoute Maximum number of connections open to the same host and port, 0 for no limit
+	 * @param idleTimeout Time (ms) after which an idle connection is closed
+	 */
+	public HTTPConnectionPool(int maxConnectionsPerRoute, long idleTimeout) {
+		this.maxConnectionsPerRoute = Math.max(0, maxConnectionsPerRoute);
+		this.idleTimeout = idleTimeout;
+		scheduleEviction();
+	}
+
+	/**
+	 * Returns a connection to the given host and port: an idle one if a
+	 * healthy one exists, a new one otherwise. The connection must be given
+	 * back with release or discard.
+	 *
+	 * @param host Hostname of the remote server
+	 * @param port Port number of the remote server
+	 * @return the connection to use
+	 * @exception IOException if no connection can be opened, or none is released in time
+	 * @see #release(HTTPConnection)
+	 * @see #discard(HTTPConnection)
+	 */
+	public HTTPConnection acquire(String host, int port) throws IOException {
+		return acquire(host, port, true);
+	}
+
+	/**
+	 * Returns a connection to the given host and port. If reuse is false, a
+	 * new connection is opened even if idle ones exist, for instance to send
+	 * again a request whose reused connection turned out to be stale.
+	 *
+	 * @param host Hostname of the remote server
+	 * @param port Port number of the remote server
+	 * @param reuse false to open a new connection
+	 * @return the connection to use
+	 * @exception IOException if no connection can be opened, or none is released in time
+	 * @see #acquire(String, int)
+	 */
+	public HTTPConnection acquire(String host, int port, boolean reuse) throws IOException {
+		Route route = getRoute(host, port);
+		long deadline = System.currentTimeMillis() + acquireTimeout;
+		synchronized (route) {
+			while (true) {
+				if (closed) {
+					throw new IOException("HTTPConnectionPool is closed");
+				}
+				HTTPConnection connection;
+				while (reuse && (connection = route.idle.pollLast()) != null) {
+					boolean checkRemote = System.currentTimeMillis() - connection.getLastUsed() > validateAfterInactivity;
+					if (connection.isAlive(checkRemote)) {
+						route.leased++;
+						connection.setReused(true);
+						leased.put(connection.getSocket(), connection);
+						debugprintln("HTTPConnectionPool <acquire> reusing " + connection);
+						return connection;
+					}
+					debugprintln("HTTPConnectionPool <acquire> closing stale " + connection);
+					connection.close();
+				}
+				if (maxConnectionsPerRoute <= 0 || route.leased < maxConnectionsPerRoute) {
+					route.leased++;
+					break;
+				}
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					throw new IOException("HTTPConnectionPool no free connection to " + route.key);
+				}
+				try {
+					route.wait(wait);
+				} catch (InterruptedException ie) {
+					throw new IOException("HTTPConnectionPool interrupted while waiting for " + route.key);
+				}
+			}
+		}
+
+		// opens the new connection outside of the lock
+		HTTPConnection connection = null;
+		try {
+			connection = new HTTPConnection(route.key, new Socket(host, port), HTTPConnection.WIRE_CHARSET);
+		} catch (IOException ioe) {
+			synchronized (route) {
+				route.leased--;
+				route.notify();
+			}
+			throw ioe;
+		}
+		leased.put(connection.getSocket(), connection);
+		debugprintln("HTTPConnectionPool <acquire> opened " + connection);
+		return connection;
+	}
+
+	/**
+	 * Returns the connection acquired from this pool using the given socket
+	 *
+	 * @param socket Socket of the connection
+	 * @return the connection, or null if the socket does not belong to this pool
+	 */
+	public HTTPConnection getLeased(Socket socket) {
+		return leased.get(socket);
+	}
+
+	/**
+	 * Gives a connection back to the pool. If the last message allowed it,
+	 * the connection is kept for the next request to the same route,
+	 * otherwise it is closed.
+	 *
+	 * @param connection The connection acquired from this pool
+	 */
+	public void release(HTTPConnection connection) {
+		giveBack(connection, connection.isKeepAlive());
+	}
+
+	/**
+	 * Closes a connection acquired from this pool, for instance after an error.
+	 *
+	 * @param connection The connection acquired from this pool
+	 */
+	public void discard(HTTPConnection connection) {
+		giveBack(connection, false);
+	}
+
+	private void giveBack(HTTPConnection connection, boolean reuse) {
+		if (leased.remove(connection.getSocket()) == null) {
+			return; // already given back
+		}
+		Route route = routes.get(connection.getRoute());
+		if (route == null) {
+			connection.close();
+			return;
+		}
+		synchronized (route) {
+			route.leased--;
+			if (reuse && !closed && route.idle.size() < maxIdlePerRoute && connection.isAlive(false)) {
+				connection.touch();
+				route.idle.addLast(connection);
+			}
+			else {
+				connection.close();
+			}
+			route.notify();
+		}
+	}
+
+	/**
+	 * Closes the idle connections that have not been used for idleTimeout milliseconds.
+	 * It is called periodically by a timer shared by all pools.
+	 */
+	public void evictIdleConnections() {
+		long limit = System.currentTimeMillis() - idleTimeout;
+		for (Route route : routes.values()) {
+			synchronized (route) {
+				// the oldest connections are at the head of the list
+				Iterator<HTTPConnection> it = route.idle.iterator();
+				while (it.hasNext()) {
+					HTTPConnection connection = it.next();
+					if (connection.getLastUsed() > limit) {
+						break;
+					}
+					it.remove();
+					debugprintln("HTTPConnectionPool <evictIdleConnections> closing " + connection);
+					connection.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes all idle connections and stops keeping connections open.
+	 * Connections currently in use are closed when they are given back.
+	 */
+	public void close() {
+		closed = true;
+		if (evictionTask != null) {
+			evictionTask.cancel();
+		}
+		for (Route route : routes.values()) {
+			synchronized (route) {
+				for (HTTPConnection connection : route.idle) {
+					connection.close();
+				}
+				route.idle.clear();
+				route.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of idle connections kept open
+	 *
+	 * @return the number of idle connections
+	 */
+	public int getIdleCount() {
+		int count = 0;
+		for (Route route : routes.values()) {
+			synchronized (route) {
+				count += route.idle.size();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of connections currently in use
+	 *
+	 * @return the number of connections in use
+	 */
+	public int getLeasedCount() {
+		return leased.size();
+	}
+
+	/**
+	 * Returns the maximum number of connections open to the same host and port
+	 *
+	 * @return the maximum number of connections per route
+	 */
+	public int getMaxConnectionsPerRoute() {
+		return maxConnectionsPerRoute;
+	}
+
+	/**
+	 * Sets the maximum number of connections open to the same host and port
+	 *
+	 * @param maxConnectionsPerRoute the maximum number of connections per route, 0 for no limit
+	 */
+	public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+		this.maxConnectionsPerRoute = Math.max(0, maxConnectionsPerRoute);
+	}
+
+	/**
+	 * Returns the maximum number of idle connections kept open to the same host and port
+	 *
+	 * @return the maximum number of idle connections per route
+	 */
+	public int getMaxIdlePerRoute() {
+		return maxIdlePerRoute;
+	}
+
+	/**
+	 * Sets the maximum number of idle connections kept open to the same host and port
+	 *
+	 * @param maxIdlePerRoute the maximum number of idle connections per route
+	 */
+	public void setMaxIdlePerRoute(int maxIdlePerRoute) {
+		this.maxIdlePerRoute = Math.max(0, maxIdlePerRoute);
+	}
+
+	/**
+	 * Returns the time (ms) after which an idle connection is closed
+	 *
+	 * @return the idle timeout
+	 */
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Sets the time (ms) after which an idle connection is closed
+	 *
+	 * @param idleTimeout the idle timeout
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+		if (evictionTask != null) {
+			evictionTask.cancel();
+		}
+		scheduleEviction();
+	}
+
+	/**
+	 * Returns the time (ms) of inactivity after which an idle connection is
+	 * checked with the remote end before being reused
+	 *
+	 * @return the inactivity time before validation
+	 */
+	public long getValidateAfterInactivity() {
+		return validateAfterInactivity;
+	}
+
+	/**
+	 * Sets the time (ms) of inactivity after which an idle connection is
+	 * checked with the remote end before being reused
+	 *
+	 * @param validateAfterInactivity the inactivity time before validation
+	 */
+	public void setValidateAfterInactivity(long validateAfterInactivity) {
+		this.validateAfterInactivity = validateAfterInactivity;
+	}
+
+	/**
+	 * Returns the time (ms) to wait for a free connection
+	 *
+	 * @return the acquire timeout
+	 */
+	public long getAcquireTimeout() {
+		return acquireTimeout;
+	}
+
+	/**
+	 * Sets the time (ms) to wait for a free connection
+	 *
+	 * @param acquireTimeout the acquire timeout
+	 */
+	public void setAcquireTimeout(long acquireTimeout) {
+		this.acquireTimeout = acquireTimeout;
+	}
+
+	private Route getRoute(String host, int port) {
+		String key = host + ":" + port;
+		Route route = routes.get(key);
+		if (route == null) {
+			synchronized (routes) {
+				route = routes.get(key);
+				if (route == null) {
+					route = new Route(key);
+					routes.put(key, route);
+				}
+			}
+		}
+		return route;
+	}
+
+	private void scheduleEviction() {
+		if (closed || idleTimeout <= 0) {
+			return;
+		}
+		evictionTask = new TimerTask() {
+			public void run() {
+				evictIdleConnections();
+			}
+		};
+		long period = Math.max(1, idleTimeout / 2);
+		getEvictionTimer().schedule(evictionTask, period, period);
+	}
+
+	private static synchronized Timer getEvictionTimer() {
+		if (evictionTimer == null) {
+			evictionTimer = new Timer("HTTPConnectionPool-evictor", true);
+		}
+		return evictionTimer;
+	}
+
+	private void debugprintln(Object s) {
+		if (DEBUG) {
+			System.out.println("" + s);
+		}
+	}
+
+	/**
+	 * The connections to one host and port
+	 */
+	private static class Route {
+		private String key;
+		private LinkedList<HTTPConnection> idle = new LinkedList<HTTPConnection>();
+		private int leased = 0;
+
+		private Route(String key) {
+			this.key = key;
+		}
+	}
+
+	public String toString() {
+		return "HTTPConnectionPool maxConnectionsPerRoute=" + maxConnectionsPerRoute
+		+ " - idleTimeout=" + idleTimeout + " - idle=" + getIdleCount() + " - leased=" + getLeasedCount();
+	}
+
+}
@@ -6,6 +6,7 @@
 package context.arch.comm.protocol;
 
 import context.arch.comm.protocol.MulticastUDPSocket;
+import context.arch.comm.CommunicationsExecutors;
 import context.arch.comm.CommunicationsMulticast;
 import context.arch.comm.CommunicationsObject;
 
@@ -16,6 +17,7 @@ import java.io.BufferedReader;
 import java.io.StringReader;
 import java.io.IOException;
 import java.util.StringTokenizer;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This object is able to connect to a multicast group and to send multicast
@@ -70,6 +72,21 @@ implements CommunicationsMulticast {
 		commObject.handleIncomingRequest(packet);
 	}
 
+	/**
+	 * Runs the handling of a received packet with the executor of the
+	 * communications object, or in a new thread if it has none.
+	 *
+	 * @param handler The clone handling the packet
+	 * @see context.arch.comm.CommunicationsObject#getExecutor()
+	 */
+	protected void execute(Runnable handler) {
+		try {
+			CommunicationsExecutors.execute(commObject.getExecutor(), handler);
+		} catch (RejectedExecutionException ree) {
+			System.out.println("HTTPMulticastUDPSocket execute: executor saturated, packet dropped");
+		}
+	}
+
 	/**
 	 * Abstract method to call when stopping a CommunicationsServer object
 	 */
@@ -1,16 +1,23 @@
 package context.arch.comm.protocol;
 
 import java.net.Socket;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.StringReader;
+import java.io.BufferedWriter;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
 import java.util.Date;
 import java.io.IOException;
 
+import context.arch.comm.CommunicationsExecutors;
 import context.arch.comm.CommunicationsServer;
 import context.arch.comm.CommunicationsObject;
 import context.arch.comm.DataObject;
+import context.arch.comm.language.BinaryEncoder;
 
 /**
  * This class subclasses TCPServerSocket, listening for and handling HTTP requests.
@@ -46,6 +53,33 @@ public class HTTPServerSocket extends TCPServerSocket implements CommunicationsS
 	 */
 	public static final String POST = "POST";
 
+	/**
+	 * Time (ms) a persistent connection is kept open waiting for the next request
+	 */
+	public static int KEEP_ALIVE_TIMEOUT = 30000;
+
+	/**
+	 * Maximum number of requests handled on one persistent connection
+	 */
+	public static int MAX_KEEP_ALIVE_REQUESTS = 1000;
+
+	/**
+	 * Time (ms) between checks, while waiting for the next request on a
+	 * persistent connection, that no task waits for the thread
+	 */
+	public static int KEEP_ALIVE_CHECK_INTERVAL = 500;
+
+	/**
+	 * Reply to a request that couldn't be handled because the executor is saturated
+	 */
+	public static final String SERVICE_UNAVAILABLE = "HTTP/1.0 503 Service Unavailable\r\n"
+		+ "Connection: " + HTTPConnection.CLOSE + "\r\n" + "Content-length: 0\r\n\r\n";
+
+	/**
+	 * The connection being handled by the current thread
+	 */
+	private static final ThreadLocal<HTTPConnection> currentConnection = new ThreadLocal<HTTPConnection>();
+
 	private CommunicationsObject commObject;
 
 	/** 
@@ -76,12 +110,33 @@ public class HTTPServerSocket extends TCPServerSocket implements CommunicationsS
 	/** 
 	 * Stub method that handles incoming HTTP requests.  It calls the equivalent
 	 * method in the CommunicationsObject and then closes the socket.
+	 * If the client asked for a persistent connection (HTTP keep-alive), the
+	 * socket is kept open and the following requests sent on it are handled
+	 * the same way, until the client closes it or stays idle for
+	 * KEEP_ALIVE_TIMEOUT milliseconds. The connection is closed sooner if
+	 * other connections wait for a thread of the executor.
 	 *
 	 * @param dataSocket Socket to receive HTTP data from
 	 * @see context.arch.comm.CommunicationsObject#handleIncomingRequest(java.net.Socket)
+	 * @see #KEEP_ALIVE_TIMEOUT
+	 * @see #MAX_KEEP_ALIVE_REQUESTS
 	 */
 	public void handleIncomingRequest(Socket dataSocket) {
-		commObject.handleIncomingRequest(dataSocket);
+		try {
+			HTTPConnection connection = new HTTPConnection(null, dataSocket, HTTPConnection.REQUEST_CHARSET);
+			currentConnection.set(connection);
+			int served = 0;
+			do {
+				connection.setKeepAlive(false);
+				commObject.handleIncomingRequest(dataSocket);
+				served++;
+			} while (connection.isKeepAlive() && served < MAX_KEEP_ALIVE_REQUESTS
+					&& awaitNextRequest(connection));
+		} catch (IOException ioe) {
+			System.out.println("HTTPServerSocket handleIncomingRequest IOException: "+ioe);
+		} finally {
+			currentConnection.remove();
+		}
 		try {
 			dataSocket.close();
 		} catch (IOException ioe) {
@@ -89,25 +144,131 @@ public class HTTPServerSocket extends TCPServerSocket implements CommunicationsS
 		}
 	}
 
+	/**
+	 * Waits for the next request on a persistent connection, for at most
+	 * KEEP_ALIVE_TIMEOUT milliseconds, and as long as no task waits for a
+	 * thread of the executor
+	 *
+	 * @return true if a request arrived
+	 */
+	private boolean awaitNextRequest(HTTPConnection connection) {
+		long deadline = System.currentTimeMillis() + KEEP_ALIVE_TIMEOUT;
+		while (true) {
+			long wait = Math.min(KEEP_ALIVE_CHECK_INTERVAL, deadline - System.currentTimeMillis());
+			if (wait <= 0) {
+				return false;
+			}
+			if (connection.awaitMessage((int) wait)) {
+				return true;
+			}
+			if (connection.isEndOfStream() || CommunicationsExecutors.hasWaitingTasks(commObject.getExecutor())) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Answers 503 Service Unavailable to a connection that couldn't be handled
+	 * because the executor is saturated, and closes it.
+	 *
+	 * @param dataSocket The accepted connection
+	 * @see #SERVICE_UNAVAILABLE
+	 */
+	protected void reject(Socket dataSocket) {
+		try {
+			dataSocket.getOutputStream().write(SERVICE_UNAVAILABLE.getBytes(HTTPConnection.WIRE_CHARSET));
+		} catch (IOException ioe) {
+			System.out.println("HTTPServerSocket reject IOException: "+ioe);
+		}
+		super.reject(dataSocket);
+	}
+
+	/**
+	 * Runs the handling of an accepted connection with the executor of the
+	 * communications object, or in a new thread if it has none.
+	 *
+	 * @param handler The clone handling the connection
+	 * @see context.arch.comm.CommunicationsObject#getExecutor()
+	 */
+	protected void execute(Runnable handler) {
+		CommunicationsExecutors.execute(commObject.getExecutor(), handler);
+	}
+
 	/** 
 	 * Method that takes a reply message and adds the necessary HTTP protocol
 	 *
 	 * @param data Reply to a received request
-	 * @return the reply with the added HTTP protocol
+	 * @return the reply with the added HTTP protocol, one character per byte
+	 *		to be written in HTTPConnection.WIRE_CHARSET
 	 * @exception context.arch.comm.protocol.ProtocolException if the protocol
 	 *		can not be added
+	 * @see HTTPConnection#toWire(String)
 	 */
 	public String addReplyProtocol(String data) throws ProtocolException {
+		String body = HTTPConnection.toWire(data);
+		StringBuffer sb = replyHeader(body.length(), BinaryEncoder.isBinary(data));
+		sb.append(body);
+		//commObject.println("\nHTTPServerSocket addReplyProtocol:\n"+sb.toString());
+		return (sb.toString());
+	}
+
+	/**
+	 * Method that writes a reply message with the necessary HTTP protocol
+	 * directly to the socket, without building the whole reply as a String.
+	 * A binary reply is written one byte per character, a text reply in
+	 * HTTPConnection.REPLY_CHARSET; the Content-length counts the bytes.
+	 *
+	 * @param socket Socket the request came from
+	 * @param data Encoded reply to the received request
+	 * @exception java.io.IOException if the reply can't be written
+	 * @see #addReplyProtocol(String)
+	 */
+	public void writeReply(Socket socket, MessageBuffer data) throws IOException {
+		boolean binary = data.startsWith(BinaryEncoder.MAGIC);
+		OutputStream stream = new BufferedOutputStream(socket.getOutputStream(), 8192);
+		Writer out = new OutputStreamWriter(stream, binary ? HTTPConnection.WIRE_CHARSET : HTTPConnection.REPLY_CHARSET);
+		stream.write(replyHeader(binary ? data.size() : data.utf8Length(), binary).toString().getBytes(HTTPConnection.WIRE_CHARSET));
+		data.writeTo(out);
+		out.write("\r\n");
+		out.flush();
+	}
+
+	/**
+	 * Method that writes the fatal message, with the necessary HTTP protocol, and
+	 * closes the connection after it instead of waiting for the next request on it
+	 *
+	 * @param socket Socket the request came from
+	 * @exception java.io.IOException if the reply can't be written
+	 * @see #getFatalMessage()
+	 */
+	public void writeFatalReply(Socket socket) throws IOException {
+		HTTPConnection connection = currentConnection.get();
+		if (connection != null) {
+			connection.setKeepAlive(false);
+		}
+		String fatal = HTTPConnection.toWire(getFatalMessage());
+		Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), HTTPConnection.WIRE_CHARSET));
+		out.write(replyHeader(fatal.length(), false).toString());
+		out.write(fatal);
+		out.flush();
+	}
+
+	/**
+	 * Returns the HTTP protocol of a reply of the given length and language
+	 */
+	private StringBuffer replyHeader(int length, boolean binary) {
 		StringBuffer sb = new StringBuffer();
 		sb.append("HTTP/1.0 200 OK\r\n");
 		Date now = new Date();
 		sb.append("Date: "+now+"\r\n");
 		sb.append("Server: context/1.0\r\n");
-		sb.append("Content-type: text/xml\r\n");
-		sb.append("Content-length: "+data.length()+"\r\n\r\n"); // AKD added
-		sb.append(data);
-		//commObject.println("\nHTTPServerSocket addReplyProtocol:\n"+sb.toString());
-		return (sb.toString());
+		HTTPConnection connection = currentConnection.get();
+		if (connection != null && connection.isKeepAlive()) {
+			sb.append("Connection: " + HTTPConnection.KEEP_ALIVE + "\r\n");
+		}
+		sb.append("Content-type: " + (binary ? BinaryEncoder.CONTENT_TYPE : "text/xml") + "\r\n");
+		sb.append("Content-length: "+length+"\r\n\r\n"); // AKD added
+		return sb;
 	}
 
 	/** 
@@ -122,102 +283,88 @@ public class HTTPServerSocket extends TCPServerSocket implements CommunicationsS
 	 */
 	public RequestData stripRequestProtocol(Socket data) throws ProtocolException {
 		String method;
-		//    String version = "";
+		String version = null;
 		BufferedReader bufferedReader = null;
 		try {
-			bufferedReader = new BufferedReader(new InputStreamReader(data.getInputStream()), 2048);
+			HTTPConnection connection = currentConnection.get();
+			if (connection != null && connection.getSocket() == data) {
+				bufferedReader = connection.getReader();
+			}
+			else {
+				connection = null;
+				bufferedReader = new BufferedReader(new InputStreamReader(data.getInputStream(), HTTPConnection.REQUEST_CHARSET), 2048);
+			}
 			String get = bufferedReader.readLine();
+			if (get == null) {
+				System.out.println("HTTPServerSocket stripRequestProtocol: connection closed");
+				throw new ProtocolException();
+			}
 			StringTokenizer tokenizer = new StringTokenizer(get);
-			int bytesRead = 0;
-			int bytesReadThisTime = 0;
-			char [] tempdata;
 
 			method = tokenizer.nextToken();
-			if (method.equals("GET")) { 
-				String file= tokenizer.nextToken();
-				if (tokenizer.hasMoreTokens()) {
-					//          version = 
-					tokenizer.nextToken();
-				}
+			if (!method.equals(GET) && !method.equals(POST)) {
+				System.out.println("HTTPServerSocket stripRequestProtocol: invalid protocol use");
+				throw new ProtocolException();
+			}
+			String file= tokenizer.nextToken();
+			if (tokenizer.hasMoreTokens()) {
+				version = tokenizer.nextToken();
+			}
 
-				while ((get = bufferedReader.readLine()) != null) {
-					if (get.trim().equals("")) {
-						break;
+			// DS, 10/27/1998: I found out that some clients don't capitalize Content-Length correctly.
+			// Thus, headers are compared in lower case.
+			int length = -1;
+			String connectionHeader = null;
+			while ((get = bufferedReader.readLine()) != null) {
+				if (get.trim().equals("")) {
+					break;
+				}
+				String header = get.toLowerCase();
+				if (header.startsWith(HTTPConnection.CONTENT_LENGTH_MARKER)) {
+					try {
+						length = Integer.parseInt(get.substring(HTTPConnection.CONTENT_LENGTH_MARKER.length()).trim());
+					} catch (NumberFormatException nfe) {
+						System.out.println("HTTPServerSocket <stripReplyProtocol> RequestServerSocket run error: "+nfe);
+						throw new ProtocolException();
 					}
 				}
+				else if (header.startsWith(HTTPConnection.CONNECTION_MARKER)) {
+					connectionHeader = get.substring(HTTPConnection.CONNECTION_MARKER.length());
+				}
+			}
+
+			if (method.equals(GET)) { 
+				if (connection != null) {
+					connection.setKeepAlive(HTTPConnection.isKeepAlive(version, connectionHeader));
+				}
 				//commObject.println("HTTPServerSocket stripRequestProtocol:GET\n"+file);
 				return new RequestData(GET,file,null);
 			}
-			else if (method.equals(POST)) {
-				String file= tokenizer.nextToken();
-				if (tokenizer.hasMoreTokens()) {
-					//          version = 
-					tokenizer.nextToken();
-				}
-				// DS, 10/27/1998: I found out that some clients don't capitalize Content-Length correctly.
-				// Thus, I've modified the following line from:
-				// while (!(get.startsWith("Content-Length:"))) { to:
-				String marker = "content-length:";
-				while (!(get.toLowerCase().startsWith(marker))) {
-					get = bufferedReader.readLine();
-				}
-				int length = 0;
-				try {
-					length = new Integer(get.substring(marker.length()).trim()).intValue();
-				} catch (NumberFormatException nfe) {
-					System.out.println("HTTPServerSocket <stripReplyProtocol> RequestServerSocket run error: "+nfe);
+			else {
+				if (get == null || length < 0) {
+					System.out.println("HTTPServerSocket stripRequestProtocol: missing Content-Length");
 					throw new ProtocolException();
 				}
 
-//				if (DEBUG) {
-//					commObject.println ("HTTPServerSocket <stripReplyProtocol> Content-Length is: " + length);
-//				}
-
-				while (!(get.trim().equals(""))) {
-					get = bufferedReader.readLine();
+				if (DEBUG) {
+					System.out.println("HTTPServerSocket <stripReplyProtocol> Content-Length is: " + length);
 				}
 
-				char[] postdata = new char[length];
-
-				tempdata = new char [length];
-
-				while (bytesRead < length) {
-					if (bufferedReader.ready()){
-						int ix = bytesRead;	// index to current end of tempdata
-
-						bytesReadThisTime = bufferedReader.read(postdata, 0, length);  // DS: check we've read what we should
-						bytesRead += bytesReadThisTime;
-
-						if (DEBUG) {
-							System.out.println("HTTPServerSocket <stripReplyProtocol> read " + bytesReadThisTime + " more bytes, "+bytesRead);
-						}
-
-						for (int i = 0; i < bytesReadThisTime; i++) {
-							tempdata[ix + i] = postdata[i];
-						}
-
-						postdata = new char[length];
-
-						//          Not sure why this is commented out // Daniel, 9/30/1998
-						//            if (bytesRead < length) {
-						//              System.out.println ("HTTPServerSocket stripRequestProtocol: could read only " + bytesRead + " bytes instead of " + length);
-						//              throw new ProtocolException ();
-						//            }
-					}
+				if (connection != null) {
+					connection.setKeepAlive(HTTPConnection.isKeepAlive(version, connectionHeader));
 				}
 
-				String readerData = new String(tempdata);
-				StringReader reader = new StringReader(readerData);
-				//commObject.println("\nHTTPServerSocket stripRequestProtocol -POST- file:\n"+ file + "\ndata:\n"+readerData);
+				// the decoder reads the body directly from the connection; closing
+				// the reader skips what the decoder left
+				BoundedReader reader = new BoundedReader(bufferedReader, length);
 				return new RequestData(RequestData.DECODE,file, reader);
 			}
-			else {
-				System.out.println("HTTPServerSocket stripRequestProtocol: invalid protocol use");
-				throw new ProtocolException();
-			}
 		} catch (IOException ioe) {
 			System.out.println("HTTPServerSocket stripRequestProtocol IOException: "+ioe);
 			throw new ProtocolException();
+		} catch (NoSuchElementException nsee) {
+			System.out.println("HTTPServerSocket stripRequestProtocol: invalid request line");
+			throw new ProtocolException();
 		}
 	}
 
@@ -0,0 +1,95 @@
+package context.arch.comm.protocol;
+
+import java.io.CharArrayWriter;
+
+/**
+ * This class is the buffer an encoded reply is written to before being sent.
+ * The protocol needs the length of the reply before the reply itself: the
+ * encoder writes in this buffer, and the buffer is then written directly to
+ * the socket (writeTo), without being turned into a String.
+ *
+ * A buffer is reused for all the replies sent by the same thread.
+ *
+ * @see context.arch.comm.protocol.HTTPServerSocket#writeReply(java.net.Socket, MessageBuffer)
+ */
+public class MessageBuffer extends CharArrayWriter {
+
+	/**
+	 * Buffers larger than this number of characters are not kept for the next reply
+	 */
+	public static int MAX_KEPT_SIZE = 1024 * 1024;
+
+	private static final ThreadLocal<MessageBuffer> buffers = new ThreadLocal<MessageBuffer>();
+
+	/**
+	 * Creates an empty buffer
+	 */
+	public MessageBuffer() {
+		super(4096);
+	}
+
+	/**
+	 * Returns whether the buffer starts with the given bytes, compared as
+	 * characters of the same value
+	 *
+	 * @param prefix Bytes to look for
+	 * @return true if the buffer starts with the prefix
+	 */
+	public synchronized boolean startsWith(byte[] prefix) {
+		if (count < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (buf[i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of bytes of the buffer once encoded in UTF-8, without
+	 * encoding it
+	 *
+	 * @return the length of the buffer in UTF-8 bytes
+	 */
+	public synchronized int utf8Length() {
+		int length = 0;
+		for (int i = 0; i < count; i++) {
+			char c = buf[i];
+			if (c < 0x80) {
+				length++;
+			}
+			else if (c < 0x800) {
+				length += 2;
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(buf[i + 1])) {
+				length += 4;
+				i++;
+			}
+			else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				length++; // a lone surrogate is encoded as '?'
+			}
+			else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Returns the empty buffer of the current thread
+	 *
+	 * @return the buffer, emptied
+	 */
+	public static MessageBuffer get() {
+		MessageBuffer buffer = buffers.get();
+		if (buffer == null || buffer.buf.length > MAX_KEPT_SIZE) {
+			buffer = new MessageBuffer();
+			buffers.set(buffer);
+		}
+		buffer.reset();
+		return buffer;
+	}
+
+}
@@ -171,8 +171,7 @@ public class MulticastUDPSocket implements Runnable, Cloneable, MulticastConstan
 					newSocket.data = dataUDP;
 					newSocket.ttl = ttl; // copy this, since it is no longer class static
 					newSocket.parentSocket = this; // what was this for??
-					newSocket.runner = new Thread(newSocket);
-					newSocket.runner.start();       
+					execute(newSocket);
 				} 
 				catch (IOException ioe) {
 					if (serverSocket == null){
@@ -196,6 +195,16 @@ public class MulticastUDPSocket implements Runnable, Cloneable, MulticastConstan
 		}
 	}
 
+	/**
+	 * Runs the clone handling a received packet. By default, it runs
+	 * in a new thread; subclasses may override it to use an executor.
+	 *
+	 * @param handler The clone handling the packet
+	 */
+	protected void execute(Runnable handler) {
+		new Thread(handler).start();
+	}
+
 	/**
 	 * This method handles data received on a given TCPServerSocket.
 	 * Could be abstract since the method does nothing.  A subclass is
@@ -0,0 +1,750 @@
+package context.arch.comm.protocol;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import context.arch.comm.CommunicationsObject;
+import context.arch.comm.CommunicationsServer;
+import context.arch.comm.DataObject;
+import context.arch.comm.language.BinaryEncoder;
+
+/**
+ * This class is a non-blocking HTTP server implementing the CommunicationsServer
+ * interface. Unlike the HTTPServerSocket, which starts a new thread for each
+ * connection, one selector thread accepts the connections and reads the
+ * requests, and a bounded pool of worker threads runs them through the
+ * CommunicationsObject. If the CommunicationsObject has an executor, the
+ * requests are run by it instead; it is looked up for every request, so that
+ * the execution mode of the CommunicationsObject can change while the server runs.
+ *
+ * Connections are persistent when the client asks for it (HTTP keep-alive),
+ * and a client may send several requests without waiting for the replies
+ * (pipelining): the requests of one connection are run one at a time and
+ * the replies are sent back in the order of the requests.
+ *
+ * It is selected by giving CommunicationsObject.NIO_SERVER as the server
+ * class of the BaseObject.
+ *
+ * @see context.arch.comm.CommunicationsServer
+ * @see context.arch.comm.CommunicationsObject#NIO_SERVER
+ * @see context.arch.comm.protocol.HTTPServerSocket
+ */
+public class NIOServerSocket implements CommunicationsServer, Runnable {
+
+	/**
+	 * Debug flag. Set to true to see debug messages.
+	 */
+	public static boolean DEBUG = false;
+
+	/**
+	 * The default port number to use is 5555
+	 */
+	public static final int DEFAULT_PORT = 5555;
+
+	/**
+	 * The protocol being used is HTTP
+	 */
+	public static final String PROTOCOL = "HTTP";
+
+	/**
+	 * HTTP GET request type
+	 */
+	public static final String GET = "GET";
+
+	/**
+	 * HTTP POST request type
+	 */
+	public static final String POST = "POST";
+
+	/**
+	 * The default number of worker threads running the requests
+	 */
+	public static int DEFAULT_WORKERS_NUMBER = 8;
+
+	/**
+	 * Maximum number of requests read ahead on one connection. Beyond that,
+	 * the connection is not read until replies have been sent.
+	 */
+	public static int MAX_PIPELINED_REQUESTS = 16;
+
+	/**
+	 * Maximum size (bytes) of a request
+	 */
+	public static int MAX_REQUEST_LENGTH = 16 * 1024 * 1024;
+
+	/**
+	 * Time (ms) an idle persistent connection is kept open
+	 */
+	public static int KEEP_ALIVE_TIMEOUT = HTTPServerSocket.KEEP_ALIVE_TIMEOUT;
+
+	/**
+	 * Requests are read as ISO-8859-1: one byte per character, as written
+	 * by the HTTPClientSocket, so that the Content-Length counts both.
+	 */
+	private static final String REQUEST_ENCODING = HTTPConnection.REQUEST_CHARSET;
+
+	/**
+	 * The request being run by the current worker thread
+	 */
+	private static final ThreadLocal<PendingRequest> currentRequest = new ThreadLocal<PendingRequest>();
+
+	private CommunicationsObject commObject;
+	private int portNumber;
+	private int workersNumber = DEFAULT_WORKERS_NUMBER;
+
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private Thread runner = null;
+	private volatile ExecutorService ownWorkers;
+	private volatile boolean running = false;
+
+	/**
+	 * Connections having replies to write, handed from the workers to the selector thread
+	 */
+	private ConcurrentLinkedQueue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+
+	/**
+	 * Basic constructor for NIOServerSocket using the default port
+	 *
+	 * @param object Handle of the generic instantiating communications object
+	 * @see #DEFAULT_PORT
+	 */
+	public NIOServerSocket(CommunicationsObject object) {
+		this(object, new Integer(DEFAULT_PORT));
+	}
+
+	/**
+	 * Constructor for NIOServerSocket with the given port
+	 *
+	 * @param object Handle of the generic instantiating communications object
+	 * @param port Port to use to receive communications on
+	 */
+	public NIOServerSocket(CommunicationsObject object, Integer port) {
+		commObject = object;
+		portNumber = port.intValue();
+	}
+
+	/**
+	 * Opens the server channel and starts the selector thread. The workers are
+	 * started with the first request, if the communications object has no executor.
+	 */
+	public void start() {
+		if (runner == null) {
+			try {
+				selector = Selector.open();
+				serverChannel = ServerSocketChannel.open();
+				serverChannel.configureBlocking(false);
+				serverChannel.socket().setReuseAddress(true);
+				serverChannel.socket().bind(new InetSocketAddress(portNumber));
+				serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+				running = true;
+				runner = new Thread(this, "NIOServerSocket-" + portNumber);
+				runner.start();
+			} catch (IOException ioe) {
+				System.out.println("NIOServerSocket init error: "+ioe + " on port number "+portNumber);
+			}
+		}
+	}
+
+	/**
+	 * Returns the executor running the requests: the one of the communications
+	 * object, or the workers of this server if it has none
+	 *
+	 * @see context.arch.comm.CommunicationsObject#getExecutor()
+	 */
+	private Executor getWorkers() {
+		Executor executor = commObject.getExecutor();
+		if (executor != null) {
+			return executor;
+		}
+		if (ownWorkers == null) {
+			synchronized (this) {
+				if (ownWorkers == null) {
+					ownWorkers = Executors.newFixedThreadPool(workersNumber, new ThreadFactory() {
+						private int count = 0;
+						public synchronized Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "NIOServerSocket-" + portNumber + "-worker#" + (count++));
+							t.setDaemon(true);
+							return t;
+						}
+					});
+				}
+			}
+		}
+		return ownWorkers;
+	}
+
+	/**
+	 * Stops the selector thread and the workers, and closes all the connections.
+	 */
+	public void quit() {
+		running = false;
+		if (selector != null) {
+			selector.wakeup();
+		}
+		if (ownWorkers != null) {
+			ownWorkers.shutdown();
+		}
+	}
+
+	/**
+	 * The selector loop: accepts connections, reads requests, writes replies
+	 * and closes idle connections.
+	 */
+	public void run() {
+		long lastIdleCheck = System.currentTimeMillis();
+		while (running) {
+			try {
+				selector.select(1000);
+			} catch (IOException ioe) {
+				System.out.println("NIOServerSocket run IOexception: "+ioe);
+				break;
+			}
+
+			// replies written by the workers
+			Connection pending;
+			while ((pending = pendingWrites.poll()) != null) {
+				pending.updateInterest();
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				try {
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					}
+					else {
+						Connection connection = (Connection) key.attachment();
+						if (key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.write();
+						}
+					}
+				} catch (IOException ioe) {
+					debugprintln("NIOServerSocket run IOexception: "+ioe);
+					if (key.attachment() instanceof Connection) {
+						((Connection) key.attachment()).close();
+					}
+				}
+			}
+
+			long now = System.currentTimeMillis();
+			if (now - lastIdleCheck > 1000) {
+				lastIdleCheck = now;
+				closeIdleConnections(now);
+			}
+		}
+		closeAll();
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Connection connection = new Connection(channel);
+		connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+		debugprintln("NIOServerSocket accepted " + channel);
+	}
+
+	private void closeIdleConnections(long now) {
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof Connection) {
+				Connection connection = (Connection) key.attachment();
+				if (connection.isIdle() && now - connection.lastActivity > KEEP_ALIVE_TIMEOUT) {
+					debugprintln("NIOServerSocket closing idle " + connection.channel);
+					connection.close();
+				}
+			}
+		}
+	}
+
+	private void closeAll() {
+		try {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Connection) {
+					((Connection) key.attachment()).close();
+				}
+			}
+			serverChannel.close();
+			selector.close();
+		} catch (IOException ioe) {
+			System.out.println("NIOServerSocket stopServer error: "+ioe);
+		}
+		runner = null;
+	}
+
+	/**
+	 * Runs a request in a worker thread and hands the reply to the selector thread
+	 */
+	private void runRequest(Connection connection, PendingRequest request) {
+		currentRequest.set(request);
+		String reply;
+		try {
+			reply = commObject.handleIncomingRequest(request.data);
+		} catch (RuntimeException re) {
+			System.out.println("NIOServerSocket runRequest exception: "+re);
+			reply = getFatalMessage();
+		} finally {
+			currentRequest.remove();
+		}
+		// a reply without protocol (fatal message) can't be delimited: the connection is closed after it
+		boolean keepAlive = request.keepAlive && request.protocolAdded;
+		connection.addReply(encodeReply(reply), keepAlive);
+		pendingWrites.add(connection);
+		selector.wakeup();
+	}
+
+	private static byte[] encodeReply(String reply) {
+		// the reply is one character per byte (addReplyProtocol): the Content-Length counts bytes
+		if (reply == null) {
+			return new byte[0];
+		}
+		try {
+			return reply.getBytes(HTTPConnection.WIRE_CHARSET);
+		} catch (UnsupportedEncodingException uee) {
+			return reply.getBytes();
+		}
+	}
+
+	/**
+	 * Method that takes a reply message and adds the necessary HTTP protocol
+	 *
+	 * @param data Reply to a received request
+	 * @return the reply with the added HTTP protocol, one character per byte
+	 *		to be written in HTTPConnection.WIRE_CHARSET
+	 * @exception context.arch.comm.protocol.ProtocolException if the protocol
+	 *		can not be added
+	 * @see HTTPConnection#toWire(String)
+	 */
+	public String addReplyProtocol(String data) throws ProtocolException {
+		String body = HTTPConnection.toWire(data);
+		StringBuffer sb = new StringBuffer();
+		sb.append("HTTP/1.0 200 OK\r\n");
+		Date now = new Date();
+		sb.append("Date: "+now+"\r\n");
+		sb.append("Server: context/1.0\r\n");
+		PendingRequest request = currentRequest.get();
+		if (request != null) {
+			request.protocolAdded = true;
+			if (request.keepAlive) {
+				sb.append("Connection: " + HTTPConnection.KEEP_ALIVE + "\r\n");
+			}
+		}
+		sb.append("Content-type: " + (BinaryEncoder.isBinary(data) ? BinaryEncoder.CONTENT_TYPE : "text/xml") + "\r\n");
+		sb.append("Content-length: "+body.length()+"\r\n\r\n");
+		sb.append(body);
+		return (sb.toString());
+	}
+
+	/**
+	 * Requests are read by the selector thread, never from a blocking socket:
+	 * this method always throws a ProtocolException.
+	 *
+	 * @param data Socket the request is coming from
+	 * @return nothing
+	 * @exception context.arch.comm.protocol.ProtocolException always
+	 */
+	public RequestData stripRequestProtocol(Socket data) throws ProtocolException {
+		System.out.println("NIOServerSocket stripRequestProtocol: requests are not read from sockets");
+		throw new ProtocolException();
+	}
+
+	/**
+	 * Requests are read by the selector thread, never from a blocking socket:
+	 * this method handles the request like the HTTPServerSocket would, with
+	 * the protocol stripped by the communications object.
+	 *
+	 * @param dataSocket Socket to receive HTTP data from
+	 */
+	public void handleIncomingRequest(Socket dataSocket) {
+		commObject.handleIncomingRequest(dataSocket);
+	}
+
+	/**
+	 * This method generates an error message if a request can't
+	 * be handled properly, to the point where a contextual error message
+	 * can still be sent as the reply.
+	 *
+	 * @return error message in the form of a DataObject
+	 * @see #getFatalMessage()
+	 */
+	public DataObject getErrorMessage() {
+		return new DataObject();
+	}
+
+	/**
+	 * This method generates an fatal message if a request can't
+	 * be handled properly, to the point where no contextual error message
+	 * can be sent as the reply.
+	 *
+	 * @return fatal error message
+	 * @see #getErrorMessage()
+	 */
+	public String getFatalMessage() {
+		return new String("");
+	}
+
+	/**
+	 * Method to get the communications protocol being used
+	 *
+	 * @return communications protocol being used
+	 * @see #PROTOCOL
+	 */
+	public String getProtocol() {
+		return PROTOCOL;
+	}
+
+	/**
+	 * Returns the number of worker threads running the requests
+	 *
+	 * @return the number of workers
+	 */
+	public int getWorkersNumber() {
+		return workersNumber;
+	}
+
+	/**
+	 * Sets the number of worker threads running the requests. It must be
+	 * called before start.
+	 *
+	 * @param workersNumber the number of workers
+	 */
+	public void setWorkersNumber(int workersNumber) {
+		this.workersNumber = Math.max(1, workersNumber);
+	}
+
+	private void debugprintln(Object s) {
+		if (DEBUG) {
+			System.out.println("" + s);
+		}
+	}
+
+	public String toString() {
+		return "NIO server socket port=" + portNumber + " - protocol=" + getProtocol() + " - workers=" + workersNumber;
+	}
+
+	/**
+	 * A request read from a connection, waiting to be run
+	 */
+	private static class PendingRequest {
+		private RequestData data;
+		private boolean keepAlive;
+		private boolean protocolAdded = false;
+
+		private PendingRequest(RequestData data, boolean keepAlive) {
+			this.data = data;
+			this.keepAlive = keepAlive;
+		}
+	}
+
+	/**
+	 * The state of one client connection. The input buffer is only used by
+	 * the selector thread; the request queue and the replies are shared with
+	 * the workers and guarded by the connection monitor.
+	 */
+	private class Connection {
+		private SocketChannel channel;
+		private SelectionKey key;
+		private byte[] input = new byte[2048];
+		private int inputLength = 0;
+		private long lastActivity = System.currentTimeMillis();
+		private boolean inputClosed = false;
+
+		private LinkedList<PendingRequest> requests = new LinkedList<PendingRequest>();
+		private LinkedList<ByteBuffer> replies = new LinkedList<ByteBuffer>();
+		private boolean busy = false;
+		private boolean closeAfterReplies = false;
+
+		private Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Reads what is available, parses the complete requests and runs the first one
+		 */
+		private void read() throws IOException {
+			if (inputLength == input.length) {
+				if (input.length >= MAX_REQUEST_LENGTH) {
+					System.out.println("NIOServerSocket: request too long on " + channel);
+					close();
+					return;
+				}
+				byte[] larger = new byte[Math.min(MAX_REQUEST_LENGTH, input.length * 2)];
+				System.arraycopy(input, 0, larger, 0, inputLength);
+				input = larger;
+			}
+			int n = channel.read(ByteBuffer.wrap(input, inputLength, input.length - inputLength));
+			if (n < 0) {
+				synchronized (this) {
+					inputClosed = true;
+					closeAfterReplies = true;
+				}
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				closeIfDone();
+				return;
+			}
+			inputLength += n;
+			lastActivity = System.currentTimeMillis();
+
+			PendingRequest request;
+			try {
+				while ((request = parseRequest()) != null) {
+					synchronized (this) {
+						requests.add(request);
+						if (!request.keepAlive) {
+							// nothing is read after a request closing the connection
+							inputClosed = true;
+							break;
+						}
+					}
+				}
+			} catch (ProtocolException pe) {
+				System.out.println("NIOServerSocket: invalid request on " + channel);
+				synchronized (this) {
+					inputClosed = true;
+					closeAfterReplies = true;
+				}
+			}
+			runNext();
+			updateInterest();
+		}
+
+		/**
+		 * Parses one complete request from the input buffer
+		 *
+		 * @return the request, or null if the buffer doesn't hold a complete request yet
+		 */
+		private PendingRequest parseRequest() throws ProtocolException {
+			// skip the line breaks left after a previous request
+			int start = 0;
+			while (start < inputLength && (input[start] == '\r' || input[start] == '\n')) {
+				start++;
+			}
+			int headerEnd = -1;
+			int bodyStart = -1;
+			for (int i = start; i < inputLength; i++) {
+				if (input[i] == '\n') {
+					if (i + 1 < inputLength && input[i + 1] == '\n') {
+						headerEnd = i; bodyStart = i + 2; break;
+					}
+					if (i + 2 < inputLength && input[i + 1] == '\r' && input[i + 2] == '\n') {
+						headerEnd = i; bodyStart = i + 3; break;
+					}
+				}
+			}
+			if (headerEnd < 0) {
+				consume(start);
+				return null;
+			}
+
+			String headers;
+			try {
+				headers = new String(input, start, headerEnd - start, REQUEST_ENCODING);
+			} catch (UnsupportedEncodingException uee) {
+				throw new ProtocolException();
+			}
+			StringTokenizer lines = new StringTokenizer(headers, "\r\n");
+			StringTokenizer tokenizer = new StringTokenizer(lines.nextToken());
+			if (tokenizer.countTokens() < 2) {
+				throw new ProtocolException();
+			}
+			String method = tokenizer.nextToken();
+			String file = tokenizer.nextToken();
+			String version = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : null;
+			int length = -1;
+			String connectionHeader = null;
+			while (lines.hasMoreTokens()) {
+				String line = lines.nextToken();
+				String header = line.toLowerCase();
+				if (header.startsWith(HTTPConnection.CONTENT_LENGTH_MARKER)) {
+					try {
+						length = Integer.parseInt(line.substring(HTTPConnection.CONTENT_LENGTH_MARKER.length()).trim());
+					} catch (NumberFormatException nfe) {
+						throw new ProtocolException();
+					}
+				}
+				else if (header.startsWith(HTTPConnection.CONNECTION_MARKER)) {
+					connectionHeader = line.substring(HTTPConnection.CONNECTION_MARKER.length());
+				}
+			}
+			boolean keepAlive = HTTPConnection.isKeepAlive(version, connectionHeader);
+
+			if (method.equals(GET)) {
+				consume(bodyStart);
+				return new PendingRequest(new RequestData(GET, file, null), keepAlive);
+			}
+			if (!method.equals(POST) || length < 0 || length > MAX_REQUEST_LENGTH) {
+				throw new ProtocolException();
+			}
+			if (bodyStart + length > inputLength) {
+				consume(start);
+				return null; // body not complete yet
+			}
+			String body;
+			try {
+				body = new String(input, bodyStart, length, REQUEST_ENCODING);
+			} catch (UnsupportedEncodingException uee) {
+				throw new ProtocolException();
+			}
+			consume(bodyStart + length);
+			return new PendingRequest(new RequestData(RequestData.DECODE, file, new StringReader(body)), keepAlive);
+		}
+
+		private void consume(int count) {
+			if (count > 0) {
+				System.arraycopy(input, count, input, 0, inputLength - count);
+				inputLength -= count;
+			}
+		}
+
+		/**
+		 * Gives the next request of this connection to a worker, if none is running
+		 */
+		private void runNext() {
+			final PendingRequest request;
+			synchronized (this) {
+				if (busy || requests.isEmpty()) {
+					return;
+				}
+				busy = true;
+				request = requests.removeFirst();
+			}
+			Runnable task = new Runnable() {
+				public void run() {
+					runRequest(Connection.this, request);
+				}
+			};
+			try {
+				getWorkers().execute(task);
+			} catch (RejectedExecutionException ree) {
+				// the execution mode may have changed meanwhile: looks up the executor once more
+				try {
+					getWorkers().execute(task);
+				} catch (RuntimeException re) { // saturated, or rejected after quit
+					addReply(encodeReply(HTTPServerSocket.SERVICE_UNAVAILABLE), false);
+					pendingWrites.add(this);
+					selector.wakeup();
+				}
+			}
+		}
+
+		/**
+		 * Called by a worker when the reply of the running request is ready
+		 */
+		private synchronized void addReply(byte[] reply, boolean keepAlive) {
+			replies.add(ByteBuffer.wrap(reply));
+			if (!keepAlive) {
+				closeAfterReplies = true;
+				requests.clear();
+			}
+		}
+
+		/**
+		 * Writes the pending replies, runs the next request once a reply has been written
+		 */
+		private void write() throws IOException {
+			boolean replyWritten = false;
+			synchronized (this) {
+				while (!replies.isEmpty()) {
+					ByteBuffer buffer = replies.getFirst();
+					channel.write(buffer);
+					if (buffer.hasRemaining()) {
+						break;
+					}
+					replies.removeFirst();
+					replyWritten = true;
+				}
+				if (replyWritten && replies.isEmpty()) {
+					busy = false;
+				}
+			}
+			lastActivity = System.currentTimeMillis();
+			if (closeIfDone()) {
+				return;
+			}
+			runNext();
+			updateInterest();
+		}
+
+		/**
+		 * Closes the connection if it must be closed and nothing is left to answer
+		 */
+		private boolean closeIfDone() {
+			synchronized (this) {
+				if (!closeAfterReplies || !isIdle()) {
+					return false;
+				}
+			}
+			close();
+			return true;
+		}
+
+		/**
+		 * Reads while few requests are waiting, writes while replies are waiting.
+		 * Only called by the selector thread.
+		 */
+		private void updateInterest() {
+			if (!key.isValid()) {
+				return;
+			}
+			int ops = 0;
+			synchronized (this) {
+				if (!inputClosed && requests.size() < MAX_PIPELINED_REQUESTS) {
+					ops |= SelectionKey.OP_READ;
+				}
+				if (!replies.isEmpty()) {
+					ops |= SelectionKey.OP_WRITE;
+				}
+			}
+			key.interestOps(ops);
+			if (ops == 0) {
+				closeIfDone();
+			}
+		}
+
+		private synchronized boolean isIdle() {
+			return !busy && requests.isEmpty() && replies.isEmpty();
+		}
+
+		private void close() {
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch (IOException ioe) {
+				System.out.println("Couldn't close socket: "+ioe);
+			}
+		}
+	}
+
+}
@@ -3,6 +3,7 @@ package context.arch.comm.protocol;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This class implements a threaded serversocket that accepts TCP packets.
@@ -96,9 +97,15 @@ public class TCPServerSocket implements Runnable, Cloneable {
 					TCPServerSocket newSocket = (TCPServerSocket) clone();
 					newSocket.serverSocket = null;
 					newSocket.data = dataSocket;
-					newSocket.runner = new Thread(newSocket);
-					newSocket.runner.start();
+					try {
+						execute(newSocket);
+					} catch (RejectedExecutionException ree) {
+						reject(dataSocket);
+					}
 				} catch (IOException ioe) {
+					if (serverSocket.isClosed()) { // stopServer
+						return;
+					}
 					System.out.println("TCPServerSocket run IOexception: "+ioe);
 				} catch (CloneNotSupportedException cnse) {
 					System.out.println("TCPServerSocket run CloningException: "+cnse);
@@ -110,6 +117,30 @@ public class TCPServerSocket implements Runnable, Cloneable {
 		}
 	}
 
+	/**
+	 * Runs the clone handling an accepted connection. By default, it runs
+	 * in a new thread; subclasses may override it to use an executor.
+	 *
+	 * @param handler The clone handling the connection
+	 */
+	protected void execute(Runnable handler) {
+		new Thread(handler).start();
+	}
+
+	/**
+	 * Answers a connection that couldn't be handled because the executor is
+	 * saturated. By default, the connection is closed.
+	 *
+	 * @param dataSocket The accepted connection
+	 */
+	protected void reject(Socket dataSocket) {
+		try {
+			dataSocket.close();
+		} catch (IOException ioe) {
+			System.out.println("TCPServerSocket reject IOexception: "+ioe);
+		}
+	}
+
 	/**
 	 * This method handles data received on a given TCPServerSocket.
 	 * Could be abstract since the method does nothing.  A subclass is
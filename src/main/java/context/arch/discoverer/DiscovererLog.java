@@ -0,0 +1,605 @@
+package context.arch.discoverer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import context.arch.comm.DataObject;
+import context.arch.comm.DataObjects;
+import context.arch.comm.language.BinaryDecoder;
+import context.arch.comm.language.BinaryEncoder;
+import context.arch.comm.language.DecodeException;
+import context.arch.comm.language.EncodeException;
+import context.arch.discoverer.lease.Lease;
+
+/**
+ * Keeps the registry of a Discoverer on disk, so that a restarted Discoverer
+ * gets its components back at once instead of waiting for them to register
+ * again.
+ *
+ * The registrations (ADD), description updates (UPDATE), removals (REMOVE)
+ * and lease renewals (LEASE) are appended to a write ahead log (filename.wal).
+ * Each record is its payload length, the CRC32 of its type and payload, its
+ * type byte and its payload: a DataObject encoded by the BinaryEncoder.
+ * The records are queued by the Discoverer threads and written by a writer
+ * thread, which syncs the file once per batch (group commit): the requests
+ * never wait for the disk.
+ *
+ * The writer keeps the encoded state of the registry. Every snapshotRecords
+ * records, or every snapshotInterval ms, it writes it as a compacted snapshot
+ * (filename.snapshot: one ADD record per component), then starts a new log.
+ * Both files carry a generation number, so that a log older than the snapshot
+ * is not replayed.
+ *
+ * On open, the snapshot is loaded and the log is replayed up to its first
+ * damaged record (torn write), then the state is compacted again.
+ *
+ * The configuration is read by the constructor: set the DEFAULT_ fields
+ * before that.
+ *
+ * @see context.arch.discoverer.DiscovererMediator
+ * @see context.arch.comm.language.BinaryEncoder
+ */
+public class DiscovererLog {
+
+	/**
+	 * "CTKW": first bytes of a log file
+	 */
+	public static final int LOG_MAGIC = 0x43544B57;
+
+	/**
+	 * "CTKS": first bytes of a snapshot file
+	 */
+	public static final int SNAPSHOT_MAGIC = 0x43544B53;
+
+	public static final int VERSION = 1;
+
+	public static final byte ADD = 1;
+	public static final byte UPDATE = 2;
+	public static final byte REMOVE = 3;
+	public static final byte LEASE = 4;
+
+	/**
+	 * Tags of the record payloads
+	 */
+	public static final String LOG_ENTRY = "discovererLogEntry";
+	public static final String COMPONENT_ID = "componentId";
+
+	/**
+	 * Records longer than this are taken as damaged
+	 */
+	public static int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * The default maximum time (ms) a record waits to be written
+	 */
+	public static long DEFAULT_FLUSH_INTERVAL = 200;
+
+	/**
+	 * The default number of records after which the log is compacted
+	 */
+	public static int DEFAULT_SNAPSHOT_RECORDS = 10000;
+
+	/**
+	 * The default maximum time (ms) between two compactions of a changing log
+	 */
+	public static long DEFAULT_SNAPSHOT_INTERVAL = 10 * 60 * 1000;
+
+	/**
+	 * If true, each batch is synced to the disk before the next one is taken
+	 */
+	public static boolean DEFAULT_SYNC = true;
+
+	/**
+	 * Time (ms) the writer is given to write the queued records when the VM exits
+	 */
+	public static long SHUTDOWN_TIMEOUT = 5000;
+
+	private final File logFile;
+	private final File snapshotFile;
+	private final long flushInterval;
+	private final int snapshotRecords;
+	private final long snapshotInterval;
+	private final boolean sync;
+
+	/* queued records, guarded by this */
+	private List<Record> queue = new ArrayList<Record>();
+	private boolean writing = false;
+	private boolean flushRequested = false;
+	private boolean closed = false;
+
+	/* owned by the writer thread once opened */
+	private final Map<String, Registration> state = new LinkedHashMap<String, Registration>();
+	private long generation = 0;
+	private FileOutputStream logStream;
+	private DataOutputStream log;
+	private int recordsSinceSnapshot = 0;
+	private long lastSnapshot;
+
+	private Thread writer;
+
+	/**
+	 * A component of the registry, with the lease it was given
+	 */
+	public static class Registration {
+
+		private final DataObject component;
+		private final DataObject lease;
+
+		private Registration(DataObject component, DataObject lease) {
+			this.component = component;
+			this.lease = lease;
+		}
+
+		public ComponentDescription getComponent() {
+			return ComponentDescription.fromDataObject(component);
+		}
+
+		public Lease getLease() {
+			return Lease.dataObjectToLease(lease);
+		}
+	}
+
+	private static class Record {
+
+		private final byte type;
+		private final String id;
+		private final DataObject component;
+		private final DataObject lease;
+
+		private Record(byte type, String id, DataObject component, DataObject lease) {
+			this.type = type;
+			this.id = id;
+			this.component = component;
+			this.lease = lease;
+		}
+	}
+
+	/**
+	 * Creates the log of a Discoverer registry
+	 *
+	 * @param filename Path of the files, without their extension
+	 */
+	public DiscovererLog(String filename) {
+		logFile = new File(filename + ".wal");
+		snapshotFile = new File(filename + ".snapshot");
+		flushInterval = DEFAULT_FLUSH_INTERVAL;
+		snapshotRecords = DEFAULT_SNAPSHOT_RECORDS;
+		snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+		sync = DEFAULT_SYNC;
+	}
+
+	/**
+	 * Recovers the registry from the snapshot and the log, compacts it and
+	 * starts the writer thread.
+	 *
+	 * @return the components registered when the log was last written
+	 * @throws IOException if the files can't be written
+	 */
+	public synchronized Collection<Registration> open() throws IOException {
+		if (writer != null) {
+			throw new IllegalStateException("DiscovererLog already open");
+		}
+		File dir = logFile.getAbsoluteFile().getParentFile();
+		if (dir != null) {
+			dir.mkdirs();
+		}
+
+		long snapshotGeneration = readSnapshot();
+		readLog(snapshotGeneration);
+		generation++;
+		snapshot();
+		List<Registration> registrations = new ArrayList<Registration>(state.values());
+
+		writer = new Thread("DiscovererLog writer") {
+			public void run() {
+				writeLoop();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+
+		// the writer is a daemon: write what is left before the VM exits
+		Runtime.getRuntime().addShutdownHook(new Thread("DiscovererLog shutdown") {
+			public void run() {
+				close(SHUTDOWN_TIMEOUT);
+			}
+		});
+
+		return registrations;
+	}
+
+	/**
+	 * Logs the registration of a component, replacing any previous one
+	 */
+	public void add(ComponentDescription comp, Lease lease) {
+		submit(new Record(ADD, comp.id, comp.toDataObject(), lease.toDataObject()));
+	}
+
+	/**
+	 * Logs the new description of a registered component
+	 */
+	public void update(ComponentDescription comp) {
+		submit(new Record(UPDATE, comp.id, comp.toDataObject(), null));
+	}
+
+	/**
+	 * Logs the removal of a component
+	 */
+	public void remove(String compId) {
+		submit(new Record(REMOVE, compId, null, null));
+	}
+
+	/**
+	 * Logs the renewal of the lease of a component
+	 */
+	public void renew(String compId, Lease lease) {
+		submit(new Record(LEASE, compId, null, lease.toDataObject()));
+	}
+
+	private synchronized void submit(Record record) {
+		if (closed || writer == null) {
+			return;
+		}
+		queue.add(record);
+		if (queue.size() == 1) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Writes the queued records now and waits until they are synced
+	 *
+	 * @param timeout Maximum time (ms) to wait
+	 * @return true if all the records were written in time
+	 */
+	public synchronized boolean flush(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		flushRequested = true;
+		notifyAll();
+		try {
+			while (!queue.isEmpty() || writing) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				try {
+					wait(remaining);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			flushRequested = false;
+		}
+	}
+
+	/**
+	 * Writes the queued records and stops the writer. The records submitted
+	 * afterwards are ignored.
+	 *
+	 * @param timeout Maximum time (ms) to wait for the queued records
+	 */
+	public void close(long timeout) {
+		flush(timeout);
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Waits for the records that arrived within flushInterval of the first one.
+	 * Returns null once closed.
+	 */
+	private synchronized List<Record> take() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + snapshotInterval;
+		while (queue.isEmpty() && !closed) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return new ArrayList<Record>(); // time to check for a snapshot
+			}
+			wait(remaining);
+		}
+		if (queue.isEmpty()) {
+			return null;
+		}
+		deadline = System.currentTimeMillis() + flushInterval;
+		while (!flushRequested && !closed) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				break;
+			}
+			wait(remaining);
+		}
+
+		List<Record> batch = queue;
+		queue = new ArrayList<Record>();
+		writing = true;
+		return batch;
+	}
+
+	private synchronized void done() {
+		writing = false;
+		notifyAll(); // for flush
+	}
+
+	private void writeLoop() {
+		while (true) {
+			List<Record> batch;
+			try {
+				batch = take();
+			} catch (InterruptedException ie) {
+				break;
+			}
+			if (batch == null) {
+				break;
+			}
+			try {
+				for (Record record : batch) {
+					writeRecord(log, record);
+					apply(record);
+				}
+				log.flush();
+				if (sync) {
+					logStream.getFD().sync();
+				}
+				recordsSinceSnapshot += batch.size();
+				if (recordsSinceSnapshot >= snapshotRecords ||
+						(recordsSinceSnapshot > 0 && System.currentTimeMillis() - lastSnapshot >= snapshotInterval)) {
+					generation++;
+					snapshot();
+				}
+			} catch (IOException ioe) {
+				System.out.println("DiscovererLog writeLoop() IO: " + ioe + ", file=" + logFile);
+			} catch (EncodeException ee) {
+				System.out.println("DiscovererLog writeLoop() Encode: " + ee);
+			} finally {
+				done();
+			}
+		}
+		try {
+			log.close();
+		} catch (IOException ioe) {
+			System.out.println("DiscovererLog close() IO: " + ioe);
+		}
+	}
+
+	/**
+	 * Writes the state as the snapshot of the current generation, then starts
+	 * a new log of that generation.
+	 */
+	private void snapshot() throws IOException {
+		File tmp = new File(snapshotFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(generation);
+			out.writeInt(state.size());
+			for (Map.Entry<String, Registration> entry : state.entrySet()) {
+				Registration registration = entry.getValue();
+				writeRecord(out, new Record(ADD, entry.getKey(), registration.component, registration.lease));
+			}
+			out.flush();
+			fos.getFD().sync();
+		} catch (EncodeException ee) {
+			throw new IOException("DiscovererLog snapshot: " + ee);
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(snapshotFile)) {
+			// not atomic, but the previous log stays valid until the rename
+			snapshotFile.delete();
+			if (!tmp.renameTo(snapshotFile)) {
+				throw new IOException("DiscovererLog: can't rename " + tmp + " to " + snapshotFile);
+			}
+		}
+
+		if (log != null) {
+			log.close();
+		}
+		logStream = new FileOutputStream(logFile, false);
+		log = new DataOutputStream(new BufferedOutputStream(logStream));
+		log.writeInt(LOG_MAGIC);
+		log.writeInt(VERSION);
+		log.writeLong(generation);
+		log.flush();
+		if (sync) {
+			logStream.getFD().sync();
+		}
+		recordsSinceSnapshot = 0;
+		lastSnapshot = System.currentTimeMillis();
+	}
+
+	/**
+	 * Loads the snapshot into the state
+	 *
+	 * @return the generation of the snapshot, or -1 if there is none
+	 */
+	private long readSnapshot() {
+		if (!snapshotFile.exists()) {
+			return -1;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != VERSION) {
+				System.out.println("DiscovererLog readSnapshot() not a snapshot: " + snapshotFile);
+				return -1;
+			}
+			generation = in.readLong();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				Record record = readRecord(in);
+				if (record == null) {
+					System.out.println("DiscovererLog readSnapshot() damaged after " + i + " of " + count + " components");
+					break;
+				}
+				apply(record);
+			}
+			return generation;
+		} catch (IOException ioe) {
+			System.out.println("DiscovererLog readSnapshot() IO: " + ioe + ", file=" + snapshotFile);
+			return generation;
+		} finally {
+			close(in);
+		}
+	}
+
+	/**
+	 * Replays the log into the state, if it is not older than the snapshot
+	 */
+	private void readLog(long snapshotGeneration) {
+		if (!logFile.exists()) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+			if (in.readInt() != LOG_MAGIC || in.readInt() != VERSION) {
+				System.out.println("DiscovererLog readLog() not a log: " + logFile);
+				return;
+			}
+			long logGeneration = in.readLong();
+			if (logGeneration < snapshotGeneration) {
+				return; // already in the snapshot
+			}
+			generation = Math.max(generation, logGeneration);
+			Record record;
+			while ((record = readRecord(in)) != null) {
+				apply(record);
+			}
+		} catch (IOException ioe) {
+			System.out.println("DiscovererLog readLog() IO: " + ioe + ", file=" + logFile);
+		} finally {
+			close(in);
+		}
+	}
+
+	private void apply(Record record) {
+		Registration registration = state.get(record.id);
+		switch (record.type) {
+		case ADD:
+			state.put(record.id, new Registration(record.component, record.lease));
+			break;
+		case UPDATE:
+			if (registration != null) {
+				state.put(record.id, new Registration(record.component, registration.lease));
+			}
+			break;
+		case REMOVE:
+			state.remove(record.id);
+			break;
+		case LEASE:
+			if (registration != null) {
+				state.put(record.id, new Registration(registration.component, record.lease));
+			}
+			break;
+		}
+	}
+
+	private static void writeRecord(DataOutputStream out, Record record) throws IOException, EncodeException {
+		DataObjects children = new DataObjects();
+		children.add(new DataObject(COMPONENT_ID, record.id));
+		if (record.component != null) {
+			children.add(record.component);
+		}
+		if (record.lease != null) {
+			children.add(record.lease);
+		}
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		new BinaryEncoder().encodeData(new DataObject(LOG_ENTRY, children), payload);
+		byte[] bytes = payload.toByteArray();
+
+		CRC32 crc = new CRC32();
+		crc.update(record.type);
+		crc.update(bytes);
+
+		out.writeInt(bytes.length);
+		out.writeInt((int) crc.getValue());
+		out.writeByte(record.type);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a record
+	 *
+	 * @return the record, or null at the end of the file or at the first damaged record
+	 */
+	private static Record readRecord(DataInputStream in) throws IOException {
+		try {
+			int length = in.readInt();
+			int checksum = in.readInt();
+			byte type = in.readByte();
+			if (length < 0 || length > MAX_RECORD_SIZE || type < ADD || type > LEASE) {
+				return null;
+			}
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+
+			CRC32 crc = new CRC32();
+			crc.update(type);
+			crc.update(bytes);
+			if ((int) crc.getValue() != checksum) {
+				return null;
+			}
+
+			DataObject entry = new BinaryDecoder().decodeData(new ByteArrayInputStream(bytes));
+			DataObject id = entry.getDataObject(COMPONENT_ID);
+			if (id == null) {
+				return null;
+			}
+			DataObject component = null;
+			DataObject lease = null;
+			for (DataObject child : entry.getChildren()) {
+				if (child.getName().equals(Lease.LEASE)) {
+					lease = child;
+				}
+				else if (!child.getName().equals(COMPONENT_ID)) {
+					component = child;
+				}
+			}
+			if ((type == ADD || type == UPDATE) && component == null
+					|| (type == ADD || type == LEASE) && lease == null) {
+				return null;
+			}
+			return new Record(type, id.getValue(), component, lease);
+		} catch (EOFException eofe) {
+			return null; // end of the file, or torn write
+		} catch (DecodeException de) {
+			System.out.println("DiscovererLog readRecord() Decode: " + de);
+			return null;
+		}
+	}
+
+	private static void close(DataInputStream in) {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException ioe) {
+			}
+		}
+	}
+
+}
@@ -6,16 +6,15 @@
 
 package context.arch.discoverer;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import context.arch.BaseObject;
 import context.arch.comm.DataObject;
 import context.arch.comm.DataObjects;
-import context.arch.comm.RequestObject;
 import context.arch.comm.clients.IndependentCommunication;
 import context.arch.comm.language.MessageHandler;
 import context.arch.discoverer.component.dataModel.AbstractDataModel;
@@ -70,18 +69,14 @@ public class DiscovererMediator {
 	public boolean useLogFile = false;
 
 	/**
-	 * Tags used for the log file
+	 * The log of the registry, used if useLogFile is true
 	 */
-	private final static String ENTRY_STRING = "entry:";
-	private final static String ADD_COMP = "addComp:";
-	private final static String REMOVE_COMP = "removeComp:";
-
+	private DiscovererLog log;
 
 	/** 
-	 * The default name for the Discoverer database log file
+	 * The default name for the Discoverer database log files, without their extension
 	 */
-	@SuppressWarnings("unused")
-	private String filename = "discoverer-database.xml";
+	private String filename = "discoverer-database";
 
 	/**
 	 * Creates new DiscovererMediator 
@@ -95,7 +90,7 @@ public class DiscovererMediator {
 		mh = (MessageHandler) discoverer;
 		leasesKeeper = new LeasesKeeper(this);
 		useLogFile = keepLogFile;
-		filename = Subscribers.WIDGET_SUBSCRIPTIONS_DIR + this.discoverer.getId () + "-database.xml";
+		filename = Subscribers.WIDGET_SUBSCRIPTIONS_DIR + this.discoverer.getId () + "-database";
 
 		setRegisteredComponents ();
 
@@ -114,16 +109,13 @@ public class DiscovererMediator {
 		// If it already exists : removes it
 		ComponentDescription old = dataModel.remove(comp.id);
 		if (old != null) {
-			if (useLogFile) {
-				removeFromLog(old);
-			}
 			leasesKeeper.removeLease(comp.id);
 		}
 		
-		// Now adds it
+		// Now adds it: the log record replaces the old one
 		dataModel.add(comp);
-		if (useLogFile) {
-			addToLog(comp);
+		if (log != null) {
+			log.add(comp, lease);
 		}
 
 		// Registers the lease
@@ -146,6 +138,9 @@ public class DiscovererMediator {
 		// Updates the lease
 		if (leasesKeeper.renewLease(lease)) {
 			err.setError (Error.NO_ERROR);
+			if (log != null) {
+				log.renew(compId, lease);
+			}
 		}
 		else {
 			err.setError (Lease.LEASE_ERROR);
@@ -224,8 +219,8 @@ public class DiscovererMediator {
 		ComponentDescription removed = dataModel.remove(compId); // remove it
 		
 		// Update the log file
-		if (removed != null && useLogFile){
-			removeFromLog(removed);
+		if (removed != null && log != null){
+			log.remove(compId);
 		}
 		
 		// Remove the lease
@@ -257,9 +252,8 @@ public class DiscovererMediator {
 		Error error = new Error(Error.NO_ERROR);
 		String index = dataModel.update(component);
 		// Update the log file
-		if (useLogFile){
-			removeFromLog (component);
-			addToLog (component);
+		if (index != null && log != null){
+			log.update(component);
 		}
 		if (index == null)
 			error.setError (Error.ERROR_CODE);
@@ -303,102 +297,30 @@ public class DiscovererMediator {
 	}
 
 	/**
-	 * Adds a component description to the log file
-	 *
-	 * @param comp The component description
-	 */
-	public synchronized void addToLog(ComponentDescription comp) {
-		writeLog(ENTRY_STRING+ADD_COMP, comp);
-	}
-
-	/**
-	 * Writes something to the log file
-	 * 
-	 * TODO: currently disabled till a more stable log format replaces the flat file storage
-	 *
-	 * @param header The header to write
-	 * @param comp The component to write
-	 */
-	private void writeLog(String header, ComponentDescription comp) {
-////		synchronized (this) {	
-//			BufferedWriter writer = null;
-//			try {
-//				writer = new BufferedWriter(FileUtil.getWriter(filename, true));
-//				String out = new String(header+mh.encodeData(comp.toDataObject())+"\n");
-//				writer.write(out,0,out.length());
-//				writer.flush();
-//			} catch (IOException ioe) {
-//				System.out.println("DiscovererDataModel writeLog() IO: "  + ioe + ", filename=" + filename);
-//				ioe.printStackTrace(System.err);
-//			} catch (EncodeException ee) {
-//				System.out.println("DiscovererDataModel writeLog() Encode: "+ee);
-//			} catch (InvalidEncoderException iee) {
-//				System.out.println("DiscovererDataModel writeLog() InvalidEncoder: "+iee);
-//			} finally {
-//				FileUtil.closeWriter(writer);
-//			}
-////		}
-	}
-
-	/**
-	 * Adds the information that a component is removed from the database into
-	 * the log file
-	 *
-	 * @param comp The component description to remove
-	 */
-	public synchronized void removeFromLog(ComponentDescription comp){
-		removeFromLog(ENTRY_STRING+REMOVE_COMP, comp);
-	}
-
-	/**
-	 * Adds the remove information into the log file
-	 * TODO: currently disabled till a more stable log format replaces the flat file storage
-	 *
-	 * @param header The header information
-	 * @param comp The component description removed
-	 */
-	public void removeFromLog(String header, ComponentDescription comp){
-////		synchronized (this) {
-//			BufferedWriter writer = null;
-//			try {
-//				writer = new BufferedWriter(FileUtil.getWriter(filename, true));
-//				LOGGER.info("\n\nDiscoDataModel <removeFromLog> comp " + comp);
-//				LOGGER.info("\nto dataObj " + comp.toDataObject ());
-//				String out = new String(header+mh.encodeData(comp.toDataObject())+"\n");
-//				writer.write(out,0,out.length());
-//				writer.flush();
-//			} catch (IOException ioe) {
-//				System.out.println("DiscovererDataModel removeFromLog() IO: "+ioe);
-//			} catch (EncodeException ee) {
-//				System.out.println("DiscovererDataModel removeFromLog() Encode: "+ee);
-//			} catch (InvalidEncoderException iee) {
-//				System.out.println("DiscovererDataModel removeFromLog() InvalidEncoder: "+iee);
-//			} finally {
-//				FileUtil.closeWriter(writer);
-//			}
-////		}
-	}
-
-	/**
-	 * Retrieve the information from the log file, check the liveliness of the
-	 * components and put them back into the database
+	 * Retrieve the components from the log files and put them back into the
+	 * database with a new lease. They are not pinged: the ones that are gone
+	 * are removed when they don't answer the end of their lease, so that a
+	 * restart doesn't flood the network.
 	 */
 	private void setRegisteredComponents(){
-		// Get the list of component to restart
-		HashMap<String, ComponentDescription> uncheckedComps = restartRegistrations();
-		if (uncheckedComps != null){
-			// Check them to be sure they are still alive
-//			int i = 0;
-			// Uses an independent communication to send a PING
-			for (ComponentDescription comp : uncheckedComps.values()) {
-				IndependentCommunication indComm = new IndependentCommunication(
-						new RequestObject(null,null, 
-								comp.hostname,comp.port,comp.id), true);
-				indComm.setObjectToStore (comp);
-				indComm.setSenderClassId (Discoverer.DISCOVERER+Discoverer.REGISTERER+BaseObject.PING);
-				discoverer.pingComponent(indComm);
-//				i++;
-			}
+		if (!useLogFile) {
+			return;
+		}
+		Collection<DiscovererLog.Registration> registrations;
+		log = new DiscovererLog(filename);
+		try {
+			registrations = log.open();
+		} catch (IOException ioe) {
+			System.out.println("DiscovererMediator setRegisteredComponents() IO: " + ioe + ", filename=" + filename);
+			log = null;
+			return;
+		}
+		for (DiscovererLog.Registration registration : registrations) {
+			ComponentDescription comp = registration.getComponent();
+			Lease lease = registration.getLease();
+			dataModel.add(comp);
+			lease.setComponentIndex(comp.id);
+			leasesKeeper.addLease(lease);
 		}
 	}
 
@@ -437,64 +359,4 @@ public class DiscovererMediator {
 		}
 	}
 
-	/**
-	 * Retrieve a list of component to restart from the log file
-	 * TODO: currently disabled till a more stable log format replaces the flat file storage
-	 *
-	 * @return Object contains a HashMap object
-	 */
-	private HashMap<String, ComponentDescription> restartRegistrations() {
-//		String log = FileUtil.read(filename);
-//		int index = log.indexOf(ENTRY_STRING);
-		HashMap<String, ComponentDescription> hash = new HashMap<String, ComponentDescription>();
-//
-//		while (index != -1) {
-//			String entry1 = null; // contains the command
-//			int index2 = log.indexOf(ENTRY_STRING,index+1);
-//			if (index2 == -1) {
-//				entry1 = log.substring(index+ENTRY_STRING.length());
-//			}
-//			else {
-//				entry1 = log.substring(index+ENTRY_STRING.length(),index2);
-//			}
-//			try { // Test the message code : ADD, REMOVE and creates a new Component
-//				// object based on the log file
-//				if (entry1.indexOf(ADD_COMP) != -1) {
-//					index = entry1.indexOf(">");
-//					String entry = entry1.substring(index+1);
-//					ComponentDescription comp = ComponentDescription.fromDataObject (mh.decodeData(new StringReader(entry)));
-//					if (hash.containsKey (comp.id)){
-//						hash.remove (comp.id);
-//					}
-//					hash.put (comp.id, comp); 
-//				}
-//				else if (entry1.indexOf(REMOVE_COMP) != -1) {
-//					index = entry1.indexOf(">");
-//					String entry = entry1.substring(index+1);
-//					ComponentDescription comp = ComponentDescription.fromDataObject (mh.decodeData(new StringReader(entry)));
-//					hash.remove (comp.id); 
-//				}
-//			} catch (DecodeException de) {
-//				System.out.println("DiscovererDataModel Decode: "+de);
-//			} catch (InvalidDecoderException ide) {
-//				System.out.println("DiscovererDataModel InvalidDecoder: "+ide);
-//			}
-//			index = index2;
-//		}
-//		FileWriter fw = null;
-//		try {
-////			synchronized (this) {			
-//				// Clear the content of the file
-//				fw = FileUtil.getWriter(filename, false);
-//				fw.flush ();
-//				fw.close ();
-////			}
-//		} catch (IOException ioe) {
-//			System.out.println("DiscovererDataModel writeLog() IO: "+ioe);
-//		} finally {
-//			FileUtil.closeWriter(fw);
-//		}
-		return hash;
-	}
-
 }//class end
@@ -6,6 +6,7 @@
 
 package context.arch.discoverer.component.dataModel;
 
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -27,8 +28,15 @@ public abstract class AbstractDataModel {
 	 */
 	protected Map<String, IndexTable<?>> indexTables;
 
+	/**
+	 * The attribute indexes sorted by value, for range queries.
+	 * key=string=name of the element indexed => value=SortedAttributeIndex
+	 */
+	protected Map<String, SortedAttributeIndex> sortedIndexes;
+
 	public AbstractDataModel() {
 		indexTables = new ConcurrentHashMap<String, IndexTable<?>>();
+		sortedIndexes = new ConcurrentHashMap<String, SortedAttributeIndex>();
 	}
 
 	/**
@@ -38,6 +46,16 @@ public abstract class AbstractDataModel {
 		return indexTables.get(indexName);
 	}
 
+	/**
+	 * Returns the index of the attributes of the given element sorted by value
+	 * 
+	 * @param indexName name of the element
+	 * @return the sorted index, or null if the element has none
+	 */
+	public SortedAttributeIndex getSortedIndex(String indexName) {
+		return sortedIndexes.get(indexName);
+	}
+
 	/**
 	 * Adds the ComponentDescription object to the list of components, and 
 	 * updates the index tables based on the component description.
@@ -68,5 +86,31 @@ public abstract class AbstractDataModel {
 	 * Number of components (added to) in the model.
 	 */
 	public abstract int size();
+
+	/**
+	 * Returns the bitmap of the given components: each component of the model
+	 * has a dense integer id, which is the index of its bit.
+	 * Components not in the model are ignored.
+	 *
+	 * @param components ComponentDescriptions of the model
+	 * @return the bitmap of the components
+	 */
+	public abstract BitSet toBitSet(Collection<ComponentDescription> components);
+
+	/**
+	 * Returns the components of a bitmap
+	 *
+	 * @param bits bitmap of components
+	 * @return the ComponentDescriptions, in the order of their ids
+	 * @see #toBitSet(Collection)
+	 */
+	public abstract Collection<ComponentDescription> fromBitSet(BitSet bits);
+
+	/**
+	 * Returns the bitmap of all the components of the model
+	 *
+	 * @return a copy of the bitmap, that the caller may modify
+	 */
+	public abstract BitSet getComponentsBitSet();
 	
 }
@@ -6,11 +6,16 @@
 
 package context.arch.discoverer.component.dataModel;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import context.arch.discoverer.ComponentDescription;
+import context.arch.discoverer.component.ConstantAttributeElement;
+import context.arch.discoverer.component.NonConstantAttributeElement;
 
 
 /**
@@ -33,12 +38,33 @@ public class DiscovererDataModel extends AbstractDataModel {
 	 */
 	private Map<String, ComponentDescription> components;
 
+	/**
+	 * Dense integer id of each component, for the bitmaps of the queries.
+	 * A component keeps its id when it is updated, or removed and registered
+	 * again, so that a bitmap never designates another component.
+	 * key = String(component.id) => value=Integer
+	 */
+	private Map<String, Integer> ordinals;
+
+	/**
+	 * The components by dense id, null if removed
+	 */
+	private List<ComponentDescription> byOrdinal;
+
+	/**
+	 * Bitmap of the components present in the model
+	 */
+	private BitSet present;
+
 	/** 
 	 * Creates new DiscovererDataModel 
 	 */
 	public DiscovererDataModel () {
 		super();
 		components = new ConcurrentHashMap<String, ComponentDescription>();
+		ordinals = new ConcurrentHashMap<String, Integer>();
+		byOrdinal = new ArrayList<ComponentDescription>();
+		present = new BitSet();
 
 		// nameToIndexTableIF is inherited from the AbstractDataModel class
 		// Here a put the index tables : the key is the name of the table
@@ -54,6 +80,10 @@ public class DiscovererDataModel extends AbstractDataModel {
 		addIndexTable(new ServiceIndexTable());
 		addIndexTable(new SubscriberIndexTable());
 		//nameToIndexTableIF.put(LOCATION_INDEX, new LocationIndexTable(LOCATION_INDEX));
+
+		// attribute values sorted, for range queries
+		addSortedIndex(new SortedAttributeIndex(ComponentDescription.CONST_ATT_ELEMENT, new ConstantAttributeElement()));
+		addSortedIndex(new SortedAttributeIndex(ComponentDescription.NON_CONST_ATT_ELEMENT, new NonConstantAttributeElement()));
 	}
 
 	/** 
@@ -63,10 +93,29 @@ public class DiscovererDataModel extends AbstractDataModel {
 		indexTables.put(table.getName(), table);
 	}
 
+	/** 
+	 * Convenience method to put SortedAttributeIndex associated with its name. 
+	 */
+	public void addSortedIndex(SortedAttributeIndex index) {
+		sortedIndexes.put(index.getName(), index);
+	}
+
 	@Override
 	public String add(ComponentDescription component) {
 		components.put(component.id, component);
 		addToIndexTables(component);
+		synchronized (byOrdinal) {
+			Integer ordinal = ordinals.get(component.id);
+			if (ordinal == null) {
+				ordinal = byOrdinal.size();
+				ordinals.put(component.id, ordinal);
+				byOrdinal.add(component);
+			}
+			else {
+				byOrdinal.set(ordinal, component);
+			}
+			present.set(ordinal);
+		}
 		return component.id;
 	}
 	
@@ -120,9 +169,51 @@ public class DiscovererDataModel extends AbstractDataModel {
 		
 		// remove from the index tables
 		removeFromIndexTables(removed);
+
+		synchronized (byOrdinal) {
+			Integer ordinal = ordinals.get(componentId);
+			if (ordinal != null) {
+				byOrdinal.set(ordinal, null);
+				present.clear(ordinal);
+			}
+		}
 		return removed;
 	}
 
+	@Override
+	public BitSet toBitSet(Collection<ComponentDescription> components) {
+		BitSet bits = new BitSet();
+		if (components == null) { return bits; }
+		for (ComponentDescription component : components) {
+			Integer ordinal = ordinals.get(component.id);
+			if (ordinal != null) {
+				bits.set(ordinal);
+			}
+		}
+		return bits;
+	}
+
+	@Override
+	public Collection<ComponentDescription> fromBitSet(BitSet bits) {
+		List<ComponentDescription> selected = new ArrayList<ComponentDescription>(bits.cardinality());
+		synchronized (byOrdinal) {
+			for (int i = bits.nextSetBit(0); i >= 0 && i < byOrdinal.size(); i = bits.nextSetBit(i + 1)) {
+				ComponentDescription component = byOrdinal.get(i);
+				if (component != null) { // may have been removed since
+					selected.add(component);
+				}
+			}
+		}
+		return selected;
+	}
+
+	@Override
+	public BitSet getComponentsBitSet() {
+		synchronized (byOrdinal) {
+			return (BitSet) present.clone();
+		}
+	}
+
 	/**
 	 * Add the reference to a component description to all IndexTable tables.
 	 */
@@ -130,6 +221,9 @@ public class DiscovererDataModel extends AbstractDataModel {
 		for (IndexTable<?> table : indexTables.values()) {
 			table.addComponent(component);
 		}
+		for (SortedAttributeIndex index : sortedIndexes.values()) {
+			index.addComponent(component);
+		}
 	}
 
 	/**
@@ -139,6 +233,9 @@ public class DiscovererDataModel extends AbstractDataModel {
 		for (IndexTable<?> table : indexTables.values()) {
 			table.removeComponent(component);
 		}
+		for (SortedAttributeIndex index : sortedIndexes.values()) {
+			index.removeComponent(component);
+		}
 	}
 
 	/**
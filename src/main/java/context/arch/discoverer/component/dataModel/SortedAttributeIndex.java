@@ -0,0 +1,188 @@
+package context.arch.discoverer.component.dataModel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import context.arch.discoverer.ComponentDescription;
+import context.arch.discoverer.Discoverer;
+import context.arch.discoverer.component.AttributeElement;
+import context.arch.discoverer.query.comparison.AttributeComparison;
+import context.arch.storage.AttributeNameValue;
+
+/**
+ * Index of ComponentDescriptions by attribute value, sorted per attribute.
+ *
+ * Unlike the IndexTable of the same element, which has to be scanned and
+ * compared key by key, this index keeps one sorted (skip list) map of values
+ * per attribute name and type, so that an AttributeComparison is answered
+ * by a direct lookup (EQUAL) or a range of the map (GREATER, LESS, ...).
+ *
+ * The keys a component was indexed under are remembered, so that it can be
+ * removed even if its attribute values changed in the meantime.
+ *
+ * @see DiscovererDataModel#getSortedIndex(String)
+ * @see context.arch.discoverer.query.RuleQueryItem#search(AbstractDataModel)
+ */
+public class SortedAttributeIndex {
+
+	protected String name;
+
+	protected AttributeElement delegate;
+
+	/**
+	 * key = name+type of the attribute => values sorted => components
+	 */
+	private Map<String, ConcurrentSkipListMap<Object, List<ComponentDescription>>> indexes;
+
+	/**
+	 * key = component id => name+type and value of each attribute indexed
+	 */
+	private Map<String, List<Object[]>> indexed;
+
+	public SortedAttributeIndex(String indexName, AttributeElement delegate) {
+		this.name = indexName;
+		this.delegate = delegate;
+		this.indexes = new ConcurrentHashMap<String, ConcurrentSkipListMap<Object, List<ComponentDescription>>>();
+		this.indexed = new ConcurrentHashMap<String, List<Object[]>>();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public synchronized void addComponent(ComponentDescription component) {
+		List<Object[]> keys = new ArrayList<Object[]>();
+		for (AttributeNameValue<?> att : delegate.extractElement(component)) {
+			Object value = att.getValue();
+			if (value == null) { continue; } // not comparable
+
+			String attKey = key(att);
+			ConcurrentSkipListMap<Object, List<ComponentDescription>> index = indexes.get(attKey);
+			if (index == null) {
+				index = new ConcurrentSkipListMap<Object, List<ComponentDescription>>();
+				indexes.put(attKey, index);
+			}
+			List<ComponentDescription> components = index.get(value);
+			if (components == null) {
+				components = Collections.synchronizedList(new ArrayList<ComponentDescription>());
+				index.put(value, components);
+			}
+			components.add(component);
+			keys.add(new Object[] {attKey, value});
+		}
+		indexed.put(component.id, keys);
+	}
+
+	public synchronized void removeComponent(ComponentDescription component) {
+		List<Object[]> keys = indexed.remove(component.id);
+		if (keys == null) { return; }
+
+		for (Object[] key : keys) {
+			ConcurrentSkipListMap<Object, List<ComponentDescription>> index = indexes.get(key[0]);
+			if (index == null) { continue; }
+			List<ComponentDescription> components = index.get(key[1]);
+			if (components == null) { continue; }
+
+			components.remove(component);
+			if (components.isEmpty()) {
+				index.remove(key[1]);
+				if (index.isEmpty()) {
+					indexes.remove(key[0]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the components having an attribute of the same name and type
+	 * as the given one, whose value satisfies the comparison with its value.
+	 * Same result as comparing each attribute of the IndexTable with
+	 * AttributeComparison.compare.
+	 *
+	 * @param toMatch Attribute to compare with
+	 * @param comparison Comparison between the attributes of the components and toMatch
+	 * @return the components matching, or null if the index can't answer (no value to compare with)
+	 */
+	public Collection<ComponentDescription> search(AttributeNameValue<?> toMatch, AttributeComparison.Comparison comparison) {
+		Object value = toMatch.getValue();
+		if (value == null) { return null; }
+
+		Collection<ComponentDescription> selectedComponents = new ArrayList<ComponentDescription>();
+		NavigableMap<Object, List<ComponentDescription>> index = indexes.get(key(toMatch));
+		if (index == null) { return selectedComponents; } // no component with this attribute
+
+		switch (comparison) {
+		case EQUAL:
+			List<ComponentDescription> components = index.get(value);
+			if (components != null) {
+				selectedComponents.addAll(components);
+			}
+			return selectedComponents;
+		case DIFFERENT:
+			addAll(selectedComponents, index.headMap(value, false));
+			addAll(selectedComponents, index.tailMap(value, false));
+			return selectedComponents;
+		case GREATER:
+			addAll(selectedComponents, index.tailMap(value, false));
+			return selectedComponents;
+		case GREATER_EQUAL:
+			addAll(selectedComponents, index.tailMap(value, true));
+			return selectedComponents;
+		case LESS:
+			addAll(selectedComponents, index.headMap(value, false));
+			return selectedComponents;
+		case LESS_EQUAL:
+			addAll(selectedComponents, index.headMap(value, true));
+			return selectedComponents;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Estimates the number of components search would return, without
+	 * collecting them
+	 *
+	 * @param toMatch Attribute to compare with
+	 * @param comparison Comparison between the attributes of the components and toMatch
+	 * @return the number of components for EQUAL or if no component has the
+	 * attribute, -1 if unknown
+	 */
+	public int count(AttributeNameValue<?> toMatch, AttributeComparison.Comparison comparison) {
+		Object value = toMatch.getValue();
+		if (value == null) { return -1; }
+
+		Map<Object, List<ComponentDescription>> index = indexes.get(key(toMatch));
+		if (index == null) { return 0; }
+		if (comparison == AttributeComparison.Comparison.EQUAL) {
+			List<ComponentDescription> components = index.get(value);
+			return components == null ? 0 : components.size();
+		}
+		return -1;
+	}
+
+	private static void addAll(Collection<ComponentDescription> selectedComponents, Map<Object, List<ComponentDescription>> range) {
+		for (List<ComponentDescription> components : range.values()) {
+			selectedComponents.addAll(components);
+		}
+	}
+
+	/**
+	 * Values are only comparable between attributes of the same name and type
+	 * @see AttributeNameValue#compareToValue(AttributeNameValue)
+	 */
+	private static String key(AttributeNameValue<?> att) {
+		return att.getName() + Discoverer.FIELD_SEPARATOR + att.getType().getName();
+	}
+
+	public String toString() {
+		return getName() + indexes.toString();
+	}
+
+}
@@ -8,8 +8,9 @@ package context.arch.discoverer.lease;
 
 import context.arch.discoverer.DiscovererMediator;
 
-import java.util.Hashtable;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,9 +20,7 @@ import java.util.logging.Logger;
  * That allows the discovery system to make sure a component is still available.
  * This class keeps all information about the context components leases that
  * are registered.
- * It contains a LeasesWatcher object that watches the end of leases each 
- * xx minutes as defined in the Lease class by
- * the constant Lease.TIME_SLOT_MILLIS.
+ * It contains a LeasesWatcher object that watches the end of the leases.
  * If the LeaseKeeper detects the end of a lease, it sends it to the discoverer
  * that will send a checking message to the component. 
  *
@@ -42,7 +41,7 @@ public class LeasesKeeper {
 	/**
 	 * All leases, associates the component (Integer)index -> Lease object
 	 */
-	protected Hashtable<String, Lease> leases;
+	protected ConcurrentMap<String, Lease> leases;
 
 	/**
 	 * The watcher that triggers the leases examination
@@ -60,8 +59,8 @@ public class LeasesKeeper {
 		if (mediator != null){
 			this.mediator = mediator;
 		}
+		leases = new ConcurrentHashMap<String, Lease>();
 		watcher = new LeasesWatcher(this);
-		leases = new Hashtable<String, Lease>();
 	}
 
 	/**
@@ -72,7 +71,7 @@ public class LeasesKeeper {
 	public void addLease(Lease lease){
 		lease.setStartDate(); 
 		leases.put(lease.getComponentIndex(), lease);
-		watcher.putLeases(leases);
+		watcher.watch(lease);
 	}
 
 	/**
@@ -94,12 +93,11 @@ public class LeasesKeeper {
 	 * want to remove the lease
 	 * @return Lease The removed Lease object
 	 */
-	public synchronized Lease removeLease(String indexToRemove) {
+	public Lease removeLease(String indexToRemove) {
 		LOGGER.info("LeaseKeeper <removeLease>");
 		Lease l = null;
 		if ((l = leases.remove(indexToRemove)) != null) {
-			LOGGER.info("LeasesKeeper <removeLease> new leases ="+leases);
-			watcher.putLeases(leases);
+			watcher.unwatch(indexToRemove);
 		}
 		return l;
 	}
@@ -110,8 +108,8 @@ public class LeasesKeeper {
 	 * @param componentIndex The Integer to test
 	 * @return boolean True if this object contains componentIndex
 	 */
-	public synchronized boolean contains(String componentIndex) {
-		return leases.keySet().contains(componentIndex);
+	public boolean contains(String componentIndex) {
+		return leases.containsKey(componentIndex);
 	}
 
 	/**
@@ -134,16 +132,13 @@ public class LeasesKeeper {
 	 * @param renewal The new lease
 	 * @return boolean True if the lease has been updated for the given index
 	 */
-	public synchronized boolean renewLease(Lease renewal) {
+	public boolean renewLease(Lease renewal) {
 		String index = renewal.getComponentIndex();
 		if (index == null) { return false; }
 		
-		Object o = leases.remove(index);
-		
-		if (o != null) {
-			renewal.setStartDate ();
-			leases.put (renewal.getComponentIndex (), renewal);
-			watcher.putLeases (leases);
+		renewal.setStartDate ();
+		if (leases.replace(index, renewal) != null) {
+			watcher.watch(renewal);
 			return true;
 		}
 		// Return false cause lease not found
@@ -6,24 +6,31 @@
 
 package context.arch.discoverer.lease;
 
-import javax.swing.Timer;
-
-import java.awt.event.ActionListener;
-import java.awt.event.ActionEvent;
-import java.util.Vector;
 import java.util.ArrayList;
-import java.util.Hashtable;
 import java.util.Calendar;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import context.arch.util.TimingWheel;
+
 /**
- * This class is used to watch for all context components leases
- * each xx time, as defined by Lease.TIME_SLOT_MILLIS, and then send
- * to the LeasesKeeper object an
- * Enumeration of all component index whose lease expires.
+ * This class is used to watch for the end of the context components leases,
+ * and then send to the LeasesKeeper object the list of component indexes
+ * whose lease expires.
+ *
+ * The leases are kept in a timing wheel by end date: adding or renewing a
+ * lease takes a constant time, and each tick (DEFAULT_TICK_MILLIS) only
+ * handles the leases expiring, not all of them. The ticks are run by a daemon
+ * java.util.Timer, without the AWT event thread.
+ *
+ * A lease notified is watched again DEFAULT_RECHECK_MILLIS later, in case the
+ * component neither renews it nor is removed.
  *
  * @author  Agathe
+ * @see context.arch.util.TimingWheel
  */
 public class LeasesWatcher {
 	
@@ -31,11 +38,25 @@ public class LeasesWatcher {
 	static {LOGGER.setLevel(Level.WARNING);} // this should be set in a configuration file
 
 	/**
-	 * The timer object that waits for Lease.TIME_SLOT_MILLIS minutes to start
-	 * the leases watching
+	 * The default length (ms) of a tick of the wheel, the precision of the lease ends
+	 */
+	public static long DEFAULT_TICK_MILLIS = 1000;
+
+	/**
+	 * The default time (ms) after which a lease notified is checked again
 	 *
 	 * @see context.arch.discoverer.lease.Lease#TIME_SLOT_MILLIS
 	 */
+	public static long DEFAULT_RECHECK_MILLIS = 2 * Lease.TIME_SLOT_MILLIS;
+
+	/**
+	 * The default maximum number of components per lease end notification
+	 */
+	public static int DEFAULT_NOTIFICATION_BATCH_SIZE = 100;
+
+	/**
+	 * The timer object that advances the wheel every tick
+	 */
 	private Timer timer;
 
 	/**
@@ -44,9 +65,9 @@ public class LeasesWatcher {
 	protected LeasesKeeper keeper;
 
 	/**
-	 * The vector containing the lease objects
+	 * The component indexes, by end of lease
 	 */
-	protected Vector<Lease> leases;
+	protected TimingWheel<String> leases;
 
 	/**
 	 * Creates new LeasesWatcher
@@ -55,73 +76,96 @@ public class LeasesWatcher {
 	 */
 	public LeasesWatcher(LeasesKeeper leasesKeeper) {
 		keeper = leasesKeeper;
+		leases = new TimingWheel<String>(DEFAULT_TICK_MILLIS);
 
-		int delay = 2 * (int) Lease.TIME_SLOT_MILLIS;
-		// Creates a new xx minutes Timer
-		timer = new Timer(delay, new ActionListener() {
-			public void actionPerformed(ActionEvent evt) {
-				watchLeases();
+		timer = new Timer("LeasesWatcher", true);
+		timer.schedule(new TimerTask() {
+			public void run() {
+				try {
+					watchLeases();
+				} catch (RuntimeException e) {
+					LOGGER.severe("LeasesWatcher <watchLeases> " + e);
+				}
 			}
-		});
-		timer.start();
-		LOGGER.info("LeasesWatcher <init> The timer ("+ timer.getDelay()+")has started... at " + Calendar.getInstance().getTime());
+		}, DEFAULT_TICK_MILLIS, DEFAULT_TICK_MILLIS);
+		LOGGER.info("LeasesWatcher <init> The timer ("+ DEFAULT_TICK_MILLIS +")has started... at " + Calendar.getInstance().getTime());
+	}
+
+	/**
+	 * Stops the timer
+	 */
+	public void stop() {
+		timer.cancel();
 	}
 
 	/**
 	 * Stops the timer when this object is destroyed
 	 */
 	protected void finalize(){
-		timer.stop();
+		timer.cancel();
 	}
 
 
 	/**
-	 *
+	 * Sends the leases whose end has passed to the LeasesKeeper, by batches
 	 */
 	protected void watchLeases() {
-		LOGGER.info("\n\n-----LeasesWatcher <watchLeases> The timer has expired time= " + Calendar.getInstance().getTime());
-		if (leases != null) {
-//			// Take the current date
-//			Calendar currentDate = Calendar.getInstance();
-			// The result vector that will contain  index of the component to which
-			// the discoverer has to send a lease end notification message
-			ArrayList<String> leasesToEnd = new ArrayList<String>();
-
-			// Checks all leases, if the lease expires, add the context component index to the vector
-			for (Lease lease : leases) {
-				//Tests if the lease corresponds to an existing component description
-				if (keeper.existingComponentDescription(lease.getComponentIndex())) {
-					// this commented code is the original: we don't check the components before the end of the lease
-					/*Calendar date = l.getEndDate();
-			          if (date.before (currentDate)){
-			            // Adds the index
-			            result.add (l.getComponentIndex());
-			          }*/
-//					Calendar date = lease.getEndDate();
-					// Adds the index
-					leasesToEnd.add(lease.getComponentIndex());
-				}
+		long now = System.currentTimeMillis();
+		List<String> expired = leases.advance(now);
+		if (expired.isEmpty()) {
+			return;
+		}
+		LOGGER.info("\n\n-----LeasesWatcher <watchLeases> " + expired.size() + " leases expired time= " + Calendar.getInstance().getTime());
+
+		// The result vector that will contain  index of the component to which
+		// the discoverer has to send a lease end notification message
+		ArrayList<String> leasesToEnd = new ArrayList<String>();
+		for (String index : expired) {
+			//Tests if the lease corresponds to an existing component description
+			if (keeper.contains(index) && keeper.existingComponentDescription(index)) {
+				leasesToEnd.add(index);
+				// until the component renews its lease or is removed
+				leases.schedule(index, now + DEFAULT_RECHECK_MILLIS);
 			}
-			if (!leasesToEnd.isEmpty()) {
-				// Sends the Enumeration of leases terms to the LeasesKeeper
+			if (leasesToEnd.size() >= DEFAULT_NOTIFICATION_BATCH_SIZE) {
 				keeper.leaseEndNotificationTo(leasesToEnd);
+				leasesToEnd = new ArrayList<String>();
 			}
 		}
+		if (!leasesToEnd.isEmpty()) {
+			// Sends the leases terms to the LeasesKeeper
+			keeper.leaseEndNotificationTo(leasesToEnd);
+		}
 	}
 
 	/**
-	 * This method allows to copy the current leases into the object the
-	 * LeasesWatcher will watch.
+	 * Watches the end of a lease, added or renewed
 	 *
-	 * @param currentLeases The vector object containing the leases
+	 * @param lease The lease, with its end date set
 	 */
-	synchronized protected void putLeases(Hashtable<String, Lease> currentLeases) {
-		LOGGER.info("LeasesWatcher <putLeases> " + currentLeases);
-		leases = null;
-		// Does a copy of the object
-		if (currentLeases != null) {
-			leases = new Vector<Lease>(currentLeases.values());
-		}
+	protected void watch(Lease lease) {
+		LOGGER.info("LeasesWatcher <watch> " + lease);
+		Calendar end = lease.getEndDate();
+		long deadline = (end == null) ? System.currentTimeMillis() : end.getTimeInMillis();
+		leases.schedule(lease.getComponentIndex(), deadline);
+	}
+
+	/**
+	 * Stops watching the lease of a component
+	 *
+	 * @param componentIndex The index of the component
+	 */
+	protected void unwatch(String componentIndex) {
+		leases.cancel(componentIndex);
+	}
+
+	/**
+	 * Returns the number of leases watched
+	 *
+	 * @return the number of leases
+	 */
+	public int size() {
+		return leases.size();
 	}
 
 }// class end
@@ -7,9 +7,13 @@
 package context.arch.discoverer.query;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import context.arch.discoverer.ComponentDescription;
 import context.arch.discoverer.component.dataModel.AbstractDataModel;
@@ -39,29 +43,59 @@ public class ANDQueryItem extends BooleanQueryItem {
 	 */
 	@Override
 	public Collection<ComponentDescription> search(AbstractDataModel dataModel) {
-		Collection<ComponentDescription> components = new ArrayList<ComponentDescription>(); // use ArrayList for quick iteration
-		if (children.isEmpty()) { return components; }
-		
-		// process first child for components
-		components.addAll(children.get(0).search(dataModel));
-		if (children.size() == 1) { return components; }
+		return dataModel.fromBitSet(searchBits(dataModel));
+	}
 
-		// process existing components in relation to the remaining children
-		for (int c = 1; c < children.size(); c++) { // start from second
-			Collection<ComponentDescription> childComponents = children.get(c).search(dataModel);
-			
-			// remove from original components if not in childComponents
-			Iterator<ComponentDescription> it = components.iterator();
-			while (it.hasNext()) {
-				if (!childComponents.contains(it.next())) {
-					it.remove();
-				}
+	/**
+	 * Intersects the bitmaps of the children, the most selective first, and
+	 * stops as soon as the intersection is empty.
+	 */
+	@Override
+	public BitSet searchBits(AbstractDataModel dataModel) {
+		if (children.isEmpty()) { return new BitSet(); }
+
+		BitSet components = null;
+		for (AbstractQueryItem<?,?> child : bySelectivity(dataModel)) {
+			BitSet childComponents = child.searchBits(dataModel);
+			if (components == null) {
+				components = childComponents;
+			}
+			else {
+				components.and(childComponents);
 			}
+			if (components.isEmpty()) { break; } // nothing left to intersect
 		}
-
 		return components;
 	}
 
+	@Override
+	public int estimateSize(AbstractDataModel dataModel) {
+		int size = dataModel.size();
+		for (AbstractQueryItem<?,?> child : children) {
+			size = Math.min(size, child.estimateSize(dataModel));
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the children sorted by estimated size, smallest first
+	 */
+	private List<AbstractQueryItem<?,?>> bySelectivity(final AbstractDataModel dataModel) {
+		List<AbstractQueryItem<?,?>> sorted = new ArrayList<AbstractQueryItem<?,?>>(children);
+		if (sorted.size() > 1) {
+			final Map<AbstractQueryItem<?,?>, Integer> sizes = new IdentityHashMap<AbstractQueryItem<?,?>, Integer>();
+			for (AbstractQueryItem<?,?> child : sorted) {
+				sizes.put(child, child.estimateSize(dataModel));
+			}
+			Collections.sort(sorted, new Comparator<AbstractQueryItem<?,?>>() {
+				public int compare(AbstractQueryItem<?,?> child1, AbstractQueryItem<?,?> child2) {
+					return sizes.get(child1).compareTo(sizes.get(child2));
+				}
+			});
+		}
+		return sorted;
+	}
+
 	@Override
 	public Boolean match(ComponentDescription component) {
 		Boolean result = true;
@@ -6,7 +6,10 @@
 
 package context.arch.discoverer.query;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.List;
 
 import context.arch.discoverer.ComponentDescription;
 import context.arch.discoverer.component.dataModel.AbstractDataModel;
@@ -99,6 +102,44 @@ public abstract class AbstractQueryItem<C1,C2> {
 	 */
 	public abstract Collection<ComponentDescription> search(AbstractDataModel dataModel);
 
+	/**
+	 * Finds the ComponentDescriptions that match this query from the dataModel,
+	 * as a bitmap of their ids in the data model. Boolean query items combine
+	 * the bitmaps of their children with bitwise operations.
+	 * By default, converts the result of search; if search is not supported
+	 * (null), matches each component of the data model.
+	 *
+	 * @param dataModel
+	 * @return the bitmap of the components found
+	 * @see AbstractDataModel#toBitSet(Collection)
+	 */
+	public BitSet searchBits(AbstractDataModel dataModel) {
+		Collection<ComponentDescription> components = search(dataModel);
+		if (components != null) {
+			return dataModel.toBitSet(components);
+		}
+
+		List<ComponentDescription> matching = new ArrayList<ComponentDescription>();
+		for (ComponentDescription component : dataModel.getComponents()) {
+			if (Boolean.TRUE.equals(match(component))) {
+				matching.add(component);
+			}
+		}
+		return dataModel.toBitSet(matching);
+	}
+
+	/**
+	 * Estimates the number of components this query finds, so that the most
+	 * selective queries are processed first by an ANDQueryItem.
+	 * By default, all the components of the data model.
+	 *
+	 * @param dataModel
+	 * @return the estimated number of components found
+	 */
+	public int estimateSize(AbstractDataModel dataModel) {
+		return dataModel.size();
+	}
+
 	/**
 	 * Returns true if a component fits this query, false if the query legally fails.
 	 * Null if the query is invalid, e.g. the attribute value is null.
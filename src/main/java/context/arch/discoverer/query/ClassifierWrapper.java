@@ -6,8 +6,10 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -21,6 +23,7 @@ import weka.core.Attribute;
 import weka.core.DenseInstance;
 import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.Utils;
 
 /**
  * Adapter class to wrap a Weka Classifier to work with the Context Toolkit.
@@ -36,12 +39,53 @@ public class ClassifierWrapper {
 	public static final String CLASSIFIER = "CLASSIFIER";
 	public static final String DATASET_HEADER = "DATASET_HEADER";
 
-	public static final int CACHE_LIMIT = 10;
-	private LinkedHashMap<Instance, String> instanceClassifications = new LRUCache<Instance, String>(CACHE_LIMIT);
+	/**
+	 * Number of instances whose label and distribution are cached
+	 */
+	public static int DEFAULT_CACHE_SIZE = 256;
+
+	/**
+	 * The classifier, with the label and distribution of the instances it
+	 * recently classified, by attribute values. Replaced as a whole when the
+	 * classifier is reloaded, so that a label is never cached for the wrong one.
+	 */
+	private static class CachedClassifier {
+		final Classifier classifier;
+		final Map<InstanceKey, String> classifications;
+		final Map<InstanceKey, double[]> distributions;
+
+		CachedClassifier(Classifier classifier) {
+			this.classifier = classifier;
+			classifications = Collections.synchronizedMap(new LRUCache<InstanceKey, String>(DEFAULT_CACHE_SIZE));
+			distributions = Collections.synchronizedMap(new LRUCache<InstanceKey, double[]>(DEFAULT_CACHE_SIZE));
+		}
+	}
+
+	private volatile CachedClassifier cachedClassifier;
+
+	/*
+	 * Header attributes compiled once: kind, name and nominal value indexes of each
+	 */
+	private static final int NUMERIC = 0;
+	private static final int NOMINAL = 1;
+	private static final int OTHER = 2;
+	private int[] attributeKinds;
+	private String[] attributeNames;
+	private List<Map<String, Integer>> nominalIndexes;
+	private int classIndex;
+
+	/**
+	 * Attribute values extracted from a widget state, one buffer per thread
+	 */
+	private final ThreadLocal<double[]> valuesBuffer = new ThreadLocal<double[]>() {
+		@Override
+		protected double[] initialValue() {
+			return new double[NUM_ATTRIBUTES];
+		}
+	};
 	
 	private List<String> outcomeValues = new ArrayList<String>();
 
-	protected Classifier classifier;
 	protected Instances header;
 	protected Attribute classAttribute;
 	protected int NUM_ATTRIBUTES;
@@ -55,7 +99,7 @@ public class ClassifierWrapper {
 		this.headerFileName = headerFileName;
 		
 		// extract classifier from serialized file
-		this.classifier = loadClassifier(classifierFileName);
+		this.cachedClassifier = new CachedClassifier(loadClassifier(classifierFileName));
 
 		// extract Instances dataset header from serialized file
 		this.header = loadDataset(headerFileName);
@@ -68,6 +112,37 @@ public class ClassifierWrapper {
 		}
 		
 		NUM_ATTRIBUTES = header.numAttributes();
+		compileHeader();
+	}
+
+	/**
+	 * Compiles the header attributes, so that extracting an instance doesn't
+	 * need to inspect them again
+	 */
+	private void compileHeader() {
+		attributeKinds = new int[NUM_ATTRIBUTES];
+		attributeNames = new String[NUM_ATTRIBUTES];
+		nominalIndexes = new ArrayList<Map<String, Integer>>(NUM_ATTRIBUTES);
+		for (int i = 0; i < NUM_ATTRIBUTES; i++) {
+			weka.core.Attribute attr = header.attribute(i);
+			attributeNames[i] = attr.name();
+			Map<String, Integer> indexes = null;
+			if (attr.isNumeric()) {
+				attributeKinds[i] = NUMERIC;
+			}
+			else if (attr.isNominal()) {
+				attributeKinds[i] = NOMINAL;
+				indexes = new HashMap<String, Integer>();
+				for (int v = 0; v < attr.numValues(); v++) {
+					indexes.put(attr.value(v), v);
+				}
+			}
+			else {
+				attributeKinds[i] = OTHER;
+			}
+			nominalIndexes.add(indexes);
+		}
+		classIndex = header.classIndex();
 	}
 	
 	/**
@@ -91,7 +166,25 @@ public class ClassifierWrapper {
 	 * @return the WEKA classifier
 	 */
 	public Classifier getClassifier() {
-		return classifier;
+		return cachedClassifier.classifier;
+	}
+	
+	/**
+	 * Replaces the classifier by the one of a model file, e.g. a retrained one, 
+	 * for the same dataset header. The cached labels and distributions are dropped;
+	 * explainers notice the new classifier and compile their explanations again.
+	 * @param classifierFileName
+	 * @return false if the classifier couldn't be loaded; the current one is kept
+	 */
+	public boolean reloadClassifier(String classifierFileName) {
+		Classifier classifier = loadClassifier(classifierFileName);
+		if (classifier == null) { return false; }
+		
+		synchronized (this) {
+			this.classifierFileName = classifierFileName;
+			this.cachedClassifier = new CachedClassifier(classifier);
+		}
+		return true;
 	}
 	
 	/**
@@ -133,29 +226,36 @@ public class ClassifierWrapper {
 	 * @return null if classification failed or was invalid (e.g. null values in attributes)
 	 */
 	protected String classify(Instance instance) {
+		double[] values = instance.toDoubleArray();
+		if (classIndex >= 0) { values[classIndex] = Utils.missingValue(); } // not a feature
+		return classify(new InstanceKey(values), instance);
+	}
+
+	/**
+	 * @param key attribute values of the instance, copied if cached
+	 * @param instance the instance, or null to create it from the key if needed
+	 */
+	private String classify(InstanceKey key, Instance instance) {
+		CachedClassifier cached = cachedClassifier; // the same classifier and cache throughout
+
 		// return cached result if recently classified
-		if (instanceClassifications.containsKey(instance)) {
-			return instanceClassifications.get(instance);
+		String strValue = cached.classifications.get(key);
+		if (strValue != null) {
+			return strValue;
 		}
 		
 		try {
-			double value = classifier.classifyInstance(instance);
+			if (instance == null) { instance = toInstance(key.values); }
+			double value = cached.classifier.classifyInstance(instance);
 			
 			// save label back into instance
 			// TODO: not guaranteed to always be stored in other circumstances
 			instance.setValue(classAttribute, value);
 			
-			// for debugging
-//			double[] distroForInstance = classifier.distributionForInstance(instance);				
-//			System.out.println("ClassifierWrapper.classify distroForInstance");			
-//			for (int i = 0; i < distroForInstance.length; i++) {
-//				System.out.println("\t " + classAttribute.value(i) + ": " + distroForInstance[i]);
-//			}
-			
-			String strValue = classAttribute.value((int)value);
+			strValue = classAttribute.value((int)value);
 			
 			// cache result
-			instanceClassifications.put(instance, strValue);
+			cached.classifications.put(key.copy(), strValue);
 			
 			return strValue;
 		} catch (Exception e) {
@@ -164,6 +264,33 @@ public class ClassifierWrapper {
 		return null;
 	}
 
+	/**
+	 * Returns the distribution of the outcome values for an instance, cached
+	 * @param instance
+	 * @return null if the classifier failed
+	 */
+	public double[] distributionForInstance(Instance instance) {
+		double[] values = instance.toDoubleArray();
+		if (classIndex >= 0) { values[classIndex] = Utils.missingValue(); }
+		return distributionForInstance(new InstanceKey(values), instance);
+	}
+
+	private double[] distributionForInstance(InstanceKey key, Instance instance) {
+		CachedClassifier cached = cachedClassifier;
+		double[] distribution = cached.distributions.get(key);
+		if (distribution == null) {
+			try {
+				if (instance == null) { instance = toInstance(key.values); }
+				distribution = cached.classifier.distributionForInstance(instance);
+				cached.distributions.put(key.copy(), distribution);
+			} catch (Exception e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+		return distribution.clone(); // the cached one must not be modified
+	}
+
 	/**
 	 * Checks if widget state can be extracted as an appropriate Instance,
 	 * since other widgets are also queried. 
@@ -181,10 +308,10 @@ public class ClassifierWrapper {
 	 * @return
 	 */
 	public String classify(ComponentDescription widgetState) {
-		Instance instance = extractInstance(widgetState);
-		if (instance == null) { return null; }
+		double[] values = valuesBuffer.get();
+		if (!extractValues(widgetState, values)) { return null; }
 		
-		String outcomeValue = classify(instance);
+		String outcomeValue = classify(new InstanceKey(values), null);
 		
 		// store value back into widgetState
 		widgetState.getNonConstantAttributes().addAttribute(classAttribute.name(), outcomeValue);
@@ -192,6 +319,27 @@ public class ClassifierWrapper {
 		
 		return outcomeValue;
 	}
+
+	/**
+	 * Classifies many widget states at once: states with the same attribute
+	 * values are classified only once, and recently classified ones not at all.
+	 * @param widgetStates
+	 * @return the outcome value of each widget state, null where it failed
+	 */
+	public List<String> classify(List<ComponentDescription> widgetStates) {
+		List<String> outcomeValues = new ArrayList<String>(widgetStates.size());
+		double[] values = valuesBuffer.get();
+		for (ComponentDescription widgetState : widgetStates) {
+			if (!extractValues(widgetState, values)) {
+				outcomeValues.add(null);
+				continue;
+			}
+			String outcomeValue = classify(new InstanceKey(values), null);
+			widgetState.getNonConstantAttributes().addAttribute(classAttribute.name(), outcomeValue);
+			outcomeValues.add(outcomeValue);
+		}
+		return outcomeValues;
+	}
 	
 	/**
 	 * Calls distributionForInstance of the Instance after extracing it from ComponentDescription
@@ -199,14 +347,28 @@ public class ClassifierWrapper {
 	 * @return
 	 */
 	public double[] distributionForInstance(ComponentDescription widgetState) {
-		Instance instance = extractInstance(widgetState);
-		try {
-			return classifier.distributionForInstance(instance);
-			// TODO: utilize caching!
-		} catch (Exception e) {
-			e.printStackTrace();
-			return null;
+		double[] values = valuesBuffer.get();
+		if (!extractValues(widgetState, values)) { return null; }
+		return distributionForInstance(new InstanceKey(values), null);
+	}
+
+	/**
+	 * Distributions of the outcome values for many widget states at once
+	 * @param widgetStates
+	 * @return the distribution for each widget state, null where it failed
+	 * @see #classify(List)
+	 */
+	public List<double[]> distributionsForInstances(List<ComponentDescription> widgetStates) {
+		List<double[]> distributions = new ArrayList<double[]>(widgetStates.size());
+		double[] values = valuesBuffer.get();
+		for (ComponentDescription widgetState : widgetStates) {
+			if (!extractValues(widgetState, values)) {
+				distributions.add(null);
+				continue;
+			}
+			distributions.add(distributionForInstance(new InstanceKey(values), null));
 		}
+		return distributions;
 	}
 
 	/**
@@ -215,43 +377,91 @@ public class ClassifierWrapper {
 	 * @return
 	 */
 	public Instance extractInstance(ComponentDescription widgetState) {	
-		if (!isInstanceExtractable(widgetState)) { return null; }
-		
-		Instance instance = new DenseInstance(NUM_ATTRIBUTES);
+		double[] values = new double[NUM_ATTRIBUTES];
+		if (!extractValues(widgetState, values)) { return null; }
+		return toInstance(values);
+	}
+
+	/**
+	 * Extracts the attribute values of a widget state, in the order of the
+	 * header; missing values for absent attributes and the class attribute.
+	 * @param widgetState of a widget from which to extract the values
+	 * @param values array of NUM_ATTRIBUTES values to fill
+	 * @return false if the widget state isn't extractable
+	 */
+	protected boolean extractValues(ComponentDescription widgetState, double[] values) {
+		if (!isInstanceExtractable(widgetState)) { return false; }
 		
 		for (int i = 0; i < NUM_ATTRIBUTES; i++) {
-			weka.core.Attribute attr = header.attribute(i);
+			values[i] = Utils.missingValue();
+			if (i == classIndex) { continue; } // the outcome, not a feature
+			
+			Object attrVal = widgetState.getAttributeValue(attributeNames[i]);
+			if (attrVal == null) { continue; }
 
 			// add attribute value, depending on type
-			if (attr.isNumeric()) {
-				double attrVal = widgetState.getAttributeValue(attr.name());
-				instance.setValue(attr, attrVal);				
-			}
-			else { // nominal or string
-//				System.out.println("extractInstance attr.name() = " + attr.name());
-//				System.out.println("extractInstance widgetState = " + widgetState);
-				String attrVal = widgetState.getAttributeValue(attr.name());
-				
-//				System.out.println("attrVal = " + attrVal);
-//				System.out.println("(attrVal != null) = " + (attrVal != null));
-//				System.out.println("(!attrVal.equals(\"null\")) = " + (!attrVal.equals("null")));
-				
-				if (attrVal != null && !attrVal.equals("null")) {
-					if (attr.isNumeric()) {
-						instance.setValue(attr, Double.parseDouble(attrVal));
-					}
-					else if (attr.isNominal()) {
-						instance.setValue(attr, attrVal);
+			switch (attributeKinds[i]) {
+			case NUMERIC:
+				if (attrVal instanceof Number) {
+					values[i] = ((Number) attrVal).doubleValue();
+				}
+				else if (!attrVal.equals("null")) {
+					try {
+						values[i] = Double.parseDouble(attrVal.toString());
+					} catch (NumberFormatException e) {
+						System.out.println("ClassifierWrapper invalid value of " + attributeNames[i] + ": " + attrVal);
 					}
 				}
+				break;
+			case NOMINAL:
+				Integer index = nominalIndexes.get(i).get(attrVal.toString());
+				if (index != null) {
+					values[i] = index;
+				}
+				break;
+			default: // string attributes are not used
 			}
 		}
+		return true;
+	}
+
+	private Instance toInstance(double[] values) {
+		Instance instance = new DenseInstance(1.0, values.clone());
 		
 		// set dataset
 		instance.setDataset(header);
 		
 		return instance;
 	}
+
+	/**
+	 * Attribute values of an instance, as a key of the caches
+	 */
+	private static class InstanceKey {
+		final double[] values;
+		final int hash;
+
+		InstanceKey(double[] values) {
+			this.values = values;
+			this.hash = Arrays.hashCode(values);
+		}
+
+		InstanceKey copy() {
+			return new InstanceKey(values.clone());
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof InstanceKey)) { return false; }
+			InstanceKey other = (InstanceKey) o;
+			return hash == other.hash && Arrays.equals(values, other.values);
+		}
+	}
 	
 	/**
 	 * Convert to DataObject
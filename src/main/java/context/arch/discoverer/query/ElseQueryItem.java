@@ -1,5 +1,6 @@
 package context.arch.discoverer.query;
 
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.List;
 import context.arch.discoverer.ComponentDescription;
@@ -31,13 +32,16 @@ public class ElseQueryItem extends BooleanQueryItem {
 	 */
 	@Override
 	public Collection<ComponentDescription> search(AbstractDataModel dataModel) {
+		return dataModel.fromBitSet(searchBits(dataModel));
+	}
+
+	@Override
+	public BitSet searchBits(AbstractDataModel dataModel) {
 		// OR processing
-		Collection<ComponentDescription> notComponents = ORQueryItem.search(dataModel, children);
+		BitSet notComponents = ORQueryItem.searchBits(dataModel, children);
 
 		// NOT processing
-		Collection<ComponentDescription> components = NOTQueryItem.process(dataModel, notComponents);
-		
-		return components;
+		return NOTQueryItem.process(dataModel, notComponents);
 	}
 
 	@Override
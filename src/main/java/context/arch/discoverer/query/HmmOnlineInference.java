@@ -0,0 +1,300 @@
+package context.arch.discoverer.query;
+
+import java.util.List;
+
+import be.ac.ulg.montefiore.run.jahmm.Hmm;
+import be.ac.ulg.montefiore.run.jahmm.ObservationVector;
+
+/**
+ * Online inference with a HMM over streams of observations, updated one
+ * observation at a time in O(states^2), instead of running Viterbi over the
+ * whole window for each new observation.
+ *
+ * For each stream, it keeps:
+ * - the Viterbi scores (log) of the most likely paths ending in each state,
+ *   and the back pointers of the last lag steps (fixed-lag Viterbi), to get
+ *   the most likely states of the last lag observations;
+ * - the forward probabilities (normalized alpha), that is the distribution
+ *   of the current state given all the observations so far.
+ *
+ * A stream is not thread safe: the caller synchronizes on it.
+ *
+ * @see HmmWrapper#classify(context.arch.discoverer.ComponentDescription)
+ */
+public class HmmOnlineInference {
+
+	protected final Hmm<ObservationVector> hmm;
+	protected final int numStates;
+	protected final int lag;
+
+	private final double[] pi;
+	private final double[] logPi;
+	private final double[][] a;
+	private final double[][] logA;
+
+	/**
+	 * State of the inference over one stream of observations
+	 */
+	public static class Stream {
+		private final double[] delta; // Viterbi log scores of the current step
+		private final int[][] back; // back pointers, ring of lag steps
+		private final double[] alpha; // forward probabilities, normalized
+		private final double[] emissions;
+		private final double[] next;
+		private final ObservationVector[] window; // last lag observations, ring
+		private long steps = 0;
+
+		/**
+		 * Key of the last observation, to recognize a new one; Long.MIN_VALUE if unknown
+		 */
+		long lastKey = Long.MIN_VALUE;
+
+		/**
+		 * Last widget state processed, not to process it twice
+		 */
+		Object lastState;
+
+		private Stream(int numStates, int lag) {
+			delta = new double[numStates];
+			back = new int[lag][numStates];
+			alpha = new double[numStates];
+			emissions = new double[numStates];
+			next = new double[numStates];
+			window = new ObservationVector[lag];
+		}
+
+		public long getSteps() {
+			return steps;
+		}
+	}
+
+	/**
+	 * Creates the inference for a model
+	 *
+	 * @param hmm The model
+	 * @param lag Number of last states returned by stateSequence, the sequence length
+	 */
+	public HmmOnlineInference(Hmm<ObservationVector> hmm, int lag) {
+		this.hmm = hmm;
+		this.numStates = hmm.nbStates();
+		this.lag = Math.max(1, lag);
+
+		pi = new double[numStates];
+		logPi = new double[numStates];
+		a = new double[numStates][numStates];
+		logA = new double[numStates][numStates];
+		for (int i = 0; i < numStates; i++) {
+			pi[i] = hmm.getPi(i);
+			logPi[i] = Math.log(pi[i]);
+			for (int j = 0; j < numStates; j++) {
+				a[i][j] = hmm.getAij(i, j);
+				logA[i][j] = Math.log(a[i][j]);
+			}
+		}
+	}
+
+	public Stream newStream() {
+		return new Stream(numStates, lag);
+	}
+
+	/**
+	 * Forgets the observations of a stream
+	 *
+	 * @param stream The stream
+	 */
+	public void reset(Stream stream) {
+		stream.steps = 0;
+		stream.lastKey = Long.MIN_VALUE;
+		stream.lastState = null;
+	}
+
+	/**
+	 * Adds an observation to a stream
+	 *
+	 * @param stream The stream
+	 * @param o The new observation
+	 */
+	public void step(Stream stream, ObservationVector o) {
+		double[] b = stream.emissions;
+		for (int j = 0; j < numStates; j++) {
+			b[j] = hmm.getOpdf(j).probability(o);
+		}
+
+		int slot = (int) (stream.steps % lag);
+		stream.window[slot] = o;
+		if (stream.steps == 0 || !viterbiStep(stream, slot, b)) {
+			// first observation, or no path could explain this one: start again from it,
+			// the previous states being the most likely before it
+			int previous = argmax(stream.delta);
+			for (int j = 0; j < numStates; j++) {
+				stream.delta[j] = logPi[j] + Math.log(b[j]);
+				stream.back[slot][j] = previous;
+			}
+		}
+		if (stream.steps == 0 || !forwardStep(stream, b)) {
+			for (int j = 0; j < numStates; j++) {
+				stream.alpha[j] = pi[j] * b[j];
+			}
+			normalize(stream.alpha);
+		}
+		stream.steps++;
+	}
+
+	private boolean viterbiStep(Stream stream, int slot, double[] b) {
+		double[] delta = stream.delta;
+		double[] next = stream.next;
+		double best = Double.NEGATIVE_INFINITY;
+		for (int j = 0; j < numStates; j++) {
+			double max = Double.NEGATIVE_INFINITY;
+			int argmax = 0;
+			for (int i = 0; i < numStates; i++) {
+				double score = delta[i] + logA[i][j];
+				if (score > max) {
+					max = score;
+					argmax = i;
+				}
+			}
+			next[j] = max + Math.log(b[j]);
+			stream.back[slot][j] = argmax;
+			best = Math.max(best, next[j]);
+		}
+		if (best == Double.NEGATIVE_INFINITY) {
+			return false;
+		}
+		// keep the scores near 0
+		for (int j = 0; j < numStates; j++) {
+			delta[j] = next[j] - best;
+		}
+		return true;
+	}
+
+	private boolean forwardStep(Stream stream, double[] b) {
+		double[] alpha = stream.alpha;
+		double[] next = stream.next;
+		for (int j = 0; j < numStates; j++) {
+			double sum = 0;
+			for (int i = 0; i < numStates; i++) {
+				sum += alpha[i] * a[i][j];
+			}
+			next[j] = sum * b[j];
+		}
+		if (!normalize(next)) {
+			return false;
+		}
+		System.arraycopy(next, 0, alpha, 0, numStates);
+		return true;
+	}
+
+	private static boolean normalize(double[] p) {
+		double sum = 0;
+		for (double v : p) {
+			sum += v;
+		}
+		if (!(sum > 0)) {
+			return false;
+		}
+		for (int i = 0; i < p.length; i++) {
+			p[i] /= sum;
+		}
+		return true;
+	}
+
+	/**
+	 * Restarts a stream from a window of observations: the first one is
+	 * weighted by the initial probabilities, as the Viterbi of Hmm does
+	 *
+	 * @param stream The stream
+	 * @param observations The observations, oldest first
+	 */
+	public void replay(Stream stream, List<ObservationVector> observations) {
+		reset(stream);
+		for (ObservationVector o : observations) {
+			step(stream, o);
+		}
+	}
+
+	/**
+	 * Returns the most likely states of the last observations of a stream
+	 *
+	 * @param stream The stream
+	 * @return the states of the last min(steps, lag) observations, oldest first
+	 */
+	public int[] stateSequence(Stream stream) {
+		int length = (int) Math.min(stream.steps, lag);
+		int[] x = new int[length];
+		if (length == 0) {
+			return x;
+		}
+
+		long step = stream.steps - 1;
+		x[length - 1] = argmax(stream.delta);
+		for (int t = length - 1; t > 0; t--, step--) {
+			x[t - 1] = stream.back[(int) (step % lag)][x[t]];
+		}
+		return x;
+	}
+
+	private static int argmax(double[] values) {
+		int argmax = 0;
+		for (int i = 1; i < values.length; i++) {
+			if (values[i] > values[argmax]) {
+				argmax = i;
+			}
+		}
+		return argmax;
+	}
+
+	/**
+	 * Returns the distribution of the current state of a stream, given all
+	 * its observations
+	 *
+	 * @param stream The stream
+	 * @return the probability of each state
+	 */
+	public double[] distribution(Stream stream) {
+		if (stream.steps == 0) {
+			return pi.clone();
+		}
+		return stream.alpha.clone();
+	}
+
+	/**
+	 * Returns whether a window of observations is the window of the stream
+	 * shifted by one new observation
+	 *
+	 * @param stream The stream
+	 * @param observations The observations, oldest first
+	 * @return true if all but the last observation match the last ones of the stream
+	 */
+	public boolean isNextWindow(Stream stream, List<ObservationVector> observations) {
+		int n = observations.size() - 1;
+		if (n > lag || stream.steps < n) {
+			return false;
+		}
+		for (int t = 0; t < n; t++) {
+			// observation t of the window is the (n - t)th last of the stream
+			ObservationVector o = stream.window[(int) ((stream.steps - n + t) % lag)];
+			if (!sameValues(o, observations.get(t))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean sameValues(ObservationVector o1, ObservationVector o2) {
+		if (o1 == null || o2 == null || o1.dimension() != o2.dimension()) {
+			return false;
+		}
+		for (int i = 0; i < o1.dimension(); i++) {
+			if (o1.value(i) != o2.value(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public String toString() {
+		return "HmmOnlineInference states=" + numStates + " - lag=" + lag;
+	}
+
+}
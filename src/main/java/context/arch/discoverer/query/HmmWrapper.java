@@ -14,10 +14,13 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 import be.ac.ulg.montefiore.run.jahmm.Hmm;
 import be.ac.ulg.montefiore.run.jahmm.ObservationVector;
 import be.ac.ulg.montefiore.run.jahmm.io.FileFormatException;
+import be.ac.ulg.montefiore.run.jahmm.io.HmmFlatReader;
+import be.ac.ulg.montefiore.run.jahmm.io.HmmFlatWriter;
 import be.ac.ulg.montefiore.run.jahmm.io.HmmReader;
 import be.ac.ulg.montefiore.run.jahmm.io.OpdfVectorReader;
 
@@ -25,7 +28,9 @@ import context.arch.comm.DataObject;
 import context.arch.comm.DataObjects;
 import context.arch.discoverer.ComponentDescription;
 import context.arch.intelligibility.hmm.HmmSupervisedLearner;
+import context.arch.widget.SequenceHistory;
 import context.arch.widget.SequenceWidget;
+import context.arch.widget.Widget;
 
 import weka.classifiers.Classifier;
 import weka.core.Instances;
@@ -42,7 +47,7 @@ public abstract class HmmWrapper {
 	
 //	private List<String> outcomeValues = new ArrayList<String>();
 
-	protected Hmm<ObservationVector> hmm;
+	protected volatile Hmm<ObservationVector> hmm;
 
 	protected int numObservationValues;
 
@@ -55,6 +60,29 @@ public abstract class HmmWrapper {
 	protected List<String> INPUT_NAMES; // names of each feature input
 	private String headerFileName;
 	private String hmmModelFileName;
+
+	/**
+	 * __T#_ names of the inputs: [time step][input], built once
+	 */
+	private String[][] sequenceInputNames;
+
+	/**
+	 * __T#_ names of the timestamps, to recognize new observations
+	 */
+	private String[] sequenceTimestampNames;
+
+	/**
+	 * Whether to classify the widget states incrementally, from the
+	 * observations received before, rather than over each window
+	 */
+	public static boolean DEFAULT_ONLINE_INFERENCE = true;
+
+	private volatile HmmOnlineInference online;
+
+	/**
+	 * Widget id => inference state over its observations
+	 */
+	private Map<String, HmmOnlineInference.Stream> streams = new ConcurrentHashMap<String, HmmOnlineInference.Stream>();
 	
 	public HmmWrapper(String headerFileName,
 			String observationSequencesFileName, String stateSequencesFileName, 
@@ -75,10 +103,36 @@ public abstract class HmmWrapper {
 		loadHeaderInfo(headerFileName);
 		
 		// extract classifier from serialized file
+		this.hmm = readModel(hmmModelFileName);
+
+		this.headerFileName = headerFileName;
+		this.hmmModelFileName = hmmModelFileName;
+		this.sequenceLength = sequenceLength;
+	}
+	
+	/**
+	 * Reads a model file: a flat model (see HmmFlatWriter) is mapped in memory, 
+	 * a text model (see HmmWriter) is parsed.
+	 * @param hmmModelFileName
+	 * @return null if the model couldn't be read
+	 */
+	@SuppressWarnings("unchecked")
+	public static Hmm<ObservationVector> readModel(String hmmModelFileName) {
 		try {
-			this.hmm = HmmReader.read(
-					new FileReader(hmmModelFileName), 
-					new OpdfVectorReader());
+			File file = new File(hmmModelFileName);
+			if (HmmFlatReader.isFlat(file)) {
+				int kind = HmmFlatReader.opdfKind(file);
+				if (kind != HmmFlatWriter.OPDF_VECTOR) {
+					throw new FileFormatException("Not a model of OpdfVector: Opdf kind " + kind);
+				}
+				return (Hmm<ObservationVector>) HmmFlatReader.read(file);
+			}
+			Reader reader = new FileReader(file);
+			try {
+				return HmmReader.read(reader, new OpdfVectorReader());
+			} finally {
+				reader.close();
+			}
 		} catch (FileFormatException e) {
 			e.printStackTrace();
 		} catch (FileNotFoundException e) {
@@ -86,10 +140,28 @@ public abstract class HmmWrapper {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-
-		this.headerFileName = headerFileName;
-		this.hmmModelFileName = hmmModelFileName;
-		this.sequenceLength = sequenceLength;
+		return null;
+	}
+	
+	/**
+	 * Replaces the model by the one of a model file, e.g. a retrained one, 
+	 * with the same header. The online inference starts again from the next widget states.
+	 * @param hmmModelFileName
+	 * @return false if the model couldn't be read; the current one is kept
+	 */
+	public boolean reloadModel(String hmmModelFileName) {
+		Hmm<ObservationVector> hmm = readModel(hmmModelFileName);
+		if (hmm == null) { return false; }
+		
+		synchronized (this) {
+			this.hmm = hmm;
+			this.hmmModelFileName = hmmModelFileName;
+			if (online != null) {
+				online = new HmmOnlineInference(hmm, sequenceLength);
+			}
+			streams.clear();
+		}
+		return true;
 	}
 	
 	public void loadHeaderInfo(String fileName) {
@@ -218,10 +290,13 @@ public abstract class HmmWrapper {
 	 * @return
 	 */
 	public List<String> classify(ComponentDescription widgetState) {
-		List<ObservationVector> obs = extractObservations(widgetState);
-		if (obs == null) { return null; }
+		int[] x = mostLikelyStateSequence(widgetState);
+		if (x == null) { return null; }
 		
-		String[] outcomeSequence = classify(obs);
+		String[] outcomeSequence = new String[x.length];
+		for (int t = 0; t < x.length; t++) {
+			outcomeSequence[t] = OUTPUT_NAMES.get(x[t]); // assign numeric values to output names
+		}
 		
 		// store value back into widgetState
 		// TODO: stuff multiple values
@@ -230,6 +305,27 @@ public abstract class HmmWrapper {
 		
 		return Arrays.asList(outcomeSequence);
 	}
+
+	/**
+	 * Returns the most likely states over the sequence of the widget state.
+	 * With online inference, only the newest observation is processed if the
+	 * previous widget state of the same widget was seen; the states before the
+	 * window are then taken into account too.
+	 * @param widgetState
+	 * @return null if the observations can't be extracted
+	 */
+	public int[] mostLikelyStateSequence(ComponentDescription widgetState) {
+		List<ObservationVector> obs = extractObservations(widgetState);
+		if (obs == null) { return null; }
+		
+		HmmOnlineInference.Stream stream = getStream(widgetState, obs);
+		if (stream == null) {
+			return hmm.mostLikelyStateSequence(obs);
+		}
+		synchronized (stream) {
+			return online.stateSequence(stream);
+		}
+	}
 	
 	protected double[] distributionForInstance(List<ObservationVector> obs) {
 		// TODO: caching?
@@ -252,12 +348,97 @@ public abstract class HmmWrapper {
 	
 	/**
 	 * Applicable only to getting distribution for different final states; the (earlier) rest of the sequence is fixed. 
+	 * With online inference, this is the distribution of the last state given
+	 * all the observations of the widget so far (forward filter), normalized.
 	 * @param widgetState
 	 * @return
 	 */
 	public double[] distributionForInstance(ComponentDescription widgetState) {
 		List<ObservationVector> obs = extractObservations(widgetState);
-		return distributionForInstance(obs);
+		if (obs == null) { return null; }
+		
+		HmmOnlineInference.Stream stream = getStream(widgetState, obs);
+		if (stream == null) {
+			return distributionForInstance(obs);
+		}
+		synchronized (stream) {
+			return online.distribution(stream);
+		}
+	}
+
+	/**
+	 * Returns the inference state of the widget, updated with the observations
+	 * of its state: with the newest observation only if the window moved by
+	 * one time step, with the whole window otherwise.
+	 * @param widgetState
+	 * @param obs observations extracted from the widget state
+	 * @return null if online inference is not used
+	 */
+	protected HmmOnlineInference.Stream getStream(ComponentDescription widgetState, List<ObservationVector> obs) {
+		if (!DEFAULT_ONLINE_INFERENCE || hmm == null || obs.isEmpty() || widgetState.id == null) { return null; }
+		
+		HmmOnlineInference.Stream stream;
+		synchronized (this) {
+			if (online == null) {
+				online = new HmmOnlineInference(hmm, sequenceLength);
+			}
+			stream = streams.get(widgetState.id);
+			if (stream == null) {
+				stream = online.newStream();
+				streams.put(widgetState.id, stream);
+			}
+		}
+		
+		synchronized (stream) {
+			if (stream.lastState == widgetState) {
+				return stream; // already processed, e.g. by an explainer after the enactor
+			}
+			long[] timestamps = extractTimestamps(widgetState, obs.size());
+			long newest = timestamps[obs.size() - 1];
+			long previous = obs.size() > 1 ? timestamps[obs.size() - 2] : Long.MIN_VALUE;
+			
+			if (stream.getSteps() > 0 && newest != Long.MIN_VALUE) {
+				if (newest == stream.lastKey) {
+					stream.lastState = widgetState;
+					return stream; // same observations as before
+				}
+				if (previous == stream.lastKey && online.isNextWindow(stream, obs)) {
+					online.step(stream, obs.get(obs.size() - 1));
+					stream.lastKey = newest;
+					stream.lastState = widgetState;
+					return stream;
+				}
+			}
+			else if (stream.getSteps() > 0 && online.isNextWindow(stream, obs)) {
+				// no timestamps: assume a new time step if the window moved by one
+				online.step(stream, obs.get(obs.size() - 1));
+				stream.lastState = widgetState;
+				return stream;
+			}
+			
+			// first state of this widget, or some were missed
+			online.replay(stream, obs);
+			stream.lastKey = newest;
+			stream.lastState = widgetState;
+		}
+		return stream;
+	}
+
+	/**
+	 * @return the timestamp of each time step, Long.MIN_VALUE if unknown
+	 */
+	private long[] extractTimestamps(ComponentDescription widgetState, int length) {
+		String[] names = sequenceTimestampNames;
+		if (names == null || names.length != sequenceLength) {
+			names = SequenceWidget.getSequenceNames(Widget.TIMESTAMP, sequenceLength);
+			sequenceTimestampNames = names;
+		}
+		long[] timestamps = new long[length];
+		for (int t = 0; t < length; t++) {
+			Object value = (t < names.length) ? widgetState.getAttributeValue(names[t]) : null;
+			timestamps[t] = (value instanceof Number) ? ((Number) value).longValue() : Long.MIN_VALUE;
+		}
+		return timestamps;
 	}
 
 	public List<ObservationVector> extractObservations(ComponentDescription widgetState) {
@@ -267,26 +448,22 @@ public abstract class HmmWrapper {
 		/*
 		 * Need to iterate for time steps
 		 */
+		String[][] names = getSequenceInputNames();
 		
-		List<ObservationVector> observations = new ArrayList<ObservationVector>();
+		List<ObservationVector> observations = new ArrayList<ObservationVector>(sequenceLength);
 		
 		// grab input values for each time stamp
 		for (int t = 0; t < sequenceLength; t++) {
-			String seqIndexMarker = SequenceWidget.getTPrepend(t); // prepend marker
-			
 			double[] inputValues = new double[INPUT_NAMES.size()];
 
-//			System.out.println("extractObservations widgetState = " + widgetState);
-			
 			// iterate inputs names; note order is important
 			for (int i = 0; i < INPUT_NAMES.size(); i++) {
-				String attrName = seqIndexMarker + INPUT_NAMES.get(i);
-				Object value = widgetState.getAttributeValue(attrName);
+				Object value = widgetState.getAttributeValue(names[t][i]);
 				if (value == null) { // value may be invalid if sequence not fully populated or ready yet
 					continue; 
 //					return null;
 				}
-				inputValues[i] = (Integer) value;
+				inputValues[i] = ((Number) value).doubleValue();
 			}
 
 			// set observation vector for this time stamp
@@ -296,6 +473,51 @@ public abstract class HmmWrapper {
 		
 		return observations;
 	}
+
+	/**
+	 * Reads the observations directly from the history of a local SequenceWidget,
+	 * by index, without going through the __T#_ attributes.
+	 * The last sequenceLength time steps of the history are used.
+	 * @param history
+	 * @return null if the history is shorter than the sequence length
+	 */
+	public List<ObservationVector> extractObservations(SequenceHistory history) {
+		if (history == null || history.getLength() < sequenceLength) { return null; }
+		
+		int[] inputs = new int[INPUT_NAMES.size()];
+		for (int i = 0; i < inputs.length; i++) {
+			inputs[i] = history.indexOf(INPUT_NAMES.get(i));
+		}
+		
+		List<ObservationVector> observations = new ArrayList<ObservationVector>(sequenceLength);
+		int first = history.getLength() - sequenceLength;
+		for (int t = 0; t < sequenceLength; t++) {
+			double[] inputValues = new double[inputs.length];
+			for (int i = 0; i < inputs.length; i++) {
+				if (inputs[i] >= 0) { // missing inputs are left to 0, as above
+					inputValues[i] = history.getDouble(inputs[i], first + t);
+				}
+			}
+			observations.add(new ObservationVector(inputValues));
+		}
+		
+		return observations;
+	}
+
+	private String[][] getSequenceInputNames() {
+		String[][] names = sequenceInputNames;
+		if (names == null || names.length != sequenceLength) {
+			names = new String[sequenceLength][INPUT_NAMES.size()];
+			for (int i = 0; i < INPUT_NAMES.size(); i++) {
+				String[] inputNames = SequenceWidget.getSequenceNames(INPUT_NAMES.get(i), sequenceLength);
+				for (int t = 0; t < sequenceLength; t++) {
+					names[t][i] = inputNames[t];
+				}
+			}
+			sequenceInputNames = names;
+		}
+		return names;
+	}
 	
 	public DataObject toDataObject() {
 		DataObjects v = new DataObjects();
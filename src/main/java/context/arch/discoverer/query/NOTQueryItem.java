@@ -6,7 +6,7 @@
 
 package context.arch.discoverer.query;
 
-import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 
 import context.arch.discoverer.ComponentDescription;
@@ -36,20 +36,24 @@ public class NOTQueryItem extends BooleanQueryItem {
 	 */
 	@Override
 	public Collection<ComponentDescription> search(AbstractDataModel dataModel) {
-		return process(dataModel, child.search(dataModel));
+		return dataModel.fromBitSet(searchBits(dataModel));
+	}
+
+	@Override
+	public BitSet searchBits(AbstractDataModel dataModel) {
+		return process(dataModel, child.searchBits(dataModel));
 	}
 
 	/**
 	 * Package protected and static to be reused by ElseQueryItem.
 	 * @param dataModel
-	 * @param children
-	 * @return
+	 * @param notComponents bitmap of the components to exclude
+	 * @return the bitmap of the other components of the model
 	 */
-	static Collection<ComponentDescription> process(AbstractDataModel dataModel, Collection<ComponentDescription> notComponents) {
-		// pre-populate with all components
-		Collection<ComponentDescription> components =  new ArrayList<ComponentDescription>(dataModel.getComponents());		
-		// remove from components if in child notComponents
-		components.removeAll(notComponents);
+	static BitSet process(AbstractDataModel dataModel, BitSet notComponents) {
+		// all components, but the ones of notComponents
+		BitSet components = dataModel.getComponentsBitSet();
+		components.andNot(notComponents);
 		return components;
 	}
 
@@ -1,9 +1,8 @@
 package context.arch.discoverer.query;
 
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 import context.arch.discoverer.ComponentDescription;
 import context.arch.discoverer.component.dataModel.AbstractDataModel;
@@ -33,31 +32,40 @@ public class ORQueryItem extends BooleanQueryItem {
 	 */
 	@Override
 	public Collection<ComponentDescription> search(AbstractDataModel dataModel) {
-		return search(dataModel, children);
+		return dataModel.fromBitSet(searchBits(dataModel));
 	}
-	
+
+	@Override
+	public BitSet searchBits(AbstractDataModel dataModel) {
+		return searchBits(dataModel, children);
+	}
+
+	@Override
+	public int estimateSize(AbstractDataModel dataModel) {
+		long size = 0;
+		for (AbstractQueryItem<?,?> child : children) {
+			size += child.estimateSize(dataModel);
+		}
+		return (int) Math.min(size, dataModel.size());
+	}
+
 	/**
 	 * Package protected and static to be reused by ElseQueryItem.
+	 * Unites the bitmaps of the children, and stops as soon as all the
+	 * components of the model are found.
 	 * @param dataModel
 	 * @param children
 	 * @return
 	 */
-	static Collection<ComponentDescription> search(AbstractDataModel dataModel, List<AbstractQueryItem<?, ?>> children) {
-		Set<ComponentDescription> components = new HashSet<ComponentDescription>(); // use Set to prevent duplicate entries, so that we can naively add
+	static BitSet searchBits(AbstractDataModel dataModel, List<AbstractQueryItem<?, ?>> children) {
+		BitSet components = new BitSet();
 		if (children.isEmpty()) { return components; }
-		
-		// process first child for components
-		components.addAll(children.get(0).search(dataModel));
-		if (children.size() == 1) { return components; }
 
-		// process existing components in relation to the remaining children
-		for (int c = 1; c < children.size(); c++) {
-			Collection<ComponentDescription> childComponents = children.get(c).search(dataModel);
-			
-			// add to original components if not already included
-			components.addAll(childComponents);
+		int all = dataModel.size();
+		for (AbstractQueryItem<?,?> child : children) {
+			components.or(child.searchBits(dataModel));
+			if (components.cardinality() >= all) { break; } // nothing left to add
 		}
-
 		return components;
 	}
 
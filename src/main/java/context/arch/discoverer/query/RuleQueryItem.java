@@ -16,7 +16,12 @@ import context.arch.discoverer.ComponentDescription;
 import context.arch.discoverer.component.AbstractElement;
 import context.arch.discoverer.component.dataModel.AbstractDataModel;
 import context.arch.discoverer.component.dataModel.IndexTable;
+import context.arch.discoverer.component.dataModel.IndicesTable;
+import context.arch.discoverer.component.dataModel.SortedAttributeIndex;
 import context.arch.discoverer.query.comparison.AbstractComparison;
+import context.arch.discoverer.query.comparison.AttributeComparison;
+import context.arch.discoverer.query.comparison.ValueComparison;
+import context.arch.storage.AttributeNameValue;
 
 /**
  *
@@ -101,6 +106,13 @@ public final class RuleQueryItem<C1,C2> extends AbstractQueryItem<C1,C2> {
 		}
 
 		C2 toMatch = elementToMatch.getValue();
+
+		// use the index directly rather than comparing every key, when possible
+		Collection<ComponentDescription> indexed = searchIndex(dataModel, indexTable, toMatch);
+		if (indexed != null) {
+			return indexed;
+		}
+
 		for (Object elementAsKey : indexTable.keySet()) {
 //			System.out.print("elementAsKey("+elementAsKey.getClass().getSimpleName()+") = " + elementAsKey + ", toMatch("+toMatch.getClass().getSimpleName()+") = " + toMatch);
 //			System.out.print(": " + comparison);
@@ -114,6 +126,75 @@ public final class RuleQueryItem<C1,C2> extends AbstractQueryItem<C1,C2> {
 		return selectedComponents;
 	}
 
+	/**
+	 * Chooses the access path of the search: an attribute comparison is
+	 * answered by the sorted index of the element (lookup or range of values),
+	 * an equality of values by a lookup of the IndexTable.
+	 * 
+	 * @return the components satisfying this RuleQueryItem, or null if the
+	 * IndexTable has to be scanned
+	 */
+	private Collection<ComponentDescription> searchIndex(AbstractDataModel dataModel, IndexTable<?> indexTable, C2 toMatch) {
+		if (toMatch == null) { return null; }
+
+		if (comparison instanceof AttributeComparison && toMatch instanceof AttributeNameValue<?>) {
+			SortedAttributeIndex sortedIndex = dataModel.getSortedIndex(elementToMatch.getElementName());
+			if (sortedIndex != null) {
+				return sortedIndex.search((AttributeNameValue<?>) toMatch, ((AttributeComparison) comparison).getComparison());
+			}
+		}
+		else if (comparison instanceof ValueComparison<?> && 
+				((ValueComparison<?>) comparison).getComparison() == ValueComparison.Comparison.EQUAL &&
+				!(indexTable instanceof IndicesTable<?>)) {
+			// keys of the same class as the value, with consistent equals and compareTo
+			for (Object elementAsKey : indexTable.keySet()) {
+				if (!toMatch.getClass().equals(elementAsKey.getClass())) { return null; }
+				break;
+			}
+			Collection<ComponentDescription> selectedComponents = new ArrayList<ComponentDescription>();
+			List<ComponentDescription> components = indexTable.get(toMatch);
+			if (components != null) {
+				selectedComponents.addAll(components);
+			}
+			return selectedComponents;
+		}
+		return null;
+	}
+
+	/**
+	 * Equalities are estimated from the index, ranges as half of the components.
+	 */
+	@Override
+	public int estimateSize(AbstractDataModel dataModel) {
+		int all = dataModel.size();
+		C2 toMatch = elementToMatch.getValue();
+		if (toMatch == null) { return all; }
+
+		if (comparison instanceof AttributeComparison && toMatch instanceof AttributeNameValue<?>) {
+			SortedAttributeIndex sortedIndex = dataModel.getSortedIndex(elementToMatch.getElementName());
+			if (sortedIndex != null) {
+				AttributeComparison.Comparison comp = ((AttributeComparison) comparison).getComparison();
+				int count = sortedIndex.count((AttributeNameValue<?>) toMatch, comp);
+				if (count >= 0) { return count; }
+				return comp == AttributeComparison.Comparison.DIFFERENT ? all : all / 2;
+			}
+		}
+		else if (comparison instanceof ValueComparison<?>) {
+			ValueComparison.Comparison comp = ((ValueComparison<?>) comparison).getComparison();
+			if (comp == ValueComparison.Comparison.EQUAL) {
+				IndexTable<?> indexTable = dataModel.getIndexTable(elementToMatch.getElementName());
+				if (indexTable != null && !(indexTable instanceof IndicesTable<?>)) {
+					List<ComponentDescription> components = indexTable.get(toMatch);
+					return components == null ? 0 : components.size();
+				}
+			}
+			else if (comp != ValueComparison.Comparison.DIFFERENT) {
+				return all / 2;
+			}
+		}
+		return all;
+	}
+
 	@Override
 	public Boolean match(ComponentDescription component) {
 		Boolean result = false;
@@ -33,6 +33,10 @@ public class ValueComparison<T extends Comparable<? super T>> extends AbstractCo
 		return new ValueComparison<T>(comparison, (Class<T>) valueClass);
 	}
 
+	public Comparison getComparison() {
+		return comparison;
+	}
+
 	@Override
 	public Boolean compare(T value1, T value2) {
 		int comp = value1.compareTo(value2);
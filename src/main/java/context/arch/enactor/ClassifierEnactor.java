@@ -1,6 +1,9 @@
 package context.arch.enactor;
 
 import java.util.Collection;
+import java.util.List;
+
+import context.arch.discoverer.ComponentDescription;
 
 import context.arch.discoverer.query.AbstractQueryItem;
 import context.arch.discoverer.query.ClassifierWrapper;
@@ -83,4 +86,15 @@ public class ClassifierEnactor extends Enactor {
 		return classifier;
 	}
 
+	/**
+	 * Classifies many widget states at once, e.g. to show the outcomes of
+	 * alternative inputs, without affecting the state of this enactor
+	 * @param widgetStates
+	 * @return the outcome value of each widget state, null where it failed
+	 * @see ClassifierWrapper#classify(List)
+	 */
+	public List<String> classify(List<ComponentDescription> widgetStates) {
+		return classifier.classify(widgetStates);
+	}
+
 }
@@ -0,0 +1,447 @@
+package context.arch.enactor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import context.arch.discoverer.ComponentDescription;
+import context.arch.discoverer.component.AbstractElement;
+import context.arch.discoverer.component.ConstantAttributeElement;
+import context.arch.discoverer.component.NonConstantAttributeElement;
+import context.arch.discoverer.query.ANDQueryItem;
+import context.arch.discoverer.query.AbstractQueryItem;
+import context.arch.discoverer.query.BooleanQueryItem;
+import context.arch.discoverer.query.ElseQueryItem;
+import context.arch.discoverer.query.NOTQueryItem;
+import context.arch.discoverer.query.ORQueryItem;
+import context.arch.discoverer.query.RuleQueryItem;
+import context.arch.discoverer.query.comparison.AttributeComparison;
+import context.arch.storage.Attribute;
+import context.arch.storage.AttributeNameValue;
+
+/**
+ * The condition queries of the references of an enactor, compiled into one
+ * network of conditions (after the Rete algorithm): the conditions common to
+ * several references, or used several times by a reference, are one node of
+ * the network and are evaluated once per widget update.
+ *
+ * The leaves of the network are the RuleQueryItems and any other query item;
+ * AND, OR, NOT and ELSE items are the inner nodes, combining the values of
+ * their children with the same semantics as their match method (null if a
+ * child is null).
+ *
+ * The values of the nodes are kept per widget subscription (Memory). A
+ * RuleQueryItem comparing an attribute (AttributeComparison on a constant or
+ * non constant attribute) is only evaluated again when that attribute changed
+ * since the previous update, and an inner node only when one of its children
+ * changed. The other query items (classifiers, HMMs, ...) may keep a state,
+ * so they are neither shared nor skipped: they are evaluated at every update.
+ *
+ * @see EnactorSubscriptionManager#handleCallback(String, context.arch.comm.DataObject)
+ */
+public class ConditionNetwork {
+
+	private static final int LEAF = 0;
+	private static final int AND = 1;
+	private static final int OR = 2;
+	private static final int NOT = 3;
+	private static final int ELSE = 4;
+
+	private static class Node {
+		int id;
+		int type;
+		AbstractQueryItem<?,?> query; // for a leaf
+		int[] children;
+		List<Node> parents = new ArrayList<Node>();
+		String dependency; // for a leaf: the attribute it depends on, null if it must always be evaluated
+	}
+
+	/**
+	 * The nodes, children before parents
+	 */
+	private List<Node> nodes = new ArrayList<Node>();
+
+	/**
+	 * key of a shareable node => node
+	 */
+	private Map<String, Node> shared = new HashMap<String, Node>();
+
+	/**
+	 * query item => node, so that the same instance is compiled once
+	 */
+	private Map<AbstractQueryItem<?,?>, Node> compiled = new IdentityHashMap<AbstractQueryItem<?,?>, Node>();
+
+	/**
+	 * attribute key => leaves depending on it
+	 */
+	private Map<String, List<Node>> leavesByAttribute = new HashMap<String, List<Node>>();
+
+	/**
+	 * leaves evaluated at every update
+	 */
+	private List<Node> alwaysEvaluated = new ArrayList<Node>();
+
+	/**
+	 * reference => root node of its condition
+	 */
+	private Map<EnactorReference, Node> roots = new IdentityHashMap<EnactorReference, Node>();
+
+	/**
+	 * reference => condition compiled, to detect a condition changed with setConditionQuery
+	 */
+	private Map<EnactorReference, AbstractQueryItem<?,?>> conditions = new IdentityHashMap<EnactorReference, AbstractQueryItem<?,?>>();
+
+	private long evaluatedCount = 0;
+	private long skippedCount = 0;
+
+	/**
+	 * The values of the nodes for a widget subscription, and the widget state
+	 * they were evaluated with
+	 */
+	static class Memory {
+		private ConditionNetwork network;
+		private Boolean[] values;
+		private ComponentDescription lastState;
+	}
+
+	/**
+	 * Compiles the conditions of the given references
+	 *
+	 * @param references References of the enactor
+	 */
+	public ConditionNetwork(Collection<EnactorReference> references) {
+		for (EnactorReference ref : references) {
+			AbstractQueryItem<?,?> query = ref.getConditionQuery();
+			conditions.put(ref, query);
+			if (query != null) {
+				roots.put(ref, compile(query));
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the references or their conditions are no longer the
+	 * ones compiled
+	 *
+	 * @param references References of the enactor
+	 * @return true if the network must be compiled again
+	 */
+	public boolean isStale(Collection<EnactorReference> references) {
+		if (references.size() != conditions.size()) {
+			return true;
+		}
+		for (EnactorReference ref : references) {
+			if (!conditions.containsKey(ref) || conditions.get(ref) != ref.getConditionQuery()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Node compile(AbstractQueryItem<?,?> query) {
+		Node node = compiled.get(query);
+		if (node != null) {
+			return node;
+		}
+
+		int type = typeOf(query);
+		String key;
+		int[] children = null;
+		if (type == LEAF) {
+			key = leafKey(query);
+		}
+		else {
+			List<AbstractQueryItem<?,?>> childQueries = new ArrayList<AbstractQueryItem<?,?>>();
+			if (type == NOT) {
+				childQueries.add(((NOTQueryItem) query).getChild());
+			}
+			else {
+				childQueries.addAll(((BooleanQueryItem) query).getChildren());
+			}
+			children = new int[childQueries.size()];
+			StringBuilder sb = new StringBuilder().append(type);
+			for (int i = 0; i < children.length; i++) {
+				children[i] = compile(childQueries.get(i)).id;
+				sb.append(',').append(children[i]);
+			}
+			// children with unshared leaves have unique ids: the key is unique too
+			key = sb.toString();
+		}
+
+		if (key != null) {
+			node = shared.get(key);
+		}
+		if (node == null) {
+			node = new Node();
+			node.id = nodes.size();
+			node.type = type;
+			node.children = children;
+			if (type == LEAF) {
+				node.query = query;
+				node.dependency = dependencyOf(query);
+				if (node.dependency == null) {
+					alwaysEvaluated.add(node);
+				}
+				else {
+					List<Node> leaves = leavesByAttribute.get(node.dependency);
+					if (leaves == null) {
+						leaves = new ArrayList<Node>();
+						leavesByAttribute.put(node.dependency, leaves);
+					}
+					leaves.add(node);
+				}
+			}
+			else {
+				for (int child : children) {
+					nodes.get(child).parents.add(node);
+				}
+			}
+			nodes.add(node);
+			if (key != null) {
+				shared.put(key, node);
+			}
+		}
+		compiled.put(query, node);
+		return node;
+	}
+
+	private static int typeOf(AbstractQueryItem<?,?> query) {
+		Class<?> c = query.getClass();
+		if (c == ANDQueryItem.class) { return AND; }
+		if (c == ORQueryItem.class) { return OR; }
+		if (c == NOTQueryItem.class) { return NOT; }
+		if (c == ElseQueryItem.class) { return ELSE; }
+		return LEAF;
+	}
+
+	/**
+	 * Key of a RuleQueryItem, so that equal conditions share a node; null for
+	 * the other leaves, which may keep a state
+	 */
+	private static String leafKey(AbstractQueryItem<?,?> query) {
+		if (query.getClass() != RuleQueryItem.class) {
+			return null;
+		}
+		RuleQueryItem<?,?> rule = (RuleQueryItem<?,?>) query;
+		AbstractElement<?,?,?> element = rule.getElementToMatch();
+		Object value = element.getValue();
+		return "rule|" + element.getClass().getName() + "|" + element.getElementName()
+				+ "|" + rule.getComparison()
+				+ "|" + ((value instanceof Attribute<?>) ? ((Attribute<?>) value).getType().getName() : "")
+				+ "|" + value;
+	}
+
+	/**
+	 * Returns the attribute a RuleQueryItem depends on: an AttributeComparison
+	 * of an attribute element only compares the attributes of the same name.
+	 */
+	private static String dependencyOf(AbstractQueryItem<?,?> query) {
+		if (query.getClass() != RuleQueryItem.class) {
+			return null;
+		}
+		RuleQueryItem<?,?> rule = (RuleQueryItem<?,?>) query;
+		if (!(rule.getComparison() instanceof AttributeComparison)) {
+			return null;
+		}
+		AbstractElement<?,?,?> element = rule.getElementToMatch();
+		Object value = element.getValue();
+		if (!(value instanceof AttributeNameValue<?>)) {
+			return null;
+		}
+		String name = ((AttributeNameValue<?>) value).getName();
+		if (element.getClass() == NonConstantAttributeElement.class) {
+			return nonConstantKey(name);
+		}
+		if (element.getClass() == ConstantAttributeElement.class) {
+			return constantKey(name);
+		}
+		return null;
+	}
+
+	private static String nonConstantKey(String name) {
+		return ComponentDescription.NON_CONST_ATT_ELEMENT + "|" + name;
+	}
+
+	private static String constantKey(String name) {
+		return ComponentDescription.CONST_ATT_ELEMENT + "|" + name;
+	}
+
+	/**
+	 * Evaluates the conditions for a new state of a widget, and adds the
+	 * references whose condition matches to the given list
+	 *
+	 * @param memory Values of the previous update of this widget, may be null
+	 * @param widgetState New state of the widget
+	 * @param references References to check, in order
+	 * @param matching Receives the references whose condition matches
+	 * @return the memory to give for the next update of this widget
+	 */
+	Memory evaluate(Memory memory, ComponentDescription widgetState,
+			Collection<EnactorReference> references, List<EnactorReference> matching) {
+		boolean all = (memory == null || memory.network != this || memory.lastState == null);
+		if (all) {
+			memory = new Memory();
+			memory.network = this;
+			memory.values = new Boolean[nodes.size()];
+		}
+
+		boolean[] dirty = new boolean[nodes.size()];
+		if (all) {
+			for (Node node : nodes) {
+				if (node.type == LEAF) {
+					dirty[node.id] = true;
+				}
+			}
+		}
+		else {
+			for (Node node : alwaysEvaluated) {
+				dirty[node.id] = true;
+			}
+			for (String key : changedAttributes(memory.lastState, widgetState)) {
+				List<Node> leaves = leavesByAttribute.get(key);
+				if (leaves != null) {
+					for (Node node : leaves) {
+						dirty[node.id] = true;
+					}
+				}
+			}
+		}
+
+		// children come before their parents
+		int evaluated = 0;
+		for (Node node : nodes) {
+			if (!dirty[node.id]) {
+				continue;
+			}
+			evaluated++;
+			Boolean value = (node.type == LEAF) ? node.query.match(widgetState) : combine(node, memory.values);
+			if (all || (value == null ? memory.values[node.id] != null : !value.equals(memory.values[node.id]))) {
+				memory.values[node.id] = value;
+				for (Node parent : node.parents) {
+					dirty[parent.id] = true;
+				}
+			}
+		}
+		memory.lastState = widgetState;
+
+		synchronized (this) {
+			evaluatedCount += evaluated;
+			skippedCount += nodes.size() - evaluated;
+		}
+
+		for (EnactorReference ref : references) {
+			Node root = roots.get(ref);
+			if (root != null) {
+				if (Boolean.TRUE.equals(memory.values[root.id])) {
+					matching.add(ref);
+				}
+			}
+			else if (ref.getConditionQuery() != null && Boolean.TRUE.equals(ref.getConditionQuery().match(widgetState))) {
+				matching.add(ref); // not compiled yet
+			}
+		}
+		return memory;
+	}
+
+	/**
+	 * Same semantics as the match method of the boolean query items
+	 */
+	private static Boolean combine(Node node, Boolean[] values) {
+		switch (node.type) {
+		case NOT:
+			Boolean child = values[node.children[0]];
+			return child != null ? !child : null;
+		case AND:
+			boolean and = true;
+			for (int c : node.children) {
+				if (values[c] == null) { return null; }
+				and &= values[c];
+			}
+			return and;
+		case OR:
+		case ELSE:
+			boolean or = false;
+			for (int c : node.children) {
+				if (values[c] == null) { return null; }
+				or |= values[c];
+			}
+			return node.type == ELSE ? !or : or;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the keys of the attributes added, removed or changed between two states
+	 */
+	private static Set<String> changedAttributes(ComponentDescription previous, ComponentDescription current) {
+		Set<String> changed = new HashSet<String>();
+		diff(previous.getNonConstantAttributes().values(), current.getNonConstantAttributes().values(), changed, false);
+		diff(previous.getConstantAttributes(), current.getConstantAttributes(), changed, true);
+		return changed;
+	}
+
+	private static void diff(Collection<? extends Attribute<?>> previous, Collection<? extends Attribute<?>> current,
+			Set<String> changed, boolean constant) {
+		Map<String, Attribute<?>> before = new HashMap<String, Attribute<?>>();
+		for (Attribute<?> att : previous) {
+			before.put(att.getName(), att);
+		}
+		for (Attribute<?> att : current) {
+			Attribute<?> old = before.remove(att.getName());
+			if (old == null || !sameValue(old, att)) {
+				changed.add(constant ? constantKey(att.getName()) : nonConstantKey(att.getName()));
+			}
+		}
+		for (String name : before.keySet()) { // removed
+			changed.add(constant ? constantKey(name) : nonConstantKey(name));
+		}
+	}
+
+	private static boolean sameValue(Attribute<?> a1, Attribute<?> a2) {
+		if (a1.getClass() != a2.getClass() || a1.getType() != a2.getType()) {
+			return false;
+		}
+		if (!(a1 instanceof AttributeNameValue<?>)) {
+			return true;
+		}
+		Object v1 = ((AttributeNameValue<?>) a1).getValue();
+		Object v2 = ((AttributeNameValue<?>) a2).getValue();
+		return v1 == null ? v2 == null : v1.equals(v2);
+	}
+
+	/**
+	 * Returns the number of nodes of the network; lower than the number of
+	 * conditions in the queries when some are shared
+	 *
+	 * @return the number of nodes
+	 */
+	public int size() {
+		return nodes.size();
+	}
+
+	public synchronized long getEvaluatedCount() {
+		return evaluatedCount;
+	}
+
+	/**
+	 * Returns the number of node evaluations saved because nothing they depend
+	 * on changed
+	 *
+	 * @return the number of nodes not evaluated
+	 */
+	public synchronized long getSkippedCount() {
+		return skippedCount;
+	}
+
+	public String toString() {
+		return "ConditionNetwork nodes=" + size() + " - references=" + roots.size()
+		+ " - evaluated=" + getEvaluatedCount() + " - skipped=" + getSkippedCount();
+	}
+
+}
@@ -9,7 +9,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import context.arch.comm.DataObject;
 import context.arch.discoverer.ComponentDescription;
+import context.arch.subscriber.CallbackDelta;
 import context.arch.subscriber.ClientSideSubscriber;
 
 
@@ -42,6 +44,32 @@ public class EnactorComponentInfo {
 	private ClientSideSubscriber subInfo;
 	private String subscriptionID;
 
+	/**
+	 * Values of the conditions for the current state
+	 */
+	private ConditionNetwork.Memory conditionMemory;
+
+	/**
+	 * Sequence number of the last callback applied, -1 if the widget doesn't number them
+	 */
+	private long callbackSequence = -1;
+
+	/**
+	 * When a full callback was last asked to the widget after a missing delta
+	 * callback, -1 if none is awaited
+	 */
+	private long resyncRequestTime = -1;
+
+	/**
+	 * Delta callbacks dropped since the full callback was asked
+	 */
+	private int droppedDeltas = 0;
+
+	/**
+	 * Whether a full callback must be asked to the widget now
+	 */
+	private boolean resyncDue = false;
+
 	boolean removeReference(EnactorReference rwr) {
 		return widgetReferences.remove(rwr);
 	}
@@ -100,4 +128,79 @@ public class EnactorComponentInfo {
 	public void setCurrentState(ComponentDescription cd) {
 		currentState = cd;
 	}
-}
\ No newline at end of file
+
+	ConditionNetwork.Memory getConditionMemory() {
+		return conditionMemory;
+	}
+
+	void setConditionMemory(ConditionNetwork.Memory conditionMemory) {
+		this.conditionMemory = conditionMemory;
+	}
+
+	long getCallbackSequence() {
+		return callbackSequence;
+	}
+
+	/**
+	 * Applies a callback of the widget to its current state. A callback older
+	 * than the last one applied is ignored. A delta callback is only applied
+	 * right after the previous one; after a gap, it is ignored until a full
+	 * callback comes, and a full callback is due (takeResyncDue).
+	 * The full callback is asked again after DEFAULT_RESYNC_RETRY_DELTAS
+	 * dropped deltas or DEFAULT_RESYNC_TIMEOUT ms, in case the request or its
+	 * reply was lost.
+	 *
+	 * @param data <REGISTERER> DataObject of the callback
+	 * @param widgetState Component description decoded from the callback
+	 * @param now Current time in ms
+	 * @return the new current state, or null if the callback is ignored
+	 * @see EnactorSubscriptionManager#DEFAULT_RESYNC_RETRY_DELTAS
+	 * @see EnactorSubscriptionManager#DEFAULT_RESYNC_TIMEOUT
+	 */
+	synchronized ComponentDescription applyCallback(DataObject data, ComponentDescription widgetState, long now) {
+		long sequence = CallbackDelta.getSequence(data);
+		boolean delta = CallbackDelta.isDelta(data);
+		boolean restarted = sequence == 1 && !delta; // a new numbering
+		if (sequence >= 0 && callbackSequence >= 0 && sequence <= callbackSequence && !restarted) {
+			// overtaken by a newer callback already applied
+			return null;
+		}
+		if (delta) {
+			if (sequence != callbackSequence + 1 || callbackSequence < 0) {
+				// a callback is missing: the state can't be patched until a full callback comes
+				if (resyncRequestTime < 0
+						|| ++droppedDeltas >= EnactorSubscriptionManager.DEFAULT_RESYNC_RETRY_DELTAS
+						|| now - resyncRequestTime >= EnactorSubscriptionManager.DEFAULT_RESYNC_TIMEOUT) {
+					resyncRequestTime = now;
+					droppedDeltas = 0;
+					resyncDue = true;
+				}
+				return null;
+			}
+			widgetState = CallbackDelta.patch(currentState, widgetState);
+		}
+		else {
+			resyncRequestTime = -1;
+			droppedDeltas = 0;
+		}
+		callbackSequence = sequence;
+		currentState = widgetState;
+		return widgetState;
+	}
+
+	/**
+	 * Returns whether a full callback must be asked to the widget, after
+	 * applyCallback dropped a delta callback. Only true once per request.
+	 *
+	 * @return true if a RESYNC_SUBSCRIBER request must be sent
+	 */
+	synchronized boolean takeResyncDue() {
+		boolean due = resyncDue;
+		resyncDue = false;
+		return due;
+	}
+
+	boolean isResyncRequested() {
+		return resyncRequestTime >= 0;
+	}
+}
@@ -1,8 +1,10 @@
 package context.arch.enactor;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -11,7 +13,11 @@ import context.arch.BaseObject;
 import context.arch.InvalidMethodException;
 import context.arch.MethodException;
 import context.arch.comm.DataObject;
+import context.arch.comm.DataObjects;
+import context.arch.comm.RequestObject;
 import context.arch.comm.clients.IndependentCommunication;
+import context.arch.comm.language.EncodeException;
+import context.arch.comm.language.InvalidEncoderException;
 import context.arch.discoverer.ComponentDescription;
 import context.arch.discoverer.Discoverer;
 import context.arch.discoverer.component.TypeElement;
@@ -24,8 +30,10 @@ import context.arch.handler.Handler;
 import context.arch.server.Server;
 import context.arch.service.helper.ServiceInput;
 import context.arch.storage.Attributes;
+import context.arch.subscriber.CallbackDelta;
 import context.arch.subscriber.ClientSideSubscriber;
 import context.arch.subscriber.DiscovererSubscriber;
+import context.arch.subscriber.Subscriber;
 import context.arch.widget.Widget;
 
 /**
@@ -40,6 +48,26 @@ import context.arch.widget.Widget;
 public class EnactorSubscriptionManager implements Handler {
 	private static final Logger LOGGER = Logger.getLogger(EnactorSubscriptionManager.class.getName());
 	static { LOGGER.setLevel(Level.WARNING); }
+
+	/**
+	 * Whether to ask the widgets for delta callbacks, carrying only the
+	 * attributes changed since the previous callback. Off by default: the
+	 * callbacks may be delivered out of order by the clients pool of the
+	 * widget, and each gap costs a resync.
+	 * @see CallbackDelta
+	 */
+	public static boolean DEFAULT_DELTA_CALLBACKS = false;
+
+	/**
+	 * Number of delta callbacks dropped while waiting for a full callback,
+	 * after which the full callback is asked again
+	 */
+	public static int DEFAULT_RESYNC_RETRY_DELTAS = 8;
+
+	/**
+	 * Time in ms after which a full callback not received is asked again
+	 */
+	public static long DEFAULT_RESYNC_TIMEOUT = 5000;
 	
 	/**
 	 * The enactor that depends on this manager.
@@ -106,6 +134,20 @@ public class EnactorSubscriptionManager implements Handler {
 		handleNew();
 	}
 	
+	/**
+	 * Returns the network compiled from the conditions of the references,
+	 * compiled again if the references or their conditions changed
+	 *
+	 * @return the condition network
+	 */
+	protected synchronized ConditionNetwork getConditionNetwork() {
+		Collection<EnactorReference> references = widgetReferences.keySet();
+		if (conditionNetwork == null || conditionNetwork.isStale(references)) {
+			conditionNetwork = new ConditionNetwork(references);
+		}
+		return conditionNetwork;
+	}
+
 	/**
 	 * TODO still not sure what to properly name this method with.
 	 * Note similarity to {@link #handleSubscriptionCallback()}
@@ -229,28 +271,56 @@ public class EnactorSubscriptionManager implements Handler {
 		EnactorComponentInfo eci = widgetSubscriptions.get(subscriptionId);
 		if (eci == null) { return null; }
 
-		// put state into WSRegistry
-		eci.setCurrentState(widgetState);
-		
-		// lookup listeners by widget's description
-		for (EnactorReference ref : eci.getReferences()) {
-			AbstractQueryItem<?,?> query = ref.getConditionQuery();
-
-//			System.out.println("EnactorSubscriptionManager.handleCallback ------: cd = " + cd);
-//			System.out.println("EnactorSubscriptionManager.handleCallback ------: query = " + query);
-//			new RuntimeException("EnactorSubscriptionManager.handleCallback ------: query.match(cd) = " + query.match(cd)).printStackTrace();
-			
-			Boolean queryResult;
-			if (	query != null && 
-					(queryResult = query.match(widgetState)) != null && queryResult) {
-				// execute references if they match
-				ref.evaluateComponent(eci);
+		// evaluate the conditions of the references, only those depending on what changed
+		List<EnactorReference> matching = new ArrayList<EnactorReference>();
+		ConditionNetwork network = getConditionNetwork();
+		synchronized (eci) {
+			widgetState = eci.applyCallback(data, widgetState, System.currentTimeMillis());
+			if (widgetState == null) {
+				// stale, or a delta callback after a missing one
+				if (eci.takeResyncDue()) {
+					requestResync(subscriptionId, eci);
+				}
+				return null;
 			}
+
+			eci.setConditionMemory(network.evaluate(eci.getConditionMemory(), widgetState, eci.getReferences(), matching));
+		}
+
+		// execute references if they match
+		for (EnactorReference ref : matching) {
+			ref.evaluateComponent(eci);
 		}
 
 		return null; // then what is the point of returning? --Brian
 	}
 
+	/**
+	 * Asks a widget for a full callback, after a missing delta callback. The
+	 * request is sent without waiting for the reply: the full callback comes
+	 * as a regular callback.
+	 *
+	 * @param subscriptionId Id of the subscription to the widget
+	 * @param eci Information on the widget
+	 */
+	private void requestResync(String subscriptionId, EnactorComponentInfo eci) {
+		ComponentDescription cd = eci.getComponentDescription();
+		LOGGER.info("resync " + subscriptionId + " after callback " + eci.getCallbackSequence());
+
+		DataObjects v = new DataObjects();
+		v.addElement(new DataObject(Discoverer.ID, cd.id));
+		v.addElement(new DataObject(Subscriber.SUBSCRIBER_ID, subscriptionId));
+		DataObject resync = new DataObject(CallbackDelta.RESYNC_SUBSCRIBER, v);
+		try {
+			baseObjDelegate.independentUserRequest(new IndependentCommunication(
+					new RequestObject(resync, CallbackDelta.RESYNC_SUBSCRIBER, cd.hostname, cd.port), false));
+		} catch (EncodeException ee) {
+			System.out.println("EnactorSubscriptionManager requestResync EncodeException: " + ee);
+		} catch (InvalidEncoderException iee) {
+			System.out.println("EnactorSubscriptionManager requestResync InvalidEncoderException: " + iee);
+		}
+	}
+
 	/**
 	 * 
 	 * @param subscriptionId refers to the enactor (?) subscribing to the widget (?)
@@ -358,6 +428,7 @@ public class EnactorSubscriptionManager implements Handler {
 			ClientSideSubscriber subscriber = new ClientSideSubscriber(
 					baseObjDelegate.getId(), BaseObject.getHostName(), baseObjDelegate.getPort(),
 					Widget.CALLBACK_UPDATE, er.getEnactor().getInWidgetSubscriptionQuery(), null);
+			subscriber.setDeltaCallbacks(DEFAULT_DELTA_CALLBACKS);
 			baseObjDelegate.subscribeTo(this, cd.id, cd.hostname, cd.port, subscriber);
 			
 			// put an entry in the widgetSubscriptions that will allow us to lookup the description & css later
@@ -461,6 +532,7 @@ public class EnactorSubscriptionManager implements Handler {
 	//to be replace by an embedded database...
 	private WidgetReferenceRegistry widgetReferences = new WidgetReferenceRegistry();
 	private Map<String, EnactorComponentInfo> widgetSubscriptions = new HashMap<String, EnactorComponentInfo>();
+	private ConditionNetwork conditionNetwork;
 	private Map<String, String> widgetIds= new HashMap<String, String>(); // <ComponentDescription.id, subscriptionId>
 
 	private DiscovererSubscriber discoSub;
@@ -113,4 +113,14 @@ public class HmmEnactor<O extends Observation> extends Enactor {
 		return (List<O>) hmmWrapper.extractObservations(this.getInWidgetState());
 	}
 
+	/**
+	 * Returns the most likely states over the sequence of the current widget
+	 * state, as inferred for the outcome values.
+	 * @return null if the observations can't be extracted
+	 * @see HmmWrapper#mostLikelyStateSequence(context.arch.discoverer.ComponentDescription)
+	 */
+	public int[] getStateSequence() {
+		return hmmWrapper.mostLikelyStateSequence(this.getInWidgetState());
+	}
+
 }
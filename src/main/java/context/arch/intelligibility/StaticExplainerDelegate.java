@@ -39,7 +39,7 @@ import context.arch.storage.Attributes;
 public abstract class StaticExplainerDelegate {
 	
 	/** Map of Disjunctions of traces for each class value */
-	protected Map<String, DNF> reasonsDNF; // made private so that it is not carelessly used prematurely by subclass
+	protected volatile Map<String, DNF> reasonsDNF; // made private so that it is not carelessly used prematurely by subclass
 
 	protected Enactor enactor;	
 	protected Explainer explainer;
@@ -60,13 +60,25 @@ public abstract class StaticExplainerDelegate {
 	 * @return map where each key is an outcome value, and each value is the DNF Expression for that outcome value.
 	 */
 	protected Map<String, DNF> getReasonsDNF() {
-		if (reasonsDNF == null) {
+		if (explainer == null) {
 			this.explainer = enactor.getExplainer();
-			reasonsDNF = initReasonsDNF();
+		}
+		Map<String, DNF> reasonsDNF = this.reasonsDNF;
+		if (reasonsDNF == null) {
+			reasonsDNF = this.reasonsDNF = initReasonsDNF();
 		}
 		return reasonsDNF;
 	}
 	
+	/**
+	 * Builds the reasons again from the model, e.g. when it is loaded or reloaded,
+	 * so that queries only look them up.
+	 * This does not need the Explainer, so it can be called while constructing it.
+	 */
+	public void refresh() {
+		reasonsDNF = initReasonsDNF();
+	}
+	
 	/**
 	 * Used to init or refresh the reasonsDNF that store explanations in a DNF structure.
 	 * @return
@@ -420,13 +420,27 @@ public class HmmExplainer extends Explainer {
 		return evidence;
 	}
 	
+	/**
+	 * Returns the most likely states of the enactor, from its online inference
+	 * if they match the observations, by Viterbi over them otherwise.
+	 * @param o observations of the current widget state
+	 * @return
+	 */
+	protected int[] getStateSequence(List<ObservationVector> o) {
+		int[] x = hmmEnactor.getStateSequence();
+		if (x == null || x.length != o.size()) {
+			x = hmm.mostLikelyStateSequence(o);
+		}
+		return x;
+	}
+
 	// TODO increase efficiency by using caching
 
 	@SuppressWarnings("serial")
 	@Override
 	public DNF getWhyExplanation() {
 		final List<ObservationVector> o = hmmEnactor.getObservations();
-		final int[] x = hmm.mostLikelyStateSequence(o);
+		final int[] x = getStateSequence(o);
 		return new DNF() {{ add(getWhyExplanation(o, x, F_VERSION)); }};
 	}
 	
@@ -455,7 +469,7 @@ public class HmmExplainer extends Explainer {
 	
 	public DNF getWhyNotExplanations(int[] xTarget) {
 		List<ObservationVector> o = hmmEnactor.getObservations();
-		int[] x = hmm.mostLikelyStateSequence(o);
+		int[] x = getStateSequence(o);
 		Reason conj = getWhyNotExplanation(o, x, xTarget, F_VERSION);
 		
 		DNF dnf = new DNF();
@@ -480,7 +494,7 @@ public class HmmExplainer extends Explainer {
 	@Override
 	public DNF getCertaintyExplanation() {
 		List<ObservationVector> o = hmmEnactor.getObservations();
-		int[] x = hmm.mostLikelyStateSequence(o);
+		int[] x = getStateSequence(o);
 		double certainty = hmm.probability(o, x);
 		return new DNF(Parameter.instance(Query.QUESTION_CERTAINTY, certainty));
 	}
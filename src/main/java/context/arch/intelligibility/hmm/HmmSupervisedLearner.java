@@ -1,20 +1,29 @@
 package context.arch.intelligibility.hmm;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import be.ac.ulg.montefiore.run.jahmm.Hmm;
 import be.ac.ulg.montefiore.run.jahmm.ObservationInteger;
 import be.ac.ulg.montefiore.run.jahmm.ObservationVector;
 import be.ac.ulg.montefiore.run.jahmm.io.FileFormatException;
+import be.ac.ulg.montefiore.run.jahmm.io.HmmFlatWriter;
 import be.ac.ulg.montefiore.run.jahmm.io.HmmWriter;
 import be.ac.ulg.montefiore.run.jahmm.io.ObservationIntegerReader;
 import be.ac.ulg.montefiore.run.jahmm.io.ObservationSequencesReader;
+import be.ac.ulg.montefiore.run.jahmm.io.ObservationSequencesReader.ObservationStream;
 import be.ac.ulg.montefiore.run.jahmm.io.ObservationVectorReader;
 import be.ac.ulg.montefiore.run.jahmm.io.OpdfVector;
 import be.ac.ulg.montefiore.run.jahmm.io.OpdfVectorWriter;
@@ -22,11 +31,28 @@ import be.ac.ulg.montefiore.run.jahmm.io.OpdfVectorWriter;
 /**
  * To learn a HMM from supervised data. This class was written since JAHMM only had classes to do unsupervised learning.
  * Currently only limited to ObservationVector as observation.
+ * 
+ * The counts are made in parallel over chunks of the training sequence, in a thread pool of 
+ * DEFAULT_PARALLELISM threads, and added together. Learning from files streams the observations
+ * in batches, counted while the next batch is read, so that the training data doesn't have to fit in memory.
  * @author Brian Y. Lim
  *
  */
 public class HmmSupervisedLearner {
 
+	/**
+	 * Number of threads counting the training data; 1 to count in the calling thread
+	 */
+	public static int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Number of observations counted by a task, and read per batch when streaming
+	 */
+	public static int DEFAULT_CHUNK_SIZE = 8192;
+
+	protected int parallelism = DEFAULT_PARALLELISM;
+	protected int chunkSize = DEFAULT_CHUNK_SIZE;
+
 	protected List<ObservationVector> trainingObservations;
 	protected List<ObservationInteger> trainingStates;
 
@@ -85,10 +111,50 @@ public class HmmSupervisedLearner {
 		return hmm;
 	}
 
+	/**
+	 * Learns from sequence files, streaming their observations instead of loading them in memory.
+	 * Unlike readObservationsSequencesFromFile, all the sequences of the files are used, 
+	 * each starting with no transition from the previous one.
+	 * @return the HMM, or null if the files couldn't be read
+	 */
 	public Hmm<ObservationVector> learn(File observationSequencesFile, File stateSequencesFile) {
-		List<ObservationVector> trainingObservations = readObservationsSequencesFromFile(observationSequencesFile, NUM_OBSERVATION_DIM);
-		List<ObservationInteger> trainingStates = readStateSequencesFromFile(stateSequencesFile);
-		return learn(trainingObservations, trainingStates);
+		this.trainingObservations = null;
+		this.trainingStates = null;
+
+		initCounters();
+		try {
+			setCounts(countStreaming(observationSequencesFile, stateSequencesFile));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} catch (FileFormatException e) {
+			e.printStackTrace();
+			return null;
+		}
+		calculateHmmParams();
+
+		Hmm<ObservationVector> hmm = new Hmm<ObservationVector>(pi, a, 
+				generateOpdfVectors());
+		return hmm;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @param parallelism number of threads counting the training data; 1 to count in the calling thread
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = Math.max(1, chunkSize);
 	}
 
 	protected List<OpdfVector> generateOpdfVectors() {
@@ -151,7 +217,7 @@ public class HmmSupervisedLearner {
 	}
 
 	protected void initCounters() {
-		NUM_OBSERVATIONS = trainingObservations.size();
+		NUM_OBSERVATIONS = trainingObservations == null ? 0 : trainingObservations.size();
 
 		//		T = SEQUENCE_LENGTH = 5;
 		//		N_pow_T = Math.pow(N, T);
@@ -165,42 +231,224 @@ public class HmmSupervisedLearner {
 	}
 
 	/**
-	 * Prepares the counts from training data before calculating the HMM parameters
+	 * Counts of a part of the training data; the counts of the parts are added together.
+	 */
+	protected class Counts {
+		int numObservations;
+		final int[][] stateToState = new int[NUM_STATES][NUM_STATES];
+		final int[] state = new int[NUM_STATES];
+		final int[][] stateToObs = new int[NUM_STATES][NUM_OBSERVATION_PERMS];
+		final int[][] stateToAttr = new int[NUM_STATES][NUM_OBSERVATION_DIM];
+
+		/**
+		 * Counts an observation
+		 * @param prevState state at t-1, or the state itself for the first observation of a sequence
+		 * @param state state at t
+		 * @param observationVal observation at t; vector of form e.g.: [0 0 1 1 0 1 0 ...]
+		 */
+		void add(int prevState, int state, double[] observationVal) {
+			numObservations++;
+			stateToState[prevState][state]++; // increment count for transition from prevState to state
+			this.state[state]++; // increment count for this state; do for all t
+
+			stateToObs[state][OpdfVector.getIntegerEquivalent(observationVal, NUM_OBSERVATION_VALS)]++; // increment emission count for this observation
+			// iterate through features to see which is activated
+			for (int f = 0; f < observationVal.length; f++) {
+				if (observationVal[f] == 1) {
+					stateToAttr[state][f]++;
+				}
+			}
+		}
+
+		void add(Counts counts) {
+			numObservations += counts.numObservations;
+			for (int i = 0; i < NUM_STATES; i++) {
+				state[i] += counts.state[i];
+				for (int j = 0; j < NUM_STATES; j++) {
+					stateToState[i][j] += counts.stateToState[i][j];
+				}
+				for (int k = 0; k < NUM_OBSERVATION_PERMS; k++) {
+					stateToObs[i][k] += counts.stateToObs[i][k];
+				}
+				for (int f = 0; f < NUM_OBSERVATION_DIM; f++) {
+					stateToAttr[i][f] += counts.stateToAttr[i][f];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets the counts from which the HMM parameters are calculated
+	 */
+	protected void setCounts(Counts counts) {
+		NUM_OBSERVATIONS = counts.numObservations;
+		N_STATE_TO_STATE = counts.stateToState;
+		N_STATE = counts.state;
+		N_STATE_TO_OBS = counts.stateToObs;
+		N_STATE_TO_ATTR = counts.stateToAttr;
+	}
+
+	/**
+	 * Prepares the counts from training data before calculating the HMM parameters.
+	 * Chunks of chunkSize observations are counted in parallel if parallelism > 1.
 	 */
 	public void generateCountsFromTraining() {
-		// iterate through observations together with states
-		int prevState = -1;
-		for (int obs = 0; obs < NUM_OBSERVATIONS; obs++) {
-			// count states and state transitions
-			ObservationInteger stateObj = trainingStates.get(obs); // state(t)
-			int state = stateObj.value;
-			if (obs == 0) {
-				prevState = state;
+		if (parallelism <= 1 || NUM_OBSERVATIONS <= chunkSize) {
+			setCounts(new CountTask(0, NUM_OBSERVATIONS).call());
+			return;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+		try {
+			List<Future<Counts>> parts = new ArrayList<Future<Counts>>();
+			for (int from = 0; from < NUM_OBSERVATIONS; from += chunkSize) {
+				parts.add(pool.submit(new CountTask(from, Math.min(from + chunkSize, NUM_OBSERVATIONS))));
+			}
+			Counts total = new Counts();
+			for (Future<Counts> part : parts) {
+				total.add(join(part));
 			}
-			N_STATE_TO_STATE[prevState][state]++; // increment count for transition from prevState to state
-			N_STATE[state]++; // increment count for this state; do for all t
+			setCounts(total);
+		} finally {
+			pool.shutdown();
+		}
+	}
 
-			// count emissions of state to observation
-			ObservationVector observation = trainingObservations.get(obs);
-			double[] observationVal = observation.values(); // vector of form e.g.: [0 0 1 1 0 1 0 ...]
+	/**
+	 * Waits for the counts of a part of the training data
+	 */
+	private static Counts join(Future<Counts> part) {
+		try {
+			return part.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("HmmSupervisedLearner interrupted while counting", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("HmmSupervisedLearner counting failed", e.getCause());
+		}
+	}
 
-			//			DoubleArrayWrapper observationValWrapper = new DoubleArrayWrapper(observationVal);
-			//			Map<DoubleArrayWrapper, Integer> n_state_to_obs =  N_STATE_TO_OBS[state];
-			//			Integer origCount = n_state_to_obs.get(observationValWrapper);
-			//			if (origCount == null) { origCount = 0; }
-			//			n_state_to_obs.put(observationValWrapper, origCount + 1); // increment emission count for this observation vector
+	/**
+	 * Counts the observations [from, to) of the training data
+	 */
+	protected class CountTask implements Callable<Counts> {
+		private final int from;
+		private final int to;
 
+		CountTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
 
-			N_STATE_TO_OBS[state][OpdfVector.getIntegerEquivalent(observationVal, NUM_OBSERVATION_VALS)]++; // increment emission count for this observation
-			// iterate through features to see which is activated
-			for (int f = 0; f < observationVal.length; f++) {
-				if (observationVal[f] == 1) {
-					N_STATE_TO_ATTR[state][f]++;
+		public Counts call() {
+			Counts counts = new Counts();
+			// iterate through observations together with states; the first observation is a transition to itself
+			int prevState = trainingStates.get(from == 0 ? 0 : from - 1).value;
+			for (int obs = from; obs < to; obs++) {
+				int state = trainingStates.get(obs).value; // state(t)
+				counts.add(prevState, state, trainingObservations.get(obs).values());
+				prevState = state; // update prevState to current state
+			}
+			return counts;
+		}
+	}
+
+	/**
+	 * Counts a batch of observations read from the training files
+	 */
+	private class BatchTask implements Callable<Counts> {
+		private final int[] prevStates;
+		private final int[] states;
+		private final double[][] observationVals;
+		private final int size;
+
+		BatchTask(int[] prevStates, int[] states, double[][] observationVals, int size) {
+			this.prevStates = prevStates;
+			this.states = states;
+			this.observationVals = observationVals;
+			this.size = size;
+		}
+
+		public Counts call() {
+			Counts counts = new Counts();
+			for (int i = 0; i < size; i++) {
+				counts.add(prevStates[i], states[i], observationVals[i]);
+			}
+			return counts;
+		}
+	}
+
+	/**
+	 * Counts the training data of sequence files, reading them in batches of chunkSize observations.
+	 * While a batch is counted by the pool, the next one is read; at most 2*parallelism batches are
+	 * held in memory.
+	 */
+	protected Counts countStreaming(File observationSequencesFile, File stateSequencesFile) throws IOException, FileFormatException {
+		Reader observationsReader = new BufferedReader(new FileReader(observationSequencesFile));
+		Reader statesReader = new BufferedReader(new FileReader(stateSequencesFile));
+		ExecutorService pool = parallelism > 1 ? Executors.newFixedThreadPool(parallelism) : null;
+		try {
+			ObservationStream<ObservationVector> observations = ObservationSequencesReader.streamSequences(
+					new ObservationVectorReader(NUM_OBSERVATION_DIM), observationsReader);
+			ObservationStream<ObservationInteger> states = ObservationSequencesReader.streamSequences(
+					new ObservationIntegerReader(), statesReader);
+
+			Counts total = new Counts();
+			LinkedList<Future<Counts>> pending = new LinkedList<Future<Counts>>();
+			int prevState = -1;
+			while (true) {
+				int[] prevStates = new int[chunkSize];
+				int[] stateVals = new int[chunkSize];
+				double[][] observationVals = new double[chunkSize][];
+				int size = 0;
+				for (; size < chunkSize; size++) {
+					ObservationVector observation = observations.read();
+					ObservationInteger state = states.read();
+					if (observation == null || state == null) {
+						if ((observation == null) != (state == null)) {
+							System.out.println("HmmSupervisedLearner.countStreaming: observations and states of different lengths; extra ones ignored");
+						}
+						break;
+					}
+					if (states.isSequenceStart()) {
+						prevState = state.value;
+					}
+					prevStates[size] = prevState;
+					stateVals[size] = state.value;
+					observationVals[size] = observation.values();
+					prevState = state.value;
+				}
+
+				if (size > 0) {
+					BatchTask task = new BatchTask(prevStates, stateVals, observationVals, size);
+					if (pool == null) {
+						total.add(task.call());
+					}
+					else {
+						pending.add(pool.submit(task));
+						if (pending.size() >= 2 * parallelism) {
+							total.add(join(pending.removeFirst()));
+						}
+					}
 				}
-			}			
+				if (size < chunkSize) {
+					break;
+				}
+			}
 
-			// update prevState to current state
-			prevState = state; 				
+			while (!pending.isEmpty()) {
+				total.add(join(pending.removeFirst()));
+			}
+			return total;
+		} finally {
+			if (pool != null) {
+				pool.shutdown();
+			}
+			observationsReader.close();
+			statesReader.close();
 		}
 	}
 
@@ -338,6 +586,14 @@ public class HmmSupervisedLearner {
 					new OpdfVectorWriter(), 
 					hmm);
 
+			/*
+			 * Save HMM as a flat binary file, mapped in memory when loaded
+			 * See HmmWrapper.readModel
+			 */
+			HmmFlatWriter.write(
+					new File("demos/home-hmm/kasteren-jahmm-flat.model"), 
+					hmm);
+
 			/*
 			 * Load HMM from file
 			 * Also slow...but since this is just an init step, it may be ok
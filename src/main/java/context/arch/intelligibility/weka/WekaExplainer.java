@@ -41,7 +41,7 @@ import weka.core.Instances;
 public abstract class WekaExplainer<C extends Classifier> extends Explainer {
 
 	protected ClassifierWrapper classifierWrapper;
-	protected C classifier;
+	protected volatile C classifier;
 	protected Instances header;
 	protected Attribute classAttribute;
 //	protected Enumeration<Attribute> attributes; // not good, as will always need to reset after use, so that others can enumerate
@@ -81,6 +81,21 @@ public abstract class WekaExplainer<C extends Classifier> extends Explainer {
 		this.classifier = (C) classifierWrapper.getClassifier();
 	}
 
+	/**
+	 * Takes the classifier of the wrapper if it was reloaded (see ClassifierWrapper.reloadClassifier).
+	 * @return true if the classifier changed since the last call, so that the subclass compiles its explanations again
+	 */
+	@SuppressWarnings("unchecked")
+	protected boolean refreshModel() {
+		Classifier current = classifierWrapper.getClassifier();
+		if (current == classifier) { return false; }
+		synchronized (this) {
+			if (current == classifier) { return false; }
+			classifier = (C) current;
+			return true;
+		}
+	}
+
 	/**
 	 * Overrides superclass because ClassifierEnactors only have one EnactorReference.
 	 * Also does processing using the classifierWrapper instead of EnactorReference queries.
@@ -124,7 +139,8 @@ public abstract class WekaExplainer<C extends Classifier> extends Explainer {
 					break;
 				}
 			}
-			double[] distroForInstance = classifier.distributionForInstance(instance);			
+			double[] distroForInstance = classifierWrapper.distributionForInstance(instance); // cached
+			if (distroForInstance == null || classIndex >= distroForInstance.length) { return null; }
 			double certainty = distroForInstance[classIndex];
 			
 //			System.out.println("getCertaintyExplanation outcomeValue = " + outcomeValue);			
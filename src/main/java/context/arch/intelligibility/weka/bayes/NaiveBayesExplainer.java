@@ -1,5 +1,10 @@
 package context.arch.intelligibility.weka.bayes;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 import weka.classifiers.bayes.NaiveBayes;
 import weka.classifiers.bayes.NaiveBayesAdapter;
 import weka.core.Attribute;
@@ -20,6 +25,11 @@ import context.arch.intelligibility.weka.WekaExplainer;
 /**
  * Explainer for the WEKA Naive Bayes classifier.
  * 
+ * The evidences of the model (priors, nominal attribute values, numeric attribute means) and the
+ * How To explanations are compiled in EvidenceTables when the classifier is loaded, and again only 
+ * when it is reloaded, so that queries look them up. The evidences of the last instance explained
+ * are kept for the following Why and Why Not queries.
+ * 
  * @author Brian Y. Lim
  *
  */
@@ -34,9 +44,29 @@ public class NaiveBayesExplainer extends WekaExplainer<NaiveBayes> {
 	public NaiveBayesExplainer(Enactor enactor, ClassifierWrapper classifierWrapper) throws Exception {
 		super(enactor, classifierWrapper);
 		
+		compileModel();
+	}
+	
+	/**
+	 * Compiles the evidence tables of the current classifier
+	 */
+	protected void compileModel() {
 		nbAdapter = new NaiveBayesAdapter(classifier);
 		m_Distributions = nbAdapter.getMDistributions();
 		m_ClassDistribution = nbAdapter.getMClassDistribution();
+		tables = new EvidenceTables(classifier, m_Distributions, m_ClassDistribution);
+	}
+	
+	/**
+	 * @return the evidence tables, compiled again if the classifier was reloaded
+	 */
+	protected EvidenceTables getTables() {
+		if (refreshModel()) {
+			synchronized (this) {
+				compileModel();
+			}
+		}
+		return tables;
 	}
 	
 	/**
@@ -79,7 +109,8 @@ public class NaiveBayesExplainer extends WekaExplainer<NaiveBayes> {
 		
 		try {
 			Reason probs = new Reason();
-			double[] distroForInstance = classifier.distributionForInstance(instance);
+			double[] distroForInstance = classifierWrapper.distributionForInstance(instance); // cached
+			if (distroForInstance == null) { return null; }
 
 			for (int i = 0; i < distroForInstance.length; i++) {
 				String name = classAttribute.value(i);
@@ -125,12 +156,15 @@ public class NaiveBayesExplainer extends WekaExplainer<NaiveBayes> {
 	 */
 	protected Reason getWhyExplanation(Instance instance, String classValue) {
 		Reason list = new Reason();
+		EvidenceTables tables = getTables();
+		int classValueIndex = header.classAttribute().indexOfValue(classValue);
+		double[][] evidences = tables.getEvidences(instance);
 
 		// total sum of evidence
 		double totalEvidence = 0; // sum through method
 		
 		// calculate and add evidence due to prior
-		double priorEvidence = getEvidencePrior(classValue);
+		double priorEvidence = tables.prior[classValueIndex];
 		list.add(Parameter.instance(LIKELIHOOD, priorEvidence));
 		totalEvidence += priorEvidence;
 		
@@ -138,7 +172,7 @@ public class NaiveBayesExplainer extends WekaExplainer<NaiveBayes> {
 		for (int f = 0; f < instance.numAttributes(); f++) {
 			if (f == instance.classIndex()) { continue; } // skip class attribute
 			String attrName = instance.attribute(f).name();
-			double attrEvidence = getEvidenceAttribute(classValue, f, instance);
+			double attrEvidence = evidences[f][classValueIndex];
 			list.add(Parameter.instance(attrName, attrEvidence));
 			totalEvidence += attrEvidence;
 		}
@@ -170,13 +204,17 @@ public class NaiveBayesExplainer extends WekaExplainer<NaiveBayes> {
 		
 		Reason reason = new Reason();
 		String whyClassValue = enactor.getOutcomeValue();
+		EvidenceTables tables = getTables();
+		int whyIndex = header.classAttribute().indexOfValue(whyClassValue);
+		int whyNotIndex = header.classAttribute().indexOfValue(whyNotClassValue);
+		double[][] evidences = tables.getEvidences(instance);
 
 		// total sum of evidence
 		double dTotalEvidence = 0; // sum through method
 		
 		// calculate and add evidence due to prior
-		double whyPriorEvidence = getEvidencePrior(whyClassValue);
-		double whyNotPriorEvidence = getEvidencePrior(whyNotClassValue);
+		double whyPriorEvidence = tables.prior[whyIndex];
+		double whyNotPriorEvidence = tables.prior[whyNotIndex];
 		double dPriorEvidence = whyNotPriorEvidence - whyPriorEvidence; // delta = target - actual				
 		dPriorEvidence = -dPriorEvidence; // flip to retain the same directional sense as for Why
 		reason.add(Parameter.instance(LIKELIHOOD, dPriorEvidence));
@@ -191,8 +229,8 @@ public class NaiveBayesExplainer extends WekaExplainer<NaiveBayes> {
 			if (f == instance.classIndex()) { continue; } // skip class attribute
 			String attrName = instance.attribute(f).name();
 			
-			double whyAttrEvidence = getEvidenceAttribute(whyClassValue, f, instance);
-			double whyNotAttrEvidence = getEvidenceAttribute(whyNotClassValue, f, instance);
+			double whyAttrEvidence = evidences[f][whyIndex];
+			double whyNotAttrEvidence = evidences[f][whyNotIndex];
 			/*
 			 * Why not whyNotClassValue? Because attrVal was too high (delta>0) and caused whyClassValue instead of whyNotClassValue.
 			 * The aforementioned is true when whyAttrEvidence > whyNotAttrEvidence.
@@ -230,13 +268,29 @@ public class NaiveBayesExplainer extends WekaExplainer<NaiveBayes> {
 	 */
 	@Override
 	public DNF getHowToExplanation(String classValue) {
+		DNF cached = getTables().howTo.get(classValue);
+		if (cached == null) { return buildHowToExplanation(getTables(), classValue); }
+		
+		// copy, so that the caller may change it; the Parameters are immutable
+		DNF reasons = new DNF();
+		for (Reason reason : cached) {
+			reasons.add(reason.clone());
+		}
+		return reasons;
+	}
+	
+	/**
+	 * Builds the How To explanation from the evidence tables; see getHowToExplanation
+	 */
+	protected DNF buildHowToExplanation(EvidenceTables tables, String classValue) {
 		Reason reason = new Reason();
+		int classValueIndex = header.classAttribute().indexOfValue(classValue);
 
 		// total sum of evidence
 		double totalEvidence = 0; // sum through method
 		
 		// calculate and add evidence due to prior
-		double priorEvidence = getEvidencePrior(classValue);
+		double priorEvidence = tables.prior[classValueIndex];
 		reason.add(Parameter.instance(LIKELIHOOD, priorEvidence));
 		totalEvidence += priorEvidence;
 		
@@ -247,7 +301,7 @@ public class NaiveBayesExplainer extends WekaExplainer<NaiveBayes> {
 			String attrName = attr.name();
 			
 			if (attr.type() == Attribute.NUMERIC) {
-				double attrEvidence = getEvidenceAttributeNumericValue(classValue, f);
+				double attrEvidence = tables.numericMean[f][classValueIndex];
 				reason.add(Parameter.instance(attrName, attrEvidence));
 				totalEvidence += attrEvidence;
 			}
@@ -255,7 +309,7 @@ public class NaiveBayesExplainer extends WekaExplainer<NaiveBayes> {
 				// iterate through nominal values and add
 				double attrEvidence = 0;
 				for (int v = 0; v < attr.numValues(); v++) {
-					attrEvidence = getEvidenceAttributeNominalValue(classValue, f, v);
+					attrEvidence = tables.nominal[f][classValueIndex][v];
 					attrName += "_" + attr.value(v); // enhance name
 					reason.add(Parameter.instance(attrName, attrEvidence));
 //					totalEvidence += attrEvidence; // TODO: not quite right here! Need to select only one
@@ -280,7 +334,17 @@ public class NaiveBayesExplainer extends WekaExplainer<NaiveBayes> {
 	 * @return
 	 */
 	public Reason getHowToInputsExplanation(String classValue) {
+		Reason list = getTables().howToInputs.get(classValue);
+		if (list != null) { return list.clone(); }
+		return buildHowToInputsExplanation(getTables(), classValue);
+	}
+	
+	/**
+	 * Builds the How To Inputs explanation from the evidence tables; see getHowToInputsExplanation
+	 */
+	protected Reason buildHowToInputsExplanation(EvidenceTables tables, String classValue) {
 		Reason list = new Reason();
+		int classValueIndex = header.classAttribute().indexOfValue(classValue);
 
 		// calculate and add mean values due of each attribute/feature value given the classValue
 		for (int f = 0; f < header.numAttributes(); f++) {
@@ -289,7 +353,7 @@ public class NaiveBayesExplainer extends WekaExplainer<NaiveBayes> {
 			String attrName = attr.name();
 			
 			if (attr.type() == Attribute.NUMERIC) {
-				double attrMean = getMeanAttributeNumericValue(classValue, f);
+				double attrMean = tables.mean[f][classValueIndex];
 				list.add(Parameter.instance(attrName, attrMean));
 			}
 			// TODO: figure out how to obtain most likely nominal value
@@ -349,6 +413,152 @@ public class NaiveBayesExplainer extends WekaExplainer<NaiveBayes> {
 	 */
 	protected Estimator m_ClassDistribution;
 	
+	/** Evidences of the current classifier */
+	protected volatile EvidenceTables tables;
+	
+	/**
+	 * Evidences of a model, computed once from its estimators.
+	 * Instance independent evidences are tabulated; the evidences of an instance are computed for 
+	 * all the class values at once, and kept for the next query about the same instance.
+	 */
+	protected class EvidenceTables {
+		protected final NaiveBayes model;
+		protected final Estimator[][] distributions;
+		protected final int numClasses;
+		
+		/** h(c) by [classIndex] */
+		protected final double[] prior;
+		/** f(x_f,c) by [attrIndex][classIndex][valueIndex] for nominal attributes; null for the others */
+		protected final double[][][] nominal;
+		/** f(mean,c) by [attrIndex][classIndex] for numeric attributes; null for the others */
+		protected final double[][] numericMean;
+		/** mean by [attrIndex][classIndex] for numeric attributes; null for the others */
+		protected final double[][] mean;
+		
+		/** Explanations by class value, unmodifiable; only copies are returned to the callers */
+		protected final Map<String, DNF> howTo;
+		protected final Map<String, Reason> howToInputs;
+		
+		/** Values of the last instance explained, and its evidences by [attrIndex][classIndex] */
+		private double[] lastValues;
+		private double[][] lastEvidences;
+		
+		protected EvidenceTables(NaiveBayes model, Estimator[][] distributions, Estimator classDistribution) {
+			this.model = model;
+			this.distributions = distributions;
+			this.numClasses = header.numClasses();
+			
+			prior = new double[numClasses];
+			double sum = 0;
+			for (int j = 0; j < numClasses; j++) {
+				prior[j] = Math.log(classDistribution.getProbability(j));
+				sum += prior[j];
+			}
+			for (int c = 0; c < numClasses; c++) {
+				prior[c] = numClasses * prior[c] - sum; // (N-1)*log(P(c_i)) - log(product_j{P(c_j)})
+			}
+			
+			nominal = new double[header.numAttributes()][][];
+			numericMean = new double[header.numAttributes()][];
+			mean = new double[header.numAttributes()][];
+			for (int f = 0; f < header.numAttributes(); f++) {
+				if (f == header.classIndex()) { continue; }
+				Attribute attr = header.attribute(f);
+				
+				if (attr.type() == Attribute.NUMERIC) {
+					numericMean[f] = new double[numClasses];
+					mean[f] = new double[numClasses];
+					for (int c = 0; c < numClasses; c++) {
+						mean[f][c] = ((NormalEstimator)distributions[f][c]).getMean();
+						numericMean[f][c] = evidences(f, mean[f][c])[c];
+					}
+				}
+				else if (attr.type() == Attribute.NOMINAL) {
+					nominal[f] = new double[numClasses][attr.numValues()];
+					for (int v = 0; v < attr.numValues(); v++) {
+						double[] e = evidences(f, v); // index of nominal value would map straight to the weka double index
+						for (int c = 0; c < numClasses; c++) {
+							nominal[f][c][v] = e[c];
+						}
+					}
+				}
+			}
+			
+			Map<String, DNF> howTo = new HashMap<String, DNF>();
+			Map<String, Reason> howToInputs = new HashMap<String, Reason>();
+			for (int c = 0; c < numClasses; c++) {
+				String classValue = header.classAttribute().value(c);
+				howTo.put(classValue, buildHowToExplanation(this, classValue));
+				howToInputs.put(classValue, buildHowToInputsExplanation(this, classValue));
+			}
+			this.howTo = Collections.unmodifiableMap(howTo);
+			this.howToInputs = Collections.unmodifiableMap(howToInputs);
+		}
+		
+		/**
+		 * Evidence f(x_f,c) due to an attribute value, for all the class values c.
+		 * See getEvidenceAttribute
+		 * @return by [classIndex]
+		 */
+		protected double[] evidences(int attributeIndex, double value) {
+			double[] log_p_xf_c = new double[numClasses];
+			double sum = 0; // log(product_j{P(x_f|c_j)})
+			for (int j = 0; j < numClasses; j++) {
+				double p = distributions[attributeIndex][j].getProbability(value);
+				if (p == 0) { p = EPSILON; } // see getEvidenceAttributeValue
+				log_p_xf_c[j] = Math.log(p);
+				sum += log_p_xf_c[j];
+			}
+			
+			double[] evidences = new double[numClasses];
+			for (int c = 0; c < numClasses; c++) {
+				evidences[c] = numClasses * log_p_xf_c[c] - sum; // (N-1)*log(P(x_f|c_i)) - log(product_{j!=i}{P(x_f|c_j)})
+			}
+			return evidences;
+		}
+		
+		/**
+		 * Evidence due to an attribute value, looked up for nominal values
+		 */
+		protected double evidence(int classValueIndex, int attributeIndex, double value) {
+			double[][] table = nominal[attributeIndex];
+			if (table != null && value >= 0 && value < table[classValueIndex].length && value == (int) value) {
+				return table[classValueIndex][(int) value];
+			}
+			return evidences(attributeIndex, value)[classValueIndex];
+		}
+		
+		/**
+		 * Evidences of the attributes of an instance, for all the class values.
+		 * The arrays are kept for the next call about the same instance, so callers only read them.
+		 * @return by [attrIndex][classIndex]; null for the class attribute
+		 */
+		protected synchronized double[][] getEvidences(Instance instance) {
+			double[] values = instance.toDoubleArray();
+			if (Arrays.equals(values, lastValues)) {
+				return lastEvidences;
+			}
+			
+			double[][] evidences = new double[values.length][];
+			for (int f = 0; f < values.length; f++) {
+				if (f == instance.classIndex()) { continue; }
+				double[][] table = nominal[f];
+				if (table != null && values[f] >= 0 && values[f] < table[0].length && values[f] == (int) values[f]) {
+					evidences[f] = new double[numClasses];
+					for (int c = 0; c < numClasses; c++) {
+						evidences[f][c] = table[c][(int) values[f]];
+					}
+				}
+				else {
+					evidences[f] = evidences(f, values[f]);
+				}
+			}
+			lastValues = values;
+			lastEvidences = evidences;
+			return evidences;
+		}
+	}
+	
 	/**
 	 * Evidence as described in ExplainD [Poulin et al. 2006]. For Naive Bayes, this binarizes the class values into one-against-all, and
 	 * calculates the log-odds ratio as a discriminant:
@@ -411,14 +621,7 @@ public class NaiveBayesExplainer extends WekaExplainer<NaiveBayes> {
 	 */
 	protected double getEvidenceAttributeNumericValue(String classValue, int attributeIndex) {
 		int classValueIndex = header.classAttribute().indexOfValue(classValue);		
-		NormalEstimator estimator = (NormalEstimator)m_Distributions[attributeIndex][classValueIndex];
-		
-		double mean = estimator.getMean();
-		double value = mean;				
-//		System.out.println("mean(" + header.attribute(attributeIndex).name() + ") = " + value);
-		
-		double evidence = getEvidenceAttributeValue(classValue, attributeIndex, value);
-		return evidence;
+		return getTables().numericMean[attributeIndex][classValueIndex];
 	}
 
 	/**
@@ -430,10 +633,7 @@ public class NaiveBayesExplainer extends WekaExplainer<NaiveBayes> {
 	 */
 	protected double getMeanAttributeNumericValue(String classValue, int attributeIndex) {
 		int classValueIndex = header.classAttribute().indexOfValue(classValue);		
-		NormalEstimator estimator = (NormalEstimator)m_Distributions[attributeIndex][classValueIndex];
-		
-		double mean = estimator.getMean();
-		return mean;
+		return getTables().mean[attributeIndex][classValueIndex];
 	}
 
 	/**
@@ -444,8 +644,8 @@ public class NaiveBayesExplainer extends WekaExplainer<NaiveBayes> {
 	 * @return
 	 */
 	protected double getEvidenceAttributeNominalValue(String classValue, int attributeIndex, int valueIndex) {
-		double value = valueIndex; // index of nominal value would map straight to the weka double index
-		return getEvidenceAttributeValue(classValue, attributeIndex, value);
+		int classValueIndex = header.classAttribute().indexOfValue(classValue);		
+		return getTables().nominal[attributeIndex][classValueIndex][valueIndex];
 	}
 
 	/** constant to take a very tiny value for Laplace correction, when p=0 */
@@ -462,6 +662,19 @@ public class NaiveBayesExplainer extends WekaExplainer<NaiveBayes> {
 	 * @return
 	 */
 	protected double getEvidenceAttributeValue(String classValue, int attributeIndex, double value) {
+		int classValueIndex = header.classAttribute().indexOfValue(classValue);
+		return getTables().evidence(classValueIndex, attributeIndex, value);
+	}
+	
+	/**
+	 * Get the evidence due to a specific attribute value, computed from the estimators; 
+	 * EvidenceTables.evidences computes it for all class values at once.
+	 * @param classValue
+	 * @param attributeIndex
+	 * @param valueIndex uses the Weka internal double format
+	 * @return
+	 */
+	protected double computeEvidenceAttributeValue(String classValue, int attributeIndex, double value) {
 		int classValueIndex = header.classAttribute().indexOfValue(classValue);
 		int N = header.numClasses();
 		
@@ -515,6 +728,17 @@ public class NaiveBayesExplainer extends WekaExplainer<NaiveBayes> {
 	 * @return
 	 */
 	protected double getEvidencePrior(String classValue) {
+		int classValueIndex = header.classAttribute().indexOfValue(classValue);
+		return getTables().prior[classValueIndex];
+	}
+	
+	/**
+	 * Get the evidence due to the prior probability, computed from the class estimator; 
+	 * EvidenceTables tabulates it for all class values.
+	 * @param classValue
+	 * @return
+	 */
+	protected double computeEvidencePrior(String classValue) {
 		int classValueIndex = header.classAttribute().indexOfValue(classValue);
 		int N = header.numClasses();
 
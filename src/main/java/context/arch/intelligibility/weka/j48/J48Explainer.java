@@ -13,7 +13,8 @@ import context.arch.intelligibility.weka.WekaExplainer;
 /**
  * Explainer for the WEKA J48 decision tree classifier.
  * 
- * TODO support dynamic changes to classifier
+ * The DNFs of the outcome values are parsed from the tree when the classifier is loaded, 
+ * and again only when it is reloaded.
  * @author Brian Y. Lim
  *
  */
@@ -38,21 +39,32 @@ public class J48Explainer extends WekaExplainer<J48> {
 				}
 			}
 		};
+		delegate.refresh();
+	}
+
+	/**
+	 * @return the delegate, with its explanations parsed again if the classifier was reloaded
+	 */
+	protected StaticExplainerDelegate getDelegate() {
+		if (refreshModel()) {
+			delegate.refresh();
+		}
+		return delegate;
 	}
 
 	@Override
 	public DNF getWhyExplanation() {
-		return delegate.getWhyExplanation();
+		return getDelegate().getWhyExplanation();
 	}
 
 	@Override
 	public DNF getWhyNotExplanation(String altOutcomeValue) {
-		return delegate.getWhyNotExplanations(altOutcomeValue);
+		return getDelegate().getWhyNotExplanations(altOutcomeValue);
 	}
 
 	@Override
 	public DNF getHowToExplanation(String altOutcomeValue) {
-		return delegate.getHowToExplanations(altOutcomeValue);
+		return getDelegate().getHowToExplanations(altOutcomeValue);
 	}
 
 }
@@ -10,8 +10,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
-import org.hibernate.Session;
-import org.hibernate.Transaction;
+import org.hibernate.StatelessSession;
 
 import context.arch.discoverer.ComponentDescription;
 import context.arch.logging.hibernate.CUAttribute;
@@ -47,17 +46,37 @@ public class ComponentUpdateLogger {
 	private void initialize() {
 	}
 
+	/**
+	 * Logs an update of a component and the subscribers it was sent to. The
+	 * entry is written asynchronously by the HibernateLogWriter: this method
+	 * returns without waiting for the database.
+	 * 
+	 * @param in_componentId Id of the component updated
+	 * @param in_updateName Name of the callback
+	 * @param in_componentDescriptions Descriptions sent to each subscriber
+	 * @throws LoggingException never; kept for compatibility
+	 * @see HibernateLogWriter#submit(HibernateLogWriter.Entry)
+	 */
 	public void insertComponentUpdateEntry(
-		String in_componentId,
-		String in_updateName,
-		List<ComponentDescription> in_componentDescriptions)
+		final String in_componentId,
+		final String in_updateName,
+		final List<ComponentDescription> in_componentDescriptions)
 		throws LoggingException {
 
-		Session session = null;
-		session = HibernateUtils.getNewSession();
+		final Date updateTime = new Date();
+		HibernateLogWriter.getLogWriter().submit(new HibernateLogWriter.Entry() {
+			protected void write(StatelessSession session) {
+				writeComponentUpdateEntry(session, in_componentId, in_updateName, updateTime, in_componentDescriptions);
+			}
+		});
+	}
 
-		if (session == null)
-			return;
+	private void writeComponentUpdateEntry(
+		StatelessSession session,
+		String in_componentId,
+		String in_updateName,
+		Date in_updateTime,
+		List<ComponentDescription> in_componentDescriptions) {
 
 		ArrayList<CUDestination> cuDestinationList = new ArrayList<CUDestination>();
 		ArrayList<CUAttribute> cuAttributeList = new ArrayList<CUAttribute>();
@@ -65,7 +84,7 @@ public class ComponentUpdateLogger {
 		ComponentUpdate componentUpdateEntry = new ComponentUpdate();
 		componentUpdateEntry.setComponentid(in_componentId);
 		componentUpdateEntry.setUpdatename(in_updateName);
-		componentUpdateEntry.setUpdatetime(new Date());
+		componentUpdateEntry.setUpdatetime(in_updateTime);
 
 		for (ComponentDescription compDescr : in_componentDescriptions) {
 			//Set up the cuDestination entry
@@ -120,34 +139,16 @@ public class ComponentUpdateLogger {
 			}
 		}
 
-		Transaction tx = null;
-		try {
-			tx = session.beginTransaction();
-			session.save(componentUpdateEntry);
+		// in the transaction of the writer, committed with the rest of the batch
+		session.insert(componentUpdateEntry);
 
-			for (int i = 0; i < cuDestinationList.size(); i++) {
-				session.save(cuDestinationList.get(i));
-			}
-
-			for (int i = 0; i < cuAttributeList.size(); i++) {
-				session.save(cuAttributeList.get(i));
-			}
-
-			tx.commit(); // flush the Session and commit the transaction
-		} catch (Exception e) {
-			try {
-				if (tx != null) tx.rollback(); // rollback the transaction
-			} catch (Exception x) {
-				throw new LoggingException(x);
-			}
-		} finally {
-			try {
-				session.close();
-			} catch (Exception e) {
-				throw new LoggingException(e);
-			}
+		for (int i = 0; i < cuDestinationList.size(); i++) {
+			session.insert(cuDestinationList.get(i));
 		}
 
+		for (int i = 0; i < cuAttributeList.size(); i++) {
+			session.insert(cuAttributeList.get(i));
+		}
 	}
 
 }
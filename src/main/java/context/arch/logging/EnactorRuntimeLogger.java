@@ -12,7 +12,7 @@ import java.util.List;
 
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
-import org.hibernate.Transaction;
+import org.hibernate.StatelessSession;
 import org.hibernate.type.Type;
 
 import context.arch.discoverer.ComponentDescription;
@@ -58,14 +58,44 @@ public class EnactorRuntimeLogger {
 	private void initialize() {
 	}
 
+	/**
+	 * The runtime entries look up the registration of their enactor, which
+	 * must be committed first
+	 */
+	private static abstract class EnactorEntry extends HibernateLogWriter.Entry {
+		protected boolean dependsOnLog() {
+			return true;
+		}
+	}
+
+	/**
+	 * Logs that an enactor evaluated a component against one of its references. The entry is written
+	 * asynchronously by the HibernateLogWriter, after the entries logged before it.
+	 *
+	 * @throws LoggingException never; kept for compatibility
+	 * @see HibernateLogWriter#submit(HibernateLogWriter.Entry)
+	 */
 	public void insertComponentEvaluatedEntry(
-		String in_enactorId,
-		EnactorReference in_er,
-		ComponentDescription in_cd)
-		throws LoggingException {
+			final String in_enactorId,
+			final EnactorReference in_er,
+			final ComponentDescription in_cd)
+			throws LoggingException {
 
-		Session session = HibernateUtils.getNewSession();
-		if (session == null) return;
+		final Date time = new Date();
+		HibernateLogWriter.getLogWriter().submit(new EnactorEntry() {
+			protected void write(StatelessSession session) throws LoggingException {
+				writeComponentEvaluatedEntry(session, time, in_enactorId, in_er, in_cd);
+			}
+		});
+	}
+
+	private void writeComponentEvaluatedEntry(
+			StatelessSession session,
+			Date in_time,
+			String in_enactorId,
+			EnactorReference in_er,
+			ComponentDescription in_cd)
+			throws LoggingException {
 
 		//locate the most recent enactorRegistration with enactor id = in_enactorId
 		EnactorRegistration enactorRegistration = null;
@@ -89,40 +119,45 @@ public class EnactorRuntimeLogger {
 		componentEvaluatedEntry.setComponentdescriptionid(in_cd.id);
 		componentEvaluatedEntry.setEnactorRegistration(enactorRegistration);
 		componentEvaluatedEntry.setERReference(erReference);
-		componentEvaluatedEntry.setComponentevaluatedtime(new Date());
-		
-		Transaction tx = null;
-		try{
-			tx = session.beginTransaction();
-			session.save(componentEvaluatedEntry);
-			tx.commit(); // flush the Session and commit the transaction
-		}
-		catch(Exception e){
-			try{
-				if (tx != null) tx.rollback();  // rollback the transaction
-			}catch(Exception x){
-				throw new LoggingException(x);
-			}
-		}
-		finally{
-			try{
-				session.close();
-			}catch (Exception e){
-				throw new LoggingException(e);
-			}
-		}
+		componentEvaluatedEntry.setComponentevaluatedtime(in_time);
+
+		// in the transaction of the writer, committed with the rest of the batch
+		session.insert(componentEvaluatedEntry);
 	}
 	
+	/**
+	 * Logs that a component was added to an enactor reference. The entry is written
+	 * asynchronously by the HibernateLogWriter, after the entries logged before it.
+	 *
+	 * @throws LoggingException never; kept for compatibility
+	 * @see HibernateLogWriter#submit(HibernateLogWriter.Entry)
+	 */
 	public void insertComponentAddedEntry(
+			final String in_enactorId,
+			final EnactorReference in_er,
+			final ComponentDescription in_cd,
+			final Attributes paramAtts)
+			throws LoggingException {
+
+		// the caller may change the attributes before the entry is written
+		final Attributes paramAttsCopy = paramAtts == null ? null : new Attributes(paramAtts);
+		final Date time = new Date();
+		HibernateLogWriter.getLogWriter().submit(new EnactorEntry() {
+			protected void write(StatelessSession session) throws LoggingException {
+				writeComponentAddedEntry(session, time, in_enactorId, in_er, in_cd, paramAttsCopy);
+			}
+		});
+	}
+
+	private void writeComponentAddedEntry(
+			StatelessSession session,
+			Date in_time,
 			String in_enactorId,
 			EnactorReference in_er,
 			ComponentDescription in_cd,
 			Attributes paramAtts)
 			throws LoggingException {
 
-		Session session = HibernateUtils.getNewSession();
-		if (session == null) return;
-
 		//locate the most recent enactorRegistration with enactor id = in_enactorId
 		EnactorRegistration enactorRegistration = getMostRecentEnactorRegistration(in_enactorId);
 		
@@ -135,7 +170,7 @@ public class EnactorRuntimeLogger {
 		componentAddedEntry.setComponentdescriptionid(in_cd.id);
 		componentAddedEntry.setEnactorRegistration(enactorRegistration);
 		componentAddedEntry.setERReference(erReference);
-		componentAddedEntry.setComponentaddedtime(new Date());
+		componentAddedEntry.setComponentaddedtime(in_time);
 		
 		//set up the entries to be added to the CAParamAttributes table
 		ArrayList<CAParamAttribute> caParamAttributesList = new ArrayList<CAParamAttribute>();
@@ -160,42 +195,47 @@ public class EnactorRuntimeLogger {
 			}
 		}
 
-		Transaction tx = null;
-		try{
-			tx = session.beginTransaction();
-			session.save(componentAddedEntry);
-			
-			for (int i = 0; i < caParamAttributesList.size(); i++){
-				session.save(caParamAttributesList.get(i));
-			}
-			tx.commit(); // flush the Session and commit the transaction
-		}
-		catch(Exception e){
-			try{
-				if (tx != null) tx.rollback();  // rollback the transaction
-			}catch(Exception x){
-				throw new LoggingException(x);
-			}
-		}
-		finally{
-			try{
-				session.close();
-			}catch (Exception e){
-				throw new LoggingException(e);
-			}
+		// in the transaction of the writer, committed with the rest of the batch
+		session.insert(componentAddedEntry);
+
+		for (int i = 0; i < caParamAttributesList.size(); i++){
+			session.insert(caParamAttributesList.get(i));
 		}
 	}
 	
+	/**
+	 * Logs that the value of an enactor parameter changed. The entry is written
+	 * asynchronously by the HibernateLogWriter, after the entries logged before it.
+	 *
+	 * @throws LoggingException never; kept for compatibility
+	 * @see HibernateLogWriter#submit(HibernateLogWriter.Entry)
+	 */
 	public void insertParameterValueChangedEntry(
+			final String in_enactorId,
+			final EnactorParameter in_ep,
+			final Attributes paramAtts,
+			final Object value)
+			throws LoggingException {
+
+		// the caller may change the attributes before the entry is written
+		final Attributes paramAttsCopy = paramAtts == null ? null : new Attributes(paramAtts);
+		final Date time = new Date();
+		HibernateLogWriter.getLogWriter().submit(new EnactorEntry() {
+			protected void write(StatelessSession session) throws LoggingException {
+				writeParameterValueChangedEntry(session, time, in_enactorId, in_ep, paramAttsCopy, value);
+			}
+		});
+	}
+
+	private void writeParameterValueChangedEntry(
+			StatelessSession session,
+			Date in_time,
 			String in_enactorId,
-			EnactorParameter in_ep, 
-			Attributes paramAtts, 
+			EnactorParameter in_ep,
+			Attributes paramAtts,
 			Object value)
 			throws LoggingException {
 
-		Session session = HibernateUtils.getNewSession();
-		if (session == null) return;
-
 		//locate the most recent enactorRegistration with enactor id = in_enactorId
 		EnactorRegistration enactorRegistration = null;
 		try{
@@ -218,7 +258,7 @@ public class EnactorRuntimeLogger {
 		ParameterValueChanged parameterValueChangedEntry = new ParameterValueChanged();
 		parameterValueChangedEntry.setEnactorRegistration(enactorRegistration);
 		parameterValueChangedEntry.setERParameter(erParameter);
-		parameterValueChangedEntry.setParametervaluechangedtime(new Date());
+		parameterValueChangedEntry.setParametervaluechangedtime(in_time);
 		
 		//Determine whether the object is of type string or numeric.
 		//All values begin as strings (?), so we must determine whether or not
@@ -258,42 +298,48 @@ public class EnactorRuntimeLogger {
 			}
 		}
 
-		Transaction tx = null;
-		try{
-			tx = session.beginTransaction();
-			session.save(parameterValueChangedEntry);
-			
-			for (int i = 0; i < pvcParamAttributesList.size(); i++){
-				session.save(pvcParamAttributesList.get(i));
-			}
-			tx.commit(); // flush the Session and commit the transaction
-		}
-		catch(Exception e){
-			try{
-				if (tx != null) tx.rollback();  // rollback the transaction
-			}catch(Exception x){
-				throw new LoggingException(x);
-			}
-		}
-		finally{
-			try{
-				session.close();
-			}catch (Exception e){
-				throw new LoggingException(e);
-			}
+		// in the transaction of the writer, committed with the rest of the batch
+		session.insert(parameterValueChangedEntry);
+
+		for (int i = 0; i < pvcParamAttributesList.size(); i++){
+			session.insert(pvcParamAttributesList.get(i));
 		}
 	}
 
+	/**
+	 * Logs that an enactor executed a service of a component. The entry is written
+	 * asynchronously by the HibernateLogWriter, after the entries logged before it.
+	 *
+	 * @throws LoggingException never; kept for compatibility
+	 * @see HibernateLogWriter#submit(HibernateLogWriter.Entry)
+	 */
 	public void insertServiceExecutionEntry(
+			final String in_enactorId,
+			final EnactorComponentInfo in_eci,
+			final String in_serviceName,
+			final String in_functionName,
+			final Attributes in_input)
+			throws LoggingException {
+
+		// the caller may change the attributes before the entry is written
+		final Attributes in_inputCopy = in_input == null ? null : new Attributes(in_input);
+		final Date time = new Date();
+		HibernateLogWriter.getLogWriter().submit(new EnactorEntry() {
+			protected void write(StatelessSession session) throws LoggingException {
+				writeServiceExecutionEntry(session, time, in_enactorId, in_eci, in_serviceName, in_functionName, in_inputCopy);
+			}
+		});
+	}
+
+	private void writeServiceExecutionEntry(
+			StatelessSession session,
+			Date in_time,
 			String in_enactorId,
 			EnactorComponentInfo in_eci,
-			String in_serviceName, 
-			String in_functionName, 
+			String in_serviceName,
+			String in_functionName,
 			Attributes in_input)
-	throws LoggingException {
-
-		Session session = HibernateUtils.getNewSession();
-		if (session == null) return;
+			throws LoggingException {
 
 		//locate the most recent enactorRegistration with the desired enactor id
 		EnactorRegistration enactorRegistration = null;
@@ -318,7 +364,7 @@ public class EnactorRuntimeLogger {
 		serviceExecutionEntry.setComponentAdded(componentAdded);
 		serviceExecutionEntry.setServicename(in_serviceName);
 		serviceExecutionEntry.setFunctionname(in_functionName);
-		serviceExecutionEntry.setExecutiontime(new Date());
+		serviceExecutionEntry.setExecutiontime(in_time);
 	
 		//set up the entries to be added to the SEInputAttributes table
 		ArrayList<SEInputAttribute> seInputAttributeList = new ArrayList<SEInputAttribute>();
@@ -342,32 +388,12 @@ public class EnactorRuntimeLogger {
 				seInputAttributeList.add(seInputAttribute);	
 			}
 		}
-		
-		
-		Transaction tx = null;
-		try{
-			tx = session.beginTransaction();
-			session.save(serviceExecutionEntry);
-			
-			for (int i = 0; i < seInputAttributeList.size(); i++){
-				session.save(seInputAttributeList.get(i));
-			}
-			
-			tx.commit(); // flush the Session and commit the transaction
-		}
-		catch(Exception e){
-			try{
-				if (tx != null) tx.rollback();  // rollback the transaction
-			}catch(Exception x){
-				throw new LoggingException(x);
-			}
-		}
-		finally{
-			try{
-				session.close();
-			}catch (Exception e){
-				throw new LoggingException(e);
-			}
+
+		// in the transaction of the writer, committed with the rest of the batch
+		session.insert(serviceExecutionEntry);
+
+		for (int i = 0; i < seInputAttributeList.size(); i++){
+			session.insert(seInputAttributeList.get(i));
 		}
 	}
 	
@@ -0,0 +1,444 @@
+package context.arch.logging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.hibernate.HibernateException;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+
+/**
+ * Writes the log entries to the database outside of the threads producing
+ * them, so that logging never stalls a widget or an enactor.
+ *
+ * The entries are queued in a bounded ring buffer. Writer threads take them
+ * by batches (up to batchSize entries, or whatever arrived within
+ * flushInterval milliseconds) and insert each batch in one transaction of a
+ * StatelessSession kept open by the writer thread. If the transaction of a
+ * batch fails, its entries are written again one per transaction, so that a
+ * bad entry only loses itself. When the buffer is full, the entry is either
+ * dropped (OVERFLOW_DROP) or the producer waits for room (OVERFLOW_BLOCK).
+ * When no session can be opened, the entries are dropped for RETRY_INTERVAL
+ * milliseconds, then opening a session is tried again.
+ *
+ * The configuration is read when the writer is first used: set the DEFAULT_
+ * fields before that.
+ *
+ * @see context.arch.logging.ComponentUpdateLogger
+ * @see context.arch.logging.EnactorRuntimeLogger
+ */
+public class HibernateLogWriter {
+
+	/**
+	 * Overflow policy: entries submitted when the buffer is full are dropped
+	 */
+	public static final int OVERFLOW_DROP = 0;
+
+	/**
+	 * Overflow policy: the producer waits until there is room in the buffer
+	 */
+	public static final int OVERFLOW_BLOCK = 1;
+
+	/**
+	 * The default maximum number of entries waiting to be written
+	 */
+	public static int DEFAULT_CAPACITY = 4096;
+
+	/**
+	 * The default maximum number of entries written in one transaction
+	 */
+	public static int DEFAULT_BATCH_SIZE = 50;
+
+	/**
+	 * The default maximum time (ms) an entry waits for its batch to fill up
+	 */
+	public static long DEFAULT_FLUSH_INTERVAL = 500;
+
+	/**
+	 * The default number of writer threads. With more than one writer, the
+	 * entries are no longer written in the order they were submitted.
+	 */
+	public static int DEFAULT_WRITER_COUNT = 1;
+
+	/**
+	 * The default overflow policy
+	 */
+	public static int DEFAULT_OVERFLOW_POLICY = OVERFLOW_DROP;
+
+	/**
+	 * Time (ms) the writers are given to write the buffered entries when the VM exits
+	 */
+	public static long SHUTDOWN_TIMEOUT = 5000;
+
+	/**
+	 * Time (ms) the entries are dropped after a session could not be opened,
+	 * before trying again
+	 */
+	public static long RETRY_INTERVAL = 30000;
+
+	private static HibernateLogWriter logWriter;
+
+	private final Entry[] ring;
+	private int head = 0;
+	private int count = 0;
+	private int inFlight = 0;
+	private boolean flushRequested = false;
+	private long unavailableUntil = 0;
+
+	private final int batchSize;
+	private final long flushInterval;
+	private final int overflowPolicy;
+
+	private long submitted = 0;
+	private long written = 0;
+	private long dropped = 0;
+	private long blocked = 0;
+	private long failed = 0;
+
+	/**
+	 * An entry of the log: the objects to insert, built by the writer thread
+	 */
+	public static abstract class Entry {
+
+		/**
+		 * Inserts the objects of this entry
+		 *
+		 * @param session Session of the writer thread, in a transaction
+		 * @throws LoggingException if the entry can't be built; it is skipped
+		 */
+		protected abstract void write(StatelessSession session) throws LoggingException;
+
+		/**
+		 * Returns whether this entry reads earlier entries from the database.
+		 * The entries of the current batch are then committed before this
+		 * one is written.
+		 *
+		 * @return true if the entry depends on earlier entries
+		 */
+		protected boolean dependsOnLog() {
+			return false;
+		}
+	}
+
+	protected HibernateLogWriter(int capacity, int batchSize, long flushInterval, int overflowPolicy) {
+		this.ring = new Entry[Math.max(1, capacity)];
+		this.batchSize = Math.max(1, batchSize);
+		this.flushInterval = Math.max(0, flushInterval);
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public static HibernateLogWriter getLogWriter() {
+		if (logWriter == null) {
+			synchronized (HibernateLogWriter.class) {
+				if (logWriter == null) {
+					logWriter = new HibernateLogWriter(DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE,
+							DEFAULT_FLUSH_INTERVAL, DEFAULT_OVERFLOW_POLICY);
+					logWriter.initialize(DEFAULT_WRITER_COUNT);
+				}
+			}
+		}
+		return logWriter;
+	}
+
+	private void initialize(int writerCount) {
+		for (int i = 0; i < Math.max(1, writerCount); i++) {
+			Thread writer = new Thread("HibernateLogWriter#" + i) {
+				public void run() {
+					writeLoop();
+				}
+			};
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		// the writers are daemons: write what is left before the VM exits
+		Runtime.getRuntime().addShutdownHook(new Thread("HibernateLogWriter shutdown") {
+			public void run() {
+				flush(SHUTDOWN_TIMEOUT);
+			}
+		});
+	}
+
+	/**
+	 * Queues an entry to be written. Returns immediately, unless the buffer
+	 * is full and the overflow policy is OVERFLOW_BLOCK.
+	 *
+	 * @param entry Entry to write
+	 * @return false if the entry was dropped
+	 */
+	public synchronized boolean submit(Entry entry) {
+		if (unavailableUntil != 0) {
+			if (System.currentTimeMillis() < unavailableUntil) {
+				dropped++;
+				return false;
+			}
+			unavailableUntil = 0; // try opening a session again
+		}
+		if (count == ring.length) {
+			if (overflowPolicy != OVERFLOW_BLOCK) {
+				dropped++;
+				return false;
+			}
+			blocked++;
+			while (count == ring.length) {
+				try {
+					wait();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					dropped++;
+					return false;
+				}
+			}
+		}
+		ring[(head + count) % ring.length] = entry;
+		count++;
+		submitted++;
+		if (count == 1 || count >= batchSize) {
+			notifyAll(); // wake a writer up for a new batch, or a full one
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the buffered entries now and waits until they are written
+	 *
+	 * @param timeout Maximum time (ms) to wait
+	 * @return true if all the entries were written in time
+	 */
+	public synchronized boolean flush(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		flushRequested = true;
+		notifyAll();
+		try {
+			while (count > 0 || inFlight > 0) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				try {
+					wait(remaining);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			flushRequested = false;
+		}
+	}
+
+	/**
+	 * Waits for a batch: batchSize entries, or the entries that arrived
+	 * within flushInterval of the first one.
+	 */
+	private synchronized List<Entry> take() throws InterruptedException {
+		while (count == 0) {
+			wait();
+		}
+		long deadline = System.currentTimeMillis() + flushInterval;
+		while (count < batchSize && !flushRequested) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				break;
+			}
+			wait(remaining);
+		}
+
+		int n = Math.min(count, batchSize);
+		List<Entry> batch = new ArrayList<Entry>(n);
+		for (int i = 0; i < n; i++) {
+			batch.add(ring[head]);
+			ring[head] = null;
+			head = (head + 1) % ring.length;
+		}
+		count -= n;
+		inFlight++;
+		notifyAll(); // room for blocked producers
+		return batch;
+	}
+
+	private synchronized void done(int writtenCount, int failedCount) {
+		written += writtenCount;
+		failed += failedCount;
+		inFlight--;
+		notifyAll(); // for flush
+	}
+
+	private void writeLoop() {
+		StatelessSession session = null;
+		while (true) {
+			List<Entry> batch;
+			try {
+				batch = take();
+			} catch (InterruptedException ie) {
+				break;
+			}
+
+			if (session == null) {
+				session = HibernateUtils.getNewStatelessSession();
+				if (session == null) {
+					// no database configured: stop buffering entries for a while
+					synchronized (this) {
+						unavailableUntil = System.currentTimeMillis() + RETRY_INTERVAL;
+						dropped += count;
+						count = 0;
+						Arrays.fill(ring, null);
+					}
+					done(0, batch.size());
+					continue;
+				}
+			}
+
+			int writtenCount = 0;
+			int failedCount = 0;
+			List<Entry> uncommitted = new ArrayList<Entry>();
+			int next = 0; // first entry not written yet
+			Transaction tx = null;
+			try {
+				tx = session.beginTransaction();
+				for (; next < batch.size(); next++) {
+					Entry entry = batch.get(next);
+					if (entry.dependsOnLog() && !uncommitted.isEmpty()) {
+						tx.commit();
+						writtenCount += uncommitted.size();
+						uncommitted.clear();
+						tx = session.beginTransaction();
+					}
+					try {
+						entry.write(session);
+						uncommitted.add(entry);
+					} catch (LoggingException e) {
+						System.out.println("HibernateLogWriter entry skipped: " + e.getMessage());
+						failedCount++;
+					}
+				}
+				tx.commit();
+				writtenCount += uncommitted.size();
+				uncommitted.clear();
+			} catch (RuntimeException e) { // HibernateException, or a bad entry
+				System.out.println("HibernateLogWriter batch failed: " + e);
+				session = discard(session, tx);
+
+				// the rest of the batch, one entry per transaction
+				List<Entry> retry = new ArrayList<Entry>(uncommitted);
+				retry.addAll(batch.subList(next, batch.size()));
+				for (Entry entry : retry) {
+					if (session == null) {
+						session = HibernateUtils.getNewStatelessSession();
+						if (session == null) {
+							failedCount++;
+							continue;
+						}
+					}
+					tx = null;
+					try {
+						tx = session.beginTransaction();
+						entry.write(session);
+						tx.commit();
+						writtenCount++;
+					} catch (LoggingException le) {
+						System.out.println("HibernateLogWriter entry skipped: " + le.getMessage());
+						failedCount++;
+						try {
+							tx.rollback();
+						} catch (HibernateException x) {
+							session = discard(session, null);
+						}
+					} catch (RuntimeException re) {
+						System.out.println("HibernateLogWriter entry failed: " + re);
+						failedCount++;
+						session = discard(session, tx);
+					}
+				}
+			} finally {
+				done(writtenCount, failedCount);
+			}
+		}
+		if (session != null) {
+			session.close();
+		}
+	}
+
+	/**
+	 * Rolls back a failed transaction and closes its session
+	 *
+	 * @return null, for the session to be opened again
+	 */
+	private StatelessSession discard(StatelessSession session, Transaction tx) {
+		try {
+			if (tx != null) tx.rollback();
+		} catch (HibernateException x) {
+			// the session is closed below
+		}
+		try {
+			session.close();
+		} catch (HibernateException x) {
+			// already broken
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of entries waiting to be written
+	 *
+	 * @return the number of buffered entries
+	 */
+	public synchronized int getQueueDepth() {
+		return count;
+	}
+
+	/**
+	 * Returns the maximum number of entries waiting to be written
+	 *
+	 * @return the capacity of the buffer
+	 */
+	public int getCapacity() {
+		return ring.length;
+	}
+
+	public synchronized long getSubmittedCount() {
+		return submitted;
+	}
+
+	public synchronized long getWrittenCount() {
+		return written;
+	}
+
+	/**
+	 * Returns the number of entries dropped because the buffer was full or
+	 * no database is configured
+	 *
+	 * @return the number of dropped entries
+	 */
+	public synchronized long getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * Returns the number of producers that had to wait for room (OVERFLOW_BLOCK)
+	 *
+	 * @return the number of blocked submissions
+	 */
+	public synchronized long getBlockedCount() {
+		return blocked;
+	}
+
+	/**
+	 * Returns the number of entries that could not be written
+	 *
+	 * @return the number of failed entries
+	 */
+	public synchronized long getFailedCount() {
+		return failed;
+	}
+
+	public String toString() {
+		return "HibernateLogWriter depth=" + getQueueDepth() + "/" + getCapacity()
+		+ " - submitted=" + getSubmittedCount() + " - written=" + getWrittenCount()
+		+ " - dropped=" + getDroppedCount() + " - blocked=" + getBlockedCount()
+		+ " - failed=" + getFailedCount();
+	}
+
+}
@@ -11,6 +11,7 @@ import java.util.List;
 
 import org.hibernate.HibernateException;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
 import org.hibernate.cfg.AnnotationConfiguration;
 import org.hibernate.classic.Session;
 import org.hibernate.type.StringType;
@@ -86,6 +87,20 @@ public class HibernateUtils {
 		}
 	}
 
+	/**
+	 * returns a new StatelessSession based on the singleton Session Factory,
+	 * for the writers of the HibernateLogWriter.
+	 * 
+	 * @return a new stateless session, or null if Hibernate is not configured
+	 */
+	public static StatelessSession getNewStatelessSession() {
+		try {
+			return getSessionFactory().openStatelessSession();
+		} catch (HibernateException e) {
+			return null;
+		}
+	}
+
 	/**
 	 *
 	 * @return a new session that will be added to a list of Sessions to close
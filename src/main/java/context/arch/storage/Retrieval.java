@@ -9,18 +9,27 @@ import context.arch.comm.DataObjects;
  * contains the set of attributes and corresponding functions to attach to each. The Conditions object 
  * contains the set of conditions the context should meet to be returned to the requesting component. 
  * 
+ * With a bucket duration, the functions are computed per time bucket (downsampling), with
+ * one result per bucket.
+ * 
  * @author Anind K. Dey
  */
 public class Retrieval {
 
 	private AttributeFunctions attributes;
 	private Conditions conditions;
+	private long bucket = 0;
 
 	/**
 	 * Tag for retrieval
 	 */
 	public static final String RETRIEVAL_CONDITIONS = "retrievalConditions";
 
+	/**
+	 * Tag for the duration of the time buckets
+	 */
+	public static final String RETRIEVAL_BUCKET = "retrievalBucket";
+
 	/**
 	 * Empty constructor 
 	 */
@@ -48,6 +57,15 @@ public class Retrieval {
 		DataObject ret = retrieval.getDataObject(RETRIEVAL_CONDITIONS);
 		attributes = new AttributeFunctions(ret);
 		conditions = new Conditions(ret);
+		DataObject bucketData = ret.getDataObject(RETRIEVAL_BUCKET);
+		if (bucketData != null) {
+			try {
+				bucket = Long.parseLong(bucketData.getValue());
+			} catch (NumberFormatException nfe) {
+				System.out.println("Retrieval constructor NumberFormat: " + nfe);
+				bucket = -1; // see isValid
+			}
+		}
 	}
 
 	/**
@@ -59,6 +77,9 @@ public class Retrieval {
 		DataObjects retrieval = new DataObjects();
 		retrieval.addElement(conditions.toDataObject());
 		retrieval.addElement(attributes.toDataObject());
+		if (bucket > 0) {
+			retrieval.addElement(new DataObject(RETRIEVAL_BUCKET, Long.toString(bucket)));
+		}
 		return new DataObject(RETRIEVAL_CONDITIONS, retrieval);
 	}
 
@@ -98,4 +119,30 @@ public class Retrieval {
 		return attributes;
 	}
 
+	/**
+	 * Sets the duration of the time buckets the functions are computed in.
+	 *
+	 * @param bucket Duration (ms) of the buckets, or 0 for no buckets
+	 */
+	public void setBucket(long bucket) {
+		this.bucket = bucket;
+	}
+
+	/**
+	 * Returns whether the retrieval can be executed: false if its bucket
+	 * duration, as decoded, is not a number or is negative
+	 */
+	public boolean isValid() {
+		return bucket >= 0;
+	}
+
+	/**
+	 * Returns the duration of the time buckets the functions are computed in.
+	 *
+	 * @return duration (ms) of the buckets, or 0 for no buckets
+	 */
+	public long getBucket() {
+		return bucket;
+	}
+
 }
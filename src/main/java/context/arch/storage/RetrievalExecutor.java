@@ -0,0 +1,619 @@
+package context.arch.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import context.arch.storage.SegmentStorage.Block;
+import context.arch.storage.SegmentStorage.BlockData;
+import context.arch.storage.SegmentStorage.Column;
+import context.arch.storage.SegmentStorage.Row;
+
+/**
+ * Executes a Retrieval on the blocks of a SegmentStorage and the rows it has not
+ * flushed yet, streaming the results to a RetrievalHandler.
+ *
+ * The Conditions (and their OR conditions) are compiled into alternatives of
+ * conditions that all have to match. A block is skipped when, for every alternative,
+ * its time range or the range of one of its columns can't match, or it lacks a
+ * column. In the blocks whose timestamps are sorted, only the rows within the
+ * time range of the conditions are read, found by binary search. Only the columns
+ * the retrieval needs are decoded, and only the matching rows are converted to
+ * Attributes.
+ *
+ * The AttributeFunctions select the mode of the retrieval:
+ * <ul>
+ * <li>no function: the matching rows, with the attributes asked for (all if none);</li>
+ * <li>FUNCTION_MAX or FUNCTION_MIN on an attribute, without buckets: the matching rows
+ *     with the maximum (minimum) value of the attribute;</li>
+ * <li>FUNCTION_COUNT, FUNCTION_SUM or FUNCTION_AVG, or a bucket duration: one result
+ *     per time bucket (one in all without buckets) with the function of each attribute
+ *     over its rows, FUNCTION_NONE giving the last value. With buckets, TIMESTAMP is
+ *     the start of the bucket.</li>
+ * </ul>
+ *
+ * @see context.arch.storage.Retrieval#setBucket(long)
+ * @see context.arch.storage.SegmentStorage
+ */
+public class RetrievalExecutor {
+
+	private final List<List<Predicate>> alternatives = new ArrayList<List<Predicate>>();
+	private final Map<String, String> functions = new LinkedHashMap<String, String>();
+	private final Set<String> names; // null for all
+	private final long bucket;
+
+	/**
+	 * A condition, with its value converted to the class of the values it is compared to
+	 * when it is given as a string
+	 */
+	private static class Predicate {
+
+		final String attribute;
+		final int compare;
+		final Object value;
+
+		private Class<?> valueClass;
+		private Object converted;
+		private Double number;
+
+		Predicate(String attribute, int compare, Object value) {
+			this.attribute = attribute;
+			this.compare = compare;
+			this.value = value;
+			if (value != null) {
+				try {
+					number = Double.valueOf(value.toString());
+				} catch (NumberFormatException nfe) {
+					number = null;
+				}
+			}
+		}
+
+		boolean matches(Comparable<?> v) {
+			if (v == null || value == null) {
+				return false;
+			}
+			if (v.getClass() != valueClass) {
+				valueClass = v.getClass();
+				// a value given as a string (decoded from a message) is parsed as the column
+				converted = valueClass.isInstance(value) || !(value instanceof String) ? value : SegmentStorage.valueOf(valueClass, (String) value);
+			}
+			return accepts(compare(v, converted == null ? value : converted));
+		}
+
+		boolean accepts(int c) {
+			switch (compare) {
+			case Storage.EQUAL:            return c == 0;
+			case Storage.LESSTHAN:         return c < 0;
+			case Storage.LESSTHANEQUAL:    return c <= 0;
+			case Storage.GREATERTHAN:      return c > 0;
+			case Storage.GREATERTHANEQUAL: return c >= 0;
+			default:                       return false;
+			}
+		}
+
+		/**
+		 * Returns false if no value in [min, max] can match
+		 */
+		boolean mayMatch(double min, double max) {
+			if (number == null) {
+				return true;
+			}
+			double v = number.doubleValue();
+			switch (compare) {
+			case Storage.EQUAL:            return min <= v && v <= max;
+			case Storage.LESSTHAN:         return min < v;
+			case Storage.LESSTHANEQUAL:    return min <= v;
+			case Storage.GREATERTHAN:      return max > v;
+			case Storage.GREATERTHANEQUAL: return max >= v;
+			default:                       return true;
+			}
+		}
+	}
+
+	/**
+	 * The rows of a block, or the rows not flushed yet
+	 */
+	private interface RowView {
+		int size();
+		long timestamp(int row);
+		Comparable<?> get(String name, int row);
+		Collection<String> names();
+	}
+
+	private static class BlockView implements RowView {
+
+		private final BlockData data;
+
+		BlockView(BlockData data) {
+			this.data = data;
+		}
+
+		public int size() {
+			return data.timestamps.length;
+		}
+
+		public long timestamp(int row) {
+			return data.timestamps[row];
+		}
+
+		public Comparable<?> get(String name, int row) {
+			Column column = data.columns.get(name);
+			return column == null ? null : column.get(row);
+		}
+
+		public Collection<String> names() {
+			return data.columns.keySet();
+		}
+	}
+
+	private static class RowsView implements RowView {
+
+		private final List<Row> rows;
+		private Row current;
+
+		RowsView(List<Row> rows) {
+			this.rows = rows;
+		}
+
+		public int size() {
+			return rows.size();
+		}
+
+		public long timestamp(int row) {
+			return rows.get(row).timestamp;
+		}
+
+		public Comparable<?> get(String name, int row) {
+			return rows.get(row).values.get(name);
+		}
+
+		public Collection<String> names() {
+			return current.values.keySet();
+		}
+
+		RowsView at(int row) {
+			current = rows.get(row);
+			return this;
+		}
+	}
+
+	/**
+	 * Receives the matching rows of a scan
+	 */
+	private interface Visitor {
+
+		/**
+		 * @return false to stop the scan
+		 */
+		boolean visit(RowView view, int row);
+
+		/**
+		 * @return true if the block can't change the result
+		 */
+		boolean skip(Block block);
+	}
+
+	/**
+	 * The functions of an attribute over the rows of a bucket
+	 */
+	private static class Aggregate {
+
+		long count = 0;
+		double sum = 0;
+		long longSum = 0;
+		boolean integral = true;
+		Comparable<?> min;
+		Comparable<?> max;
+		Comparable<?> last;
+
+		void add(Comparable<?> value) {
+			if (value == null) {
+				return;
+			}
+			count++;
+			last = value;
+			if (min == null || compare(value, min) < 0) {
+				min = value;
+			}
+			if (max == null || compare(value, max) > 0) {
+				max = value;
+			}
+			if (value instanceof Number) {
+				Number n = (Number) value;
+				sum += n.doubleValue();
+				if (value instanceof Long || value instanceof Integer || value instanceof Short) {
+					longSum += n.longValue();
+				}
+				else {
+					integral = false;
+				}
+			}
+			else {
+				integral = false;
+			}
+		}
+
+		Comparable<?> value(String function) {
+			if (AttributeFunction.FUNCTION_COUNT.equals(function)) {
+				return count;
+			}
+			if (count == 0) {
+				return null;
+			}
+			if (AttributeFunction.FUNCTION_MAX.equals(function)) {
+				return max;
+			}
+			if (AttributeFunction.FUNCTION_MIN.equals(function)) {
+				return min;
+			}
+			if (AttributeFunction.FUNCTION_SUM.equals(function)) {
+				return integral ? (Comparable<?>) longSum : (Comparable<?>) sum;
+			}
+			if (AttributeFunction.FUNCTION_AVG.equals(function)) {
+				return sum / count;
+			}
+			return last;
+		}
+	}
+
+	/**
+	 * Compares two values. The values of a column may have different classes from
+	 * block to block (a block with mixed values keeps them as strings): values of
+	 * different classes are compared by their numeric values, or else by their
+	 * string forms.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static int compare(Object a, Object b) {
+		if (a.getClass() == b.getClass() && a instanceof Comparable) {
+			return ((Comparable) a).compareTo(b);
+		}
+		Double x = number(a);
+		Double y = number(b);
+		if (x != null && y != null) {
+			return x.compareTo(y);
+		}
+		return a.toString().compareTo(b.toString());
+	}
+
+	private static Double number(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		try {
+			return Double.valueOf(value.toString());
+		} catch (NumberFormatException nfe) {
+			return null;
+		}
+	}
+
+	/**
+	 * Compiles a retrieval
+	 *
+	 * @param retrieval Retrieval object containing conditions for data retrieval
+	 */
+	public RetrievalExecutor(Retrieval retrieval) {
+		for (Conditions conditions = retrieval.getConditions(); conditions != null; conditions = conditions.getORConditions()) {
+			List<Predicate> predicates = new ArrayList<Predicate>();
+			for (Condition condition : conditions) {
+				predicates.add(new Predicate(condition.getAttribute(), condition.getCompare(), condition.getValue()));
+			}
+			alternatives.add(predicates);
+		}
+		if (alternatives.isEmpty()) {
+			alternatives.add(new ArrayList<Predicate>());
+		}
+
+		AttributeFunctions atts = retrieval.getAttributeFunctions();
+		if (atts == null || atts.isEmpty()) {
+			names = null;
+		}
+		else {
+			names = new HashSet<String>(atts.keySet());
+			for (AttributeFunction<?> att : atts.values()) {
+				String function = att.getFunction();
+				if (function != null && !function.equals(AttributeFunction.FUNCTION_NONE)) {
+					functions.put(att.getName(), function);
+				}
+			}
+		}
+		bucket = retrieval.getBucket();
+	}
+
+	/**
+	 * Executes the retrieval on blocks, then on rows not flushed yet
+	 *
+	 * @param blocks Blocks to read, in order
+	 * @param rows Rows not flushed yet, in order
+	 * @param handler Handler of the results, until it returns false
+	 * @throws IOException if the blocks can't be read
+	 */
+	public void execute(List<Block> blocks, List<Row> rows, final RetrievalHandler handler) throws IOException {
+		boolean aggregate = bucket > 0;
+		String extreme = null;
+		for (Map.Entry<String, String> entry : functions.entrySet()) {
+			String function = entry.getValue();
+			if (function.equals(AttributeFunction.FUNCTION_MAX) || function.equals(AttributeFunction.FUNCTION_MIN)) {
+				if (extreme == null) {
+					extreme = entry.getKey();
+				}
+			}
+			else {
+				aggregate = true;
+			}
+		}
+
+		if (aggregate) {
+			aggregate(blocks, rows, handler);
+			return;
+		}
+		if (extreme != null) {
+			boolean max = functions.get(extreme).equals(AttributeFunction.FUNCTION_MAX);
+			Comparable<?> value = extremeValue(blocks, rows, extreme, max);
+			if (value == null) {
+				return;
+			}
+			for (List<Predicate> predicates : alternatives) {
+				predicates.add(new Predicate(extreme, Storage.EQUAL, value));
+			}
+		}
+		scan(blocks, rows, readColumns(), new Visitor() {
+			public boolean visit(RowView view, int row) {
+				Attributes atts = new Attributes();
+				for (String name : names == null ? view.names() : names) {
+					Comparable<?> value = view.get(name, row);
+					if (value != null) {
+						atts.add(SegmentStorage.attribute(name, value));
+					}
+				}
+				return atts.isEmpty() || handler.handle(atts);
+			}
+
+			public boolean skip(Block block) {
+				return false;
+			}
+		});
+	}
+
+	/**
+	 * Returns the maximum (minimum) value of an attribute in the matching rows,
+	 * skipping the blocks whose range of the attribute can't beat it
+	 */
+	private Comparable<?> extremeValue(List<Block> blocks, List<Row> rows, final String name, final boolean max) throws IOException {
+		final Aggregate aggregate = new Aggregate();
+		scan(blocks, rows, columns(name), new Visitor() {
+			public boolean visit(RowView view, int row) {
+				aggregate.add(view.get(name, row));
+				return true;
+			}
+
+			public boolean skip(Block block) {
+				double[] range = block.ranges.get(name);
+				Comparable<?> best = max ? aggregate.max : aggregate.min;
+				if (range == null || !(best instanceof Number)) {
+					return false;
+				}
+				double value = ((Number) best).doubleValue();
+				return max ? range[1] < value : range[0] > value;
+			}
+		});
+		return max ? aggregate.max : aggregate.min;
+	}
+
+	/**
+	 * Streams the functions of the attributes, per time bucket
+	 */
+	private void aggregate(List<Block> blocks, List<Row> rows, RetrievalHandler handler) throws IOException {
+		final Set<String> aggregated = names;
+		final TreeMap<Long, Map<String, Aggregate>> buckets = new TreeMap<Long, Map<String, Aggregate>>();
+		scan(blocks, rows, readColumns(), new Visitor() {
+			public boolean visit(RowView view, int row) {
+				long key = 0;
+				if (bucket > 0) {
+					long timestamp = view.timestamp(row);
+					key = timestamp - ((timestamp % bucket) + bucket) % bucket;
+				}
+				Map<String, Aggregate> aggregates = buckets.get(key);
+				if (aggregates == null) {
+					aggregates = new LinkedHashMap<String, Aggregate>();
+					buckets.put(key, aggregates);
+				}
+				for (String name : aggregated == null ? view.names() : aggregated) {
+					Aggregate aggregate = aggregates.get(name);
+					if (aggregate == null) {
+						aggregate = new Aggregate();
+						aggregates.put(name, aggregate);
+					}
+					aggregate.add(view.get(name, row));
+				}
+				return true;
+			}
+
+			public boolean skip(Block block) {
+				return false;
+			}
+		});
+
+		for (Map.Entry<Long, Map<String, Aggregate>> entry : buckets.entrySet()) {
+			Attributes atts = new Attributes();
+			for (Map.Entry<String, Aggregate> aggregate : entry.getValue().entrySet()) {
+				Comparable<?> value = aggregate.getValue().value(functions.get(aggregate.getKey()));
+				if (value != null) {
+					atts.add(SegmentStorage.attribute(aggregate.getKey(), value));
+				}
+			}
+			if (bucket > 0 && !functions.containsKey(SegmentStorage.TIMESTAMP)) {
+				atts.add(SegmentStorage.attribute(SegmentStorage.TIMESTAMP, entry.getKey()));
+			}
+			if (!atts.isEmpty() && !handler.handle(atts)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the columns to decode: the attributes asked for and the ones of the
+	 * conditions, or null for all
+	 */
+	private Set<String> readColumns() {
+		if (names == null) {
+			return null;
+		}
+		return columns(names.toArray(new String[names.size()]));
+	}
+
+	private Set<String> columns(String... attributes) {
+		Set<String> columns = new HashSet<String>(Arrays.asList(attributes));
+		for (List<Predicate> predicates : alternatives) {
+			for (Predicate predicate : predicates) {
+				columns.add(predicate.attribute);
+			}
+		}
+		return columns;
+	}
+
+	/**
+	 * Visits the matching rows of the blocks, then of the rows not flushed yet
+	 */
+	private void scan(List<Block> blocks, List<Row> rows, Set<String> columns, Visitor visitor) throws IOException {
+		long[] range = timestampRange();
+		for (Block block : blocks) {
+			if (!block.overlaps(range[0], range[1]) || !mayMatch(block) || visitor.skip(block)) {
+				continue;
+			}
+			BlockView view = new BlockView(block.read(columns));
+			int from = 0;
+			int to = view.size();
+			if (block.isSorted()) {
+				from = lowerBound(view.data.timestamps, range[0]);
+				to = lowerBound(view.data.timestamps, range[1] == Long.MAX_VALUE ? range[1] : range[1] + 1);
+				if (range[1] == Long.MAX_VALUE) {
+					to = view.size();
+				}
+			}
+			for (int row = from; row < to; row++) {
+				if (matches(view, row) && !visitor.visit(view, row)) {
+					return;
+				}
+			}
+		}
+
+		RowsView view = new RowsView(rows);
+		for (int row = 0; row < view.size(); row++) {
+			if (matches(view.at(row), row) && !visitor.visit(view, row)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the index of the first timestamp not less than the given one
+	 */
+	private static int lowerBound(long[] timestamps, long timestamp) {
+		int low = 0;
+		int high = timestamps.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (timestamps[middle] < timestamp) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	private boolean matches(RowView view, int row) {
+		for (List<Predicate> predicates : alternatives) {
+			boolean all = true;
+			for (Predicate predicate : predicates) {
+				if (!predicate.matches(view.get(predicate.attribute, row))) {
+					all = false;
+					break;
+				}
+			}
+			if (all) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns false if no row of the block can match any alternative, from its index
+	 */
+	private boolean mayMatch(Block block) {
+		for (List<Predicate> predicates : alternatives) {
+			boolean may = true;
+			long[] range = timestampRange(predicates);
+			if (!block.overlaps(range[0], range[1])) {
+				continue;
+			}
+			for (Predicate predicate : predicates) {
+				if (!block.hasColumn(predicate.attribute)) {
+					may = false; // the condition fails on null values
+					break;
+				}
+				double[] values = block.ranges.get(predicate.attribute);
+				if (values != null && !predicate.mayMatch(values[0], values[1])) {
+					may = false;
+					break;
+				}
+			}
+			if (may) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the [from, to] interval the timestamps have to be in to match one of the
+	 * alternatives
+	 */
+	private long[] timestampRange() {
+		long[] range = { Long.MAX_VALUE, Long.MIN_VALUE };
+		for (List<Predicate> predicates : alternatives) {
+			long[] alternative = timestampRange(predicates);
+			range[0] = Math.min(range[0], alternative[0]);
+			range[1] = Math.max(range[1], alternative[1]);
+		}
+		return range;
+	}
+
+	/**
+	 * Returns the [from, to] interval the timestamps have to be in to match all the
+	 * predicates. The TIMESTAMP attribute, when stored, is the timestamp of its row.
+	 */
+	private static long[] timestampRange(List<Predicate> predicates) {
+		long[] range = { Long.MIN_VALUE, Long.MAX_VALUE };
+		for (Predicate predicate : predicates) {
+			if (!SegmentStorage.TIMESTAMP.equals(predicate.attribute) || predicate.value == null) {
+				continue;
+			}
+			long value;
+			try {
+				value = Long.parseLong(predicate.value.toString());
+			} catch (NumberFormatException nfe) {
+				continue;
+			}
+			switch (predicate.compare) {
+			case Storage.EQUAL:            range[0] = Math.max(range[0], value); range[1] = Math.min(range[1], value); break;
+			case Storage.LESSTHAN:         range[1] = Math.min(range[1], value - 1); break;
+			case Storage.LESSTHANEQUAL:    range[1] = Math.min(range[1], value); break;
+			case Storage.GREATERTHAN:      range[0] = Math.max(range[0], value + 1); break;
+			case Storage.GREATERTHANEQUAL: range[0] = Math.max(range[0], value); break;
+			}
+		}
+		return range;
+	}
+
+}
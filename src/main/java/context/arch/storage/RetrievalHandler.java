@@ -0,0 +1,18 @@
+package context.arch.storage;
+
+/**
+ * Receives the results of a retrieval one at a time, as the storage reads them.
+ *
+ * @see context.arch.storage.SegmentStorage#retrieveAttributes(Retrieval, RetrievalHandler)
+ */
+public interface RetrievalHandler {
+
+	/**
+	 * Handles a result of the retrieval
+	 *
+	 * @param atts Attributes of the result
+	 * @return false to stop the retrieval
+	 */
+	public boolean handle(Attributes atts);
+
+}
@@ -0,0 +1,849 @@
+package context.arch.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * This class allows storage and retrieval of data in String, Integer, Long, Float,
+ * Double, Short or Boolean format (other types are stored with their toString and
+ * valueOf methods), without a database server. It implements the Storage interface.
+ * It is not the default storage class: give its class name to StorageObject, or to
+ * the Widget constructor taking a storage class, to use it.
+ *
+ * The data is appended to segment files in a directory per table (DEFAULT_DIR/table/).
+ * The attributes stored since the last flush are kept in memory; flushStorage writes
+ * them as one block at the end of the current segment, and a new segment is started
+ * once the current one reaches DEFAULT_SEGMENT_SIZE bytes. A block is columnar:
+ * <ul>
+ * <li>the number of rows, the minimum and maximum timestamps, flags (FLAG_SORTED
+ *     if the timestamps don't decrease);</li>
+ * <li>the timestamp of each row: its TIMESTAMP attribute, or the time it was stored;</li>
+ * <li>for each attribute: its name, its type code, for numbers their minimum and
+ *     maximum (FLAG_STATS), and its column (a null bitmap, then the values in their
+ *     binary form; the strings are a dictionary followed by the index of each value
+ *     in it).</li>
+ * </ul>
+ * Each block is framed by BLOCK_MAGIC, its length and its CRC32, so that a block torn
+ * by a crash is dropped when the storage is opened again.
+ *
+ * The segments are memory mapped for reading. On open, the headers of the blocks are
+ * read into an index (the position, time range, columns and column ranges of each
+ * block), that the RetrievalExecutor uses to only read the blocks, the rows and the
+ * columns a retrieval needs.
+ *
+ * Structured attributes (with sub-attributes) are not stored.
+ *
+ * @see context.arch.storage.StorageObject
+ * @see context.arch.storage.RetrievalExecutor
+ */
+public class SegmentStorage implements Storage {
+
+	/**
+	 * Directory of the tables, relative to the working directory unless absolute
+	 */
+	public static String DEFAULT_DIR = "widget-storage/";
+
+	/**
+	 * Default flush type is by number of stores
+	 */
+	public static int DEFAULT_FLUSH_TYPE = DATA;
+
+	/**
+	 * Default flush condition (i.e. flush after 64 stores)
+	 */
+	public static long DEFAULT_FLUSH_CONDITION = 64;
+
+	/**
+	 * Size (bytes) after which a new segment is started
+	 */
+	public static long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * If true, each flush is synced to the disk: a flush then waits for the disk,
+	 * typically some milliseconds, and widgets flushing often should flush less
+	 * often (DEFAULT_FLUSH_CONDITION) or set it to false, at the risk of losing
+	 * the last blocks in a crash
+	 */
+	public static boolean DEFAULT_SYNC = true;
+
+	/**
+	 * Name of the attribute holding the time of the data (same as Widget.TIMESTAMP)
+	 */
+	public static final String TIMESTAMP = "timestamp";
+
+	/**
+	 * "CTKT": first bytes of a segment
+	 */
+	public static final int SEGMENT_MAGIC = 0x43544B54;
+
+	/**
+	 * "CTKB": first bytes of a block
+	 */
+	public static final int BLOCK_MAGIC = 0x43544B42;
+
+	public static final int VERSION = 1;
+
+	public static final int FLAG_SORTED = 1;
+
+	/**
+	 * Flag of the blocks whose numeric columns start with their minimum and maximum values
+	 */
+	public static final int FLAG_STATS = 2;
+
+	static final byte TYPE_OTHER = 0;
+	static final byte TYPE_STRING = 1;
+	static final byte TYPE_INTEGER = 2;
+	static final byte TYPE_LONG = 3;
+	static final byte TYPE_FLOAT = 4;
+	static final byte TYPE_DOUBLE = 5;
+	static final byte TYPE_SHORT = 6;
+	static final byte TYPE_BOOLEAN = 7;
+
+	private static final int SEGMENT_HEADER_SIZE = 8;
+	private static final int BLOCK_FRAME_SIZE = 12;
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	/**
+	 * Debug flag. Set to true to see debug messages.
+	 */
+	private static final boolean DEBUG = false;
+
+	private final File dir;
+	private final int flushType;
+	private final long flushCondition;
+	private final long segmentSize;
+	private final boolean sync;
+
+	private long lastFlush;
+	private Attributes attributes;
+
+	/* the rows stored since the last flush */
+	private List<Row> data = new ArrayList<Row>();
+
+	/* the timestamp index: the blocks of all the segments, in order */
+	private final List<Block> blocks = new ArrayList<Block>();
+	private final List<Segment> segments = new ArrayList<Segment>();
+
+	/**
+	 * A row stored, not flushed yet
+	 */
+	static class Row {
+
+		final long timestamp;
+		final Map<String, Comparable<?>> values;
+
+		Row(long timestamp, Map<String, Comparable<?>> values) {
+			this.timestamp = timestamp;
+			this.values = values;
+		}
+	}
+
+	/**
+	 * A segment file, appended to and mapped in memory for reading
+	 */
+	static class Segment {
+
+		final File file;
+		final FileChannel channel;
+		private MappedByteBuffer map;
+
+		Segment(File file) throws IOException {
+			this.file = file;
+			channel = new RandomAccessFile(file, "rw").getChannel();
+		}
+
+		/**
+		 * Returns the bytes [offset, offset+length) of the segment, remapping it if it grew
+		 */
+		synchronized ByteBuffer slice(long offset, int length) throws IOException {
+			if (map == null || map.capacity() < offset + length) {
+				map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			ByteBuffer buffer = map.duplicate();
+			buffer.position((int) offset);
+			buffer.limit((int) offset + length);
+			return buffer.slice();
+		}
+	}
+
+	/**
+	 * Entry of the index: a block of a segment
+	 */
+	static class Block {
+
+		final Segment segment;
+		final long offset; // of the body
+		final int length;
+		final int rows;
+		final long minTimestamp;
+		final long maxTimestamp;
+		final int flags;
+
+		/* the [min, max] of the numeric columns, null for the others */
+		final Map<String, double[]> ranges = new HashMap<String, double[]>();
+
+		Block(Segment segment, long offset, int length, ByteBuffer body) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			rows = body.getInt(0);
+			minTimestamp = body.getLong(4);
+			maxTimestamp = body.getLong(12);
+			flags = body.get(20);
+
+			// the directory of the columns
+			ByteBuffer in = body.duplicate();
+			in.position(21);
+			int numColumns = in.getShort();
+			in.position(in.position() + 8 * rows);
+			for (int c = 0; c < numColumns; c++) {
+				String name = readUTF(in);
+				byte type = in.get();
+				if (type == TYPE_OTHER) {
+					readUTF(in);
+				}
+				double[] range = null;
+				if ((flags & FLAG_STATS) != 0 && isNumeric(type)) {
+					range = new double[] { in.getDouble(), in.getDouble() };
+				}
+				ranges.put(name, range);
+				int dataLength = in.getInt();
+				in.position(in.position() + dataLength);
+			}
+		}
+
+		boolean isSorted() {
+			return (flags & FLAG_SORTED) != 0;
+		}
+
+		boolean hasColumn(String name) {
+			return ranges.containsKey(name);
+		}
+
+		boolean overlaps(long from, long to) {
+			return maxTimestamp >= from && minTimestamp <= to;
+		}
+
+		/**
+		 * Reads the timestamps, and the columns whose names are given (all if null)
+		 */
+		BlockData read(Set<String> names) throws IOException {
+			ByteBuffer body = segment.slice(offset, length);
+			body.position(21);
+			int numColumns = body.getShort();
+			long[] timestamps = new long[rows];
+			body.asLongBuffer().get(timestamps);
+			body.position(body.position() + 8 * rows);
+
+			Map<String, Column> columns = new HashMap<String, Column>();
+			for (int c = 0; c < numColumns; c++) {
+				String name = readUTF(body);
+				byte type = body.get();
+				String className = type == TYPE_OTHER ? readUTF(body) : null;
+				if ((flags & FLAG_STATS) != 0 && isNumeric(type)) {
+					body.position(body.position() + 16);
+				}
+				int dataLength = body.getInt();
+				if (names == null || names.contains(name)) {
+					ByteBuffer columnData = body.slice();
+					columnData.limit(dataLength);
+					columns.put(name, Column.read(name, type, className, rows, columnData));
+				}
+				body.position(body.position() + dataLength);
+			}
+			return new BlockData(timestamps, columns);
+		}
+	}
+
+	/**
+	 * The timestamps and some of the columns of a block
+	 */
+	static class BlockData {
+
+		final long[] timestamps;
+		final Map<String, Column> columns;
+
+		BlockData(long[] timestamps, Map<String, Column> columns) {
+			this.timestamps = timestamps;
+			this.columns = columns;
+		}
+	}
+
+	/**
+	 * A column of a block, decoded
+	 */
+	static class Column {
+
+		final String name;
+		final byte type;
+		final Class<?> valueClass;
+		final boolean[] nulls;
+		final Object values; // array of the primitive type, or Comparable[] for the dictionary
+
+		private final int[] indexes; // in the dictionary
+
+		private Column(String name, byte type, Class<?> valueClass, boolean[] nulls, Object values, int[] indexes) {
+			this.name = name;
+			this.type = type;
+			this.valueClass = valueClass;
+			this.nulls = nulls;
+			this.values = values;
+			this.indexes = indexes;
+		}
+
+		Comparable<?> get(int row) {
+			if (nulls[row]) {
+				return null;
+			}
+			switch (type) {
+			case TYPE_INTEGER: return ((int[]) values)[row];
+			case TYPE_LONG:    return ((long[]) values)[row];
+			case TYPE_FLOAT:   return ((float[]) values)[row];
+			case TYPE_DOUBLE:  return ((double[]) values)[row];
+			case TYPE_SHORT:   return ((short[]) values)[row];
+			case TYPE_BOOLEAN: return ((boolean[]) values)[row];
+			default:           return ((Comparable<?>[]) values)[indexes[row]];
+			}
+		}
+
+		static Column read(String name, byte type, String className, int rows, ByteBuffer in) {
+			boolean[] nulls = new boolean[rows];
+			byte[] bitmap = new byte[(rows + 7) / 8];
+			in.get(bitmap);
+			for (int i = 0; i < rows; i++) {
+				nulls[i] = (bitmap[i >> 3] & (1 << (i & 7))) != 0;
+			}
+
+			switch (type) {
+			case TYPE_INTEGER:
+				int[] ints = new int[rows];
+				in.asIntBuffer().get(ints);
+				return new Column(name, type, Integer.class, nulls, ints, null);
+			case TYPE_LONG:
+				long[] longs = new long[rows];
+				in.asLongBuffer().get(longs);
+				return new Column(name, type, Long.class, nulls, longs, null);
+			case TYPE_FLOAT:
+				float[] floats = new float[rows];
+				in.asFloatBuffer().get(floats);
+				return new Column(name, type, Float.class, nulls, floats, null);
+			case TYPE_DOUBLE:
+				double[] doubles = new double[rows];
+				in.asDoubleBuffer().get(doubles);
+				return new Column(name, type, Double.class, nulls, doubles, null);
+			case TYPE_SHORT:
+				short[] shorts = new short[rows];
+				in.asShortBuffer().get(shorts);
+				return new Column(name, type, Short.class, nulls, shorts, null);
+			case TYPE_BOOLEAN:
+				boolean[] booleans = new boolean[rows];
+				for (int i = 0; i < rows; i++) {
+					booleans[i] = in.get() != 0;
+				}
+				return new Column(name, type, Boolean.class, nulls, booleans, null);
+			default:
+				Class<?> valueClass = String.class;
+				if (type == TYPE_OTHER) {
+					try {
+						valueClass = Class.forName(className);
+					} catch (ClassNotFoundException cnfe) {
+						System.out.println("SegmentStorage Column ClassNotFound: " + cnfe + ", stored as String");
+					}
+				}
+				Comparable<?>[] dictionary = new Comparable<?>[in.getInt()];
+				for (int d = 0; d < dictionary.length; d++) {
+					String value = readUTF(in);
+					dictionary[d] = valueClass == String.class ? value : valueOf(valueClass, value);
+				}
+				int[] indexes = new int[rows];
+				in.asIntBuffer().get(indexes);
+				return new Column(name, type, valueClass, nulls, dictionary, indexes);
+			}
+		}
+	}
+
+	/**
+	 * Basic constructor that uses the default flush condition
+	 *
+	 * @param table Name of table to use
+	 * @exception IOException if the segments of the table can't be opened
+	 */
+	public SegmentStorage(String table) throws IOException {
+		this(table, new Integer(DEFAULT_FLUSH_TYPE), new Long(DEFAULT_FLUSH_CONDITION));
+	}
+
+	/**
+	 * Basic constructor that uses the given flush type and condition
+	 *
+	 * @param table Name of table to use
+	 * @param flushType Flush to segments based on TIME or DATA
+	 * @param flushCondition Condition to flush local storage to segments
+	 * @exception IOException if the segments of the table can't be opened
+	 */
+	public SegmentStorage(String table, Integer flushType, Long flushCondition) throws IOException {
+		dir = new File(DEFAULT_DIR, table.replaceAll("[^A-Za-z0-9._-]", "_"));
+		this.flushType = flushType.intValue();
+		this.flushCondition = flushCondition.longValue();
+		segmentSize = DEFAULT_SEGMENT_SIZE;
+		sync = DEFAULT_SYNC;
+		lastFlush = System.currentTimeMillis();
+
+		dir.mkdirs();
+		open();
+	}
+
+	/**
+	 * Opens the segments and reads the headers of their blocks into the index.
+	 * A damaged block ends its segment, which is truncated there. The segments
+	 * are read through their channel: they are mapped only once truncated, as
+	 * a mapped file can't be truncated on some systems.
+	 */
+	private void open() throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			throw new IOException("SegmentStorage: can't list " + dir);
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			if (!file.getName().endsWith(SEGMENT_SUFFIX)) {
+				continue;
+			}
+			Segment segment = new Segment(file);
+			long size = segment.channel.size();
+			if (size < SEGMENT_HEADER_SIZE) {
+				segment.channel.close();
+				file.delete(); // created but never written
+				continue;
+			}
+			ByteBuffer header = read(segment.channel, 0, SEGMENT_HEADER_SIZE);
+			if (header.getInt(0) != SEGMENT_MAGIC || header.getInt(4) != VERSION) {
+				System.out.println("SegmentStorage open() not a segment: " + file);
+				segment.channel.close();
+				continue;
+			}
+
+			long position = SEGMENT_HEADER_SIZE;
+			CRC32 crc = new CRC32();
+			while (position + BLOCK_FRAME_SIZE <= size) {
+				ByteBuffer frame = read(segment.channel, position, BLOCK_FRAME_SIZE);
+				int magic = frame.getInt(0);
+				int length = frame.getInt(4);
+				int checksum = frame.getInt(8);
+				long bodyOffset = position + BLOCK_FRAME_SIZE;
+				if (magic != BLOCK_MAGIC || length < 23 || bodyOffset + length > size) {
+					break;
+				}
+				ByteBuffer body = read(segment.channel, bodyOffset, length);
+				crc.reset();
+				crc.update(body.array());
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+				blocks.add(new Block(segment, bodyOffset, length, body));
+				position = bodyOffset + length;
+			}
+			if (position < size) {
+				System.out.println("SegmentStorage open() damaged block at " + position + " in " + file + ": truncated");
+				segment.channel.truncate(position);
+			}
+			segments.add(segment);
+		}
+		if (DEBUG) {
+			System.out.println("SegmentStorage opened " + dir + ": " + segments.size() + " segments, " + blocks.size() + " blocks");
+		}
+	}
+
+	/**
+	 * Reads length bytes of the channel from the position
+	 */
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("SegmentStorage: end of file at " + (position + buffer.position()));
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Returns the segment to append to, starting a new one if needed
+	 */
+	private Segment activeSegment() throws IOException {
+		Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (segment == null || segment.channel.size() >= segmentSize) {
+			int number = segments.isEmpty() ? 1 : segmentNumber(segment.file) + 1;
+			File file = new File(dir, String.format("segment-%08d%s", number, SEGMENT_SUFFIX));
+			segment = new Segment(file);
+			ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+			header.putInt(SEGMENT_MAGIC).putInt(VERSION).flip();
+			segment.channel.write(header, 0);
+			segments.add(segment);
+		}
+		return segment;
+	}
+
+	private static int segmentNumber(File file) {
+		String name = file.getName();
+		try {
+			return Integer.parseInt(name.substring("segment-".length(), name.length() - SEGMENT_SUFFIX.length()));
+		} catch (RuntimeException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * This method stores the given Attributes object
+	 *
+	 * @param atts Attributes to store
+	 */
+	public synchronized void store(Attributes atts) {
+		Map<String, Comparable<?>> values = new LinkedHashMap<String, Comparable<?>>();
+		for (Attribute<?> att : atts.values()) {
+			if (att instanceof AttributeNameValue<?> && !att.hasSubAttributes()) {
+				Comparable<?> value = ((AttributeNameValue<?>) att).getValue();
+				if (value != null) {
+					values.put(att.getName(), value);
+				}
+			}
+		}
+		Comparable<?> timestamp = values.get(TIMESTAMP);
+		data.add(new Row(timestamp instanceof Number ? ((Number) timestamp).longValue() : System.currentTimeMillis(), values));
+	}
+
+	/**
+	 * This method returns the rows that match the given conditions in the Retrieval
+	 * object. It takes in the accessorId of the "user" requesting the information,
+	 * but does nothing with it currently.
+	 *
+	 * @param accessorId Id of the "user" trying to retrieve the data
+	 * @param retrieval Retrieval object containing conditions for data retrieval
+	 * @return RetrievalResults containing Attributes objects that match the given conditions
+	 */
+	public RetrievalResults retrieveAttributes(String accessorId, Retrieval retrieval) {
+		return retrieveAttributes(retrieval);
+	}
+
+	/**
+	 * This method returns the rows that match the given conditions in the Retrieval
+	 * object, with the attributes it asks for (all of them if none is given), or
+	 * the values of its functions.
+	 *
+	 * @param retrieval Retrieval object containing conditions for data retrieval
+	 * @return RetrievalResults containing Attributes objects that match the given conditions,
+	 *         or null if they can't be read, or if the retrieval is not valid
+	 * @see context.arch.storage.RetrievalExecutor
+	 */
+	public RetrievalResults retrieveAttributes(Retrieval retrieval) {
+		if (!retrieval.isValid()) {
+			return null;
+		}
+		final RetrievalResults results = new RetrievalResults();
+		try {
+			retrieveAttributes(retrieval, new RetrievalHandler() {
+				public boolean handle(Attributes atts) {
+					results.addAttributes(atts);
+					return true;
+				}
+			});
+		} catch (IOException ioe) {
+			System.out.println("SegmentStorage retrieveAttributes IO: " + ioe);
+			return null;
+		} catch (RuntimeException re) {
+			System.out.println("SegmentStorage retrieveAttributes invalid data: " + re);
+			return null;
+		}
+		return results;
+	}
+
+	/**
+	 * Streams the results of a retrieval to a handler, as they are read. The
+	 * storage is not locked while the blocks are read: the data stored meanwhile
+	 * is not retrieved.
+	 *
+	 * @param retrieval Retrieval object containing conditions for data retrieval
+	 * @param handler Handler of the results, until it returns false
+	 * @throws IOException if the segments can't be read
+	 */
+	public void retrieveAttributes(Retrieval retrieval, RetrievalHandler handler) throws IOException {
+		List<Block> blocksToRead;
+		List<Row> rowsToRead;
+		synchronized (this) {
+			blocksToRead = new ArrayList<Block>(blocks);
+			rowsToRead = new ArrayList<Row>(data);
+		}
+		new RetrievalExecutor(retrieval).execute(blocksToRead, rowsToRead, handler);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static AttributeNameValue<?> attribute(String name, Comparable<?> value) {
+		return AttributeNameValue.instance(name, (Class) value.getClass(), (Comparable) value);
+	}
+
+	/**
+	 * Parses a value of the given class, or returns null if it can't
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static Comparable<?> valueOf(Class<?> type, String value) {
+		try {
+			return (Comparable<?>) type.getMethod(Attribute.METHOD_VALUE_OF, String.class).invoke(null, value);
+		} catch (Exception e) {
+			if (type == String.class) {
+				return value;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Checks condition under which local data is written to the segments.
+	 */
+	public synchronized boolean checkFlushCondition() {
+		if (flushType == TIME) {
+			return lastFlush + flushCondition <= System.currentTimeMillis();
+		}
+		else if (flushType == DATA) {
+			return flushCondition <= data.size();
+		}
+		return false;
+	}
+
+	/**
+	 * Writes the local data as a block at the end of the current segment
+	 */
+	public synchronized void flushStorage() {
+		if (data.isEmpty()) {
+			lastFlush = System.currentTimeMillis();
+			return;
+		}
+		try {
+			byte[] body = encodeBlock(data);
+			CRC32 crc = new CRC32();
+			crc.update(body);
+
+			Segment segment = activeSegment();
+			long position = segment.channel.size();
+			ByteBuffer frame = ByteBuffer.allocate(BLOCK_FRAME_SIZE + body.length);
+			frame.putInt(BLOCK_MAGIC).putInt(body.length).putInt((int) crc.getValue()).put(body).flip();
+			while (frame.hasRemaining()) {
+				segment.channel.write(frame, position + frame.position());
+			}
+			if (sync) {
+				segment.channel.force(false);
+			}
+			blocks.add(new Block(segment, position + BLOCK_FRAME_SIZE, body.length, ByteBuffer.wrap(body)));
+
+			if (DEBUG) {
+				System.out.println("SegmentStorage flushed " + data.size() + " rows to " + segment.file);
+			}
+			data = new ArrayList<Row>();
+			lastFlush = System.currentTimeMillis();
+		} catch (IOException ioe) {
+			System.out.println("SegmentStorage flushStorage IO: " + ioe + ", dir=" + dir);
+		}
+	}
+
+	/**
+	 * Encodes rows as a block body
+	 */
+	static byte[] encodeBlock(List<Row> rows) throws IOException {
+		int n = rows.size();
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		boolean sorted = true;
+		Map<String, Byte> types = new LinkedHashMap<String, Byte>();
+		Map<String, Class<?>> classes = new HashMap<String, Class<?>>();
+		for (int i = 0; i < n; i++) {
+			Row row = rows.get(i);
+			min = Math.min(min, row.timestamp);
+			max = Math.max(max, row.timestamp);
+			sorted &= i == 0 || rows.get(i - 1).timestamp <= row.timestamp;
+			for (Map.Entry<String, Comparable<?>> entry : row.values.entrySet()) {
+				Class<?> valueClass = entry.getValue().getClass();
+				Class<?> known = classes.get(entry.getKey());
+				if (known == null) {
+					classes.put(entry.getKey(), valueClass);
+					types.put(entry.getKey(), typeOf(valueClass));
+				}
+				else if (known != valueClass) {
+					types.put(entry.getKey(), TYPE_STRING); // mixed types: kept as strings
+				}
+			}
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(n);
+		out.writeLong(min);
+		out.writeLong(max);
+		out.writeByte((sorted ? FLAG_SORTED : 0) | FLAG_STATS);
+		out.writeShort(types.size());
+		for (Row row : rows) {
+			out.writeLong(row.timestamp);
+		}
+		for (Map.Entry<String, Byte> entry : types.entrySet()) {
+			String name = entry.getKey();
+			byte type = entry.getValue();
+			out.writeUTF(name);
+			out.writeByte(type);
+			if (type == TYPE_OTHER) {
+				out.writeUTF(classes.get(name).getName());
+			}
+			if (isNumeric(type)) {
+				double low = Double.POSITIVE_INFINITY;
+				double high = Double.NEGATIVE_INFINITY;
+				for (Row row : rows) {
+					Comparable<?> value = row.values.get(name);
+					if (value != null) {
+						double v = ((Number) value).doubleValue();
+						low = Math.min(low, v);
+						high = Math.max(high, v);
+					}
+				}
+				out.writeDouble(low);
+				out.writeDouble(high);
+			}
+			byte[] column = encodeColumn(name, type, rows);
+			out.writeInt(column.length);
+			out.write(column);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static byte[] encodeColumn(String name, byte type, List<Row> rows) throws IOException {
+		int n = rows.size();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		byte[] bitmap = new byte[(n + 7) / 8];
+		for (int i = 0; i < n; i++) {
+			if (rows.get(i).values.get(name) == null) {
+				bitmap[i >> 3] |= 1 << (i & 7);
+			}
+		}
+		out.write(bitmap);
+
+		if (type == TYPE_STRING || type == TYPE_OTHER) {
+			Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+			int[] indexes = new int[n];
+			for (int i = 0; i < n; i++) {
+				Comparable<?> value = rows.get(i).values.get(name);
+				if (value == null) {
+					continue;
+				}
+				String string = value.toString();
+				Integer index = dictionary.get(string);
+				if (index == null) {
+					index = dictionary.size();
+					dictionary.put(string, index);
+				}
+				indexes[i] = index;
+			}
+			out.writeInt(dictionary.size());
+			for (String string : dictionary.keySet()) {
+				out.writeUTF(string);
+			}
+			for (int index : indexes) {
+				out.writeInt(index);
+			}
+		}
+		else {
+			for (Row row : rows) {
+				Comparable<?> value = row.values.get(name);
+				switch (type) {
+				case TYPE_INTEGER: out.writeInt(value == null ? 0 : (Integer) value); break;
+				case TYPE_LONG:    out.writeLong(value == null ? 0 : (Long) value); break;
+				case TYPE_FLOAT:   out.writeFloat(value == null ? 0 : (Float) value); break;
+				case TYPE_DOUBLE:  out.writeDouble(value == null ? 0 : (Double) value); break;
+				case TYPE_SHORT:   out.writeShort(value == null ? 0 : (Short) value); break;
+				case TYPE_BOOLEAN: out.writeByte(value != null && (Boolean) value ? 1 : 0); break;
+				}
+			}
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	static boolean isNumeric(byte type) {
+		return type >= TYPE_INTEGER && type <= TYPE_SHORT;
+	}
+
+	static byte typeOf(Class<?> valueClass) {
+		if (valueClass == String.class)  { return TYPE_STRING; }
+		if (valueClass == Integer.class) { return TYPE_INTEGER; }
+		if (valueClass == Long.class)    { return TYPE_LONG; }
+		if (valueClass == Float.class)   { return TYPE_FLOAT; }
+		if (valueClass == Double.class)  { return TYPE_DOUBLE; }
+		if (valueClass == Short.class)   { return TYPE_SHORT; }
+		if (valueClass == Boolean.class) { return TYPE_BOOLEAN; }
+		return TYPE_OTHER;
+	}
+
+	/**
+	 * Reads a string written by DataOutput.writeUTF
+	 */
+	static String readUTF(ByteBuffer in) {
+		int length = in.getShort() & 0xFFFF;
+		byte[] utf = new byte[2 + length];
+		utf[0] = (byte) (length >> 8);
+		utf[1] = (byte) length;
+		in.get(utf, 2, length);
+		try {
+			return new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+		} catch (IOException ioe) {
+			throw new IllegalStateException("SegmentStorage: invalid string: " + ioe);
+		}
+	}
+
+	/**
+	 * This method sets the attributes to use for storage.
+	 * The columns are typed by the values stored, so they are only kept for reference.
+	 *
+	 * @param attributes Attributes containing attribute info for this object
+	 */
+	public synchronized void setAttributes(Attributes attributes) {
+		this.attributes = attributes;
+	}
+
+	/**
+	 * Returns the attributes set for storage
+	 */
+	public synchronized Attributes getAttributes() {
+		return attributes;
+	}
+
+	/**
+	 * Writes the local data and closes the segments
+	 */
+	public synchronized void close() {
+		flushStorage();
+		for (Segment segment : segments) {
+			try {
+				segment.channel.close();
+			} catch (IOException ioe) {
+				System.out.println("SegmentStorage close IO: " + ioe);
+			}
+		}
+		segments.clear();
+		blocks.clear();
+	}
+
+}
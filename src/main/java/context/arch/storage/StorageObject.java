@@ -16,7 +16,8 @@ import context.arch.comm.DataObject;
  * implements the Storage interface.
  * 
  * This expects to connect to a database, and grabs connection configuration from widgets-storage-db.properties
- * which should be in the classpath.
+ * which should be in the classpath. context.arch.storage.SegmentStorage keeps the data in local
+ * files instead, without a database server.
  * 
  * TODO: this seems to be some delegate class; it should be renamed. What is its true relation to Storage?
  * 
@@ -20,6 +20,9 @@ package context.arch.storage;
  * TODO: database design needs to be normalized to be more scalable
  * TODO: actually needs a severe overhaul --Brian
  * 
+ * SegmentStorage stores the data in local files instead of a database.
+ * 
+ * @see context.arch.storage.SegmentStorage
  * @author Anind Dey
  * @author Brian Y. Lim
  */
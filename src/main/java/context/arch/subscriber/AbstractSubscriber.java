@@ -80,6 +80,17 @@ public abstract class AbstractSubscriber {
 	 */
 	public static final String SUBSCRIPTION_CALLBACK_REPLY = "subscriptionCallbackReply";
 
+	/**
+	 * Tag to indicate message contains several subscription callbacks for the
+	 * same component
+	 */
+	public static final String SUBSCRIPTION_CALLBACKS = "subscriptionCallbacks";
+
+	/**
+	 * Tag to indicate message is the reply to a SUBSCRIPTION_CALLBACKS message
+	 */
+	public static final String SUBSCRIPTION_CALLBACKS_REPLY = "subscriptionCallbacksReply";
+
 	/**
 	 * Tag for subscriber type
 	 */
@@ -0,0 +1,196 @@
+package context.arch.subscriber;
+
+import context.arch.comm.DataObject;
+import context.arch.comm.DataObjects;
+import context.arch.discoverer.ComponentDescription;
+import context.arch.discoverer.Discoverer;
+import context.arch.storage.Attribute;
+import context.arch.storage.AttributeNameValue;
+import context.arch.storage.Attributes;
+
+/**
+ * This class encodes the callbacks of a widget to a subscriber as deltas:
+ * only the attributes whose value changed since the previous callback are
+ * sent, with a sequence number. The first callback, and the first one after
+ * a resync, are full.
+ *
+ * A subscriber asks for delta callbacks in its subscription (DELTA_CALLBACKS).
+ * On its side, it patches the state it keeps with each delta (patch). If a
+ * sequence number is missing, it can't patch its state: it asks the widget
+ * for a full callback with a RESYNC_SUBSCRIBER request.
+ *
+ * Widgets that don't know delta callbacks ignore the request and send full
+ * callbacks, without sequence number.
+ *
+ * @see context.arch.subscriber.Subscriber#setDeltaCallbacks(boolean)
+ * @see context.arch.widget.Widget#resyncSubscriber(DataObject, String)
+ */
+public class CallbackDelta {
+
+	/**
+	 * Tag in a subscription asking for delta callbacks
+	 */
+	public static final String DELTA_CALLBACKS = "deltaCallbacks";
+
+	/**
+	 * Tag for the sequence number of a callback
+	 */
+	public static final String CALLBACK_SEQUENCE = "callbackSequence";
+
+	/**
+	 * Tag set to true in a callback containing only the attributes changed
+	 */
+	public static final String CALLBACK_DELTA = "callbackDelta";
+
+	/**
+	 * Request from a subscriber for a full callback
+	 */
+	public static final String RESYNC_SUBSCRIBER = "resyncSubscriber";
+
+	/**
+	 * Reply to RESYNC_SUBSCRIBER
+	 */
+	public static final String RESYNC_SUBSCRIBER_REPLY = "resyncSubscriberReply";
+
+	private long sequence = 0;
+	private boolean full = true;
+	private Attributes lastNonConstant = new Attributes();
+	private Attributes lastConstant = new Attributes();
+
+	private long fullCount = 0;
+	private long deltaCount = 0;
+
+	/**
+	 * Builds the callback data of an update for the subscriber: the
+	 * attributes changed since the previous callback, or all of them if the
+	 * subscriber needs a full callback.
+	 *
+	 * @param widgetId Id of the widget
+	 * @param nonConstantAtts Non constant attributes of the callback
+	 * @param constantAtts Constant attributes of the callback
+	 * @return the <REGISTERER> DataObject to send
+	 */
+	public synchronized DataObject encode(String widgetId, Attributes nonConstantAtts, Attributes constantAtts) {
+		boolean delta = !full;
+		Attributes nonConstant = delta ? changed(lastNonConstant, nonConstantAtts) : nonConstantAtts;
+		Attributes constant = delta ? changed(lastConstant, constantAtts) : constantAtts;
+		lastNonConstant.putAll(nonConstantAtts);
+		lastConstant.putAll(constantAtts);
+		full = false;
+		sequence++;
+		if (delta) { deltaCount++; } else { fullCount++; }
+
+		DataObjects cdv = new DataObjects();
+		cdv.addElement(new DataObject(Discoverer.ID, widgetId));
+
+		DataObjects v = new DataObjects();
+		v.addElement(constant.toDataObject());
+		cdv.addElement(new DataObject(Discoverer.CONSTANT_ATTRIBUTE_NAME_VALUES, v));
+
+		v = new DataObjects();
+		v.addElement(nonConstant.toDataObject());
+		cdv.addElement(new DataObject(Discoverer.NON_CONSTANT_ATTRIBUTE_NAME_VALUES, v));
+
+		cdv.addElement(new DataObject(CALLBACK_SEQUENCE, Long.toString(sequence)));
+		cdv.addElement(new DataObject(CALLBACK_DELTA, Boolean.toString(delta)));
+
+		return new DataObject(Discoverer.REGISTERER, cdv);
+	}
+
+	/**
+	 * Makes the next callback full
+	 */
+	public synchronized void resync() {
+		full = true;
+	}
+
+	private static Attributes changed(Attributes last, Attributes current) {
+		Attributes changed = new Attributes();
+		for (Attribute<?> att : current.values()) {
+			if (!sameValue(last.get(att.getName()), att)) {
+				changed.put(att.getName(), att);
+			}
+		}
+		return changed;
+	}
+
+	private static boolean sameValue(Attribute<?> a1, Attribute<?> a2) {
+		if (a1 == null || a1.getClass() != a2.getClass() || a1.getType() != a2.getType()) {
+			return false;
+		}
+		if (!(a1 instanceof AttributeNameValue<?>)) {
+			return true;
+		}
+		Object v1 = ((AttributeNameValue<?>) a1).getValue();
+		Object v2 = ((AttributeNameValue<?>) a2).getValue();
+		return v1 == null ? v2 == null : v1.equals(v2);
+	}
+
+	/**
+	 * Returns the sequence number of a callback
+	 *
+	 * @param data <REGISTERER> DataObject of the callback
+	 * @return the sequence number, or -1 if the widget doesn't number its callbacks
+	 */
+	public static long getSequence(DataObject data) {
+		DataObject seq = data.getDataObject(CALLBACK_SEQUENCE);
+		if (seq == null || seq.getValue() == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(seq.getValue());
+		} catch (NumberFormatException nfe) {
+			System.out.println("CallbackDelta invalid sequence: " + nfe);
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns whether a callback only contains the attributes changed
+	 *
+	 * @param data <REGISTERER> DataObject of the callback
+	 * @return true for a delta callback
+	 */
+	public static boolean isDelta(DataObject data) {
+		DataObject delta = data.getDataObject(CALLBACK_DELTA);
+		return delta != null && Boolean.parseBoolean(delta.getValue());
+	}
+
+	/**
+	 * Applies a delta callback to the state kept by the subscriber
+	 *
+	 * @param state State before the callback
+	 * @param delta Component description decoded from the delta callback
+	 * @return a new state, with the attributes of the delta replacing those of the state
+	 */
+	public static ComponentDescription patch(ComponentDescription state, ComponentDescription delta) {
+		ComponentDescription patched = new ComponentDescription();
+		patched.id = state.id;
+		patched.classname = state.classname;
+		patched.hostname = state.hostname;
+		patched.hostaddress = state.hostaddress;
+		patched.port = state.port;
+		patched.type = state.type;
+		patched.version = state.version;
+
+		Attributes constant = new Attributes(state.getConstantAttributes());
+		for (AttributeNameValue<?> att : delta.getConstantAttributes()) {
+			constant.put(att.getName(), att);
+		}
+		patched.setConstantAttributes(constant);
+
+		Attributes nonConstant = new Attributes(state.getNonConstantAttributes());
+		nonConstant.putAll(delta.getNonConstantAttributes());
+		patched.setNonConstantAttributes(nonConstant);
+		return patched;
+	}
+
+	public synchronized long getSequence() {
+		return sequence;
+	}
+
+	public synchronized String toString() {
+		return "CallbackDelta sequence=" + sequence + " - full=" + fullCount + " - delta=" + deltaCount;
+	}
+
+}
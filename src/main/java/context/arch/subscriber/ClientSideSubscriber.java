@@ -34,6 +34,16 @@ public class ClientSideSubscriber extends AbstractSubscriber {
 	private AbstractQueryItem<?,?> condition;
 	private Attributes attributes;
 
+	/**
+	 * How fast the updates may be sent to this subscriber, null to send every update
+	 */
+	private UpdatePolicy updatePolicy;
+
+	/**
+	 * Whether the callbacks only carry the attributes changed since the previous one
+	 */
+	private boolean deltaCallbacks = false;
+
 	/** Creates new ClientSideSubscriber
 	 *
 	 * @param id ID of the component
@@ -91,6 +101,9 @@ public class ClientSideSubscriber extends AbstractSubscriber {
 			condition = AbstractQueryItem.fromDataObject((DataObject)aqi.getChildren().firstElement());
 		}
 		attributes = Attributes.fromDataObject(sub);
+		updatePolicy = UpdatePolicy.fromDataObject(sub);
+		DataObject delta = sub.getDataObject(CallbackDelta.DELTA_CALLBACKS);
+		deltaCallbacks = delta != null && Boolean.parseBoolean(delta.getValue());
 	}
 
 	/**
@@ -106,6 +119,12 @@ public class ClientSideSubscriber extends AbstractSubscriber {
 			v.addElement(new DataObject(AbstractQueryItem.ABSTRACT_QUERY_ITEM, c));
 		}
 		if (attributes != null) v.addElement(attributes.toDataObject());
+		if (updatePolicy != null) {
+			v.addElement(updatePolicy.toDataObject());
+		}
+		if (deltaCallbacks) {
+			v.addElement(new DataObject(CallbackDelta.DELTA_CALLBACKS, Boolean.toString(deltaCallbacks)));
+		}
 		return new DataObject(SUBSCRIBER, v);
 	}
 
@@ -146,6 +165,48 @@ public class ClientSideSubscriber extends AbstractSubscriber {
 		return attributes;
 	}
 
+	/**
+	 * Sets how fast the updates may be sent to the subscriber: the widget
+	 * coalesces the updates coming faster than the minimum interval and drops
+	 * the ones within the deadbands
+	 *
+	 * @param updatePolicy Update policy, null to receive every update
+	 * @see context.arch.widget.UpdateCoalescer
+	 */
+	public void setUpdatePolicy(UpdatePolicy updatePolicy) {
+		this.updatePolicy = updatePolicy;
+	}
+
+	/**
+	 * Returns how fast the updates may be sent to the subscriber
+	 *
+	 * @return the update policy, or null if every update is sent
+	 */
+	public UpdatePolicy getUpdatePolicy() {
+		return updatePolicy;
+	}
+
+	/**
+	 * Sets whether the callbacks only carry the attributes changed since the
+	 * previous callback, with a sequence number. Widgets not supporting it
+	 * send full callbacks.
+	 *
+	 * @param deltaCallbacks true to receive delta callbacks
+	 * @see CallbackDelta
+	 */
+	public void setDeltaCallbacks(boolean deltaCallbacks) {
+		this.deltaCallbacks = deltaCallbacks;
+	}
+
+	/**
+	 * Returns whether the callbacks only carry the attributes changed
+	 *
+	 * @return true for delta callbacks
+	 */
+	public boolean isDeltaCallbacks() {
+		return deltaCallbacks;
+	}
+
 
 	/**
 	 *
@@ -155,6 +216,7 @@ public class ClientSideSubscriber extends AbstractSubscriber {
 		sb.append (super.toString ());
 		if (condition != null) sb.append (" condition " + condition.toString());
 		if (attributes != null) sb.append (" attributes " + attributes.toString ());
+		if (updatePolicy != null) sb.append (" " + updatePolicy.toString ());
 		return sb.toString ();
 	}
 
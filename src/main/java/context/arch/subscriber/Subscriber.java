@@ -22,6 +22,21 @@ public class Subscriber extends AbstractSubscriber {
 	private AbstractQueryItem<?,?> condition;
 	private Attributes attributes;
 
+	/**
+	 * How fast the updates may be sent to this subscriber, null to send every update
+	 */
+	private UpdatePolicy updatePolicy;
+
+	/**
+	 * Whether the callbacks only carry the attributes changed since the previous one
+	 */
+	private boolean deltaCallbacks = false;
+
+	/**
+	 * Attributes last sent and sequence number of the delta callbacks, widget side
+	 */
+	private transient CallbackDelta callbackDelta;
+
 	/**
 	 * Basic constructor that creates a subscriber object.
 	 *
@@ -77,6 +92,9 @@ public class Subscriber extends AbstractSubscriber {
 			condition = AbstractQueryItem.fromDataObject((DataObject)aqi.getChildren().firstElement());
 		}
 		attributes = Attributes.fromDataObject(sub);
+		updatePolicy = UpdatePolicy.fromDataObject(sub);
+		DataObject delta = sub.getDataObject(CallbackDelta.DELTA_CALLBACKS);
+		deltaCallbacks = delta != null && Boolean.parseBoolean(delta.getValue());
 	}
 
 	/**
@@ -92,6 +110,12 @@ public class Subscriber extends AbstractSubscriber {
 			v.addElement(new DataObject(AbstractQueryItem.ABSTRACT_QUERY_ITEM, c));
 		}
 		v.addElement(attributes.toDataObject());
+		if (updatePolicy != null) {
+			v.addElement(updatePolicy.toDataObject());
+		}
+		if (deltaCallbacks) {
+			v.addElement(new DataObject(CallbackDelta.DELTA_CALLBACKS, Boolean.toString(deltaCallbacks)));
+		}
 		return new DataObject(SUBSCRIBER, v);
 	}
 
@@ -132,6 +156,60 @@ public class Subscriber extends AbstractSubscriber {
 		return attributes;
 	}
 
+	/**
+	 * Sets how fast the updates may be sent to the subscriber: the widget
+	 * coalesces the updates coming faster than the minimum interval and drops
+	 * the ones within the deadbands
+	 *
+	 * @param updatePolicy Update policy, null to receive every update
+	 * @see context.arch.widget.UpdateCoalescer
+	 */
+	public void setUpdatePolicy(UpdatePolicy updatePolicy) {
+		this.updatePolicy = updatePolicy;
+	}
+
+	/**
+	 * Returns how fast the updates may be sent to the subscriber
+	 *
+	 * @return the update policy, or null if every update is sent
+	 */
+	public UpdatePolicy getUpdatePolicy() {
+		return updatePolicy;
+	}
+
+	/**
+	 * Sets whether the callbacks only carry the attributes changed since the
+	 * previous callback, with a sequence number. Widgets not supporting it
+	 * send full callbacks.
+	 *
+	 * @param deltaCallbacks true to receive delta callbacks
+	 * @see CallbackDelta
+	 */
+	public void setDeltaCallbacks(boolean deltaCallbacks) {
+		this.deltaCallbacks = deltaCallbacks;
+	}
+
+	/**
+	 * Returns whether the callbacks only carry the attributes changed
+	 *
+	 * @return true for delta callbacks
+	 */
+	public boolean isDeltaCallbacks() {
+		return deltaCallbacks;
+	}
+
+	/**
+	 * Returns the state of the delta callbacks sent to this subscriber
+	 *
+	 * @return the CallbackDelta, created on the first call
+	 */
+	public synchronized CallbackDelta getCallbackDelta() {
+		if (callbackDelta == null) {
+			callbackDelta = new CallbackDelta();
+		}
+		return callbackDelta;
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (!(o instanceof Subscriber)) { return false; }
@@ -1,5 +1,6 @@
 package context.arch.subscriber;
 
+import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
 
 import context.arch.comm.DataObject;
@@ -17,11 +18,11 @@ import context.arch.widget.Widget;
  *
  * Agathe: modify restart subscription
  * 
- * TODO: consider using MySQL for persistence of subscription instead of a local flat file --Brian
- * TODO: anyway, the storage files are not strict XML because they are delimited with ENTRY_STRING
+ * The subscribers are kept in a SubscriptionJournal, if USE_JOURNAL is true.
  *
  * @author Anind, Agathe, Brian Y. Lim
  * @see context.arch.subscriber.Subscriber
+ * @see context.arch.subscriber.SubscriptionJournal
  */
 public class Subscribers extends ConcurrentHashMap<String, AbstractSubscriber> {
 
@@ -31,23 +32,20 @@ public class Subscribers extends ConcurrentHashMap<String, AbstractSubscriber> {
 	
 	/** Debug flag */
 	public static boolean DEBUG = false;
+
 	/**
-	 * Tags written in the log file
+	 * If true, the subscribers are journaled and restored when the component restarts.
+	 * The journals share one writer thread.
 	 */
-	@SuppressWarnings("unused")
-	private final static String ENTRY_STRING = "entry:";
+	public static boolean USE_JOURNAL = true;
 
 	/*
-	 * To be combined like "addSubR:", "updateSubD", etc
+	 * Actions journaled
 	 * See #writeLog
 	 */
 	private final static String ADD = "add";
 	private final static String REMOVE = "remove";
 	private final static String UPDATE = "update";
-	@SuppressWarnings("unused")
-	private final static String SUB_REG = "SubR";
-	@SuppressWarnings("unused")
-	private final static String SUB_DISCO = "SubD";
 
 	/**
 	 * Tag used in messages
@@ -58,9 +56,11 @@ public class Subscribers extends ConcurrentHashMap<String, AbstractSubscriber> {
 	@SuppressWarnings("unused")
 	private MessageHandler msgHandler;
 	/** */
-	@SuppressWarnings("unused")
 	private String filename;
 
+	/** The journal of the subscribers, if USE_JOURNAL */
+	private transient SubscriptionJournal journal;
+
 	/** The id of the component */
 	private String baseObjectId;
 
@@ -75,7 +75,7 @@ public class Subscribers extends ConcurrentHashMap<String, AbstractSubscriber> {
 		baseObjectId = id;
 		
 		// The filename for the log file with directory
-		filename = WIDGET_SUBSCRIPTIONS_DIR + id + "-subscription.xml";
+		filename = WIDGET_SUBSCRIPTIONS_DIR + id + "-subscription.journal";
 		
 		restartSubscriptions();
 	}
@@ -224,95 +224,40 @@ public class Subscribers extends ConcurrentHashMap<String, AbstractSubscriber> {
 	}
 
 	/**
-	 * This method reads in the subscription log, restarts all the subscriptions
-	 * that were valid at the time of this object being shut down and writes
-	 * out the valid subscriptions to the log.  It deletes the old log and
-	 * creates a new one, so that it can clear out entries in the log for
-	 * corresponding unsubscribes and subscribes.
-	 * 
-	 * TODO: prone to corruption during prototyping; currently disabled
+	 * This method reads in the subscription journal and restarts all the
+	 * subscriptions that were valid at the time of this object being shut down,
+	 * with their subscription ids. The journal is compacted at the same time.
 	 */
 	private void restartSubscriptions() {
-//		String log = FileUtil.read(filename);
-//		
-//		/*
-//		 * Format of log:
-//		 * Text delimited by ENTRY_STRING ,
-//		 * followed by a command (e.g. ADD_SUB_REG, REMOVE_SUB_REG),
-//		 * followed by XML containing info about a subscriber
-//		 */
-//		String[] entries = log.split(ENTRY_STRING);
-//		
-//		for (String entry : entries) {			
-//			try { // Test the message code : ADD, REMOVE, UPDATE and creates a Subscriber
-//
-//				int index = entry.indexOf(">"); // to skip "<?xml version="1.0"?>"
-//				String data = entry.substring(index + 1).trim();
-//				if (data.length() == 0) { continue; }
-//				
-//				DataObject decodedData = msgHandler.decodeData(new StringReader(data));
-//								
-//				// object based on the log file
-//				if (entry.startsWith(ADD + SUB_REG)) {
-//					addSubscriber(new Subscriber(decodedData), false);
-//				}
-//				else if (entry.startsWith(REMOVE + SUB_REG)) {
-//					removeSubscriber(new Subscriber(decodedData), false);
-//				}
-//				else if (entry.startsWith(UPDATE + SUB_REG)) {
-//					updateSubscriber(new Subscriber(decodedData), false);
-//				}
-//				
-//				// Discoverer subscribers
-//				else if (entry.startsWith(ADD + SUB_DISCO)) {
-//					addSubscriber(new DiscovererSubscriber(decodedData), false);
-//				}
-//				else if (entry.startsWith(REMOVE + SUB_DISCO)) {
-//					removeSubscriber(new DiscovererSubscriber(decodedData), false);
-//				}
-//				else if (entry.startsWith(UPDATE + SUB_DISCO)) {
-//					updateSubscriber(new DiscovererSubscriber(decodedData), false);
-//				}
-//				
-//			} catch (DecodeException de) {
-//				de.printStackTrace();
-//			} catch (InvalidDecoderException ide) {
-//				ide.printStackTrace();
-//			}
-//		}
-//
-//		// why are we writing to the log when we have just read from it w/o making changes? --Brian
-//		for (AbstractSubscriber sub : this.values()) {
-//			writeLog(true, ADD, sub);
-//		}
+		if (!USE_JOURNAL) { return; }
+
+		journal = new SubscriptionJournal(filename);
+		try {
+			for (AbstractSubscriber sub : journal.open()) {
+				put(sub.getSubscriptionId(), sub);
+			}
+		} catch (IOException ioe) {
+			System.out.println("Subscribers restartSubscriptions() IO: " + ioe + ", filename=" + filename);
+			journal = null;
+		}
 	}
 
 	/**
-	 * This private method writes an entry to the logfile.
-	 * TODO: prone to corruption during prototyping; currently disabled
+	 * This private method journals a change of subscriber.
 	 *
-	 * @param header Header of the entry to append to the logfile
+	 * @param log Whether to journal the change or not
+	 * @param action ADD, REMOVE or UPDATE
 	 * @param sub Subscriber information to put in the entry
 	 */
 	private void writeLog(boolean log, String action, AbstractSubscriber sub) {
-		if (!log) { return; }
+		if (!log || journal == null || sub == null) { return; }
 		
-//		String header = ENTRY_STRING + action +
-//		(sub instanceof DiscovererSubscriber ? 
-//				SUB_DISCO : // discoverer subscriber
-//				SUB_REG) +  // widget subscriber
-//		":";
-//		
-//		PrintWriter out = null;
-//		try {
-//			out = new PrintWriter(FileUtil.getWriter(filename, true));
-//			out.println(header + msgHandler.encodeData(sub.toDataObject()));
-//			out.flush();
-//		} catch (Exception e) {
-//			e.printStackTrace();
-//		} finally {
-//			FileUtil.closeWriter(out);
-//		}
+		if (REMOVE.equals(action)) {
+			journal.remove(sub.getSubscriptionId());
+		}
+		else {
+			journal.put(sub);
+		}
 	}
 
 	/** Set the BaseObject id used to attribute the unique id for subscribers
@@ -0,0 +1,470 @@
+package context.arch.subscriber;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import context.arch.comm.DataObject;
+import context.arch.comm.language.BinaryDecoder;
+import context.arch.comm.language.BinaryEncoder;
+import context.arch.comm.language.DecodeException;
+import context.arch.comm.language.EncodeException;
+
+/**
+ * Keeps the subscribers of a widget on disk, so that a restarted widget
+ * still notifies them without waiting for them to subscribe again.
+ *
+ * The journal is a header (MAGIC, VERSION) followed by records: the body
+ * length, the CRC32 of the type and body, the type byte and the body. The
+ * body is the subscription id (modified UTF-8) followed, for SUBSCRIBER and
+ * DISCOVERER_SUBSCRIBER, by the subscriber encoded by the BinaryEncoder.
+ * A subscriber record replaces any previous one with the same id.
+ *
+ * The records are encoded by the caller and buffered; the writer thread appends
+ * the buffer and syncs the file syncInterval ms after its first record, so a
+ * burst of subscriptions costs one fsync. When the journal holds compactRatio
+ * times more records than subscribers, it is rewritten with the live records only.
+ * All the journals of the VM share the writer thread, and a shutdown hook that
+ * writes what they buffered before the VM exits.
+ *
+ * On open, the file is mapped in memory and indexed by subscription id up to
+ * its first damaged record (torn write); only the live subscribers are then
+ * decoded, and the journal is compacted.
+ *
+ * The configuration is read by the constructor: set the DEFAULT_ fields
+ * before that.
+ *
+ * @see context.arch.subscriber.Subscribers
+ * @see context.arch.comm.language.BinaryEncoder
+ */
+public class SubscriptionJournal {
+
+	/**
+	 * "CTKJ": first bytes of a journal
+	 */
+	public static final int MAGIC = 0x43544B4A;
+
+	public static final int VERSION = 1;
+
+	public static final byte SUBSCRIBER = 1;
+	public static final byte DISCOVERER_SUBSCRIBER = 2;
+	public static final byte REMOVE = 3;
+
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_HEADER_SIZE = 9;
+
+	/**
+	 * Records longer than this are taken as damaged
+	 */
+	public static int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * The default maximum time (ms) between a change and its fsync
+	 */
+	public static long DEFAULT_SYNC_INTERVAL = 100;
+
+	/**
+	 * The default number of records per subscriber above which the journal is compacted
+	 */
+	public static int DEFAULT_COMPACT_RATIO = 4;
+
+	/**
+	 * The journal is not compacted below this number of records
+	 */
+	public static int DEFAULT_COMPACT_MIN_RECORDS = 256;
+
+	/**
+	 * Time (ms) the writer is given to write the buffered records of all the journals when the VM exits
+	 */
+	public static long SHUTDOWN_TIMEOUT = 5000;
+
+	private final File file;
+	private final long syncInterval;
+	private final int compactRatio;
+	private final int compactMinRecords;
+
+	/* guarded by this */
+	private final Map<String, Record> live = new LinkedHashMap<String, Record>();
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private int records = 0;
+	private boolean scheduled = false;
+	private boolean writing = false;
+	private boolean opened = false;
+	private boolean closed = false;
+
+	/* written by the writer thread once opened */
+	private FileChannel channel;
+
+	/** Writes the pending records of this journal; run by the writer thread */
+	private final Runnable writeTask = new Runnable() {
+		public void run() {
+			write();
+		}
+	};
+
+	/** The writer thread shared by the journals, started with the first one opened */
+	private static ScheduledExecutorService writer;
+
+	/** The journals open, closed by the shutdown hook; guarded by SubscriptionJournal.class */
+	private static final Set<SubscriptionJournal> openJournals = new LinkedHashSet<SubscriptionJournal>();
+
+	private static class Record {
+
+		private final byte type;
+		private final byte[] body;
+
+		private Record(byte type, byte[] body) {
+			this.type = type;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * Creates the journal of the subscribers of a widget
+	 *
+	 * @param filename Path of the journal
+	 */
+	public SubscriptionJournal(String filename) {
+		file = new File(filename);
+		syncInterval = DEFAULT_SYNC_INTERVAL;
+		compactRatio = DEFAULT_COMPACT_RATIO;
+		compactMinRecords = DEFAULT_COMPACT_MIN_RECORDS;
+	}
+
+	/**
+	 * Reads the journal and compacts it.
+	 *
+	 * @return the subscribers in the journal, with their subscription ids
+	 * @throws IOException if the journal can't be written
+	 */
+	public synchronized List<AbstractSubscriber> open() throws IOException {
+		if (opened) {
+			throw new IllegalStateException("SubscriptionJournal already open");
+		}
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null) {
+			dir.mkdirs();
+		}
+
+		if (file.exists()) {
+			index();
+		}
+		List<AbstractSubscriber> subscribers = new ArrayList<AbstractSubscriber>(live.size());
+		for (Record record : live.values()) {
+			AbstractSubscriber sub = decode(record);
+			if (sub != null) {
+				subscribers.add(sub);
+			}
+		}
+		compact();
+
+		opened = true;
+		synchronized (SubscriptionJournal.class) {
+			openJournals.add(this);
+		}
+		return subscribers;
+	}
+
+	/**
+	 * Journals a new or updated subscriber
+	 */
+	public void put(AbstractSubscriber sub) {
+		byte type = sub instanceof DiscovererSubscriber ? DISCOVERER_SUBSCRIBER : SUBSCRIBER;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			new DataOutputStream(bytes).writeUTF(sub.getSubscriptionId());
+			new BinaryEncoder().encodeData(sub.toDataObject(), bytes);
+			append(sub.getSubscriptionId(), new Record(type, bytes.toByteArray()));
+		} catch (IOException ioe) {
+			System.out.println("SubscriptionJournal put() IO: " + ioe);
+		} catch (EncodeException ee) {
+			System.out.println("SubscriptionJournal put() Encode: " + ee);
+		}
+	}
+
+	/**
+	 * Journals the removal of a subscriber
+	 */
+	public void remove(String subscriptionId) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			new DataOutputStream(bytes).writeUTF(subscriptionId);
+			append(subscriptionId, new Record(REMOVE, bytes.toByteArray()));
+		} catch (IOException ioe) {
+			System.out.println("SubscriptionJournal remove() IO: " + ioe);
+		}
+	}
+
+	private synchronized void append(String id, Record record) throws IOException {
+		if (closed || !opened) {
+			return;
+		}
+		apply(id, record);
+		writeRecord(new DataOutputStream(pending), record);
+		records++;
+		if (!scheduled) {
+			scheduled = true;
+			getWriter().schedule(writeTask, syncInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void apply(String id, Record record) {
+		if (record.type == REMOVE) {
+			live.remove(id);
+		}
+		else {
+			live.put(id, record);
+		}
+	}
+
+	/**
+	 * Writes the buffered records now and waits until they are synced
+	 *
+	 * @param timeout Maximum time (ms) to wait
+	 * @return true if all the records were written in time
+	 */
+	public synchronized boolean flush(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		if (pending.size() > 0) {
+			getWriter().execute(writeTask);
+		}
+		while (pending.size() > 0 || writing) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			try {
+				wait(remaining);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the buffered records and closes the file. The changes made
+	 * afterwards are not journaled.
+	 *
+	 * @param timeout Maximum time (ms) to wait for the buffered records
+	 */
+	public void close(long timeout) {
+		flush(timeout);
+		synchronized (this) {
+			if (closed || !opened) {
+				return;
+			}
+			closed = true;
+		}
+		synchronized (SubscriptionJournal.class) {
+			openJournals.remove(this);
+		}
+		// after the records still being written, if the flush timed out
+		getWriter().execute(new Runnable() {
+			public void run() {
+				write();
+				try {
+					channel.close();
+				} catch (IOException ioe) {
+					System.out.println("SubscriptionJournal close() IO: " + ioe);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Appends the buffered records to the file and syncs it, then compacts
+	 * the journal if needed. Run by the writer thread only.
+	 */
+	private void write() {
+		byte[] batch;
+		synchronized (this) {
+			scheduled = false;
+			if (pending.size() == 0) {
+				return;
+			}
+			batch = pending.toByteArray();
+			pending = new ByteArrayOutputStream();
+			writing = true;
+		}
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(batch);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+			synchronized (this) {
+				if (records >= compactMinRecords && records > compactRatio * live.size()) {
+					compact();
+				}
+			}
+		} catch (IOException ioe) {
+			System.out.println("SubscriptionJournal write() IO: " + ioe + ", file=" + file);
+		} finally {
+			synchronized (this) {
+				writing = false;
+				notifyAll(); // for flush
+			}
+		}
+	}
+
+	/**
+	 * Returns the writer thread, started with a shutdown hook the first time
+	 */
+	private static synchronized ScheduledExecutorService getWriter() {
+		if (writer == null) {
+			writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SubscriptionJournal writer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+			// the writer is a daemon: write what is left before the VM exits
+			Runtime.getRuntime().addShutdownHook(new Thread("SubscriptionJournal shutdown") {
+				public void run() {
+					List<SubscriptionJournal> journals;
+					synchronized (SubscriptionJournal.class) {
+						journals = new ArrayList<SubscriptionJournal>(openJournals);
+					}
+					long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+					for (SubscriptionJournal journal : journals) {
+						journal.close(Math.max(0, deadline - System.currentTimeMillis()));
+					}
+				}
+			});
+		}
+		return writer;
+	}
+
+	/**
+	 * Rewrites the journal with the live records, and opens it for appending.
+	 * The records still buffered are already in the live ones: they are dropped.
+	 */
+	private void compact() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(0);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			for (Record record : live.values()) {
+				writeRecord(out, record);
+			}
+			raf.write(bytes.toByteArray());
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+		if (channel != null) {
+			channel.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("SubscriptionJournal: can't rename " + tmp + " to " + file);
+			}
+		}
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		channel.position(channel.size());
+		records = live.size();
+		pending = new ByteArrayOutputStream();
+	}
+
+	/**
+	 * Indexes the records of the mapped journal by subscription id
+	 */
+	private void index() {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel in = raf.getChannel();
+			ByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+			if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				System.out.println("SubscriptionJournal index() not a journal: " + file);
+				return;
+			}
+			CRC32 crc = new CRC32();
+			while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+				int length = buffer.getInt();
+				int checksum = buffer.getInt();
+				byte type = buffer.get();
+				if (length < 2 || length > MAX_RECORD_SIZE || length > buffer.remaining()
+						|| type < SUBSCRIBER || type > REMOVE) {
+					break;
+				}
+				byte[] body = new byte[length];
+				buffer.get(body);
+				crc.reset();
+				crc.update(type);
+				crc.update(body);
+				if ((int) crc.getValue() != checksum) {
+					break; // torn write
+				}
+				String id = new DataInputStream(new ByteArrayInputStream(body)).readUTF();
+				apply(id, new Record(type, body));
+			}
+		} catch (IOException ioe) {
+			System.out.println("SubscriptionJournal index() IO: " + ioe + ", file=" + file);
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException ioe) {
+				}
+			}
+		}
+	}
+
+	private static AbstractSubscriber decode(Record record) {
+		try {
+			ByteArrayInputStream in = new ByteArrayInputStream(record.body);
+			new DataInputStream(in).readUTF();
+			DataObject data = new BinaryDecoder().decodeData(in);
+			if (record.type == DISCOVERER_SUBSCRIBER) {
+				return new DiscovererSubscriber(data);
+			}
+			return new Subscriber(data);
+		} catch (IOException ioe) {
+			System.out.println("SubscriptionJournal decode() IO: " + ioe);
+		} catch (DecodeException de) {
+			System.out.println("SubscriptionJournal decode() Decode: " + de);
+		} catch (RuntimeException re) {
+			System.out.println("SubscriptionJournal decode() invalid subscriber: " + re);
+		}
+		return null;
+	}
+
+	private static void writeRecord(DataOutputStream out, Record record) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(record.type);
+		crc.update(record.body);
+
+		out.writeInt(record.body.length);
+		out.writeInt((int) crc.getValue());
+		out.writeByte(record.type);
+		out.write(record.body);
+	}
+
+}
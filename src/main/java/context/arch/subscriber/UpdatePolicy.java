@@ -0,0 +1,222 @@
+package context.arch.subscriber;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import context.arch.comm.DataObject;
+import context.arch.comm.DataObjects;
+import context.arch.storage.Attribute;
+import context.arch.storage.AttributeNameValue;
+import context.arch.storage.Attributes;
+
+/**
+ * This class describes how fast the updates of a widget may be sent, to a
+ * subscriber or to all of them:
+ * <ul>
+ * <li>minInterval: updates are sent at most once per minInterval milliseconds;
+ * the updates happening in between are coalesced and only the latest values
+ * are sent at the end of the interval (latest value wins);</li>
+ * <li>deadbands: an update is not sent if none of its attributes changed by
+ * more than the deadband of the attribute since the last update sent. The
+ * attributes without deadband must be equal. The timestamp is ignored.</li>
+ * </ul>
+ *
+ * A subscriber sets its policy in its subscription (ClientSideSubscriber),
+ * a widget sets one for all its subscribers with Widget.setUpdatePolicy.
+ *
+ * @see context.arch.widget.UpdateCoalescer
+ * @see context.arch.widget.Widget#setUpdatePolicy(UpdatePolicy)
+ */
+public class UpdatePolicy {
+
+	/**
+	 * Tag for an update policy
+	 */
+	public static final String UPDATE_POLICY = "updatePolicy";
+
+	/**
+	 * Tag for the minimum interval between two updates
+	 */
+	public static final String MIN_INTERVAL = "minInterval";
+
+	/**
+	 * Tag for the deadband of an attribute
+	 */
+	public static final String DEADBAND = "deadband";
+
+	/**
+	 * Tag for the value of a deadband
+	 */
+	public static final String DEADBAND_VALUE = "deadbandValue";
+
+	/**
+	 * Name of the attribute ignored by the deadbands, as it changes at every update
+	 */
+	public static final String TIMESTAMP = "timestamp";
+
+	private long minInterval = 0;
+	private Map<String, Double> deadbands = new HashMap<String, Double>();
+
+	/**
+	 * Creates a policy sending every update
+	 */
+	public UpdatePolicy() {
+	}
+
+	/**
+	 * Creates a policy sending updates at most once per minInterval milliseconds
+	 *
+	 * @param minInterval Minimum time (ms) between two updates
+	 */
+	public UpdatePolicy(long minInterval) {
+		this.minInterval = Math.max(0, minInterval);
+	}
+
+	/**
+	 * Returns the minimum time (ms) between two updates
+	 *
+	 * @return the minimum interval
+	 */
+	public long getMinInterval() {
+		return minInterval;
+	}
+
+	/**
+	 * Sets the minimum time (ms) between two updates
+	 *
+	 * @param minInterval the minimum interval, 0 to send every update
+	 */
+	public void setMinInterval(long minInterval) {
+		this.minInterval = Math.max(0, minInterval);
+	}
+
+	/**
+	 * Sets the deadband of a numeric attribute: changes smaller than the
+	 * deadband don't trigger an update
+	 *
+	 * @param attributeName Name of the attribute
+	 * @param deadband Smallest change triggering an update
+	 * @return this policy
+	 */
+	public UpdatePolicy setDeadband(String attributeName, double deadband) {
+		deadbands.put(attributeName, deadband);
+		return this;
+	}
+
+	/**
+	 * Returns the deadband of an attribute
+	 *
+	 * @param attributeName Name of the attribute
+	 * @return the deadband, or null if the attribute has none
+	 */
+	public Double getDeadband(String attributeName) {
+		return deadbands.get(attributeName);
+	}
+
+	/**
+	 * Returns whether this policy may hold back updates
+	 *
+	 * @return true if the policy has a minimum interval or deadbands
+	 */
+	public boolean isActive() {
+		return minInterval > 0 || !deadbands.isEmpty();
+	}
+
+	/**
+	 * Returns whether the current values are within the deadbands of the last
+	 * values sent, so that they don't need to be sent
+	 *
+	 * @param last Last values sent
+	 * @param current Values of the update
+	 * @return true if no attribute changed enough to be sent
+	 */
+	public boolean isWithinDeadband(Attributes last, Attributes current) {
+		if (last == null || deadbands.isEmpty()) {
+			return false;
+		}
+		for (Attribute<?> att : current.values()) {
+			String name = att.getName();
+			if (TIMESTAMP.equals(name)) {
+				continue;
+			}
+			Object value = valueOf(att);
+			Object lastValue = valueOf(last.get(name));
+			if (value == null ? lastValue == null : value.equals(lastValue)) {
+				continue;
+			}
+			Double deadband = deadbands.get(name);
+			if (deadband == null || !(value instanceof Number) || !(lastValue instanceof Number)) {
+				return false;
+			}
+			double change = Math.abs(((Number) value).doubleValue() - ((Number) lastValue).doubleValue());
+			if (change >= deadband) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Object valueOf(Attribute<?> att) {
+		if (att instanceof AttributeNameValue<?>) {
+			return ((AttributeNameValue<?>) att).getValue();
+		}
+		return null;
+	}
+
+	/**
+	 * Converts this policy to a DataObject
+	 *
+	 * @return UpdatePolicy object converted to an <UPDATE_POLICY> DataObject
+	 */
+	public DataObject toDataObject() {
+		DataObjects v = new DataObjects();
+		v.addElement(new DataObject(MIN_INTERVAL, Long.toString(minInterval)));
+		for (Map.Entry<String, Double> entry : deadbands.entrySet()) {
+			DataObjects d = new DataObjects();
+			d.addElement(new DataObject(AttributeNameValue.ATTRIBUTE_NAME, entry.getKey()));
+			d.addElement(new DataObject(DEADBAND_VALUE, entry.getValue().toString()));
+			v.addElement(new DataObject(DEADBAND, d));
+		}
+		return new DataObject(UPDATE_POLICY, v);
+	}
+
+	/**
+	 * Creates a policy from a DataObject containing an <UPDATE_POLICY> tag
+	 *
+	 * @param data DataObject containing the policy
+	 * @return the policy, or null if there is none
+	 */
+	public static UpdatePolicy fromDataObject(DataObject data) {
+		DataObject policyObj = data.getDataObject(UPDATE_POLICY);
+		if (policyObj == null) {
+			return null;
+		}
+		UpdatePolicy policy = new UpdatePolicy();
+		DataObject interval = policyObj.getDataObject(MIN_INTERVAL);
+		if (interval != null && interval.getValue() != null) {
+			try {
+				policy.setMinInterval(Long.parseLong(interval.getValue()));
+			} catch (NumberFormatException nfe) {
+				System.out.println("UpdatePolicy invalid minInterval: " + nfe);
+			}
+		}
+		for (DataObject deadband : policyObj.getDataObjects(DEADBAND)) {
+			DataObject name = deadband.getDataObject(AttributeNameValue.ATTRIBUTE_NAME);
+			DataObject value = deadband.getDataObject(DEADBAND_VALUE);
+			if (name == null || value == null) {
+				continue;
+			}
+			try {
+				policy.setDeadband(name.getValue(), Double.parseDouble(value.getValue()));
+			} catch (NumberFormatException nfe) {
+				System.out.println("UpdatePolicy invalid deadband: " + nfe);
+			}
+		}
+		return policy;
+	}
+
+	public String toString() {
+		return "UpdatePolicy minInterval=" + minInterval + " - deadbands=" + deadbands;
+	}
+
+}
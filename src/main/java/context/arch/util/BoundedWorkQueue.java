@@ -0,0 +1,276 @@
+package context.arch.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class provides a bounded FIFO pipe for many producers and many
+ * consumers, replacing the SynchFIFO.
+ *
+ * The elements are kept in a ring buffer whose slots carry a sequence number,
+ * so that offer and poll only need a compare-and-set on the tail or the head
+ * of the ring: no lock is taken and no element is shifted. The capacity is
+ * rounded up to a power of two.
+ *
+ * The blocking methods (put, take) only use a monitor when they have to wait.
+ * Producers and consumers wait on separate monitors, and a single waiting
+ * thread is woken up per element, instead of all of them.
+ *
+ * @param <E> Type of the elements
+ * @see context.arch.comm.clients.ClientsPool
+ */
+public class BoundedWorkQueue<E> {
+
+	private final AtomicReferenceArray<E> buffer;
+	private final AtomicLongArray sequences;
+	private final int mask;
+
+	private final AtomicLong head = new AtomicLong(); // next position to poll
+	private final AtomicLong tail = new AtomicLong(); // next position to offer
+
+	private final Object notEmpty = new Object();
+	private final Object notFull = new Object();
+	private volatile int notEmptyWaiters = 0;
+	private volatile int notFullWaiters = 0;
+
+	/**
+	 * Creates a queue holding at least capacity elements
+	 *
+	 * @param capacity Maximum number of elements, rounded up to a power of two
+	 */
+	public BoundedWorkQueue(int capacity) {
+		int size = 1;
+		while (size < capacity && size < (1 << 30)) {
+			size <<= 1;
+		}
+		buffer = new AtomicReferenceArray<E>(size);
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds an element if there is room for it, without waiting
+	 *
+	 * @param e The element, not null
+	 * @return false if the queue is full
+	 */
+	public boolean offer(E e) {
+		if (!tryOffer(e)) {
+			return false;
+		}
+		signalNotEmpty();
+		return true;
+	}
+
+	/**
+	 * Adds the element without waking a consumer up: the caller may hold a monitor
+	 */
+	private boolean tryOffer(E e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		long pos = tail.get();
+		int index;
+		while (true) {
+			index = (int) (pos & mask);
+			long dif = sequences.get(index) - pos;
+			if (dif == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = tail.get();
+			}
+			else if (dif < 0) {
+				return false; // the slot still holds the element of the previous lap
+			}
+			else {
+				pos = tail.get();
+			}
+		}
+		buffer.set(index, e);
+		sequences.set(index, pos + 1);
+		return true;
+	}
+
+	/**
+	 * Removes the next element, without waiting
+	 *
+	 * @return the next element, or null if the queue is empty
+	 */
+	public E poll() {
+		E e = tryPoll();
+		if (e != null) {
+			signalNotFull();
+		}
+		return e;
+	}
+
+	/**
+	 * Removes the element without waking a producer up: the caller may hold a monitor
+	 */
+	private E tryPoll() {
+		long pos = head.get();
+		int index;
+		while (true) {
+			index = (int) (pos & mask);
+			long dif = sequences.get(index) - (pos + 1);
+			if (dif == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = head.get();
+			}
+			else if (dif < 0) {
+				return null; // the slot is not filled yet
+			}
+			else {
+				pos = head.get();
+			}
+		}
+		E e = buffer.get(index);
+		buffer.set(index, null);
+		sequences.set(index, pos + mask + 1);
+		return e;
+	}
+
+	/**
+	 * Adds an element, waiting for room if the queue is full
+	 *
+	 * @param e The element, not null
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void put(E e) throws InterruptedException {
+		if (offer(e)) {
+			return;
+		}
+		synchronized (notFull) {
+			notFullWaiters++;
+			try {
+				while (!tryOffer(e)) {
+					notFull.wait();
+				}
+			} finally {
+				notFullWaiters--;
+			}
+		}
+		signalNotEmpty();
+	}
+
+	/**
+	 * Removes the next element, waiting for one if the queue is empty
+	 *
+	 * @return the next element
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public E take() throws InterruptedException {
+		E e = poll();
+		if (e != null) {
+			return e;
+		}
+		synchronized (notEmpty) {
+			notEmptyWaiters++;
+			try {
+				while ((e = tryPoll()) == null) {
+					notEmpty.wait();
+				}
+			} finally {
+				notEmptyWaiters--;
+			}
+		}
+		signalNotFull();
+		return e;
+	}
+
+	/**
+	 * Removes the next element, waiting at most the given time for one
+	 *
+	 * @param timeout Maximum time to wait
+	 * @param unit Unit of the timeout
+	 * @return the next element, or null if none arrived in time
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		E e = poll();
+		if (e != null) {
+			return e;
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (notEmpty) {
+			notEmptyWaiters++;
+			try {
+				while ((e = tryPoll()) == null) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						return null;
+					}
+					TimeUnit.NANOSECONDS.timedWait(notEmpty, remaining);
+				}
+			} finally {
+				notEmptyWaiters--;
+			}
+		}
+		signalNotFull();
+		return e;
+	}
+
+	/**
+	 * Wakes up a consumer, if one waits. Must not be called holding notFull.
+	 */
+	private void signalNotEmpty() {
+		if (notEmptyWaiters > 0) {
+			synchronized (notEmpty) {
+				notEmpty.notify();
+			}
+		}
+	}
+
+	/**
+	 * Wakes up a producer, if one waits. Must not be called holding notEmpty.
+	 */
+	private void signalNotFull() {
+		if (notFullWaiters > 0) {
+			synchronized (notFull) {
+				notFull.notify();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of elements in the queue. The value is only an
+	 * estimate while elements are added or removed.
+	 *
+	 * @return the number of elements
+	 */
+	public int size() {
+		while (true) {
+			long h = head.get();
+			long t = tail.get();
+			if (h == head.get()) {
+				return (int) Math.max(0, Math.min(t - h, capacity()));
+			}
+		}
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Returns the maximum number of elements in the queue
+	 *
+	 * @return the capacity
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+
+	public String toString() {
+		return "BoundedWorkQueue " + size() + "/" + capacity();
+	}
+
+}
@@ -12,7 +12,10 @@ import java.util.Vector;
  * This method provides a synchronized FIFO pipe.
  *
  * @author  Agathe
+ * @deprecated unbounded, and getNext shifts the whole vector; use BoundedWorkQueue
+ * @see context.arch.util.BoundedWorkQueue
  */
+@Deprecated
 public class SynchFIFO extends Vector<Object> {
 
 	private static final long serialVersionUID = 1339709490236135379L;
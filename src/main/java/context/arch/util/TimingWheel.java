@@ -0,0 +1,229 @@
+package context.arch.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps keys until a deadline, in a hierarchical timing wheel:
+ * scheduling, rescheduling and cancelling a key take a constant time, and
+ * advancing the wheel only costs the keys expiring (and the keys moved from
+ * an upper level when a lower level turns round), not all the keys.
+ *
+ * The time is cut in ticks of tickMillis. The lowest level has one slot per
+ * tick, each upper level has slots 64 times larger than the level below.
+ * With 4 levels, deadlines up to 64^4 ticks ahead are placed directly; later
+ * ones are placed as far as possible and moved again when they come up.
+ *
+ * The wheel is not driven by a thread: the owner calls advance(now)
+ * periodically, for instance every tick.
+ *
+ * @param <K> Type of the keys
+ * @see context.arch.discoverer.lease.LeasesWatcher
+ */
+public class TimingWheel<K> {
+
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+	private static final long MAX_DELTA = (1L << (BITS * LEVELS)) - 1;
+
+	private final long tickMillis;
+
+	/**
+	 * levels x slots, each slot is the sentinel of a circular list
+	 */
+	private final Node<K>[][] wheel;
+
+	/**
+	 * key => its node, to reschedule or cancel it
+	 */
+	private final Map<K, Node<K>> nodes = new HashMap<K, Node<K>>();
+
+	/**
+	 * The next tick to process
+	 */
+	private long currentTick;
+
+	private static class Node<K> {
+		K key;
+		long deadline;
+		long expirationTick;
+		Node<K> prev = this;
+		Node<K> next = this;
+
+		void unlink() {
+			prev.next = next;
+			next.prev = prev;
+			prev = next = this;
+		}
+
+		void linkBefore(Node<K> sentinel) {
+			prev = sentinel.prev;
+			next = sentinel;
+			sentinel.prev.next = this;
+			sentinel.prev = this;
+		}
+	}
+
+	/**
+	 * Creates a wheel starting now
+	 *
+	 * @param tickMillis Length (ms) of a tick, the precision of the deadlines
+	 */
+	public TimingWheel(long tickMillis) {
+		this.tickMillis = Math.max(1, tickMillis);
+		this.wheel = newWheel();
+		for (int level = 0; level < LEVELS; level++) {
+			for (int slot = 0; slot < SLOTS; slot++) {
+				wheel[level][slot] = new Node<K>();
+			}
+		}
+		this.currentTick = System.currentTimeMillis() / this.tickMillis;
+	}
+
+	/**
+	 * Creates the empty levels x slots array: an array of a generic type
+	 * can only be created by a cast
+	 */
+	@SuppressWarnings("unchecked")
+	private static <K> Node<K>[][] newWheel() {
+		return (Node<K>[][]) new Node<?>[LEVELS][SLOTS];
+	}
+
+	/**
+	 * Schedules a key, or moves it if it is already scheduled
+	 *
+	 * @param key The key
+	 * @param deadline Time (ms) when the key expires
+	 */
+	public synchronized void schedule(K key, long deadline) {
+		Node<K> node = nodes.get(key);
+		if (node == null) {
+			node = new Node<K>();
+			node.key = key;
+			nodes.put(key, node);
+		}
+		else {
+			node.unlink();
+		}
+		node.deadline = deadline;
+		// a key is due in the tick of its deadline
+		node.expirationTick = deadline / tickMillis;
+		place(node);
+	}
+
+	/**
+	 * Removes a key
+	 *
+	 * @param key The key
+	 * @return true if the key was scheduled
+	 */
+	public synchronized boolean cancel(K key) {
+		Node<K> node = nodes.remove(key);
+		if (node == null) {
+			return false;
+		}
+		node.unlink();
+		return true;
+	}
+
+	public synchronized boolean contains(K key) {
+		return nodes.containsKey(key);
+	}
+
+	/**
+	 * Returns the deadline of a key
+	 *
+	 * @param key The key
+	 * @return the deadline (ms), or -1 if the key is not scheduled
+	 */
+	public synchronized long getDeadline(K key) {
+		Node<K> node = nodes.get(key);
+		return (node == null) ? -1 : node.deadline;
+	}
+
+	public synchronized int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * Processes the ticks up to the given time, and removes the keys expired
+	 *
+	 * @param now Current time (ms)
+	 * @return the keys whose deadline is passed, in deadline order per tick
+	 */
+	public synchronized List<K> advance(long now) {
+		List<K> expired = new ArrayList<K>();
+		long nowTick = now / tickMillis;
+		if (nodes.isEmpty()) {
+			currentTick = Math.max(currentTick, nowTick + 1);
+			return expired;
+		}
+		while (currentTick <= nowTick) {
+			cascade(currentTick);
+			Node<K> sentinel = wheel[0][(int) (currentTick & MASK)];
+			Node<K> node = sentinel.next;
+			while (node != sentinel) {
+				Node<K> next = node.next;
+				if (node.deadline <= now) {
+					node.unlink();
+					nodes.remove(node.key);
+					expired.add(node.key);
+				}
+				else if (node.expirationTick > currentTick) {
+					node.unlink();
+					place(node); // placed at the farthest slot, not due yet
+				}
+				node = next;
+			}
+			if (sentinel.next != sentinel) {
+				break; // due later in the current tick: processed again next time
+			}
+			currentTick++;
+			if (nodes.isEmpty()) {
+				currentTick = Math.max(currentTick, nowTick + 1);
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * Moves the keys of the upper levels whose slot starts at this tick to
+	 * the levels below
+	 */
+	private void cascade(long tick) {
+		for (int level = 1; level < LEVELS; level++) {
+			if ((tick & ((1L << (BITS * level)) - 1)) != 0) {
+				return; // the level below didn't turn round
+			}
+			Node<K> sentinel = wheel[level][(int) ((tick >> (BITS * level)) & MASK)];
+			while (sentinel.next != sentinel) {
+				Node<K> node = sentinel.next;
+				node.unlink();
+				place(node);
+			}
+		}
+	}
+
+	private void place(Node<K> node) {
+		long tick = Math.max(node.expirationTick, currentTick);
+		long delta = tick - currentTick;
+		if (delta > MAX_DELTA) {
+			delta = MAX_DELTA;
+			tick = currentTick + MAX_DELTA;
+		}
+		int level = 0;
+		while (delta >= (1L << (BITS * (level + 1)))) {
+			level++;
+		}
+		node.linkBefore(wheel[level][(int) ((tick >> (BITS * level)) & MASK)]);
+	}
+
+	public String toString() {
+		return "TimingWheel size=" + size() + " - tick=" + tickMillis + "ms";
+	}
+
+}
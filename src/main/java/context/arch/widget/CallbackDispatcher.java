@@ -0,0 +1,421 @@
+package context.arch.widget;
+
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import context.arch.comm.DataObject;
+import context.arch.discoverer.ComponentDescription;
+import context.arch.storage.Attributes;
+
+/**
+ * This class sends the callbacks of a widget to its subscribers outside of
+ * the thread updating the widget.
+ *
+ * Widget.sendToSubscribers only takes a snapshot of what has to be sent (the
+ * callback data and, if a subscriber has conditions, the component description),
+ * once per update, and queues it. The updates of a widget are then dispatched
+ * in order by a thread of a pool shared by all widgets: the subscribers are
+ * matched and their callbacks sent. If batching is turned on, the callbacks to
+ * subscribers sharing the same host and port are sent in one message; it is off
+ * by default since older subscribers don't understand batched callbacks.
+ *
+ * The queue is bounded: when it is full, the thread updating the widget waits
+ * for the dispatcher to catch up (back-pressure), for DEFAULT_SUBMIT_TIMEOUT
+ * milliseconds at most. Past that, the update is coalesced with the latest
+ * queued update of the same callback, or the oldest queued update is dropped.
+ * The queue depth and the number of updates, messages, callbacks and dropped
+ * updates are available for monitoring.
+ *
+ * @see context.arch.widget.Widget#sendToSubscribers(String)
+ * @see context.arch.widget.Widget#getCallbackDispatcher()
+ */
+public class CallbackDispatcher {
+
+	/**
+	 * Debug flag. Set to true to see debug messages.
+	 */
+	public static boolean DEBUG = false;
+
+	/**
+	 * The default maximum number of updates waiting to be dispatched
+	 */
+	public static int DEFAULT_QUEUE_CAPACITY = 1024;
+
+	/**
+	 * Whether the callbacks to the same host and port are sent in one message
+	 * by default
+	 */
+	public static boolean DEFAULT_BATCHING = false;
+
+	/**
+	 * The default maximum time, in milliseconds, an update waits for room in
+	 * the queue before an older update is given up for it
+	 */
+	public static long DEFAULT_SUBMIT_TIMEOUT = 1000;
+
+	/**
+	 * Pool shared by the dispatchers of all widgets
+	 */
+	private static ExecutorService executor;
+
+	private Widget widget;
+	private LinkedList<CallbackUpdate> queue = new LinkedList<CallbackUpdate>();
+	private int capacity = DEFAULT_QUEUE_CAPACITY;
+	private boolean batching = DEFAULT_BATCHING;
+	private long submitTimeout = DEFAULT_SUBMIT_TIMEOUT;
+	private boolean draining = false;
+	private int maxQueueDepth = 0;
+
+	private AtomicLong submitted = new AtomicLong();
+	private AtomicLong dispatched = new AtomicLong();
+	private AtomicLong messages = new AtomicLong();
+	private AtomicLong callbacks = new AtomicLong();
+	private AtomicLong blocked = new AtomicLong();
+	private AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Creates the dispatcher of the given widget
+	 *
+	 * @param widget Widget whose callbacks are dispatched
+	 */
+	public CallbackDispatcher(Widget widget) {
+		this.widget = widget;
+	}
+
+	/**
+	 * Queues an update to be sent to the subscribers. If the queue is full,
+	 * waits until the dispatcher has room for it, or until the submit timeout
+	 * ends: the update then replaces the latest queued update of the same
+	 * callback, or the oldest queued update is dropped.
+	 *
+	 * @param update Snapshot of the update
+	 */
+	public void submit(CallbackUpdate update) {
+		submit(update, true);
+	}
+
+	/**
+	 * Queues an update without waiting for room in the queue: if it is full,
+	 * the update is coalesced or the oldest update dropped right away. It is
+	 * used by threads that must not block, like the timer of the update
+	 * coalescers.
+	 *
+	 * @param update Snapshot of the update
+	 * @see #submit(CallbackUpdate)
+	 */
+	public void offer(CallbackUpdate update) {
+		submit(update, false);
+	}
+
+	private void submit(CallbackUpdate update, boolean block) {
+		boolean start = false;
+		synchronized (this) {
+			if (block && queue.size() >= capacity) {
+				blocked.incrementAndGet();
+				debugprintln("CallbackDispatcher <submit> queue full for " + widget.getId());
+				long until = System.currentTimeMillis() + submitTimeout;
+				long wait;
+				while (queue.size() >= capacity && (wait = until - System.currentTimeMillis()) > 0) {
+					try {
+						wait(wait);
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+			}
+			submitted.incrementAndGet();
+			if (queue.size() >= capacity) {
+				dropped.incrementAndGet();
+				if (!coalesce(update)) {
+					debugprintln("CallbackDispatcher <submit> dropped the oldest update of " + widget.getId());
+					queue.removeFirst();
+					queue.addLast(update);
+				}
+				return; // the queue is not empty, so it is being drained
+			}
+			queue.addLast(update);
+			maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+			if (!draining) {
+				draining = true;
+				start = true;
+			}
+		}
+		if (start) {
+			getExecutor().execute(new Runnable() {
+				public void run() {
+					drain();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Replaces the latest queued update of the same callback with a newer one.
+	 * The newer update carries the latest values, so only an intermediate
+	 * update is lost.
+	 *
+	 * @param update Snapshot of the newer update
+	 * @return false if no queued update has the same callback
+	 */
+	private boolean coalesce(CallbackUpdate update) {
+		ListIterator<CallbackUpdate> it = queue.listIterator(queue.size());
+		while (it.hasPrevious()) {
+			CallbackUpdate queued = it.previous();
+			if (queued.callbackName.equals(update.callbackName)
+					&& (queued.subscriptionId == null ? update.subscriptionId == null : queued.subscriptionId.equals(update.subscriptionId))) {
+				it.set(update);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Dispatches the queued updates in order, until the queue is empty
+	 */
+	private void drain() {
+		while (true) {
+			CallbackUpdate update;
+			synchronized (this) {
+				update = queue.poll();
+				if (update == null) {
+					draining = false;
+					return;
+				}
+				notifyAll(); // room for a waiting submitter
+			}
+			try {
+				widget.dispatchToSubscribers(update);
+			} catch (RuntimeException e) {
+				System.out.println("CallbackDispatcher dispatch error for " + widget.getId() + ": " + e);
+				e.printStackTrace();
+			}
+			dispatched.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Records a message sent to a subscriber endpoint
+	 *
+	 * @param callbackCount Number of subscription callbacks in the message
+	 */
+	void messageSent(int callbackCount) {
+		messages.incrementAndGet();
+		callbacks.addAndGet(callbackCount);
+	}
+
+	/**
+	 * Returns whether the callbacks to the same host and port are sent in one message
+	 *
+	 * @return true if the callbacks are batched
+	 */
+	public boolean isBatching() {
+		return batching;
+	}
+
+	/**
+	 * Sets whether the callbacks to the same host and port are sent in one
+	 * message. Only turn it on when all the subscribers understand batched
+	 * callbacks: older versions of the toolkit don't.
+	 *
+	 * @param batching true to batch the callbacks
+	 */
+	public void setBatching(boolean batching) {
+		this.batching = batching;
+	}
+
+	/**
+	 * Returns the maximum number of updates waiting to be dispatched
+	 *
+	 * @return the capacity of the queue
+	 */
+	public synchronized int getQueueCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sets the maximum number of updates waiting to be dispatched
+	 *
+	 * @param capacity the capacity of the queue
+	 */
+	public synchronized void setQueueCapacity(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		notifyAll();
+	}
+
+	/**
+	 * Returns the maximum time an update waits for room in the queue
+	 *
+	 * @return the submit timeout in milliseconds
+	 */
+	public synchronized long getSubmitTimeout() {
+		return submitTimeout;
+	}
+
+	/**
+	 * Sets the maximum time an update waits for room in the queue, before
+	 * an older update is given up for it
+	 *
+	 * @param submitTimeout the submit timeout in milliseconds
+	 */
+	public synchronized void setSubmitTimeout(long submitTimeout) {
+		this.submitTimeout = Math.max(0, submitTimeout);
+	}
+
+	/**
+	 * Returns the number of updates waiting to be dispatched
+	 *
+	 * @return the queue depth
+	 */
+	public synchronized int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns the largest number of updates that have been waiting at the same time
+	 *
+	 * @return the maximum queue depth
+	 */
+	public synchronized int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	/**
+	 * Returns the number of updates submitted
+	 *
+	 * @return the number of updates submitted
+	 */
+	public long getSubmittedCount() {
+		return submitted.get();
+	}
+
+	/**
+	 * Returns the number of updates dispatched
+	 *
+	 * @return the number of updates dispatched
+	 */
+	public long getDispatchedCount() {
+		return dispatched.get();
+	}
+
+	/**
+	 * Returns the number of messages sent to subscribers
+	 *
+	 * @return the number of messages
+	 */
+	public long getMessageCount() {
+		return messages.get();
+	}
+
+	/**
+	 * Returns the number of subscription callbacks sent; it is larger than the
+	 * number of messages when callbacks are batched
+	 *
+	 * @return the number of callbacks
+	 */
+	public long getCallbackCount() {
+		return callbacks.get();
+	}
+
+	/**
+	 * Returns the number of updates that had to wait for room in the queue
+	 *
+	 * @return the number of updates slowed down by back-pressure
+	 */
+	public long getBlockedCount() {
+		return blocked.get();
+	}
+
+	/**
+	 * Returns the number of updates given up because the queue stayed full,
+	 * whether coalesced with a newer one or dropped
+	 *
+	 * @return the number of updates given up
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private int count = 0;
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "CallbackDispatcher#" + (count++));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	private void debugprintln(Object s) {
+		if (DEBUG) {
+			System.out.println("" + s);
+		}
+	}
+
+	public String toString() {
+		return "CallbackDispatcher widget=" + widget.getId() + " - depth=" + getQueueDepth()
+		+ " - maxDepth=" + getMaxQueueDepth() + " - submitted=" + getSubmittedCount()
+		+ " - dispatched=" + getDispatchedCount() + " - messages=" + getMessageCount()
+		+ " - callbacks=" + getCallbackCount() + " - blocked=" + getBlockedCount()
+		+ " - dropped=" + getDroppedCount();
+	}
+
+	/**
+	 * Snapshot of a widget update, taken when the update happens: the widget
+	 * may change again before the update is dispatched. It is sent either to
+	 * all the subscribers of its callback, or to a single subscription when an
+	 * update held back by the policy of that subscriber is released.
+	 */
+	public static class CallbackUpdate {
+		final String subscriptionId;
+		final String callbackName;
+		final ComponentDescription description;
+		final DataObject callbackData;
+		final Attributes nonConstantAttributes;
+		final Attributes constantAttributes;
+
+		/**
+		 * Creates the snapshot of an update
+		 *
+		 * @param callbackName Callback triggered
+		 * @param description Component description to check the conditions of the subscribers, may be null if none has conditions
+		 * @param callbackData Data sent to each subscriber
+		 * @param nonConstantAttributes Non constant attributes sent
+		 * @param constantAttributes Constant attributes sent
+		 */
+		public CallbackUpdate(String callbackName, ComponentDescription description, DataObject callbackData,
+				Attributes nonConstantAttributes, Attributes constantAttributes) {
+			this.subscriptionId = null;
+			this.callbackName = callbackName;
+			this.description = description;
+			this.callbackData = callbackData;
+			this.nonConstantAttributes = nonConstantAttributes;
+			this.constantAttributes = constantAttributes;
+		}
+
+		/**
+		 * Creates the snapshot of an update for a single subscription
+		 *
+		 * @param update Snapshot of the update
+		 * @param subscriptionId Id of the only subscription to send it to
+		 */
+		public CallbackUpdate(CallbackUpdate update, String subscriptionId) {
+			this.subscriptionId = subscriptionId;
+			this.callbackName = update.callbackName;
+			this.description = update.description;
+			this.callbackData = update.callbackData;
+			this.nonConstantAttributes = update.nonConstantAttributes;
+			this.constantAttributes = update.constantAttributes;
+		}
+	}
+
+}
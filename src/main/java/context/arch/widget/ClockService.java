@@ -0,0 +1,278 @@
+package context.arch.widget;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import org.coach.tracing.service.ntp.NtpConnection;
+import org.coach.tracing.service.ntp.NtpInfo;
+
+/**
+ * This class keeps the offset between the local clock and a network time protocol
+ * (ntp) server, for all the widgets of the process.
+ *
+ * A single daemon thread queries the server every DEFAULT_INTERVAL milliseconds
+ * (sooner after failures), so that widgets never wait on the network. Each refresh
+ * sends DEFAULT_SAMPLES queries and keeps the one with the shortest round trip,
+ * which is the least distorted by the network. The offset then moves toward it by
+ * DEFAULT_SMOOTHING, unless they differ by more than DEFAULT_STEP, where it is set.
+ * Until the first answer, the offset is 0.
+ *
+ * The offset is read without locking by currentTime(). close() stops the thread;
+ * Widget.shutdown closes the service of the process, and the next getInstance()
+ * starts a new one.
+ *
+ * @see context.arch.widget.Widget#getCurrentTime()
+ * @see context.arch.widget.LocalTimeServer
+ */
+public class ClockService implements Runnable {
+
+	/**
+	 * Default ntp server, set before the service is first used
+	 */
+	public static String DEFAULT_SERVER = "0.pool.ntp.org";
+
+	/**
+	 * Default port of the ntp server
+	 */
+	public static int DEFAULT_PORT = NtpConnection.defaultNtpPort;
+
+	/**
+	 * Default time between refreshes, in milliseconds
+	 */
+	public static long DEFAULT_INTERVAL = 120000;
+
+	/**
+	 * Default time before trying again after a failed refresh, in milliseconds.
+	 * It doubles after each failure, up to DEFAULT_INTERVAL.
+	 */
+	public static long DEFAULT_RETRY = 5000;
+
+	/**
+	 * Default time to wait for an answer, in milliseconds
+	 */
+	public static int DEFAULT_TIMEOUT = 2000;
+
+	/**
+	 * Default number of queries per refresh
+	 */
+	public static int DEFAULT_SAMPLES = 4;
+
+	/**
+	 * Default weight of a new offset in the smoothed one
+	 */
+	public static double DEFAULT_SMOOTHING = 0.25;
+
+	/**
+	 * Default difference, in milliseconds, over which a new offset replaces the
+	 * smoothed one
+	 */
+	public static long DEFAULT_STEP = 1000;
+
+	private static volatile ClockService instance;
+
+	private String server;
+	private int port;
+
+	private volatile long offset = 0;
+	private volatile boolean synched = false;
+	private volatile long lastRefresh = 0;
+
+	private boolean refreshRequested = false;
+	private boolean closed = false;
+
+	/**
+	 * Returns the clock service of the process, starting it on first use
+	 *
+	 * @return the clock service
+	 */
+	public static ClockService getInstance() {
+		ClockService service = instance;
+		if (service == null) {
+			synchronized (ClockService.class) {
+				if (instance == null) {
+					instance = new ClockService(DEFAULT_SERVER, DEFAULT_PORT);
+				}
+				service = instance;
+			}
+		}
+		return service;
+	}
+
+	/**
+	 * Closes the clock service of the process, if it was started
+	 */
+	public static synchronized void closeInstance() {
+		if (instance != null) {
+			instance.close();
+			instance = null;
+		}
+	}
+
+	/**
+	 * Constructor that starts refreshing the offset with the given server
+	 *
+	 * @param server Host name of the ntp server
+	 * @param port Port of the ntp server
+	 */
+	public ClockService(String server, int port) {
+		this.server = server;
+		this.port = port;
+		Thread thread = new Thread(this, "ClockService");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the current time, corrected by the offset
+	 *
+	 * @return the current time in milliseconds
+	 */
+	public long currentTime() {
+		return System.currentTimeMillis() + offset;
+	}
+
+	/**
+	 * Returns the offset between the local clock and the server
+	 *
+	 * @return offset in milliseconds
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Returns whether the server has answered at least once
+	 */
+	public boolean isSynchronized() {
+		return synched;
+	}
+
+	/**
+	 * Returns the local time of the last successful refresh, or 0
+	 */
+	public long getLastRefresh() {
+		return lastRefresh;
+	}
+
+	/**
+	 * Changes the ntp server, and refreshes the offset with it. The offset is
+	 * set by its first answer.
+	 *
+	 * @param server Host name of the ntp server
+	 * @param port Port of the ntp server
+	 */
+	public synchronized void setServer(String server, int port) {
+		this.server = server;
+		this.port = port;
+		synched = false;
+		refresh();
+	}
+
+	/**
+	 * Asks for the offset to be refreshed now, without waiting for it
+	 */
+	public synchronized void refresh() {
+		refreshRequested = true;
+		notifyAll();
+	}
+
+	/**
+	 * Stops refreshing the offset. The thread ends after the refresh in
+	 * progress, if any, which doesn't change the offset anymore.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * The run method for the Thread.
+	 */
+	public void run() {
+		long retry = DEFAULT_RETRY;
+		while (true) {
+			String host;
+			int hostPort;
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				host = server;
+				hostPort = port;
+				refreshRequested = false;
+			}
+
+			long delay;
+			if (update(host, hostPort)) {
+				retry = DEFAULT_RETRY;
+				delay = DEFAULT_INTERVAL;
+			}
+			else {
+				delay = retry;
+				retry = Math.min(retry * 2, DEFAULT_INTERVAL);
+			}
+
+			synchronized (this) {
+				long until = System.currentTimeMillis() + delay;
+				long wait;
+				while (!refreshRequested && !closed && (wait = until - System.currentTimeMillis()) > 0) {
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queries the server, and updates the offset with the sample of shortest round trip
+	 *
+	 * @return false if the server didn't answer
+	 */
+	private boolean update(String host, int hostPort) {
+		NtpInfo best = null;
+		NtpConnection ntpConnection = null;
+		try {
+			ntpConnection = new NtpConnection(InetAddress.getByName(host), hostPort);
+			ntpConnection.setTimeout(DEFAULT_TIMEOUT);
+			for (int i = 0; i < DEFAULT_SAMPLES; i++) {
+				try {
+					NtpInfo info = ntpConnection.getInfo();
+					if (best == null || info.roundTripDelay < best.roundTripDelay) {
+						best = info;
+					}
+				} catch (IOException ioe) {
+					// a lost answer: try the other samples
+				}
+			}
+		} catch (IOException ioe) {
+			System.out.println("ClockService update IO: " + ioe);
+		} finally {
+			if (ntpConnection != null) {
+				ntpConnection.close();
+			}
+		}
+
+		if (best == null) {
+			return false;
+		}
+		synchronized (this) {
+			if (closed || !host.equals(server) || hostPort != port) {
+				return true; // closed or the server changed meanwhile
+			}
+			long sample = best.offset;
+			if (!synched || Math.abs(sample - offset) > DEFAULT_STEP) {
+				offset = sample;
+			}
+			else {
+				offset += Math.round((sample - offset) * DEFAULT_SMOOTHING);
+			}
+			synched = true;
+			lastRefresh = System.currentTimeMillis();
+		}
+		return true;
+	}
+
+}
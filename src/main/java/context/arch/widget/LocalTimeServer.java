@@ -0,0 +1,99 @@
+package context.arch.widget;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.util.Date;
+
+import org.coach.tracing.service.ntp.TimeStamp;
+
+/**
+ * A minimal ntp server answering with the local clock, shifted by a given offset.
+ * It stands in for a network time server when there is none, or to test the
+ * ClockService:
+ *
+ * <pre>
+ * LocalTimeServer server = new LocalTimeServer(0, 500);
+ * ClockService.DEFAULT_SERVER = "localhost";
+ * ClockService.DEFAULT_PORT = server.getPort();
+ * </pre>
+ *
+ * @see context.arch.widget.ClockService
+ */
+public class LocalTimeServer implements Runnable {
+
+	private static final int PACKET_LENGTH = 48;
+	private static final int ORIGINATE_OFFSET = 24;
+	private static final int TRANSMIT_OFFSET = 40;
+
+	private final DatagramSocket socket;
+	private volatile long offset;
+
+	/**
+	 * Constructor that starts answering on the given port
+	 *
+	 * @param port Port to listen on, or 0 for any free port
+	 * @param offset Offset of the time given, in milliseconds
+	 * @throws SocketException if the port can't be opened
+	 */
+	public LocalTimeServer(int port, long offset) throws SocketException {
+		this.offset = offset;
+		socket = new DatagramSocket(port);
+		Thread thread = new Thread(this, "LocalTimeServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the port the server listens on
+	 */
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Sets the offset of the time given
+	 *
+	 * @param offset in milliseconds
+	 */
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+
+	/**
+	 * Stops the server
+	 */
+	public void close() {
+		socket.close();
+	}
+
+	/**
+	 * The run method for the Thread.
+	 */
+	public void run() {
+		byte[] request = new byte[PACKET_LENGTH];
+		while (!socket.isClosed()) {
+			try {
+				DatagramPacket packet = new DatagramPacket(request, PACKET_LENGTH);
+				socket.receive(packet);
+				byte[] now = new TimeStamp(new Date(System.currentTimeMillis() + offset)).getData();
+
+				byte[] reply = new byte[PACKET_LENGTH];
+				reply[0] = 0x1C; // no leap warning, version 3, server mode
+				reply[1] = 1; // stratum: primary reference
+				reply[12] = 'L'; reply[13] = 'O'; reply[14] = 'C'; reply[15] = 'L';
+				System.arraycopy(now, 0, reply, 16, 8); // reference
+				System.arraycopy(request, TRANSMIT_OFFSET, reply, ORIGINATE_OFFSET, 8);
+				System.arraycopy(now, 0, reply, 32, 8); // receive
+				System.arraycopy(now, 0, reply, TRANSMIT_OFFSET, 8);
+				socket.send(new DatagramPacket(reply, PACKET_LENGTH, packet.getSocketAddress()));
+			} catch (IOException ioe) {
+				if (!socket.isClosed()) {
+					System.out.println("LocalTimeServer run IO: " + ioe);
+				}
+			}
+		}
+	}
+
+}
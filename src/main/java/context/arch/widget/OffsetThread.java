@@ -11,7 +11,11 @@ import org.coach.tracing.service.ntp.NtpConnection;
  * This class is responsible for retrieving and updating the offset between
  * the local clock the component is running on and a "more accurate" global
  * time clock
+ *
+ * @deprecated Replaced by ClockService, shared by the widgets of the process
+ * @see context.arch.widget.ClockService
  */
+@Deprecated
 public class OffsetThread extends Thread {
 	private int delay;
 
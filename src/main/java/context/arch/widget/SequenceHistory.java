@@ -0,0 +1,320 @@
+package context.arch.widget;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import context.arch.storage.Attribute;
+import context.arch.storage.AttributeNameValue;
+import context.arch.storage.Attributes;
+
+/**
+ * History of the attributes of a SequenceWidget over its last time steps.
+ *
+ * Each attribute has a ring buffer of the sequence length: adding a time step
+ * only writes one slot per attribute and moves the head of the rings, instead
+ * of renaming and cloning every attribute of every step. Numeric attributes
+ * are kept in long or double arrays, without boxing.
+ *
+ * Values are read by attribute index and time step, time step 0 being the
+ * oldest and length-1 the newest, as in the __T#_ names. The attributes named
+ * __T#_name, used by the subscribers and the discoverer, are only built by
+ * toAttributes, and kept until the next time step.
+ *
+ * @see SequenceWidget
+ * @see context.arch.discoverer.query.HmmWrapper#extractObservations(SequenceHistory)
+ */
+public class SequenceHistory {
+
+	private static final int OBJECT = 0;
+	private static final int LONG = 1;
+	private static final int DOUBLE = 2;
+
+	private final int length;
+
+	/**
+	 * Position of the newest time step in the rings
+	 */
+	private int head;
+
+	private long steps = 0;
+
+	private final List<Ring> rings = new ArrayList<Ring>();
+	private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+	/**
+	 * __T#_ attributes of the current time steps, null until built
+	 */
+	private Attributes view;
+
+	/**
+	 * Ring of the values of one attribute
+	 */
+	private static class Ring {
+		final Attribute<?> template;
+		final String[] names; // __T#_name for each time step
+		final int kind;
+
+		final boolean[] present; // whether the attribute exists at this step
+		final boolean[] valued; // whether it has a value at this step
+		final long[] longs;
+		final double[] doubles;
+		final Object[] objects;
+
+		Ring(Attribute<?> template, int length) {
+			this.template = template;
+			this.names = SequenceWidget.getSequenceNames(template.getName(), length);
+			this.kind = kindOf(template.getType());
+			this.present = new boolean[length];
+			this.valued = new boolean[length];
+			this.longs = (kind == LONG) ? new long[length] : null;
+			this.doubles = (kind == DOUBLE) ? new double[length] : null;
+			this.objects = (kind == OBJECT) ? new Object[length] : null;
+		}
+
+		void set(int slot, Attribute<?> att) {
+			present[slot] = true;
+			Object value = (att instanceof AttributeNameValue<?>) ? ((AttributeNameValue<?>) att).getValue() : null;
+			valued[slot] = value != null;
+			if (value == null) { return; }
+			switch (kind) {
+			case LONG: longs[slot] = ((Number) value).longValue(); break;
+			case DOUBLE: doubles[slot] = ((Number) value).doubleValue(); break;
+			default: objects[slot] = value;
+			}
+		}
+
+		void copy(int from, int to) {
+			present[to] = present[from];
+			valued[to] = valued[from];
+			switch (kind) {
+			case LONG: longs[to] = longs[from]; break;
+			case DOUBLE: doubles[to] = doubles[from]; break;
+			default: objects[to] = objects[from];
+			}
+		}
+
+		Object get(int slot) {
+			if (!valued[slot]) { return null; }
+			Class<?> type = template.getType();
+			switch (kind) {
+			case LONG:
+				long l = longs[slot];
+				if (type == Integer.class) { return (int) l; }
+				if (type == Short.class) { return (short) l; }
+				if (type == Byte.class) { return (byte) l; }
+				return l;
+			case DOUBLE:
+				double d = doubles[slot];
+				if (type == Float.class) { return (float) d; }
+				return d;
+			default:
+				return objects[slot];
+			}
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Attribute<?> toAttribute(int slot, int t) {
+			if (!valued[slot]) {
+				return new Attribute(names[t], template.getType(), template.getSubAttributes());
+			}
+			return new AttributeNameValue(names[t], template.getType(), (Comparable) get(slot), template.getSubAttributes());
+		}
+	}
+
+	private static int kindOf(Class<?> type) {
+		if (type == Integer.class || type == Long.class || type == Short.class || type == Byte.class) {
+			return LONG;
+		}
+		if (type == Double.class || type == Float.class) {
+			return DOUBLE;
+		}
+		return OBJECT;
+	}
+
+	/**
+	 * Creates an empty history
+	 *
+	 * @param length Number of time steps kept
+	 */
+	public SequenceHistory(int length) {
+		this.length = Math.max(1, length);
+		this.head = this.length - 1;
+	}
+
+	/**
+	 * Adds an attribute, with the same initial value at every time step
+	 *
+	 * @param att Attribute, with or without value
+	 */
+	public synchronized void declare(Attribute<?> att) {
+		Ring ring = ring(att);
+		for (int slot = 0; slot < length; slot++) {
+			ring.set(slot, att);
+		}
+		view = null;
+	}
+
+	private Ring ring(Attribute<?> att) {
+		Integer index = indexes.get(att.getName());
+		if (index != null) {
+			return rings.get(index);
+		}
+		Ring ring = new Ring(att, length);
+		indexes.put(att.getName(), rings.size());
+		rings.add(ring);
+		return ring;
+	}
+
+	/**
+	 * Adds a time step, dropping the oldest one. The attributes not given keep
+	 * their value of the previous time step; the attributes not declared yet
+	 * are added, without value for the previous time steps.
+	 *
+	 * @param atts Values of the attributes at the newest time step
+	 */
+	public synchronized void push(Attributes atts) {
+		int previous = head;
+		head = (head + 1) % length;
+		for (Ring ring : rings) {
+			ring.copy(previous, head);
+		}
+		for (Attribute<?> att : atts.values()) {
+			Ring ring = ring(att);
+			ring.set(head, att);
+		}
+		steps++;
+		view = null;
+	}
+
+	/**
+	 * Returns the number of time steps kept
+	 *
+	 * @return the sequence length
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns the number of time steps added since the creation
+	 *
+	 * @return the number of calls to push
+	 */
+	public synchronized long getSteps() {
+		return steps;
+	}
+
+	/**
+	 * Returns the index of an attribute, to read its values
+	 *
+	 * @param name Name of the attribute, without __T#_ marker
+	 * @return the index, or -1 if the attribute is unknown
+	 */
+	public synchronized int indexOf(String name) {
+		Integer index = indexes.get(name);
+		return (index == null) ? -1 : index;
+	}
+
+	public synchronized String getName(int att) {
+		return rings.get(att).template.getName();
+	}
+
+	public synchronized int size() {
+		return rings.size();
+	}
+
+	private int slot(int t) {
+		if (t < 0 || t >= length) {
+			throw new IndexOutOfBoundsException("time step " + t + " not in [0, " + length + ")");
+		}
+		return (head + 1 + t) % length;
+	}
+
+	/**
+	 * Returns whether an attribute has a value at a time step
+	 *
+	 * @param att Index of the attribute
+	 * @param t Time step, 0 for the oldest, length-1 for the newest
+	 * @return true if the value is not null
+	 */
+	public synchronized boolean hasValue(int att, int t) {
+		return rings.get(att).valued[slot(t)];
+	}
+
+	/**
+	 * Returns the value of an attribute at a time step
+	 *
+	 * @param att Index of the attribute
+	 * @param t Time step, 0 for the oldest, length-1 for the newest
+	 * @return the value, or null if none
+	 */
+	public synchronized Object getValue(int att, int t) {
+		return rings.get(att).get(slot(t));
+	}
+
+	/**
+	 * Returns the value of a numeric attribute at a time step, without boxing
+	 *
+	 * @param att Index of the attribute
+	 * @param t Time step, 0 for the oldest, length-1 for the newest
+	 * @return the value, or 0 if none
+	 */
+	public synchronized double getDouble(int att, int t) {
+		Ring ring = rings.get(att);
+		int slot = slot(t);
+		if (!ring.valued[slot]) { return 0; }
+		switch (ring.kind) {
+		case LONG: return ring.longs[slot];
+		case DOUBLE: return ring.doubles[slot];
+		default: return ((Number) ring.objects[slot]).doubleValue();
+		}
+	}
+
+	/**
+	 * Returns the value of a numeric attribute at a time step, without boxing
+	 *
+	 * @param att Index of the attribute
+	 * @param t Time step, 0 for the oldest, length-1 for the newest
+	 * @return the value, or 0 if none
+	 */
+	public synchronized long getLong(int att, int t) {
+		Ring ring = rings.get(att);
+		int slot = slot(t);
+		if (!ring.valued[slot]) { return 0; }
+		switch (ring.kind) {
+		case LONG: return ring.longs[slot];
+		case DOUBLE: return (long) ring.doubles[slot];
+		default: return ((Number) ring.objects[slot]).longValue();
+		}
+	}
+
+	/**
+	 * Returns the attributes of every time step, named __T#_name as the
+	 * subscribers and the discoverer expect them. They are built on the first
+	 * call after a time step is added.
+	 *
+	 * @return the attributes, not to be modified
+	 */
+	public synchronized Attributes toAttributes() {
+		if (view == null) {
+			Attributes atts = new Attributes();
+			for (Ring ring : rings) {
+				for (int t = 0; t < length; t++) {
+					int slot = slot(t);
+					if (ring.present[slot]) {
+						atts.add(ring.toAttribute(slot, t));
+					}
+				}
+			}
+			view = atts;
+		}
+		return view;
+	}
+
+	public synchronized String toString() {
+		return "SequenceHistory length=" + length + " - attributes=" + rings.size() + " - steps=" + steps;
+	}
+
+}
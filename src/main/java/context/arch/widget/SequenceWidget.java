@@ -1,5 +1,6 @@
 package context.arch.widget;
 
+import context.arch.comm.DataObject;
 import context.arch.storage.Attribute;
 import context.arch.storage.AttributeNameValue;
 import context.arch.storage.Attributes;
@@ -16,6 +17,16 @@ public abstract class SequenceWidget extends Widget {
 	
 	public static final String SEQUENCE_MARKER = "__T";
 
+	/**
+	 * Values of the non constant attributes over the last time steps
+	 */
+	protected SequenceHistory history;
+
+	/**
+	 * Whether the __T#_ attributes of nonConstantAttributes lag behind the history
+	 */
+	private boolean stale = false;
+
 	public SequenceWidget(int port, String id, String widgetClassName, int sequenceLength) {
 		super(port, id, widgetClassName);
 		this.sequenceLength = sequenceLength;
@@ -50,6 +61,15 @@ public abstract class SequenceWidget extends Widget {
 	public int getSequenceLength() {
 		return sequenceLength;
 	}
+
+	/**
+	 * Returns the values of the attributes over the last time steps, to read
+	 * them by index rather than by __T#_ name
+	 * @return the history, null before the widget is started
+	 */
+	public SequenceHistory getHistory() {
+		return history;
+	}
 	
 	/**
 	 * Overridden to replicate attributes to sequence
@@ -62,7 +82,11 @@ public abstract class SequenceWidget extends Widget {
 		 * Attributes added in init(), so replicate them
 		 */
 		// already includes w/o prepended time step, to represent freshest data, so that attribute naming can match
-		nonConstantAttributes.putAll(replicateToSequence(nonConstantAttributes, sequenceLength));
+		history = new SequenceHistory(sequenceLength);
+		for (Attribute<?> att : nonConstantAttributes.values()) {
+			history.declare(att);
+		}
+		nonConstantAttributes.putAll(history.toAttributes());
 		
 		// don't replicate constant attributes
 
@@ -109,6 +133,20 @@ public abstract class SequenceWidget extends Widget {
 	public static String getTPrepend(int index) {
 		return SEQUENCE_MARKER + index + '_';
 	}
+
+	/**
+	 * Returns the names of an attribute at each time step
+	 * @param name Name of the attribute
+	 * @param sequenceLength Number of time steps
+	 * @return __T0_name, ..., __T(sequenceLength-1)_name
+	 */
+	public static String[] getSequenceNames(String name, int sequenceLength) {
+		String[] names = new String[sequenceLength];
+		for (int t = 0; t < sequenceLength; t++) {
+			names[t] = getTPrepend(t) + name;
+		}
+		return names;
+	}
 	
 	/**
 	 * Replicates attributes to sequence length.
@@ -124,6 +162,12 @@ public abstract class SequenceWidget extends Widget {
 		return sequenceAtts;
 	}
 	
+	/**
+	 * Shifts the __T#_ attributes one time step back, by parsing and renaming them.
+	 * @param atts
+	 * @deprecated the time steps are kept in a SequenceHistory
+	 */
+	@Deprecated
 	protected static void stepBackNames(Attributes atts) {
 		/*
 		 * create a new collection so that it does not get
@@ -178,31 +222,67 @@ public abstract class SequenceWidget extends Widget {
 	/**
 	 * Overridden to take attributes data as an incremental input to the widget. It then removes the oldest sequence step of data.
 	 * Effectively doing a FIFO operation.
+	 * The __T#_ attributes are only rebuilt if they are stored or sent to subscribers;
+	 * otherwise, when the widget is queried.
 	 */
 	@Override
 	protected void notify(String event, Attributes attrs) {
-//		System.out.println("SequenceWidget.notify attrs 1 = " + attrs); 
 		if (attrs == null) { return; }
 		
 		/*
-		 * Shift all previous sequence steps one step back, deleting oldest step
+		 * Add the newest sequence step, deleting oldest step
 		 */
-		stepBackNames(nonConstantAttributes);
-//		System.out.println("SequenceWidget.notify nonConstantAttributes = " + nonConstantAttributes);
+		history.push(attrs);
 		
-		/*
-		 * Set attrs for the newest sequence step
-		 */
-		attrs = prependSequenceIndex(attrs, sequenceLength - 1);
-//		System.out.println("SequenceWidget.notify attrs 2 = " + attrs); 
-		
-		/*
-		 * Add the new attrs
-		 */
-		nonConstantAttributes.putAll(attrs);
-//		System.out.println("notify.nonConstantAttributes = " + nonConstantAttributes);
+		synchronized (history) {
+			if (subscribers.isEmpty() && storage == null) {
+				stale = true; // rebuilt when queried
+			}
+			else {
+				stale = false;
+				nonConstantAttributes.putAll(history.toAttributes());
+			}
+		}
 		super.notify(event, nonConstantAttributes);
 	}
+
+	/**
+	 * Rebuilds the __T#_ attributes of nonConstantAttributes, if time steps
+	 * were added since they were last built
+	 */
+	protected void syncSequenceAttributes() {
+		if (history == null) { return; }
+		synchronized (history) {
+			if (stale) {
+				nonConstantAttributes.putAll(history.toAttributes());
+				stale = false;
+			}
+		}
+	}
+
+	@Override
+	public DataObject runUserMethod(DataObject data) {
+		syncSequenceAttributes();
+		return super.runUserMethod(data);
+	}
+
+	@Override
+	public Attributes getNonConstantAttributes() {
+		syncSequenceAttributes();
+		return super.getNonConstantAttributes();
+	}
+
+	@Override
+	public <T extends Comparable<? super T>> T getNonConstantAttributeValue(String attName) {
+		syncSequenceAttributes();
+		return super.getNonConstantAttributeValue(attName);
+	}
+
+	@Override
+	public DataObject getUserDataObject() {
+		syncSequenceAttributes();
+		return super.getUserDataObject();
+	}
 	
 	/*
 	 * Should just use a normal widget with no memory of history
@@ -0,0 +1,213 @@
+package context.arch.widget;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+import context.arch.storage.Attributes;
+import context.arch.subscriber.UpdatePolicy;
+
+/**
+ * This class applies an UpdatePolicy to a stream of updates: updates whose
+ * values are within the deadbands of the last update sent are dropped, and
+ * updates coming less than minInterval milliseconds after the last update
+ * sent are held back. Only the latest held update is sent, at the end of the
+ * interval.
+ *
+ * It is used by the Widget for its own policy (per callback) and for the
+ * policy of each subscriber.
+ *
+ * @param <T> Type of the updates
+ * @see context.arch.subscriber.UpdatePolicy
+ * @see context.arch.widget.Widget#setUpdatePolicy(UpdatePolicy)
+ */
+public class UpdateCoalescer<T> {
+
+	/**
+	 * Receives the updates held back, when their interval ends. It is called
+	 * by the timer shared by all coalescers, so it must only hand the update
+	 * over, e.g. to the CallbackDispatcher, and never block.
+	 *
+	 * @param <T> Type of the updates
+	 */
+	public interface Sink<T> {
+
+		/**
+		 * Sends an update held back
+		 *
+		 * @param update The latest update of the interval
+		 */
+		public void emit(T update);
+	}
+
+	/**
+	 * Timer shared by all coalescers to send the updates held back
+	 */
+	private static Timer timer;
+
+	private UpdatePolicy policy;
+	private Sink<T> sink;
+
+	private long lastEmitted = 0;
+	private Attributes lastValues;
+	private T pending;
+	private Attributes pendingValues;
+
+	private long emittedCount = 0;
+	private long coalescedCount = 0;
+	private long droppedCount = 0;
+
+	/**
+	 * Creates a coalescer applying the given policy
+	 *
+	 * @param policy Policy to apply
+	 * @param sink Receiver of the updates held back
+	 */
+	public UpdateCoalescer(UpdatePolicy policy, Sink<T> sink) {
+		this.policy = policy;
+		this.sink = sink;
+	}
+
+	/**
+	 * Offers an update. If the update can be sent now, the caller sends it
+	 * itself; otherwise it is dropped, or held back and given to the sink
+	 * later if no newer update replaces it.
+	 *
+	 * @param update The update
+	 * @param values Values of the update, compared with the deadbands
+	 * @return true if the caller must send the update now
+	 */
+	public synchronized boolean offer(T update, Attributes values) {
+		if (pending == null) {
+			if (policy.isWithinDeadband(lastValues, values)) {
+				droppedCount++;
+				return false;
+			}
+			long now = System.currentTimeMillis();
+			long wait = lastEmitted + policy.getMinInterval() - now;
+			if (wait <= 0) {
+				record(now, values);
+				return true;
+			}
+			pending = update;
+			pendingValues = new Attributes();
+			getTimer().schedule(new TimerTask() {
+				public void run() {
+					flush();
+				}
+			}, wait);
+		}
+		else {
+			// latest value wins
+			coalescedCount++;
+			pending = merge(pending, update);
+		}
+		if (values != null) {
+			pendingValues.putAll(values);
+		}
+		return false;
+	}
+
+	/**
+	 * Combines an update held back with a newer one. By default the newer
+	 * update replaces the older one.
+	 *
+	 * @param older Update held back
+	 * @param newer Newer update
+	 * @return the update to hold back instead
+	 */
+	protected T merge(T older, T newer) {
+		return newer;
+	}
+
+	/**
+	 * Sends the update held back, unless its values came back within the
+	 * deadbands of the last update sent
+	 */
+	private void flush() {
+		T update;
+		synchronized (this) {
+			update = pending;
+			if (update == null) {
+				return;
+			}
+			pending = null;
+			if (policy.isWithinDeadband(lastValues, pendingValues)) {
+				droppedCount++;
+				update = null;
+			}
+			else {
+				record(System.currentTimeMillis(), pendingValues);
+			}
+			pendingValues = null;
+		}
+		if (update == null) {
+			return;
+		}
+		try {
+			sink.emit(update);
+		} catch (RuntimeException e) {
+			System.out.println("UpdateCoalescer emit error: " + e);
+			e.printStackTrace();
+		}
+	}
+
+	private void record(long now, Attributes values) {
+		lastEmitted = now;
+		if (lastValues == null) {
+			lastValues = new Attributes();
+		}
+		if (values != null) {
+			lastValues.putAll(values);
+		}
+		emittedCount++;
+	}
+
+	/**
+	 * Returns the policy applied
+	 *
+	 * @return the update policy
+	 */
+	public UpdatePolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Returns the number of updates sent
+	 *
+	 * @return the number of updates sent
+	 */
+	public synchronized long getEmittedCount() {
+		return emittedCount;
+	}
+
+	/**
+	 * Returns the number of updates replaced by a newer one during an interval
+	 *
+	 * @return the number of updates coalesced
+	 */
+	public synchronized long getCoalescedCount() {
+		return coalescedCount;
+	}
+
+	/**
+	 * Returns the number of updates not sent because of the deadbands
+	 *
+	 * @return the number of updates dropped
+	 */
+	public synchronized long getDroppedCount() {
+		return droppedCount;
+	}
+
+	private static synchronized Timer getTimer() {
+		if (timer == null) {
+			timer = new Timer("UpdateCoalescer", true);
+		}
+		return timer;
+	}
+
+	public String toString() {
+		return "UpdateCoalescer " + policy + " - emitted=" + getEmittedCount()
+		+ " - coalesced=" + getCoalescedCount() + " - dropped=" + getDroppedCount();
+	}
+
+}
@@ -1,9 +1,15 @@
 package context.arch.widget;
 
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,14 +37,17 @@ import context.arch.service.helper.ServiceInput;
 import context.arch.storage.Attribute;
 import context.arch.storage.AttributeNameValue;
 import context.arch.storage.Attributes;
+import context.arch.storage.InvalidStorageException;
 import context.arch.storage.Retrieval;
 import context.arch.storage.RetrievalResults;
 import context.arch.storage.StorageObject;
 import context.arch.subscriber.AbstractSubscriber;
 import context.arch.subscriber.Callback;
+import context.arch.subscriber.CallbackDelta;
 import context.arch.subscriber.Callbacks;
 import context.arch.subscriber.Subscriber;
 import context.arch.subscriber.Subscribers;
+import context.arch.subscriber.UpdatePolicy;
 import context.arch.util.Constants;
 import context.arch.util.Error;
 ;
@@ -175,7 +184,6 @@ public abstract class Widget extends BaseObject {
 	protected Attributes constantAttributes;
 	protected Callbacks callbacks;
 	protected Services services;
-	protected long CurrentOffset;
 
 	/**Object to handle subscriptions to context data
 	 * @see context.arch.subscriber.Subscribers
@@ -188,13 +196,31 @@ public abstract class Widget extends BaseObject {
 	 */
 	public StorageObject storage;
 
+	/**Object sending the callbacks to the subscribers
+	 * @see context.arch.widget.CallbackDispatcher
+	 */
+	private final CallbackDispatcher callbackDispatcher = new CallbackDispatcher(this);
+
+	/**Policy applied to the updates of this widget before they are sent to
+	 * any subscriber, null to send every update
+	 * @see #setUpdatePolicy(UpdatePolicy)
+	 */
+	private UpdatePolicy updatePolicy;
+
+	/**Coalescers applying the widget update policy, by callback name
+	 */
+	private final Map<String, UpdateCoalescer<String>> updateCoalescers = new HashMap<String, UpdateCoalescer<String>>();
+
+	/**Coalescers applying the update policies of the subscribers, by subscription id
+	 */
+	private final Map<String, UpdateCoalescer<CallbackDispatcher.CallbackUpdate>> subscriberCoalescers = 
+		new ConcurrentHashMap<String, UpdateCoalescer<CallbackDispatcher.CallbackUpdate>>();
+
 	/**
 	 * Constructor that sets up internal variables for maintaining
 	 * the list of widget attributes, callbacks, and services and setting up
 	 * the BaseObject info.
 	 *
-	 * TO COMPLETE : for storage use
-	 *
 	 * @param clientClass Class to use for client communications
 	 * @param serverClass Class to use for server communications
 	 * @param serverPort Port to use for server communications
@@ -212,6 +238,23 @@ public abstract class Widget extends BaseObject {
 //		setWidgetClassName(widgetClassName);
 //		init(id);
 //		initFull();
+		if (storageClass != null) {
+			setStorage(storageClass, id);
+		}
+	}
+
+	/**
+	 * Creates the storage of the widget history
+	 *
+	 * @param storageClass Class to use for storage
+	 * @param id String to use for persistent storage
+	 */
+	private void setStorage(String storageClass, String id) {
+		try {
+			storage = new StorageObject(storageClass, id);
+		} catch (InvalidStorageException ise) {
+			System.out.println("Widget setStorage InvalidStorage: " + ise);
+		}
 	}
 
 	/**
@@ -240,9 +283,8 @@ public abstract class Widget extends BaseObject {
 //		init(id); // call this only with start()
 //		initFull();
 		
-		// TODO: not ready --Brian
 		if (storageFlag) {
-			storage = new StorageObject();
+			setStorage(StorageObject.DEFAULT_STORAGE_CLASS, id);
 		}
 	}
 
@@ -328,6 +370,9 @@ public abstract class Widget extends BaseObject {
 		init(); // may be implemented by subclass widget
 		
 		setCallbacks(initCallbacks());
+		if (storage != null) {
+			storage.setAttributes(nonConstantAttributes);
+		}
 		setSubscribers();
 		getNewOffset();
 	}
@@ -567,7 +612,9 @@ public abstract class Widget extends BaseObject {
 
 		setNonConstantAttributes(attrs); // update widget in memory
 		store(attrs); // update widget in storage
-		sendToSubscribers(callbackName); // notify subscribers
+		if (acceptUpdate(callbackName, attrs)) {
+			sendToSubscribers(callbackName); // notify subscribers
+		}
 
 		// This is very useful for debugging, but it is very verbose, especially for widgets with many attributes
 //		System.out.println(getClassName() + ".notify attrs: " + attrs);
@@ -748,6 +795,9 @@ public abstract class Widget extends BaseObject {
 		else if (methodType.equals(Subscriber.REMOVE_SUBSCRIBER)) {
 			return removeSubscriber(data,error);
 		}
+		else if (methodType.equals(CallbackDelta.RESYNC_SUBSCRIBER)) {
+			return resyncSubscriber(data,error);
+		}
 		else if (methodType.equals(StorageObject.RETRIEVE_DATA)) {
 			return retrieveData(data,error);
 		}
@@ -804,7 +854,9 @@ public abstract class Widget extends BaseObject {
 			}
 			
 			setNonConstantAttributes(atts);
-			sendToSubscribers(callbackName);
+			if (acceptUpdate(callbackName, atts)) {
+				sendToSubscribers(callbackName);
+			}
 			store(atts);
 			return err.setError(Error.NO_ERROR);
 		}
@@ -1080,102 +1132,143 @@ public abstract class Widget extends BaseObject {
 	 * widget's callback is triggered.  It sends data only to those subscribers
 	 * that have subscribed to the specified callback.
 	 *
+	 * What is sent is the same for all the subscribers: it is computed once per
+	 * update and queued to the CallbackDispatcher, which sends it outside of the
+	 * calling thread.
+	 *
 	 * @author Agathe, to use independentCommunication
 	 *
 	 *
 	 * @param callbackTag Context widget callback that was triggered
-	 * @param atts AttributeNameValues to send to subscribers
-	 * @param data DataObject version of atts
 	 * @see BaseObject#userRequest(DataObject, String, String, int)
 	 * @see context.arch.subscriber.Subscribers
+	 * @see #dispatchToSubscribers(CallbackDispatcher.CallbackUpdate)
 	 */
 	protected void sendToSubscribers(String callbackName) {
-		if (!callbacks.containsKey(callbackName)) { return; }
-		if (subscribers.isEmpty()) { return; }
-		
-//		new RuntimeException("widget.sendToSubscribers attributes = " + nonConstantAttributes).printStackTrace();
-		
-		//ADDED FOR EXPLANATIONS
-		ArrayList<ComponentDescription> logSubscribers = new ArrayList<ComponentDescription>();
+		CallbackDispatcher.CallbackUpdate update = takeUpdate(callbackName);
+		if (update != null) {
+			callbackDispatcher.submit(update);
+		}
+	}
+
+	/**
+	 * Takes the snapshot of an update to send to the subscribers of a callback
+	 *
+	 * @param callbackName Context widget callback that was triggered
+	 * @return the snapshot, or null if there is nothing to send
+	 */
+	private CallbackDispatcher.CallbackUpdate takeUpdate(String callbackName) {
+		if (!callbacks.containsKey(callbackName)) { return null; }
+		if (subscribers.isEmpty()) { return null; }
 		
 		debugprintln(DEBUG, "\n\nWidget <sendToSubscribers> callback=" + callbackName);
 		Callback callback = callbacks.get(callbackName);
-		
+
+		// copies, since the widget may be updated again before the dispatch
+		Attributes callAtts = new Attributes(callback.getAttributes());
+		Attributes subAtts = new Attributes(nonConstantAttributes.getSubset(callAtts));
+		Attributes constSubAtts = new Attributes(constantAttributes.getSubset(callAtts));
+
+		// the component description is only needed to check the conditions of the subscribers
+		ComponentDescription description = null;
+		for (AbstractSubscriber asub : subscribers.values()) {
+			if (callbackName.equals(asub.getSubscriptionCallback()) && ((Subscriber) asub).getCondition() != null) {
+				description = getComponentDescription();
+				break;
+			}
+		}
+
+		DataObject compDescription = null;
+		if (!subAtts.isEmpty() || !constSubAtts.isEmpty()) {
+			compDescription = buildCallbackComponentDescription(subAtts, constSubAtts);
+		}
+
+		return new CallbackDispatcher.CallbackUpdate(callbackName, description, compDescription, subAtts, constSubAtts);
+	}
+
+	/**
+	 * This method sends a queued update to the subscribers of its callback
+	 * whose conditions are met. It is called by the CallbackDispatcher, in order.
+	 * The callbacks to subscribers sharing the same host and port are sent in
+	 * one SUBSCRIPTION_CALLBACKS message, if the dispatcher batches them.
+	 * An update for a single subscription was held back by the update policy
+	 * of that subscription, and is sent to it alone.
+	 *
+	 * @param update Snapshot of the update
+	 * @see context.arch.widget.CallbackDispatcher
+	 * @see context.arch.BaseObject#userCallbacks(DataObject)
+	 */
+	void dispatchToSubscribers(CallbackDispatcher.CallbackUpdate update) {
+		//ADDED FOR EXPLANATIONS
+		ArrayList<ComponentDescription> logSubscribers = new ArrayList<ComponentDescription>();
+
 		// For each subscriber, see if the subscriber is interested
 		debugprintln(DEBUG, "widget <sendToSubs> nb subs? " + subscribers.size());
-//println("widget <sendToSubs> subs? " + subscribers); 
-		
-		for (AbstractSubscriber asub : subscribers.values()) {
-			Subscriber sub = (Subscriber) asub;
-			DataObject result = null;      // callback reply
-			
-			// Check if the subscriber wants this callback
-			debugprintln(DEBUG, "Widget <sendToSubs> test callback=" + callbackName + " ?? equal to sub call=" + sub.getSubscriptionCallback ());
-			
-			if (callbackName.equals(sub.getSubscriptionCallback())) {		
-				// Checks if the subscriber has specified conditions
-				if (dataValid(callback, sub.getCondition())) {
-					debugprintln(DEBUG, "Widget <sendToSubscribers> datavalid TRUE");
-//println("widget callback = " + callback);
-					Attributes callAtts = new Attributes(callback.getAttributes());
 
-					Attributes subAtts = nonConstantAttributes.getSubset(callAtts);//.getSubset(sub.getAttributes());
-					Attributes constSubAtts = constantAttributes.getSubset(callAtts);//.getSubset(sub.getAttributes());
-//println("widget nonConstantAttributes = " + nonConstantAttributes);
-//println("widget callAtts = " + callAtts);
-//println("widget sub = " + sub);
-//println("widget sub.getAttributes() = " + sub.getAttributes());
-//println("widget subAtts = " + subAtts);
-					
-					//only process if we have attribute to return
-					if (subAtts.isEmpty() && constSubAtts.isEmpty()) { continue; }
-					
-					DataObject subId = new DataObject(Subscriber.SUBSCRIBER_ID, sub.getSubscriptionId());
-					
-					DataObjects v = new DataObjects();
-					v.addElement(subId);
-					DataObject compDescription = buildCallbackComponentDescription(subAtts, constSubAtts);
-//println("widget compDescription = " + compDescription + "\n");
-					v.addElement(compDescription);
-					DataObject send = new DataObject(Subscriber.SUBSCRIPTION_CALLBACK, v);
-
-					// Agathe: change to use independentUserRequest
-					try {
-						result = null;
-						
-						// Create the independent comm object
-						IndependentCommunication comm = new IndependentCommunication(
-															new RequestObject(send, Subscriber.SUBSCRIPTION_CALLBACK, 
-																sub.getSubscriberHostName(), 
-																sub.getSubscriberPort()));
-						
-						// Store the sub object to remove it if it does not exist anymore
-						comm.setObjectToStore(sub);
-						
-						// Store some reference for this communication
-						comm.setSenderClassId(Widget.WIDGET_TYPE + Subscriber.SUBSCRIPTION_CALLBACK);
-						
-						// Send the notification
-						independentUserRequest(comm);
-						
-					} catch (EncodeException ee) {
-						System.out.println("Widget sendToSubscribers EncodeException: "+ee);
-					} catch (InvalidEncoderException iee) {
-						System.out.println("Widget sendToSubscribers InvalidEncoderException: "+iee);
+		// only process if we have attribute to return
+		if (update.callbackData != null) {
+			// subscribers grouped by host and port
+			Map<String, List<Subscriber>> endpoints = new LinkedHashMap<String, List<Subscriber>>();
+			Collection<AbstractSubscriber> candidates = subscribers.values();
+			if (update.subscriptionId != null) {
+				AbstractSubscriber target = subscribers.get(update.subscriptionId);
+				if (target == null) { // unsubscribed in the meantime
+					subscriberCoalescers.remove(update.subscriptionId);
+					return;
+				}
+				candidates = Collections.singletonList(target);
+			}
+			for (AbstractSubscriber asub : candidates) {
+				Subscriber sub = (Subscriber) asub;
+
+				// Check if the subscriber wants this callback
+				debugprintln(DEBUG, "Widget <sendToSubs> test callback=" + update.callbackName + " ?? equal to sub call=" + sub.getSubscriptionCallback ());
+
+				if (update.callbackName.equals(sub.getSubscriptionCallback())) {
+					// Checks if the subscriber has specified conditions
+					if (dataValid(update.description, sub.getCondition())) {
+						debugprintln(DEBUG, "Widget <sendToSubscribers> datavalid TRUE");
+						if (update.subscriptionId == null && !acceptUpdate(sub, update)) {
+							debugprintln(DEBUG, "Widget <sendToSubscribers> held back by the update policy of " + sub.getSubscriptionId());
+							continue;
+						}
+						String endpoint = sub.getSubscriberHostName() + ":" + sub.getSubscriberPort();
+						List<Subscriber> subs = endpoints.get(endpoint);
+						if (subs == null) {
+							subs = new ArrayList<Subscriber>();
+							endpoints.put(endpoint, subs);
+						}
+						subs.add(sub);
+					}
+					else {
+						debugprintln(DEBUG, "Widget <sendToSubscribers> datavalid FALSE");
 					}
+				}
+			}
+
+			for (List<Subscriber> subs : endpoints.values()) {
+				if (subs.size() == 1 || !callbackDispatcher.isBatching()) {
+					for (Subscriber sub : subs) {
+						sendCallback(update, Collections.singletonList(sub));
+					}
+				}
+				else {
+					sendCallback(update, subs);
+				}
 
+				for (Subscriber sub : subs) {
 					//ADDED FOR LOGGING:
 					ComponentDescription logCompDescription = new ComponentDescription();
 					logCompDescription.id = sub.getBaseObjectId();
-					logCompDescription.setConstantAttributes(constSubAtts);
-					logCompDescription.setNonConstantAttributes(subAtts);
+					logCompDescription.setConstantAttributes(update.constantAttributes);
+					logCompDescription.setNonConstantAttributes(update.nonConstantAttributes);
 
 					sub.resetErrors(); 
-					
+
 					// we pass the result on for processing
 					// TODO: pass it on only if it's not an error message?
 					try {          		
-						processCallbackReply(result, sub);
+						processCallbackReply(null, sub);
 
 						//ADDED FOR EXPLANATIONS
 						logSubscribers.add(logCompDescription);
@@ -1183,21 +1276,187 @@ public abstract class Widget extends BaseObject {
 						System.out.println ("Widget sendToSubscribers Exception during processCallbackReply: "+e);
 					}
 				}
-				else {
-					debugprintln(DEBUG, "Widget <sendToSubscribers> datavalid FALSE");
-				}
 			}
 		}
 		
 		//ADDED FOR EXPLANATIONS
 		ComponentUpdateLogger CUL = ComponentUpdateLogger.getCULInstance();
 		try{
-			CUL.insertComponentUpdateEntry(this.getId(), callbackName, logSubscribers);
+			CUL.insertComponentUpdateEntry(this.getId(), update.callbackName, logSubscribers);
 		} catch (LoggingException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Sends the callback of an update to subscribers sharing the same host and
+	 * port: a SUBSCRIPTION_CALLBACK message for one subscriber, a
+	 * SUBSCRIPTION_CALLBACKS message for several.
+	 *
+	 * @param update Snapshot of the update
+	 * @param subs Subscribers of the same endpoint
+	 */
+	private void sendCallback(CallbackDispatcher.CallbackUpdate update, List<Subscriber> subs) {
+		Subscriber first = subs.get(0);
+		DataObjects callbackObjects = new DataObjects();
+		for (Subscriber sub : subs) {
+			DataObjects v = new DataObjects();
+			v.addElement(new DataObject(Subscriber.SUBSCRIBER_ID, sub.getSubscriptionId()));
+			v.addElement(getCallbackData(update, sub));
+			callbackObjects.addElement(new DataObject(Subscriber.SUBSCRIPTION_CALLBACK, v));
+		}
+
+		RequestObject request;
+		String senderId;
+		Object toStore;
+		if (subs.size() == 1) {
+			request = new RequestObject(callbackObjects.firstElement(), Subscriber.SUBSCRIPTION_CALLBACK, 
+					first.getSubscriberHostName(), first.getSubscriberPort());
+			senderId = Widget.WIDGET_TYPE + Subscriber.SUBSCRIPTION_CALLBACK;
+			toStore = first;
+		}
+		else {
+			request = new RequestObject(new DataObject(Subscriber.SUBSCRIPTION_CALLBACKS, callbackObjects), Subscriber.SUBSCRIPTION_CALLBACKS, 
+					first.getSubscriberHostName(), first.getSubscriberPort());
+			senderId = Widget.WIDGET_TYPE + Subscriber.SUBSCRIPTION_CALLBACKS;
+			toStore = new ArrayList<Subscriber>(subs);
+		}
+
+		// Agathe: change to use independentUserRequest
+		try {
+			// Create the independent comm object
+			IndependentCommunication comm = new IndependentCommunication(request);
+
+			// Store the sub object(s) to remove them if they do not exist anymore
+			comm.setObjectToStore(toStore);
+
+			// Store some reference for this communication
+			comm.setSenderClassId(senderId);
+
+			// Send the notification
+			independentUserRequest(comm);
+			callbackDispatcher.messageSent(subs.size());
+
+		} catch (EncodeException ee) {
+			System.out.println("Widget sendToSubscribers EncodeException: "+ee);
+		} catch (InvalidEncoderException iee) {
+			System.out.println("Widget sendToSubscribers InvalidEncoderException: "+iee);
+		}
+	}
+
+	/**
+	 * Sets how fast the updates of this widget may be sent to its subscribers:
+	 * updates coming faster than the minimum interval are coalesced (the latest
+	 * values are sent at the end of the interval) and updates within the
+	 * deadbands are not sent. The updates are still stored. Subscribers may
+	 * also set their own policy in their subscription.
+	 *
+	 * @param updatePolicy Update policy, null to send every update
+	 * @see context.arch.subscriber.Subscriber#setUpdatePolicy(UpdatePolicy)
+	 */
+	public void setUpdatePolicy(UpdatePolicy updatePolicy) {
+		synchronized (updateCoalescers) {
+			this.updatePolicy = updatePolicy;
+			updateCoalescers.clear();
+		}
+	}
+
+	/**
+	 * Returns how fast the updates of this widget may be sent to its subscribers
+	 *
+	 * @return the update policy, or null if every update is sent
+	 */
+	public UpdatePolicy getUpdatePolicy() {
+		return updatePolicy;
+	}
+
+	/**
+	 * Applies the widget update policy to an update
+	 *
+	 * @param callbackName Callback triggered
+	 * @param attrs Attributes updated
+	 * @return true if the subscribers must be notified now, false if the
+	 * update is held back or dropped
+	 */
+	private boolean acceptUpdate(final String callbackName, Attributes attrs) {
+		UpdateCoalescer<String> coalescer;
+		synchronized (updateCoalescers) {
+			if (updatePolicy == null || !updatePolicy.isActive()) {
+				return true;
+			}
+			coalescer = updateCoalescers.get(callbackName);
+			if (coalescer == null) {
+				coalescer = new UpdateCoalescer<String>(updatePolicy, new UpdateCoalescer.Sink<String>() {
+					public void emit(String name) {
+						// the widget already holds the latest values; queued
+						// without blocking the timer of the coalescers
+						CallbackDispatcher.CallbackUpdate update = takeUpdate(name);
+						if (update != null) {
+							callbackDispatcher.offer(update);
+						}
+					}
+				});
+				updateCoalescers.put(callbackName, coalescer);
+			}
+		}
+		return coalescer.offer(callbackName, attrs);
+	}
+
+	/**
+	 * Applies the update policy of a subscriber to an update
+	 *
+	 * @param sub Subscriber
+	 * @param update Snapshot of the update
+	 * @return true if the callback must be sent now, false if it is held back or dropped
+	 */
+	private boolean acceptUpdate(Subscriber sub, CallbackDispatcher.CallbackUpdate update) {
+		UpdatePolicy policy = sub.getUpdatePolicy();
+		final String subId = sub.getSubscriptionId();
+		if (policy == null || !policy.isActive()) {
+			if (subId != null) { subscriberCoalescers.remove(subId); }
+			return true;
+		}
+		UpdateCoalescer<CallbackDispatcher.CallbackUpdate> coalescer = subscriberCoalescers.get(subId);
+		if (coalescer == null || coalescer.getPolicy() != policy) {
+			coalescer = new UpdateCoalescer<CallbackDispatcher.CallbackUpdate>(policy, 
+					new UpdateCoalescer.Sink<CallbackDispatcher.CallbackUpdate>() {
+				public void emit(CallbackDispatcher.CallbackUpdate latest) {
+					// sent by the dispatcher, in order with the other updates
+					callbackDispatcher.offer(new CallbackDispatcher.CallbackUpdate(latest, subId));
+				}
+			});
+			subscriberCoalescers.put(subId, coalescer);
+		}
+		return coalescer.offer(update, update.nonConstantAttributes);
+	}
+
+	/**
+	 * Returns the dispatcher sending the callbacks of this widget, to tune
+	 * it or read its queue depth and counters
+	 *
+	 * @return the callback dispatcher
+	 */
+	public CallbackDispatcher getCallbackDispatcher() {
+		return callbackDispatcher;
+	}
+
+	/**
+	 * Returns the callback data of an update for a subscriber: the same data
+	 * for every subscriber, or only the attributes changed since its previous
+	 * callback if it asked for delta callbacks.
+	 *
+	 * @param update Snapshot of the update
+	 * @param sub Subscriber to send the callback to
+	 * @return the <REGISTERER> DataObject to send
+	 * @see CallbackDelta
+	 */
+	private DataObject getCallbackData(CallbackDispatcher.CallbackUpdate update, Subscriber sub) {
+		if (!sub.isDeltaCallbacks()) {
+			return update.callbackData;
+		}
+		return sub.getCallbackDelta().encode(getId(), update.nonConstantAttributes, update.constantAttributes);
+	}
+
 	/**
 	 * constructs an abbreviated ComponentDescription containing only the necessary information
 	 * for the callback.
@@ -1223,14 +1482,15 @@ public abstract class Widget extends BaseObject {
 	/**
 	 * This private method checks that the given data falls within the given conditions.
 	 *
-	 * @param atts AttributeNameValues containing data to validate
+	 * @param description Component description to validate, computed once per update
 	 * @param conditions Conditions to validate against
 	 * @return whether the data falls within the given conditions
 	 */
-	private boolean dataValid(Callback callback, AbstractQueryItem<?,?> condition) {
+	private boolean dataValid(ComponentDescription description, AbstractQueryItem<?,?> condition) {
 		if (condition == null) { return true; }
+		if (description == null) { description = getComponentDescription(); }
 
-		Boolean match = condition.match(getComponentDescription());
+		Boolean match = condition.match(description);
 		if (match == null) { return false; }
 		else { return match; }
 	}
@@ -1344,6 +1604,52 @@ public abstract class Widget extends BaseObject {
 		return new DataObject(Subscriber.SUBSCRIPTION_REPLY, v);
 	}
 
+	/**
+	 * This method handles the request of a subscriber with delta callbacks
+	 * that missed a callback: its next callback is full, and one is queued
+	 * right away with the current values of the attributes of its callback.
+	 *
+	 * @param data DataObject containing the id of the subscriber
+	 * @param error String containing the incoming error value
+	 * @return DataObject containing the reply to the request
+	 * @see CallbackDelta
+	 */
+	protected DataObject resyncSubscriber(DataObject data, String error) {
+		DataObjects v = new DataObjects();
+		Error err = new Error(error);
+		if (err.getError() == null) {
+			DataObject dobj = data.getDataObject(AbstractSubscriber.SUBSCRIBER_ID);
+			AbstractSubscriber asub = (dobj == null || dobj.getValue() == null) ? null : subscribers.get(dobj.getValue());
+
+			if (!(asub instanceof Subscriber) || !((Subscriber) asub).isDeltaCallbacks()) {
+				err.setError(Error.UNKNOWN_SUBSCRIBER_ERROR);
+			}
+			else {
+				Subscriber sub = (Subscriber) asub;
+				sub.getCallbackDelta().resync();
+
+				Callback callback = callbacks.get(sub.getSubscriptionCallback());
+				if (callback != null) {
+					Attributes callAtts = new Attributes(callback.getAttributes());
+					Attributes subAtts = new Attributes(nonConstantAttributes.getSubset(callAtts));
+					Attributes constSubAtts = new Attributes(constantAttributes.getSubset(callAtts));
+					if (!subAtts.isEmpty() || !constSubAtts.isEmpty()) {
+						// sent by the dispatcher, in order with the other callbacks of the subscriber
+						callbackDispatcher.offer(new CallbackDispatcher.CallbackUpdate(
+								new CallbackDispatcher.CallbackUpdate(callback.getName(), null,
+										buildCallbackComponentDescription(subAtts, constSubAtts), subAtts, constSubAtts),
+								sub.getSubscriptionId()));
+					}
+				}
+				v.addElement(new DataObject(Subscriber.SUBSCRIBER_ID, sub.getSubscriptionId()));
+				err.setError(Error.NO_ERROR);
+			}
+		}
+
+		v.addElement(err.toDataObject());
+		return new DataObject(CallbackDelta.RESYNC_SUBSCRIBER_REPLY, v);
+	}
+
 	/**
 	 * This method retrieves data from the widget's storage.  It returns a
 	 * DataObject containing the retrieved data information, including any error information.
@@ -1359,7 +1665,10 @@ public abstract class Widget extends BaseObject {
 		if (err.getError() == null) {
 			Retrieval retrieval = new Retrieval(data);
 
-			if (storage == null) {
+			if (!retrieval.isValid()) {
+				err.setError(Error.INVALID_REQUEST_ERROR);
+			}
+			else if (storage == null) {
 				err.setError(Error.EMPTY_RESULT_ERROR);
 			}
 			else {
@@ -1410,16 +1719,15 @@ public abstract class Widget extends BaseObject {
 	}
 
 	/**
-	 * This method creates a thread that retrieves a global time clock and determines
-	 * the offset between the local clock and the global clock. It checks this
+	 * This method starts the clock service of the process, if it isn't yet. It
+	 * doesn't wait for the network: the service refreshes the offset between the
+	 * local clock and the global clock in the background, and getCurrentTime
+	 * reads its latest value.
 	 *
-	 * @return the offset between the global and local clocks
-	 * @see context.arch.widget.OffsetThread
+	 * @see context.arch.widget.ClockService
 	 */
 	protected void getNewOffset() {
-		OffsetThread offset = new OffsetThread();
-		CurrentOffset = offset.getCurrentOffset();
-		offset = new OffsetThread(120);
+		ClockService.getInstance();
 	}
 
 	/**
@@ -1427,21 +1735,20 @@ public abstract class Widget extends BaseObject {
 	 * with no delay.
 	 *
 	 * @return the offset between the global and local clocks
-	 * @see context.arch.widget.OffsetThread
+	 * @see context.arch.widget.ClockService
 	 */
 	protected long getNewOffsetNoDelay() {
-		OffsetThread offset = new OffsetThread();
-		return offset.getCurrentOffset();
+		return ClockService.getInstance().getOffset();
 	}
 
 	/**
 	 * This method returns the current time to use as a timestamp
 	 *
 	 * @return the current time, corrected using a global clock offset
+	 * @see context.arch.widget.ClockService#currentTime()
 	 */
 	protected Long getCurrentTime() {
-		long temp = new Date().getTime();
-		return new Long(temp + CurrentOffset);
+		return ClockService.getInstance().currentTime();
 	}
 
 	/**
@@ -1556,7 +1863,7 @@ public abstract class Widget extends BaseObject {
 	/**
 	 * This method is called when the widget is restarted. This method restarts
 	 * the subscriptions, that is, the widget creates the subscribers that are
-	 * described in its logfile. To each identified subscriber, the widget sends a
+	 * described in its subscription journal. To each identified subscriber, the widget sends a
 	 * PING message to check their liveliness. The URL sent is WIDGET+SUBSCRIBERS+PING.
 	 * This PING is done through an independent connection (a thread handles the
 	 * communication), so the result of the PING is got in the widget.handleIndependentReply.
@@ -1565,13 +1872,13 @@ public abstract class Widget extends BaseObject {
 	 */
 	protected void setSubscribers(){
 		debugprintln(DEBUG, "\n\nWidget <setSubscribers> ");
-		// Get the subscribers retrieved from the log file
+		// Get the subscribers restored from the journal, before any callback is sent
 		Subscribers notCheckedSubs = new Subscribers(this, this.getId());
+		subscribers = notCheckedSubs;
 		// Check them to be sure they are still alive
 		int numSubsToCheck = 0;
 		
 		for (AbstractSubscriber temp : notCheckedSubs.values()) {
-			subscribers = notCheckedSubs;
 			debugprintln(DEBUG, "widget <setSubs> send a PING for " + temp);
 			
 			IndependentCommunication indComm =
@@ -1584,7 +1891,6 @@ public abstract class Widget extends BaseObject {
 			pingComponent(indComm);
 			numSubsToCheck++;
 		}
-		subscribers = notCheckedSubs;
 		debugprintln(DEBUG, "End setSubscriber # subs to check= " + numSubsToCheck);
 	}
 
@@ -1643,6 +1949,20 @@ public abstract class Widget extends BaseObject {
 				}
 			}
 
+			// The reply comes from a batched subscription notification
+			else if (senderId != null && senderId.equals(Widget.WIDGET_TYPE+Subscriber.SUBSCRIPTION_CALLBACKS)){
+				if ( ! independentCommunication.getExceptions ().isEmpty ()){
+					// If there are exception, remove the subscribers of that notification
+					@SuppressWarnings("unchecked")
+					List<Subscriber> subs = (List<Subscriber>) independentCommunication.getObjectToStore ();
+					for (Subscriber sub : subs) {
+						debugprintln (DEBUG, "IndependentCommunication ERROR - remove the subscriber=" + sub);
+						subscribers.removeSubscriber (sub);
+					}
+					this.discovererUpdate ();
+				}
+			}
+
 			// Else, asks to the super class
 			else{
 				super.handleIndependentReply (independentCommunication);
@@ -1672,6 +1992,7 @@ public abstract class Widget extends BaseObject {
 	}
 	public void shutdown() {
 		System.out.println(this.getId() + " shutting down");
+		ClockService.closeInstance();
 	}
 	class ShutdownHook extends Thread {
 		public void run() {
@@ -0,0 +1,197 @@
+package be.ac.ulg.montefiore.run.jahmm.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import be.ac.ulg.montefiore.run.jahmm.Hmm;
+import be.ac.ulg.montefiore.run.jahmm.ObservationInteger;
+import be.ac.ulg.montefiore.run.jahmm.ObservationReal;
+import be.ac.ulg.montefiore.run.jahmm.ObservationVector;
+import be.ac.ulg.montefiore.run.jahmm.OpdfGaussian;
+import be.ac.ulg.montefiore.run.jahmm.OpdfInteger;
+import be.ac.ulg.montefiore.run.jahmm.OpdfMultiGaussian;
+
+/**
+ * Tests that a HMM written by HmmFlatWriter and mapped back by HmmFlatReader
+ * has the same initial probabilities, transition matrix and Opdfs, for each
+ * kind of Opdf supported.
+ */
+public class HmmFlatReaderTest {
+
+	private static final int STATES = 3;
+
+	private Random random;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		random = new Random(3);
+		file = File.createTempFile("hmm", ".flat");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	private double[] probabilities(int size) {
+		double[] p = new double[size];
+		double sum = 0;
+		for (int i = 0; i < size; i++) {
+			p[i] = random.nextDouble();
+			sum += p[i];
+		}
+		for (int i = 0; i < size; i++) {
+			p[i] /= sum;
+		}
+		return p;
+	}
+
+	private double[][] transitions() {
+		double[][] a = new double[STATES][];
+		for (int i = 0; i < STATES; i++) {
+			a[i] = probabilities(STATES);
+		}
+		return a;
+	}
+
+	/**
+	 * Writes the HMM, reads it back, and checks pi and A
+	 */
+	private Hmm<?> roundTrip(Hmm<?> hmm) throws IOException, FileFormatException {
+		HmmFlatWriter.write(file, hmm);
+		assertTrue(HmmFlatReader.isFlat(file));
+		Hmm<?> read = HmmFlatReader.read(file);
+		assertEquals(hmm.nbStates(), read.nbStates());
+		for (int i = 0; i < hmm.nbStates(); i++) {
+			assertEquals(hmm.getPi(i), read.getPi(i), 0);
+			for (int j = 0; j < hmm.nbStates(); j++) {
+				assertEquals(hmm.getAij(i, j), read.getAij(i, j), 0);
+			}
+		}
+		return read;
+	}
+
+	@Test
+	public void testOpdfVector() throws Exception {
+		List<OpdfVector> opdfs = new ArrayList<OpdfVector>();
+		for (int i = 0; i < STATES; i++) {
+			opdfs.add(new OpdfVector(probabilities(16)));
+		}
+		Hmm<?> read = roundTrip(new Hmm<ObservationVector>(probabilities(STATES), transitions(), opdfs));
+		assertEquals(HmmFlatWriter.OPDF_VECTOR, HmmFlatReader.opdfKind(file));
+
+		for (int i = 0; i < STATES; i++) {
+			OpdfVector expected = opdfs.get(i);
+			OpdfVector opdf = (OpdfVector) read.getOpdf(i);
+			assertEquals(expected.nbValues(), opdf.nbValues());
+			assertEquals(4, opdf.dimension());
+			for (int k = 0; k < expected.nbValues(); k++) {
+				assertEquals(expected.probability(k), opdf.probability(k), 0);
+				ObservationVector o = new ObservationVector(OpdfVector.toVector(k, 2, 4));
+				assertEquals(expected.probability(o), opdf.probability(o), 0);
+			}
+			assertEquals(OpdfVector.EPSILON, opdf.probability(16), 0);
+
+			// the probabilities are also available as a map, as for a PDF not read from a flat file
+			assertEquals(expected.getProbs(), opdf.getProbs());
+			assertEquals(expected.getProbs(), opdf.clone().getProbs());
+		}
+	}
+
+	@Test
+	public void testOpdfVectorIsSerializedWithItsProbabilities() throws Exception {
+		List<OpdfVector> opdfs = new ArrayList<OpdfVector>();
+		for (int i = 0; i < STATES; i++) {
+			opdfs.add(new OpdfVector(probabilities(8)));
+		}
+		Hmm<?> read = roundTrip(new Hmm<ObservationVector>(probabilities(STATES), transitions(), opdfs));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(read.getOpdf(1));
+		out.close();
+		OpdfVector copy = (OpdfVector) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		assertEquals(opdfs.get(1).getProbs(), copy.getProbs());
+	}
+
+	@Test
+	public void testOpdfInteger() throws Exception {
+		List<OpdfInteger> opdfs = new ArrayList<OpdfInteger>();
+		for (int i = 0; i < STATES; i++) {
+			opdfs.add(new OpdfInteger(probabilities(5)));
+		}
+		Hmm<?> read = roundTrip(new Hmm<ObservationInteger>(probabilities(STATES), transitions(), opdfs));
+		assertEquals(HmmFlatWriter.OPDF_INTEGER, HmmFlatReader.opdfKind(file));
+
+		for (int i = 0; i < STATES; i++) {
+			OpdfInteger opdf = (OpdfInteger) read.getOpdf(i);
+			assertEquals(5, opdf.nbEntries());
+			for (int k = 0; k < 5; k++) {
+				assertEquals(opdfs.get(i).probability(new ObservationInteger(k)), opdf.probability(new ObservationInteger(k)), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testOpdfGaussian() throws Exception {
+		List<OpdfGaussian> opdfs = new ArrayList<OpdfGaussian>();
+		for (int i = 0; i < STATES; i++) {
+			opdfs.add(new OpdfGaussian(random.nextGaussian(), 0.1 + random.nextDouble()));
+		}
+		Hmm<?> read = roundTrip(new Hmm<ObservationReal>(probabilities(STATES), transitions(), opdfs));
+		assertEquals(HmmFlatWriter.OPDF_GAUSSIAN, HmmFlatReader.opdfKind(file));
+
+		for (int i = 0; i < STATES; i++) {
+			OpdfGaussian opdf = (OpdfGaussian) read.getOpdf(i);
+			assertEquals(opdfs.get(i).mean(), opdf.mean(), 0);
+			assertEquals(opdfs.get(i).variance(), opdf.variance(), 0);
+		}
+	}
+
+	@Test
+	public void testOpdfMultiGaussian() throws Exception {
+		List<OpdfMultiGaussian> opdfs = new ArrayList<OpdfMultiGaussian>();
+		for (int i = 0; i < STATES; i++) {
+			double c = random.nextDouble() * 0.5;
+			opdfs.add(new OpdfMultiGaussian(new double[] { random.nextGaussian(), random.nextGaussian() },
+					new double[][] { { 1, c }, { c, 2 } }));
+		}
+		Hmm<?> read = roundTrip(new Hmm<ObservationVector>(probabilities(STATES), transitions(), opdfs));
+		assertEquals(HmmFlatWriter.OPDF_MULTI_GAUSSIAN, HmmFlatReader.opdfKind(file));
+
+		for (int i = 0; i < STATES; i++) {
+			OpdfMultiGaussian opdf = (OpdfMultiGaussian) read.getOpdf(i);
+			assertArrayEquals(opdfs.get(i).mean(), opdf.mean(), 0);
+			for (int r = 0; r < 2; r++) {
+				assertArrayEquals(opdfs.get(i).covariance()[r], opdf.covariance()[r], 0);
+			}
+		}
+	}
+
+	@Test
+	public void testTextFileIsNotFlat() throws Exception {
+		FileWriter writer = new FileWriter(file);
+		writer.write("Hmm v1.0\n");
+		writer.close();
+		assertFalse(HmmFlatReader.isFlat(file));
+	}
+
+}
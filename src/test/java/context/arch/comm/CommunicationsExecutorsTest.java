@@ -0,0 +1,136 @@
+package context.arch.comm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests the executors of the execution modes, and that a saturated pool
+ * rejects its tasks instead of running them on the calling thread.
+ */
+public class CommunicationsExecutorsTest {
+
+	private static final long TIMEOUT = 5000;
+
+	/**
+	 * Records the threads running it, and waits for the gate before returning
+	 */
+	private static class Task implements Runnable {
+		final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+		final CountDownLatch gate;
+		final CountDownLatch done;
+
+		Task(CountDownLatch gate, int count) {
+			this.gate = gate;
+			this.done = new CountDownLatch(count);
+		}
+
+		public void run() {
+			threads.add(Thread.currentThread());
+			try {
+				gate.await();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			done.countDown();
+		}
+	}
+
+	private static CountDownLatch open() {
+		return new CountDownLatch(0);
+	}
+
+	@Test
+	public void testThreadPerRequestStartsAThread() throws InterruptedException {
+		assertNull(CommunicationsExecutors.create(CommunicationsExecutors.EXECUTION_THREAD_PER_REQUEST));
+		assertNull(CommunicationsExecutors.create(null));
+
+		Task task = new Task(open(), 1);
+		CommunicationsExecutors.execute(null, task);
+		assertTrue(task.done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertFalse(task.threads.contains(Thread.currentThread()));
+	}
+
+	@Test
+	public void testBoundedPoolRejectsWhenSaturated() throws InterruptedException {
+		ExecutorService pool = CommunicationsExecutors.newBoundedPool(1, 1);
+		CountDownLatch gate = new CountDownLatch(1);
+		Task task = new Task(gate, 2);
+		CommunicationsExecutors.execute(pool, task); // runs
+		CommunicationsExecutors.execute(pool, task); // waits in the queue
+		assertTrue(CommunicationsExecutors.hasWaitingTasks(pool));
+		try {
+			CommunicationsExecutors.execute(pool, task);
+			fail("the saturated pool ran the task");
+		} catch (RejectedExecutionException ree) {
+			// expected: never run by the caller
+		}
+
+		gate.countDown();
+		assertTrue(task.done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertFalse(task.threads.contains(Thread.currentThread()));
+		assertFalse(CommunicationsExecutors.hasWaitingTasks(pool));
+		assertTrue(task.threads.iterator().next().isDaemon());
+		pool.shutdown();
+	}
+
+	@Test
+	public void testVirtualThreadsRunEveryTask() throws InterruptedException {
+		ExecutorService executor = CommunicationsExecutors.create(CommunicationsExecutors.EXECUTION_VIRTUAL_THREADS);
+		Task task = new Task(open(), 100);
+		for (int i = 0; i < 100; i++) {
+			CommunicationsExecutors.execute(executor, task);
+		}
+		assertTrue(task.done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertFalse(task.threads.contains(Thread.currentThread()));
+		assertFalse(CommunicationsExecutors.hasWaitingTasks(executor));
+		executor.shutdown();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownModeIsRejected() {
+		CommunicationsExecutors.create("unknown");
+	}
+
+	@Test
+	public void testModeChangeShutsTheOwnExecutorDown() {
+		CommunicationsObject commObject = new CommunicationsObject(null);
+		commObject.setExecutionMode(CommunicationsExecutors.EXECUTION_BOUNDED_POOL);
+		ThreadPoolExecutor pool = (ThreadPoolExecutor) commObject.getExecutor();
+		assertEquals(CommunicationsExecutors.DEFAULT_POOL_THREADS, pool.getMaximumPoolSize());
+
+		commObject.setExecutionMode(CommunicationsExecutors.EXECUTION_VIRTUAL_THREADS);
+		assertTrue(pool.isShutdown());
+		ExecutorService virtual = (ExecutorService) commObject.getExecutor();
+		assertNotSame(pool, virtual);
+
+		commObject.setExecutionMode(CommunicationsExecutors.EXECUTION_THREAD_PER_REQUEST);
+		assertTrue(virtual.isShutdown());
+		assertNull(commObject.getExecutor());
+	}
+
+	@Test
+	public void testGivenExecutorIsNotShutDown() {
+		CommunicationsObject commObject = new CommunicationsObject(null);
+		ExecutorService pool = CommunicationsExecutors.newBoundedPool(2, 2);
+		commObject.setExecutor(pool);
+		commObject.setExecutionMode(CommunicationsExecutors.EXECUTION_THREAD_PER_REQUEST);
+		assertFalse(pool.isShutdown());
+		pool.shutdown();
+	}
+
+}
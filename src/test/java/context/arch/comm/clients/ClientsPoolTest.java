@@ -0,0 +1,207 @@
+package context.arch.comm.clients;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import context.arch.comm.CommunicationsObject;
+import context.arch.comm.DataObject;
+import context.arch.comm.RequestObject;
+import context.arch.comm.protocol.RequestData;
+
+/**
+ * Tests the fairness of the ClientsPool between destinations, its caps and
+ * the forgetting of the destinations once their requests are sent.
+ */
+public class ClientsPoolTest {
+
+	private static final long TIMEOUT = 5000;
+
+	private int maxDestinations;
+	private ClientsPool pool;
+	private FakeCommunications comm;
+
+	/**
+	 * Records the requests sent to each destination, and holds those sent to
+	 * the slow destinations until they are released
+	 */
+	private static class FakeCommunications extends CommunicationsObject {
+		final Map<String, AtomicInteger> active = new ConcurrentHashMap<String, AtomicInteger>();
+		final Map<String, AtomicInteger> maxActive = new ConcurrentHashMap<String, AtomicInteger>();
+		final Map<String, AtomicInteger> sent = new ConcurrentHashMap<String, AtomicInteger>();
+		final Vector<IndependentCommunication> replies = new Vector<IndependentCommunication>();
+		final CountDownLatch release = new CountDownLatch(1);
+
+		FakeCommunications() {
+			super(null);
+		}
+
+		public RequestData sendRequest(RequestObject request) {
+			String host = request.getServerHostname();
+			int now = counter(active, host).incrementAndGet();
+			AtomicInteger max = counter(maxActive, host);
+			while (now > max.get() && !max.compareAndSet(max.get(), now)) {
+				// raced with another Client
+			}
+			try {
+				if (host.startsWith("slow")) {
+					release.await();
+				}
+				else {
+					Thread.sleep(1);
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			} finally {
+				counter(active, host).decrementAndGet();
+			}
+			counter(sent, host).incrementAndGet();
+			return null;
+		}
+
+		public void handleIndependentReply(IndependentCommunication independentComm) {
+			replies.add(independentComm);
+		}
+
+		int count(Map<String, AtomicInteger> counters, String host) {
+			return counter(counters, host).get();
+		}
+
+		private static synchronized AtomicInteger counter(Map<String, AtomicInteger> counters, String host) {
+			AtomicInteger counter = counters.get(host);
+			if (counter == null) {
+				counter = new AtomicInteger();
+				counters.put(host, counter);
+			}
+			return counter;
+		}
+	}
+
+	@Before
+	public void setUp() {
+		maxDestinations = ClientsPool.DEFAULT_MAX_DESTINATIONS;
+		comm = new FakeCommunications();
+	}
+
+	@After
+	public void tearDown() {
+		ClientsPool.DEFAULT_MAX_DESTINATIONS = maxDestinations;
+		comm.release.countDown();
+		if (pool != null) {
+			pool.stopAllIdleClients();
+		}
+	}
+
+	private IndependentCommunication request(String host, boolean responseRequired) {
+		return new IndependentCommunication(new RequestObject(new DataObject("ping"), "ping", host, 5555), responseRequired);
+	}
+
+	private void await(String host, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (comm.count(comm.sent, host) < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(count, comm.count(comm.sent, host));
+	}
+
+	private void awaitDestinations(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (pool.getDestinationCount() != count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(count, pool.getDestinationCount());
+	}
+
+	@Test
+	public void testSlowDestinationDoesNotHoldAllClients() throws InterruptedException {
+		pool = new ClientsPool(4, comm);
+		pool.setClientsPerDestination(2);
+		for (int i = 0; i < 10; i++) {
+			pool.addRequest(request("slow", false));
+		}
+		for (int i = 0; i < 20; i++) {
+			pool.addRequest(request("fast", false));
+		}
+
+		await("fast", 20);
+		assertEquals(0, comm.count(comm.sent, "slow"));
+		assertEquals(2, comm.count(comm.maxActive, "slow"));
+
+		comm.release.countDown();
+		await("slow", 10);
+	}
+
+	@Test
+	public void testClientsPerDestinationIsNeverExceeded() throws InterruptedException {
+		pool = new ClientsPool(8, comm);
+		pool.setClientsPerDestination(3);
+		for (int i = 0; i < 300; i++) {
+			pool.addRequest(request("fast", false));
+		}
+
+		await("fast", 300);
+		assertTrue(comm.count(comm.maxActive, "fast") <= 3);
+		assertEquals(300, pool.getSentCount());
+	}
+
+	@Test
+	public void testDestinationsAreForgottenOnceSent() throws InterruptedException {
+		ClientsPool.DEFAULT_MAX_DESTINATIONS = 4;
+		pool = new ClientsPool(2, comm);
+		for (int i = 0; i < 50; i++) {
+			String host = "host" + i;
+			pool.addRequest(request(host, false));
+			await(host, 1);
+		}
+
+		awaitDestinations(0);
+		assertEquals(0, pool.getRejectedCount());
+	}
+
+	@Test
+	public void testTooManyDestinationsAreRejected() throws InterruptedException {
+		ClientsPool.DEFAULT_MAX_DESTINATIONS = 2;
+		pool = new ClientsPool(2, comm);
+		pool.addRequest(request("slow0", false));
+		pool.addRequest(request("slow1", false));
+		pool.addRequest(request("other", true));
+
+		assertEquals(1, pool.getRejectedCount());
+		assertEquals(1, comm.replies.size());
+		assertTrue(comm.replies.get(0).getExceptions().get(0) instanceof RejectedExecutionException);
+	}
+
+	@Test
+	public void testFullQueueRejectsWithOverflowReject() throws InterruptedException {
+		pool = new ClientsPool(1, comm);
+		pool.setClientsPerDestination(1);
+		pool.setDestinationCapacity(2);
+		pool.setOverflowPolicy(ClientsPool.OVERFLOW_REJECT);
+		pool.addRequest(request("slow", false));
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (comm.count(comm.active, "slow") == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		pool.addRequest(request("slow", false));
+		pool.addRequest(request("slow", false));
+		pool.addRequest(request("slow", true));
+
+		assertEquals(1, pool.getRejectedCount());
+		assertEquals(2, pool.getQueueDepth("slow", 5555));
+
+		comm.release.countDown();
+		await("slow", 3);
+		awaitDestinations(0);
+	}
+
+}
@@ -0,0 +1,100 @@
+package context.arch.comm.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+/**
+ * Tests that a BoundedReader gives access to the body of one message only,
+ * and that closing it leaves the connection at the start of the next one.
+ */
+public class BoundedReaderTest {
+
+	private static final String MESSAGES = "first body|second";
+
+	private static String readAll(BoundedReader reader) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		char[] buffer = new char[3];
+		int n;
+		while ((n = reader.read(buffer, 0, buffer.length)) != -1) {
+			sb.append(buffer, 0, n);
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testReadStopsAtTheLength() throws IOException {
+		BufferedReader connection = new BufferedReader(new StringReader(MESSAGES));
+		BoundedReader body = new BoundedReader(connection, 10);
+		assertEquals("first body", readAll(body));
+		assertEquals(0, body.getRemaining());
+		assertEquals(-1, body.read());
+		assertFalse(body.ready());
+		body.close();
+		assertEquals('|', connection.read());
+	}
+
+	@Test
+	public void testCloseSkipsTheUnreadBody() throws IOException {
+		BufferedReader connection = new BufferedReader(new StringReader(MESSAGES));
+		BoundedReader body = new BoundedReader(connection, 11);
+		assertEquals('f', body.read());
+		body.close();
+		assertEquals(-1, body.read());
+		body.close();
+		assertEquals("second", connection.readLine());
+	}
+
+	@Test
+	public void testMarkAndResetStayInTheBody() throws IOException {
+		BufferedReader connection = new BufferedReader(new StringReader(MESSAGES));
+		BoundedReader body = new BoundedReader(connection, 10);
+		assertTrue(body.markSupported());
+		body.mark(100);
+		char[] start = new char[5];
+		assertEquals(5, body.read(start, 0, 5));
+		body.reset();
+		assertEquals(10, body.getRemaining());
+		assertEquals("first body", readAll(body));
+		body.close();
+		assertEquals('|', connection.read());
+	}
+
+	@Test
+	public void testResetWithoutMarkFails() {
+		BoundedReader body = new BoundedReader(new BufferedReader(new StringReader(MESSAGES)), 5);
+		try {
+			body.reset();
+			fail("reset without mark");
+		} catch (IOException ioe) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testShortBodyFails() throws IOException {
+		BoundedReader body = new BoundedReader(new BufferedReader(new StringReader("short")), 10);
+		assertEquals("short", new String(new char[] { (char) body.read(), (char) body.read(),
+				(char) body.read(), (char) body.read(), (char) body.read() }));
+		try {
+			body.read();
+			fail("the stream ended before the Content-Length");
+		} catch (IOException ioe) {
+			// expected
+		}
+		try {
+			body.close();
+			fail("the stream ended before the Content-Length");
+		} catch (IOException ioe) {
+			// expected
+		}
+	}
+
+}
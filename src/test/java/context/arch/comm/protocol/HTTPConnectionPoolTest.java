@@ -0,0 +1,191 @@
+package context.arch.comm.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import context.arch.comm.CommunicationsObject;
+
+/**
+ * Tests the reuse of keep-alive connections by the HTTPConnectionPool, and the
+ * retry of requests on stale ones by the HTTPClientSocket.
+ */
+public class HTTPConnectionPoolTest {
+
+	private ServerSocket serverSocket;
+	private AtomicInteger accepted = new AtomicInteger();
+	private volatile int requestsPerConnection = Integer.MAX_VALUE;
+
+	@Before
+	public void startServer() throws IOException {
+		serverSocket = new ServerSocket(0);
+		Thread thread = new Thread() {
+			public void run() {
+				while (!serverSocket.isClosed()) {
+					try {
+						final Socket socket = serverSocket.accept();
+						accepted.incrementAndGet();
+						new Thread() {
+							public void run() {
+								serve(socket);
+							}
+						}.start();
+					} catch (IOException ioe) {
+						return;
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@After
+	public void stopServer() throws IOException {
+		serverSocket.close();
+	}
+
+	/**
+	 * Answers "reply n" to the n-th request on the connection, and closes it
+	 * after requestsPerConnection requests without telling the client
+	 */
+	private void serve(Socket socket) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			OutputStream out = socket.getOutputStream();
+			for (int n = 1; n <= requestsPerConnection; n++) {
+				int length = 0;
+				String line = in.readLine();
+				if (line == null) {
+					break;
+				}
+				while ((line = in.readLine()) != null && line.length() > 0) {
+					if (line.toLowerCase().startsWith(HTTPConnection.CONTENT_LENGTH_MARKER)) {
+						length = Integer.parseInt(line.substring(HTTPConnection.CONTENT_LENGTH_MARKER.length()).trim());
+					}
+				}
+				HTTPConnection.readFully(in, length);
+				String body = "reply " + n;
+				out.write(("HTTP/1.1 200 OK\r\nConnection: keep-alive\r\nContent-Length: " + body.length() + "\r\n\r\n" + body).getBytes("UTF-8"));
+				out.flush();
+			}
+			socket.close();
+		} catch (IOException ioe) {
+			// the client went away
+		}
+	}
+
+	private static String request() {
+		String body = "<request/>";
+		return "POST /test HTTP/1.1\r\nConnection: keep-alive\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+	}
+
+	private static String read(RequestData reply) throws IOException {
+		assertNotNull("no reply", reply);
+		Reader reader = reply.getData();
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = reader.read()) != -1) {
+			sb.append((char) c);
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testReleasedConnectionIsReused() throws IOException {
+		HTTPConnectionPool pool = new HTTPConnectionPool();
+		HTTPConnection first = pool.acquire("localhost", serverSocket.getLocalPort());
+		assertFalse(first.isReused());
+		first.setKeepAlive(true);
+		pool.release(first);
+		assertEquals(1, pool.getIdleCount());
+
+		HTTPConnection second = pool.acquire("localhost", serverSocket.getLocalPort());
+		assertSame(first, second);
+		assertTrue(second.isReused());
+		assertEquals(0, pool.getIdleCount());
+		assertEquals(1, pool.getLeasedCount());
+
+		HTTPConnection fresh = pool.acquire("localhost", serverSocket.getLocalPort(), false);
+		assertNotSame(second, fresh);
+		pool.discard(second);
+		pool.discard(fresh);
+		assertEquals(0, pool.getLeasedCount());
+		pool.close();
+	}
+
+	@Test
+	public void testConnectionWithoutKeepAliveIsClosed() throws IOException {
+		HTTPConnectionPool pool = new HTTPConnectionPool();
+		HTTPConnection connection = pool.acquire("localhost", serverSocket.getLocalPort());
+		pool.release(connection);
+		assertEquals(0, pool.getIdleCount());
+		assertTrue(connection.getSocket().isClosed());
+		pool.close();
+	}
+
+	@Test
+	public void testIdleConnectionsAreCapped() throws IOException {
+		HTTPConnectionPool pool = new HTTPConnectionPool();
+		pool.setMaxIdlePerRoute(2);
+		HTTPConnection[] connections = new HTTPConnection[5];
+		for (int i = 0; i < connections.length; i++) {
+			connections[i] = pool.acquire("localhost", serverSocket.getLocalPort());
+			connections[i].setKeepAlive(true);
+		}
+		for (HTTPConnection connection : connections) {
+			pool.release(connection);
+		}
+		assertEquals(2, pool.getIdleCount());
+		pool.close();
+	}
+
+	@Test(expected = IOException.class)
+	public void testAcquireTimesOutWhenRouteIsFull() throws IOException {
+		HTTPConnectionPool pool = new HTTPConnectionPool(1, HTTPConnectionPool.DEFAULT_IDLE_TIMEOUT);
+		pool.setAcquireTimeout(100);
+		pool.acquire("localhost", serverSocket.getLocalPort());
+		pool.acquire("localhost", serverSocket.getLocalPort());
+	}
+
+	@Test
+	public void testRepliesReuseTheConnection() throws Exception {
+		CommunicationsObject commObject = new CommunicationsObject(null);
+		HTTPClientSocket client = new HTTPClientSocket(commObject, "localhost", serverSocket.getLocalPort());
+		assertEquals("reply 1", read(client.stripReplyProtocol(client.sendRequest(request()))));
+		assertEquals("reply 2", read(client.stripReplyProtocol(client.sendRequest(request()))));
+		assertEquals(1, accepted.get());
+		commObject.getConnectionPool().close();
+	}
+
+	@Test
+	public void testStaleConnectionIsRetriedOnANewOne() throws Exception {
+		requestsPerConnection = 1; // the server closes each connection after its reply
+		CommunicationsObject commObject = new CommunicationsObject(null);
+		HTTPClientSocket client = new HTTPClientSocket(commObject, "localhost", serverSocket.getLocalPort());
+		assertEquals("reply 1", read(client.stripReplyProtocol(client.sendRequest(request()))));
+		Thread.sleep(100); // lets the server close the connection
+
+		// the idle connection looks alive locally, but its reply never comes
+		assertEquals("reply 1", read(client.stripReplyProtocol(client.sendRequest(request()))));
+		assertEquals(2, accepted.get());
+		commObject.getConnectionPool().close();
+	}
+
+}
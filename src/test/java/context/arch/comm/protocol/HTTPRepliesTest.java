@@ -0,0 +1,192 @@
+package context.arch.comm.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Test;
+
+import context.arch.comm.CommunicationsObject;
+import context.arch.comm.DataObject;
+import context.arch.comm.clients.IndependentCommunication;
+import context.arch.comm.language.MessageHandler;
+
+/**
+ * Tests that the blocking and the NIO servers send binary replies byte for
+ * byte and text replies in UTF-8, with a Content-length counting the bytes
+ * sent, and that the HTTPClientSocket reads both back.
+ */
+public class HTTPRepliesTest {
+
+	/**
+	 * Bytes 0x80 to 0xFF, which took two bytes each when binary replies were
+	 * written in UTF-8
+	 */
+	private static final String HIGH_BYTES;
+	static {
+		StringBuilder sb = new StringBuilder();
+		for (char c = 0x80; c <= 0xFF; c++) {
+			sb.append(c);
+		}
+		HIGH_BYTES = sb.toString();
+	}
+
+	private static final String BINARY = new String(new char[] { 0x00, 'C', 'T', 'K' }) + HIGH_BYTES;
+
+	/** Text reply with characters of 2, 3 and 4 bytes in UTF-8 */
+	private static final String TEXT = "<value>caf\u00e9 \u20ac \ud834\udd1e</value>";
+
+	private CommunicationsObject commObject;
+	private int port;
+
+	/**
+	 * Replies with the body of the request, or with TEXT to the request "text"
+	 */
+	private static class EchoHandler implements MessageHandler {
+		public DataObject decodeData(Reader message) {
+			StringBuilder sb = new StringBuilder();
+			try {
+				int c;
+				while ((c = message.read()) != -1) {
+					sb.append((char) c);
+				}
+			} catch (IOException ioe) {
+				// replies with what was read
+			}
+			return new DataObject("request", sb.toString());
+		}
+
+		public String encodeData(DataObject data) {
+			return data.getValue();
+		}
+
+		public void encodeData(DataObject data, Writer out) {
+			try {
+				out.write(data.getValue());
+			} catch (IOException ioe) {
+				// the buffer is in memory
+			}
+		}
+
+		public DataObject runMethod(String methodType, DataObject data) {
+			return new DataObject("reply", "text".equals(data.getValue().trim()) ? TEXT : data.getValue());
+		}
+
+		public void handleIndependentReply(IndependentCommunication independentCommunication) {
+		}
+	}
+
+	private void start(String serverClass) throws Exception {
+		ServerSocket free = new ServerSocket(0);
+		port = free.getLocalPort();
+		free.close();
+		commObject = new CommunicationsObject(new EchoHandler(), null, serverClass,
+				port, NIOServerSocketTest.NoMulticast.class.getName());
+		commObject.start();
+	}
+
+	@After
+	public void tearDown() {
+		if (commObject != null) {
+			commObject.quit();
+		}
+	}
+
+	/**
+	 * Sends the request on a raw socket and returns the body of the reply,
+	 * checking that its Content-length is the number of bytes that follow
+	 */
+	private byte[] rawReply(String body) throws IOException {
+		Socket socket = new Socket("localhost", port);
+		try {
+			String request = "POST /echo HTTP/1.0\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+			socket.getOutputStream().write(request.getBytes(HTTPConnection.REQUEST_CHARSET));
+			socket.getOutputStream().flush();
+			ByteArrayOutputStream all = new ByteArrayOutputStream();
+			InputStream in = socket.getInputStream();
+			byte[] buffer = new byte[1024];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				all.write(buffer, 0, n);
+			}
+			String reply = new String(all.toByteArray(), HTTPConnection.WIRE_CHARSET);
+			int start = reply.indexOf("\r\n\r\n") + 4;
+			int length = -1;
+			for (String line : reply.substring(0, start).split("\r\n")) {
+				if (line.toLowerCase().startsWith(HTTPConnection.CONTENT_LENGTH_MARKER)) {
+					length = Integer.parseInt(line.substring(HTTPConnection.CONTENT_LENGTH_MARKER.length()).trim());
+				}
+			}
+			// nothing follows the body but the line break of the blocking server
+			String rest = reply.substring(start + length);
+			assertTrue(rest, rest.equals("") || rest.equals("\r\n"));
+			return reply.substring(start, start + length).getBytes(HTTPConnection.WIRE_CHARSET);
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Sends the request with an HTTPClientSocket and returns the body it read
+	 */
+	private String clientReply(String body) throws Exception {
+		HTTPClientSocket client = new HTTPClientSocket(commObject, "localhost", port);
+		Socket socket = client.sendRequest(client.addRequestProtocol(body, "echo"));
+		RequestData reply = client.stripReplyProtocol(socket);
+		assertNotNull(reply);
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = reply.getData().read()) != -1) {
+			sb.append((char) c);
+		}
+		return sb.toString();
+	}
+
+	private void checkReplies(String serverClass) throws Exception {
+		start(serverClass);
+
+		byte[] binary = rawReply(BINARY);
+		assertEquals(BINARY.length(), binary.length);
+		assertEquals(BINARY, new String(binary, HTTPConnection.WIRE_CHARSET));
+		// the HTTPClientSocket ends its requests with two line breaks, echoed back
+		assertEquals(BINARY + "\r\n\r\n", clientReply(BINARY));
+
+		byte[] text = rawReply("text");
+		assertEquals(TEXT.getBytes(HTTPConnection.REPLY_CHARSET).length, text.length);
+		assertEquals(TEXT, new String(text, HTTPConnection.REPLY_CHARSET));
+		assertEquals(TEXT, clientReply("text"));
+	}
+
+	@Test
+	public void testBlockingServerReplies() throws Exception {
+		checkReplies(CommunicationsObject.DEFAULT_SERVER);
+	}
+
+	@Test
+	public void testNIOServerReplies() throws Exception {
+		checkReplies(CommunicationsObject.NIO_SERVER);
+	}
+
+	@Test
+	public void testWireConversions() throws IOException {
+		assertEquals(BINARY, HTTPConnection.toWire(BINARY));
+		String wire = HTTPConnection.toWire(TEXT);
+		assertEquals(TEXT.getBytes(HTTPConnection.REPLY_CHARSET).length, wire.length());
+		assertEquals(TEXT, HTTPConnection.fromWire(wire.toCharArray(), false));
+		assertEquals(BINARY, HTTPConnection.fromWire(BINARY.toCharArray(), true));
+
+		MessageBuffer buffer = new MessageBuffer();
+		buffer.write(TEXT + "\ud834");
+		assertEquals((TEXT + "\ud834").getBytes(HTTPConnection.REPLY_CHARSET).length, buffer.utf8Length());
+	}
+
+}
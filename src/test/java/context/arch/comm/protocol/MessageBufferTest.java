@@ -0,0 +1,107 @@
+package context.arch.comm.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import context.arch.comm.DataObject;
+import context.arch.comm.DataObjects;
+import context.arch.comm.language.BinaryDecoder;
+import context.arch.comm.language.BinaryEncoder;
+import context.arch.comm.language.XMLEncoder;
+
+/**
+ * Tests the per-thread MessageBuffer, and that the encoders write the same
+ * message in it as the one they return as a String.
+ */
+public class MessageBufferTest {
+
+	private int maxKeptSize = MessageBuffer.MAX_KEPT_SIZE;
+
+	@After
+	public void tearDown() {
+		MessageBuffer.MAX_KEPT_SIZE = maxKeptSize;
+	}
+
+	private static DataObject message() {
+		DataObjects children = new DataObjects();
+		children.add(new DataObject("name", "temperature"));
+		children.add(new DataObject("value", "21 \u00b0C & <rising>"));
+		DataObjects attributes = new DataObjects();
+		attributes.add(new DataObject("attribute", children));
+		attributes.add(new DataObject("attribute", "name"));
+		return new DataObject("attributes", attributes);
+	}
+
+	@Test
+	public void testBufferIsReusedByItsThread() throws Exception {
+		MessageBuffer buffer = MessageBuffer.get();
+		buffer.write("reply");
+		assertSame(buffer, MessageBuffer.get());
+		assertEquals(0, buffer.size());
+
+		final MessageBuffer[] other = new MessageBuffer[1];
+		Thread thread = new Thread() {
+			public void run() {
+				other[0] = MessageBuffer.get();
+			}
+		};
+		thread.start();
+		thread.join();
+		assertNotSame(buffer, other[0]);
+	}
+
+	@Test
+	public void testLargeBufferIsNotKept() {
+		MessageBuffer.MAX_KEPT_SIZE = 8192;
+		MessageBuffer buffer = MessageBuffer.get();
+		buffer.write(new char[10000], 0, 10000);
+		MessageBuffer next = MessageBuffer.get();
+		assertNotSame(buffer, next);
+		assertSame(next, MessageBuffer.get());
+	}
+
+	@Test
+	public void testStartsWith() throws IOException {
+		MessageBuffer buffer = new MessageBuffer();
+		assertFalse(buffer.startsWith(BinaryEncoder.MAGIC));
+		buffer.write(0);
+		buffer.write('C');
+		assertFalse(buffer.startsWith(BinaryEncoder.MAGIC));
+		buffer.write("TK...");
+		assertTrue(buffer.startsWith(BinaryEncoder.MAGIC));
+		assertFalse(buffer.startsWith(new byte[] { 'C' }));
+	}
+
+	@Test
+	public void testXMLEncoderWritesTheSameMessage() throws Exception {
+		MessageBuffer buffer = MessageBuffer.get();
+		new XMLEncoder().encodeData(message(), buffer);
+		assertEquals(new XMLEncoder().encodeData(message()), buffer.toString());
+		assertFalse(buffer.startsWith(BinaryEncoder.MAGIC));
+	}
+
+	@Test
+	public void testBinaryEncoderWritesTheSameMessage() throws Exception {
+		MessageBuffer buffer = MessageBuffer.get();
+		new BinaryEncoder().encodeData(message(), buffer);
+		String encoded = new BinaryEncoder().encodeData(message());
+		assertEquals(encoded, buffer.toString());
+		assertTrue(buffer.startsWith(BinaryEncoder.MAGIC));
+		assertEquals(encoded.length(), buffer.size());
+
+		CharArrayWriter copy = new CharArrayWriter();
+		buffer.writeTo(copy);
+		assertEquals(message().toString(), new BinaryDecoder().decodeData(new CharArrayReader(copy.toCharArray())).toString());
+	}
+
+}
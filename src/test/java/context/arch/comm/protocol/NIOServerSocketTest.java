@@ -0,0 +1,212 @@
+package context.arch.comm.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.DatagramPacket;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import context.arch.comm.CommunicationsMulticast;
+import context.arch.comm.CommunicationsObject;
+import context.arch.comm.DataObject;
+import context.arch.comm.clients.IndependentCommunication;
+import context.arch.comm.language.MessageHandler;
+
+/**
+ * Tests that the NIOServerSocket answers the requests of keep-alive and
+ * pipelining clients in order, and that a slow request doesn't hold the
+ * other connections.
+ */
+public class NIOServerSocketTest {
+
+	private CommunicationsObject commObject;
+	private int port;
+
+	/**
+	 * Replies with the body of the request; a request "slow" takes 500 ms
+	 */
+	private static class EchoHandler implements MessageHandler {
+		public DataObject decodeData(Reader message) {
+			StringBuilder sb = new StringBuilder();
+			try {
+				int c;
+				while ((c = message.read()) != -1) {
+					sb.append((char) c);
+				}
+			} catch (IOException ioe) {
+				// replies with what was read
+			}
+			return new DataObject("request", sb.toString());
+		}
+
+		public String encodeData(DataObject data) {
+			return data.getValue();
+		}
+
+		public void encodeData(DataObject data, Writer out) {
+			try {
+				out.write(data.getValue());
+			} catch (IOException ioe) {
+				// the buffer is in memory
+			}
+		}
+
+		public DataObject runMethod(String methodType, DataObject data) {
+			if ("slow".equals(data.getValue())) {
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return new DataObject("reply", data.getValue());
+		}
+
+		public void handleIndependentReply(IndependentCommunication independentCommunication) {
+		}
+	}
+
+	/**
+	 * Keeps the tests off the multicast group
+	 */
+	public static class NoMulticast implements CommunicationsMulticast {
+		public NoMulticast(CommunicationsObject object) {
+		}
+
+		public void start() {
+		}
+
+		public void quit() {
+		}
+
+		public String getProtocol() {
+			return "none";
+		}
+
+		public RequestData stripProtocol(DatagramPacket packet) {
+			return null;
+		}
+
+		public String addProtocol(String data, String url, String type) {
+			return data;
+		}
+
+		public void handleIncomingRequest(DatagramPacket packet) {
+		}
+
+		public void sendMessage(String message) {
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		ServerSocket free = new ServerSocket(0);
+		port = free.getLocalPort();
+		free.close();
+		commObject = new CommunicationsObject(new EchoHandler(), null, CommunicationsObject.NIO_SERVER,
+				port, NoMulticast.class.getName());
+		commObject.start();
+	}
+
+	@After
+	public void tearDown() {
+		commObject.quit();
+	}
+
+	private static String request(String body, boolean keepAlive) {
+		return "POST /echo HTTP/1.0\r\n"
+				+ (keepAlive ? "Connection: keep-alive\r\n" : "")
+				+ "Content-Length: " + body.length() + "\r\n\r\n" + body;
+	}
+
+	private void send(Socket socket, String requests) throws IOException {
+		socket.getOutputStream().write(requests.getBytes(HTTPConnection.REQUEST_CHARSET));
+		socket.getOutputStream().flush();
+	}
+
+	/**
+	 * Reads one reply and returns its body
+	 */
+	private static String reply(BufferedReader in) throws IOException {
+		int length = -1;
+		String line = in.readLine();
+		assertEquals("HTTP/1.0 200 OK", line);
+		while ((line = in.readLine()) != null && line.length() > 0) {
+			if (line.toLowerCase().startsWith(HTTPConnection.CONTENT_LENGTH_MARKER)) {
+				length = Integer.parseInt(line.substring(HTTPConnection.CONTENT_LENGTH_MARKER.length()).trim());
+			}
+		}
+		char[] body = new char[length];
+		for (int n = 0; n < length; ) {
+			int read = in.read(body, n, length - n);
+			if (read < 0) {
+				break;
+			}
+			n += read;
+		}
+		return new String(body);
+	}
+
+	private BufferedReader reader(Socket socket) throws IOException {
+		return new BufferedReader(new InputStreamReader(socket.getInputStream(), HTTPConnection.REPLY_CHARSET));
+	}
+
+	@Test
+	public void testKeepAliveConnectionServesSeveralRequests() throws IOException {
+		Socket socket = new Socket("localhost", port);
+		BufferedReader in = reader(socket);
+		send(socket, request("first", true));
+		assertEquals("first", reply(in));
+		send(socket, request("second", true));
+		assertEquals("second", reply(in));
+		socket.close();
+	}
+
+	@Test
+	public void testConnectionWithoutKeepAliveIsClosed() throws IOException {
+		Socket socket = new Socket("localhost", port);
+		BufferedReader in = reader(socket);
+		send(socket, request("only", false));
+		assertEquals("only", reply(in));
+		assertEquals(-1, in.read());
+		socket.close();
+	}
+
+	@Test
+	public void testPipelinedRepliesKeepTheOrderOfTheRequests() throws IOException {
+		Socket socket = new Socket("localhost", port);
+		BufferedReader in = reader(socket);
+		send(socket, request("slow", true) + request("fast", true) + request("last", false));
+		assertEquals("slow", reply(in));
+		assertEquals("fast", reply(in));
+		assertEquals("last", reply(in));
+		assertEquals(-1, in.read());
+		socket.close();
+	}
+
+	@Test
+	public void testSlowRequestDoesNotHoldOtherConnections() throws IOException {
+		Socket slow = new Socket("localhost", port);
+		Socket fast = new Socket("localhost", port);
+		long start = System.currentTimeMillis();
+		send(slow, request("slow", true));
+		send(fast, request("fast", true));
+		assertEquals("fast", reply(reader(fast)));
+		long fastTime = System.currentTimeMillis() - start;
+		assertEquals("slow", reply(reader(slow)));
+		assertTrue("the fast reply waited for the slow one", fastTime < 400);
+		slow.close();
+		fast.close();
+	}
+
+}
@@ -0,0 +1,199 @@
+package context.arch.discoverer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import context.arch.discoverer.DiscovererLog.Registration;
+import context.arch.discoverer.lease.Lease;
+import context.arch.util.FileDamage;
+
+/**
+ * Tests the recovery of the registry from the DiscovererLog after a clean
+ * close, a crash with damaged records and a log older than the snapshot.
+ */
+public class DiscovererLogTest {
+
+	private static final long TIMEOUT = 5000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String filename;
+	private List<DiscovererLog> logs = new ArrayList<DiscovererLog>();
+
+	@Before
+	public void setUp() {
+		filename = new File(folder.getRoot(), "registry").getPath();
+	}
+
+	@After
+	public void tearDown() {
+		for (DiscovererLog log : logs) {
+			log.close(TIMEOUT);
+		}
+	}
+
+	private DiscovererLog open(Map<String, Registration> recovered) throws IOException {
+		DiscovererLog log = new DiscovererLog(filename);
+		logs.add(log);
+		Collection<Registration> registrations = log.open();
+		recovered.clear();
+		for (Registration registration : registrations) {
+			recovered.put(registration.getComponent().id, registration);
+		}
+		return log;
+	}
+
+	private static ComponentDescription component(String id, String version) {
+		ComponentDescription comp = new ComponentDescription();
+		comp.id = id;
+		comp.classname = "context.arch.widget.Widget";
+		comp.hostname = "localhost";
+		comp.hostaddress = "127.0.0.1";
+		comp.port = 5000;
+		comp.type = Discoverer.WIDGET;
+		comp.version = version;
+		return comp;
+	}
+
+	private File logFile() {
+		return new File(filename + ".wal");
+	}
+
+	@Test
+	public void testRegistrationsSurviveClose() throws IOException {
+		Map<String, Registration> recovered = new HashMap<String, Registration>();
+		DiscovererLog log = open(recovered);
+		assertEquals(0, recovered.size());
+		log.add(component("a", "1"), new Lease(2));
+		log.add(component("b", "1"), new Lease(2));
+		log.add(component("c", "1"), new Lease(2));
+		log.update(component("a", "2"));
+		log.renew("b", new Lease(7));
+		log.remove("c");
+		log.close(TIMEOUT);
+
+		open(recovered);
+		assertEquals(2, recovered.size());
+		assertEquals("2", recovered.get("a").getComponent().version);
+		assertEquals(2, recovered.get("a").getLease().toMinutes());
+		assertEquals(7, recovered.get("b").getLease().toMinutes());
+	}
+
+	@Test
+	public void testReplayStopsAtTheFirstDamagedRecord() throws IOException {
+		Map<String, Registration> recovered = new HashMap<String, Registration>();
+		DiscovererLog log = open(recovered);
+		log.add(component("a", "1"), new Lease(2));
+		assertTrue(log.flush(TIMEOUT));
+		long damaged = logFile().length();
+		log.add(component("b", "1"), new Lease(2));
+		log.add(component("c", "1"), new Lease(2));
+		log.remove("a");
+		assertTrue(log.flush(TIMEOUT));
+
+		// never closed, and its last record is torn: the removal is lost
+		FileDamage.tear(logFile(), 3);
+		open(recovered).close(TIMEOUT);
+		assertEquals(3, recovered.size());
+
+		// the records after a damaged one are not replayed
+		log = open(recovered);
+		damaged = logFile().length();
+		log.add(component("d", "1"), new Lease(2));
+		log.add(component("e", "1"), new Lease(2));
+		log.close(TIMEOUT);
+		FileDamage.flip(logFile(), damaged + 12); // past the length, checksum and type of the record
+		open(recovered);
+		assertEquals(3, recovered.size());
+		assertFalse(recovered.containsKey("d"));
+		assertFalse(recovered.containsKey("e"));
+	}
+
+	@Test
+	public void testLogOlderThanTheSnapshotIsNotReplayed() throws IOException {
+		Map<String, Registration> recovered = new HashMap<String, Registration>();
+		DiscovererLog log = open(recovered);
+		log.add(component("a", "1"), new Lease(2));
+		log.add(component("b", "1"), new Lease(2));
+		log.close(TIMEOUT);
+		byte[] stale = read(logFile());
+
+		log = open(recovered);
+		log.remove("b");
+		log.close(TIMEOUT);
+		open(recovered).close(TIMEOUT);
+
+		// as if the last compaction had crashed before starting the new log
+		write(logFile(), stale);
+		open(recovered);
+		assertEquals(1, recovered.size());
+		assertTrue(recovered.containsKey("a"));
+	}
+
+	@Test
+	public void testSnapshotsKeepTheRegistry() throws IOException {
+		int snapshotRecords = DiscovererLog.DEFAULT_SNAPSHOT_RECORDS;
+		DiscovererLog.DEFAULT_SNAPSHOT_RECORDS = 2;
+		Map<String, Registration> recovered = new HashMap<String, Registration>();
+		DiscovererLog log;
+		try {
+			log = open(recovered);
+		} finally {
+			DiscovererLog.DEFAULT_SNAPSHOT_RECORDS = snapshotRecords;
+		}
+		for (int i = 0; i < 9; i++) {
+			log.add(component("c" + i, "1"), new Lease(2));
+			assertTrue(log.flush(TIMEOUT));
+		}
+		log.remove("c0");
+		log.close(TIMEOUT);
+
+		open(recovered);
+		assertEquals(8, recovered.size());
+		for (int i = 1; i < 9; i++) {
+			assertTrue(recovered.containsKey("c" + i));
+		}
+	}
+
+	private static byte[] read(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int offset = 0;
+			while (offset < bytes.length) {
+				offset += in.read(bytes, offset, bytes.length - offset);
+			}
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+
+	private static void write(File file, byte[] bytes) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+}
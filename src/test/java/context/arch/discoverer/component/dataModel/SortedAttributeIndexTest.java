@@ -0,0 +1,175 @@
+package context.arch.discoverer.component.dataModel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import context.arch.discoverer.ComponentDescription;
+import context.arch.discoverer.component.AttributeElement;
+import context.arch.discoverer.component.ConstantAttributeElement;
+import context.arch.discoverer.component.NonConstantAttributeElement;
+import context.arch.discoverer.query.RuleQueryItem;
+import context.arch.discoverer.query.comparison.AttributeComparison;
+import context.arch.storage.AttributeNameValue;
+
+/**
+ * Tests that attribute queries answered from the SortedAttributeIndex find
+ * the same components as the scan of the IndexTable they replace, for every
+ * comparison, also after components are updated and removed.
+ */
+public class SortedAttributeIndexTest {
+
+	private static final int COMPONENTS = 200;
+	private static final String[] ROOMS = { "hall", "kitchen", "lab", "office", "studio" };
+	private static final AttributeComparison[] COMPARISONS = {
+		AttributeComparison.EQUAL, AttributeComparison.DIFFERENT,
+		AttributeComparison.GREATER, AttributeComparison.GREATER_EQUAL,
+		AttributeComparison.LESS, AttributeComparison.LESS_EQUAL };
+
+	private DiscovererDataModel model;
+	private Random random;
+
+	@Before
+	public void setUp() {
+		model = new DiscovererDataModel();
+		random = new Random(42);
+		for (int i = 0; i < COMPONENTS; i++) {
+			model.add(component("widget" + i));
+		}
+	}
+
+	private ComponentDescription component(String id) {
+		ComponentDescription component = description(id);
+		component.addNonConstantAttribute(AttributeNameValue.instance("level", random.nextInt(20)));
+		component.addNonConstantAttribute(AttributeNameValue.instance("temperature", random.nextInt(400) / 10.0));
+		if (random.nextInt(4) > 0) { // some components have no room
+			component.addConstantAttribute(AttributeNameValue.instance("room", ROOMS[random.nextInt(ROOMS.length)]));
+		}
+		return component;
+	}
+
+	private static ComponentDescription description(String id) {
+		ComponentDescription component = new ComponentDescription();
+		component.id = id;
+		component.classname = "TestWidget";
+		component.hostname = "localhost";
+		component.hostaddress = "127.0.0.1";
+		component.type = "widget";
+		component.port = 5000;
+		return component;
+	}
+
+	/**
+	 * The search of the IndexTable before the sorted indexes: every key is compared
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private List<String> scan(String indexName, AttributeNameValue<?> toMatch, AttributeComparison comparison) {
+		List<String> ids = new ArrayList<String>();
+		IndexTable<?> indexTable = model.getIndexTable(indexName);
+		for (Object elementAsKey : indexTable.keySet()) {
+			if (comparison.compare((AttributeNameValue) elementAsKey, toMatch)) {
+				for (ComponentDescription component : indexTable.get(elementAsKey)) {
+					ids.add(component.id);
+				}
+			}
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+
+	private static List<String> ids(Collection<ComponentDescription> components) {
+		List<String> ids = new ArrayList<String>();
+		for (ComponentDescription component : components) {
+			ids.add(component.id);
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+
+	private static AttributeElement element(String indexName, AttributeNameValue<?> toMatch) {
+		if (ComponentDescription.CONST_ATT_ELEMENT.equals(indexName)) {
+			return new ConstantAttributeElement(toMatch);
+		}
+		return new NonConstantAttributeElement(toMatch);
+	}
+
+	/**
+	 * Checks every comparison with the given value, and returns the number of
+	 * components found in total
+	 */
+	private int check(String indexName, AttributeNameValue<?> toMatch) {
+		int found = 0;
+		for (AttributeComparison comparison : COMPARISONS) {
+			RuleQueryItem<AttributeNameValue<?>, AttributeNameValue<?>> query =
+				RuleQueryItem.instance(element(indexName, toMatch), comparison);
+			List<String> expected = scan(indexName, toMatch, comparison);
+			assertEquals(comparison + " " + toMatch, expected, ids(query.search(model)));
+			if (comparison == AttributeComparison.EQUAL) {
+				assertEquals(expected.size(), query.estimateSize(model));
+			}
+			found += expected.size();
+		}
+		return found;
+	}
+
+	private void checkAll() {
+		int found = 0;
+		for (int level = -1; level <= 20; level++) {
+			found += check(ComponentDescription.NON_CONST_ATT_ELEMENT, AttributeNameValue.instance("level", level));
+		}
+		for (double temperature : new double[] { -1.0, 0.0, 12.3, 20.0, 39.9, 50.0 }) {
+			found += check(ComponentDescription.NON_CONST_ATT_ELEMENT, AttributeNameValue.instance("temperature", temperature));
+		}
+		for (String room : new String[] { "attic", "hall", "kitchen", "lab", "studio", "zoo" }) {
+			found += check(ComponentDescription.CONST_ATT_ELEMENT, AttributeNameValue.instance("room", room));
+		}
+		assertTrue(found > 0);
+
+		// no component has this attribute, or with this type
+		assertEquals(0, check(ComponentDescription.NON_CONST_ATT_ELEMENT, AttributeNameValue.instance("missing", 1)));
+		assertEquals(0, check(ComponentDescription.NON_CONST_ATT_ELEMENT, AttributeNameValue.instance("level", "1")));
+	}
+
+	@Test
+	public void testQueriesMatchTheScan() {
+		checkAll();
+	}
+
+	@Test
+	public void testQueriesMatchTheScanAfterUpdatesAndRemovals() {
+		for (int i = 0; i < COMPONENTS; i += 2) {
+			model.update(component("widget" + i));
+		}
+		for (int i = 0; i < COMPONENTS; i += 7) {
+			model.remove("widget" + i);
+		}
+		for (int i = COMPONENTS; i < COMPONENTS + 20; i++) {
+			model.add(component("widget" + i));
+		}
+		checkAll();
+	}
+
+	@Test
+	public void testRemovalAfterTheValueChangedInPlace() {
+		SortedAttributeIndex index = new SortedAttributeIndex("index", new NonConstantAttributeElement());
+		ComponentDescription component = description("changing");
+		AttributeNameValue<Integer> level = AttributeNameValue.instance("level", 5);
+		component.addNonConstantAttribute(level);
+		index.addComponent(component);
+		assertEquals(1, index.search(AttributeNameValue.instance("level", 5), AttributeComparison.Comparison.EQUAL).size());
+
+		level.setValue(6);
+		index.removeComponent(component);
+		assertEquals(0, index.search(AttributeNameValue.instance("level", 0), AttributeComparison.Comparison.GREATER).size());
+		assertEquals(0, index.count(AttributeNameValue.instance("level", 5), AttributeComparison.Comparison.EQUAL));
+	}
+
+}
@@ -0,0 +1,203 @@
+package context.arch.discoverer.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import context.arch.discoverer.ComponentDescription;
+import context.arch.discoverer.component.ConstantAttributeElement;
+import context.arch.discoverer.component.NonConstantAttributeElement;
+import context.arch.discoverer.component.dataModel.AbstractDataModel;
+import context.arch.discoverer.component.dataModel.DiscovererDataModel;
+import context.arch.discoverer.query.comparison.AttributeComparison;
+import context.arch.storage.AttributeNameValue;
+
+/**
+ * Tests that the AND, OR, NOT and ELSE query items, evaluated with bitmaps,
+ * find the same components as evaluating the query tree on each component,
+ * also after components are updated and removed.
+ */
+public class BooleanQueryItemTest {
+
+	private static final int COMPONENTS = 150;
+	private static final String[] ROOMS = { "hall", "kitchen", "lab" };
+
+	private DiscovererDataModel model;
+	private Random random;
+
+	@Before
+	public void setUp() {
+		model = new DiscovererDataModel();
+		random = new Random(7);
+		for (int i = 0; i < COMPONENTS; i++) {
+			model.add(component("widget" + i));
+		}
+	}
+
+	private ComponentDescription component(String id) {
+		ComponentDescription component = new ComponentDescription();
+		component.id = id;
+		component.classname = "TestWidget";
+		component.hostname = "localhost";
+		component.hostaddress = "127.0.0.1";
+		component.type = "widget";
+		component.port = 5000;
+		component.addNonConstantAttribute(AttributeNameValue.instance("level", random.nextInt(10)));
+		if (random.nextInt(3) > 0) { // some components have no room
+			component.addConstantAttribute(AttributeNameValue.instance("room", ROOMS[random.nextInt(ROOMS.length)]));
+		}
+		return component;
+	}
+
+	private static AbstractQueryItem<?,?> level(AttributeComparison comparison, int level) {
+		return RuleQueryItem.instance(new NonConstantAttributeElement(AttributeNameValue.instance("level", level)), comparison);
+	}
+
+	private static AbstractQueryItem<?,?> room(String room) {
+		return RuleQueryItem.instance(new ConstantAttributeElement(AttributeNameValue.instance("room", room)), AttributeComparison.EQUAL);
+	}
+
+	/**
+	 * Random query tree of the given depth
+	 */
+	private AbstractQueryItem<?,?> query(int depth) {
+		if (depth == 0) {
+			switch (random.nextInt(3)) {
+			case 0: return level(AttributeComparison.GREATER, random.nextInt(10));
+			case 1: return level(AttributeComparison.EQUAL, random.nextInt(12)); // may find nothing
+			default: return room(ROOMS[random.nextInt(ROOMS.length)]);
+			}
+		}
+
+		List<AbstractQueryItem<?,?>> children = new ArrayList<AbstractQueryItem<?,?>>();
+		for (int i = 1 + random.nextInt(3); i > 0; i--) {
+			children.add(query(random.nextInt(depth)));
+		}
+		switch (random.nextInt(4)) {
+		case 0: return new ANDQueryItem(children);
+		case 1: return new ORQueryItem(children);
+		case 2: return new NOTQueryItem(children.get(0));
+		default: return new ElseQueryItem(children);
+		}
+	}
+
+	/**
+	 * Whether a component is found by the query, as the set operations on
+	 * the components found by the rules did before the bitmaps
+	 */
+	private static boolean found(AbstractQueryItem<?,?> query, ComponentDescription component) {
+		if (query instanceof BooleanQueryItem) {
+			List<AbstractQueryItem<?,?>> children = ((BooleanQueryItem) query).getChildren();
+			if (query instanceof ANDQueryItem) {
+				if (children.isEmpty()) { return false; }
+				for (AbstractQueryItem<?,?> child : children) {
+					if (!found(child, component)) { return false; }
+				}
+				return true;
+			}
+			boolean any = false;
+			for (AbstractQueryItem<?,?> child : children) {
+				any |= found(child, component);
+			}
+			if (query instanceof ORQueryItem) { return any; }
+			return !any; // NOT, and ELSE is the NOT of an OR
+		}
+		return Boolean.TRUE.equals(query.match(component));
+	}
+
+	private List<String> expected(AbstractQueryItem<?,?> query) {
+		List<String> ids = new ArrayList<String>();
+		for (ComponentDescription component : model.getComponents()) {
+			if (found(query, component)) {
+				ids.add(component.id);
+			}
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+
+	private static List<String> ids(Collection<ComponentDescription> components) {
+		List<String> ids = new ArrayList<String>();
+		for (ComponentDescription component : components) {
+			ids.add(component.id);
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+
+	private void check(AbstractQueryItem<?,?> query) {
+		List<String> expected = expected(query);
+		assertEquals(query.toString(), expected, ids(query.search(model)));
+		BitSet bits = query.searchBits(model);
+		assertEquals(query.toString(), expected, ids(model.fromBitSet(bits)));
+		assertEquals(expected.size(), bits.cardinality());
+	}
+
+	private void checkRandomQueries() {
+		for (int i = 0; i < 300; i++) {
+			check(query(1 + random.nextInt(3)));
+		}
+	}
+
+	@Test
+	public void testQueriesMatchTheEvaluationOfEachComponent() {
+		checkRandomQueries();
+	}
+
+	@Test
+	public void testQueriesMatchAfterUpdatesAndRemovals() {
+		for (int i = 0; i < COMPONENTS; i += 3) {
+			model.update(component("widget" + i));
+		}
+		for (int i = 0; i < COMPONENTS; i += 5) {
+			model.remove("widget" + i);
+		}
+		for (int i = 0; i < COMPONENTS; i += 10) {
+			model.add(component("widget" + i)); // added back with its old id
+		}
+		checkRandomQueries();
+
+		// nothing is found in the components removed
+		assertTrue(!ids(new NOTQueryItem(level(AttributeComparison.EQUAL, 100)).search(model)).contains("widget5"));
+	}
+
+	@Test
+	public void testEmptyIntermediateResults() {
+		AbstractQueryItem<?,?> nothing = level(AttributeComparison.EQUAL, 100);
+		check(new ANDQueryItem(nothing, room("hall"), level(AttributeComparison.GREATER, 2)));
+		check(new ANDQueryItem(room("hall"), new ORQueryItem(nothing, nothing)));
+		check(new ANDQueryItem());
+		check(new ORQueryItem());
+		check(new ElseQueryItem());
+		check(new NOTQueryItem(nothing));
+		assertEquals(COMPONENTS, new NOTQueryItem(nothing).search(model).size());
+		assertEquals(0, new ANDQueryItem(nothing, room("hall")).search(model).size());
+	}
+
+	@Test
+	public void testMostSelectiveChildIsSearchedFirst() {
+		final List<String> searched = new ArrayList<String>();
+		AbstractQueryItem<?,?> large = new ORQueryItem(level(AttributeComparison.GREATER, -1)) {
+			private static final long serialVersionUID = 1L;
+
+			public BitSet searchBits(AbstractDataModel dataModel) {
+				searched.add("large");
+				return super.searchBits(dataModel);
+			}
+		};
+		AbstractQueryItem<?,?> small = level(AttributeComparison.EQUAL, 100);
+		assertTrue(small.estimateSize(model) < large.estimateSize(model));
+		assertTrue(new ANDQueryItem(large, small).searchBits(model).isEmpty());
+		assertEquals("[]", searched.toString()); // the empty result of small ended the search
+	}
+
+}
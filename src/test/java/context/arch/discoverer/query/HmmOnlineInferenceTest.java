@@ -0,0 +1,156 @@
+package context.arch.discoverer.query;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import be.ac.ulg.montefiore.run.jahmm.Hmm;
+import be.ac.ulg.montefiore.run.jahmm.ObservationVector;
+import be.ac.ulg.montefiore.run.jahmm.OpdfMultiGaussian;
+
+/**
+ * Tests that the fixed-lag Viterbi of HmmOnlineInference gives the same
+ * states as the Viterbi of the model over all the observations, and that its
+ * forward probabilities are those of the forward algorithm.
+ */
+public class HmmOnlineInferenceTest {
+
+	private static final int LAG = 5;
+	private static final int OBSERVATIONS = 200;
+
+	private static final double[] PI = { 0.5, 0.3, 0.2 };
+	private static final double[][] A = {
+		{ 0.8, 0.15, 0.05 },
+		{ 0.1, 0.7, 0.2 },
+		{ 0.2, 0.2, 0.6 } };
+	private static final double[][] MEANS = { { 0, 0 }, { 1.5, 0.5 }, { 0.5, 2 } };
+
+	private Hmm<ObservationVector> hmm;
+	private HmmOnlineInference inference;
+	private List<ObservationVector> observations;
+
+	@Before
+	public void setUp() {
+		List<OpdfMultiGaussian> opdfs = new ArrayList<OpdfMultiGaussian>();
+		for (double[] mean : MEANS) {
+			opdfs.add(new OpdfMultiGaussian(mean, new double[][] { { 0.6, 0 }, { 0, 0.6 } }));
+		}
+		hmm = new Hmm<ObservationVector>(PI, A, opdfs);
+		inference = new HmmOnlineInference(hmm, LAG);
+
+		// observations drawn from the model
+		Random random = new Random(5);
+		observations = new ArrayList<ObservationVector>();
+		int state = draw(random, PI);
+		for (int t = 0; t < OBSERVATIONS; t++) {
+			double[] values = new double[2];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = MEANS[state][i] + Math.sqrt(0.6) * random.nextGaussian();
+			}
+			observations.add(new ObservationVector(values));
+			state = draw(random, A[state]);
+		}
+	}
+
+	private static int draw(Random random, double[] probabilities) {
+		double p = random.nextDouble();
+		for (int i = 0; i < probabilities.length - 1; i++) {
+			p -= probabilities[i];
+			if (p < 0) {
+				return i;
+			}
+		}
+		return probabilities.length - 1;
+	}
+
+	/**
+	 * The last states of the Viterbi path over the first observations
+	 */
+	private int[] fullViterbi(int observed, int length) {
+		int[] states = hmm.mostLikelyStateSequence(observations.subList(0, observed));
+		return Arrays.copyOfRange(states, observed - length, observed);
+	}
+
+	@Test
+	public void testFixedLagViterbiMatchesTheFullViterbi() {
+		HmmOnlineInference.Stream stream = inference.newStream();
+		assertEquals(0, inference.stateSequence(stream).length);
+		int changed = 0;
+		int[] previous = null;
+		for (int t = 1; t <= OBSERVATIONS; t++) {
+			inference.step(stream, observations.get(t - 1));
+			int[] states = inference.stateSequence(stream);
+			assertArrayEquals("after " + t + " observations", fullViterbi(t, Math.min(t, LAG)), states);
+			if (previous != null && previous.length == LAG && previous[LAG - 1] != states[LAG - 2]) {
+				changed++; // a new observation changed the most likely earlier state
+			}
+			previous = states;
+		}
+		assertEquals(OBSERVATIONS, stream.getSteps());
+		assertTrue(changed > 0);
+	}
+
+	@Test
+	public void testReplayedWindowMatchesTheViterbiOfTheWindow() {
+		HmmOnlineInference.Stream stream = inference.newStream();
+		for (int end = LAG; end <= OBSERVATIONS; end += 7) {
+			List<ObservationVector> window = observations.subList(end - LAG, end);
+			inference.replay(stream, window);
+			assertArrayEquals(hmm.mostLikelyStateSequence(window), inference.stateSequence(stream));
+		}
+	}
+
+	@Test
+	public void testNextWindow() {
+		HmmOnlineInference.Stream stream = inference.newStream();
+		inference.replay(stream, observations.subList(0, LAG));
+		assertTrue(inference.isNextWindow(stream, observations.subList(1, LAG + 1)));
+		assertFalse(inference.isNextWindow(stream, observations.subList(2, LAG + 2)));
+		assertFalse(inference.isNextWindow(stream, observations.subList(0, LAG + 2)));
+
+		inference.step(stream, observations.get(LAG));
+		assertArrayEquals(fullViterbi(LAG + 1, LAG), inference.stateSequence(stream));
+	}
+
+	@Test
+	public void testDistributionIsTheForwardProbability() {
+		HmmOnlineInference.Stream stream = inference.newStream();
+		assertArrayEquals(PI, inference.distribution(stream), 0);
+
+		double[] alpha = new double[PI.length];
+		for (int t = 0; t < OBSERVATIONS; t++) {
+			ObservationVector o = observations.get(t);
+			double[] next = new double[PI.length];
+			double sum = 0;
+			for (int j = 0; j < PI.length; j++) {
+				double p = 0;
+				if (t == 0) {
+					p = PI[j];
+				}
+				else {
+					for (int i = 0; i < PI.length; i++) {
+						p += alpha[i] * A[i][j];
+					}
+				}
+				next[j] = p * hmm.getOpdf(j).probability(o);
+				sum += next[j];
+			}
+			for (int j = 0; j < PI.length; j++) {
+				alpha[j] = next[j] / sum;
+			}
+
+			inference.step(stream, o);
+			assertArrayEquals("after " + (t + 1) + " observations", alpha, inference.distribution(stream), 1e-9);
+		}
+	}
+
+}
@@ -0,0 +1,227 @@
+package context.arch.enactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import context.arch.discoverer.ComponentDescription;
+import context.arch.discoverer.component.ConstantAttributeElement;
+import context.arch.discoverer.component.NonConstantAttributeElement;
+import context.arch.discoverer.query.ANDQueryItem;
+import context.arch.discoverer.query.AbstractQueryItem;
+import context.arch.discoverer.query.ElseQueryItem;
+import context.arch.discoverer.query.NOTQueryItem;
+import context.arch.discoverer.query.ORQueryItem;
+import context.arch.discoverer.query.RuleQueryItem;
+import context.arch.discoverer.query.comparison.AttributeComparison;
+import context.arch.storage.AttributeNameValue;
+
+/**
+ * Tests that the ConditionNetwork finds the same references as matching the
+ * condition of each reference in turn, as the widget state changes: when
+ * attributes are inserted, updated and removed, and when references are
+ * added, removed or get a new condition.
+ */
+public class ConditionNetworkTest {
+
+	private static final String[] ROOMS = { "hall", "kitchen", "lab" };
+	private static final AttributeComparison[] COMPARISONS = {
+		AttributeComparison.EQUAL, AttributeComparison.DIFFERENT,
+		AttributeComparison.GREATER, AttributeComparison.LESS_EQUAL };
+
+	private Random random;
+	private List<EnactorReference> references;
+
+	/**
+	 * Values of the current widget state, a null value for an attribute removed
+	 */
+	private Map<String, Object> values;
+
+	private int found;
+
+	@Before
+	public void setUp() {
+		random = new Random(11);
+		references = new ArrayList<EnactorReference>();
+		for (int i = 0; i < 30; i++) {
+			references.add(new EnactorReference(null, query(1 + random.nextInt(3)), "outcome" + i));
+		}
+		// the same query instances in several references, as the ELSE conditions of an enactor
+		AbstractQueryItem<?,?> shared = query(2);
+		references.add(new EnactorReference(null, shared, "shared"));
+		references.add(new EnactorReference(null, new ElseQueryItem(shared, references.get(0).getConditionQuery()), "else"));
+		references.add(new EnactorReference(null, null, "no condition"));
+
+		values = new LinkedHashMap<String, Object>();
+		values.put("level", 5);
+		values.put("temperature", 20.0);
+		values.put("room", "hall");
+	}
+
+	private AbstractQueryItem<?,?> leaf() {
+		AttributeComparison comparison = COMPARISONS[random.nextInt(COMPARISONS.length)];
+		switch (random.nextInt(3)) {
+		case 0: return RuleQueryItem.instance(new NonConstantAttributeElement(
+				AttributeNameValue.instance("level", random.nextInt(10))), comparison);
+		case 1: return RuleQueryItem.instance(new NonConstantAttributeElement(
+				AttributeNameValue.instance("temperature", (double) random.nextInt(40))), comparison);
+		default: return RuleQueryItem.instance(new ConstantAttributeElement(
+				AttributeNameValue.instance("room", ROOMS[random.nextInt(ROOMS.length)])), AttributeComparison.EQUAL);
+		}
+	}
+
+	/**
+	 * Random condition of the given depth; equal leaves are often repeated
+	 */
+	private AbstractQueryItem<?,?> query(int depth) {
+		if (depth == 0) {
+			return leaf();
+		}
+		AbstractQueryItem<?,?> child1 = query(depth - 1);
+		AbstractQueryItem<?,?> child2 = query(random.nextInt(depth));
+		switch (random.nextInt(4)) {
+		case 0: return new ANDQueryItem(child1, child2);
+		case 1: return new ORQueryItem(child1, child2);
+		case 2: return new NOTQueryItem(child1);
+		default: return new ElseQueryItem(child1, child2);
+		}
+	}
+
+	/**
+	 * A new description of the widget with the current values
+	 */
+	private ComponentDescription state() {
+		ComponentDescription state = new ComponentDescription();
+		state.id = "widget";
+		for (Map.Entry<String, Object> entry : values.entrySet()) {
+			if (entry.getValue() == null) {
+				continue;
+			}
+			if (entry.getKey().equals("room")) {
+				state.addConstantAttribute(AttributeNameValue.instance("room", (String) entry.getValue()));
+			}
+			else if (entry.getValue() instanceof Integer) {
+				state.addNonConstantAttribute(AttributeNameValue.instance(entry.getKey(), (Integer) entry.getValue()));
+			}
+			else {
+				state.addNonConstantAttribute(AttributeNameValue.instance(entry.getKey(), (Double) entry.getValue()));
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Changes, removes or inserts back one attribute of the widget
+	 */
+	private void change() {
+		switch (random.nextInt(8)) {
+		case 0: values.put("level", random.nextInt(4) > 0 ? null : 3); break;
+		case 1: values.put("temperature", random.nextInt(4) > 0 ? null : 25.0); break;
+		case 2: values.put("room", random.nextInt(2) > 0 ? null : ROOMS[random.nextInt(ROOMS.length)]); break;
+		case 3: case 4: values.put("level", random.nextInt(10)); break;
+		case 5: case 6: values.put("temperature", (double) random.nextInt(40)); break;
+		default: values.put("room", ROOMS[random.nextInt(ROOMS.length)]); break;
+		}
+	}
+
+	/**
+	 * The references found by matching each condition, as handleCallback
+	 * did before the network
+	 */
+	private List<EnactorReference> scan(ComponentDescription state) {
+		List<EnactorReference> matching = new ArrayList<EnactorReference>();
+		for (EnactorReference ref : references) {
+			AbstractQueryItem<?,?> query = ref.getConditionQuery();
+			if (query != null && Boolean.TRUE.equals(query.match(state))) {
+				matching.add(ref);
+			}
+		}
+		return matching;
+	}
+
+	/**
+	 * Evaluates the network for the current state, and checks it finds the
+	 * same references as the scan
+	 */
+	private ConditionNetwork.Memory check(ConditionNetwork network, ConditionNetwork.Memory memory, int step) {
+		ComponentDescription state = state();
+		List<EnactorReference> matching = new ArrayList<EnactorReference>();
+		memory = network.evaluate(memory, state, references, matching);
+		assertEquals("step " + step + " " + values, scan(state), matching);
+		found += matching.size();
+		return memory;
+	}
+
+	@Test
+	public void testSharedConditionsAreOneNode() {
+		AbstractQueryItem<?,?> level = RuleQueryItem.instance(new NonConstantAttributeElement(
+				AttributeNameValue.instance("level", 5)), AttributeComparison.GREATER);
+		AbstractQueryItem<?,?> sameLevel = RuleQueryItem.instance(new NonConstantAttributeElement(
+				AttributeNameValue.instance("level", 5)), AttributeComparison.GREATER);
+		AbstractQueryItem<?,?> room = RuleQueryItem.instance(new ConstantAttributeElement(
+				AttributeNameValue.instance("room", "hall")), AttributeComparison.EQUAL);
+		references.clear();
+		references.add(new EnactorReference(null, new ANDQueryItem(level, room), "a"));
+		references.add(new EnactorReference(null, new ANDQueryItem(sameLevel, room), "b"));
+		references.add(new EnactorReference(null, new NOTQueryItem(sameLevel), "c"));
+		assertEquals(4, new ConditionNetwork(references).size()); // level, room, AND, NOT
+	}
+
+	@Test
+	public void testAttributesInsertedUpdatedAndRemoved() {
+		ConditionNetwork network = new ConditionNetwork(references);
+		ConditionNetwork.Memory memory = null;
+		for (int step = 0; step < 500; step++) {
+			memory = check(network, memory, step);
+			change();
+		}
+		assertTrue(found > 0);
+		assertTrue(network.getSkippedCount() > 0); // conditions on the unchanged attributes
+	}
+
+	@Test
+	public void testUnchangedStateKeepsTheMatches() {
+		ConditionNetwork network = new ConditionNetwork(references);
+		ConditionNetwork.Memory memory = check(network, null, 0);
+		long evaluated = network.getEvaluatedCount();
+		memory = check(network, memory, 1);
+		assertEquals(evaluated, network.getEvaluatedCount()); // nothing changed, nothing evaluated
+	}
+
+	@Test
+	public void testReferencesAddedRemovedAndChanged() {
+		ConditionNetwork network = new ConditionNetwork(references);
+		ConditionNetwork.Memory memory = null;
+		for (int step = 0; step < 300; step++) {
+			if (network.isStale(references)) {
+				network = new ConditionNetwork(references); // as getConditionNetwork does
+			}
+			memory = check(network, memory, step);
+			change();
+
+			switch (random.nextInt(6)) {
+			case 0:
+				references.add(new EnactorReference(null, query(2), "added" + step));
+				break;
+			case 1:
+				references.remove(random.nextInt(references.size()));
+				break;
+			case 2:
+				references.get(random.nextInt(references.size())).setConditionQuery(query(2));
+				break;
+			default:
+				assertFalse(network.isStale(references));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,149 @@
+package context.arch.enactor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import context.arch.comm.DataObject;
+import context.arch.discoverer.ComponentDescription;
+import context.arch.storage.Attributes;
+import context.arch.subscriber.CallbackDelta;
+
+/**
+ * Tests how the state of a widget kept by an enactor follows its delta
+ * callbacks: a missing callback stops the patching and asks for a full
+ * callback, asked again if it doesn't come, and older callbacks are ignored.
+ */
+public class EnactorComponentInfoTest {
+
+	private int retryDeltas = EnactorSubscriptionManager.DEFAULT_RESYNC_RETRY_DELTAS;
+	private long resyncTimeout = EnactorSubscriptionManager.DEFAULT_RESYNC_TIMEOUT;
+
+	private EnactorComponentInfo eci;
+	private CallbackDelta widget;
+	private Attributes values;
+
+	@Before
+	public void setUp() {
+		EnactorSubscriptionManager.DEFAULT_RESYNC_RETRY_DELTAS = 3;
+		EnactorSubscriptionManager.DEFAULT_RESYNC_TIMEOUT = 1000;
+		eci = new EnactorComponentInfo();
+		widget = new CallbackDelta();
+		values = new Attributes();
+		values.addAttribute("level", 0);
+		values.addAttribute("presence", "none");
+	}
+
+	@After
+	public void tearDown() {
+		EnactorSubscriptionManager.DEFAULT_RESYNC_RETRY_DELTAS = retryDeltas;
+		EnactorSubscriptionManager.DEFAULT_RESYNC_TIMEOUT = resyncTimeout;
+	}
+
+	/**
+	 * The next callback of the widget, after the level changed
+	 */
+	private DataObject callback(int level) {
+		values.addAttribute("level", level);
+		return widget.encode("widget", new Attributes(values), new Attributes());
+	}
+
+	private ComponentDescription apply(DataObject data, long now) {
+		return eci.applyCallback(data, ComponentDescription.fromDataObject(data), now);
+	}
+
+	private static int level(ComponentDescription state) {
+		return state.getNonConstantAttributes().<Integer>getAttributeValue("level");
+	}
+
+	@Test
+	public void testDeltasArePatched() {
+		assertEquals(0, level(apply(callback(0), 0)));
+		for (int level = 1; level < 10; level++) {
+			ComponentDescription state = apply(callback(level), 0);
+			assertEquals(level, level(state));
+			assertEquals("none", state.getNonConstantAttributes().getAttributeValue("presence"));
+			assertEquals(state, eci.getCurrentState());
+		}
+		assertEquals(10, eci.getCallbackSequence());
+		assertFalse(eci.takeResyncDue());
+	}
+
+	@Test
+	public void testGapAsksForAFullCallback() {
+		apply(callback(0), 0);
+		callback(1); // lost
+		assertNull(apply(callback(2), 0));
+		assertTrue(eci.takeResyncDue());
+		assertFalse(eci.takeResyncDue()); // asked once
+		assertNull(apply(callback(3), 0));
+		assertFalse(eci.takeResyncDue());
+		assertEquals(0, level(eci.getCurrentState()));
+		assertTrue(eci.isResyncRequested());
+
+		// the widget answers the request with a full callback
+		widget.resync();
+		assertEquals(4, level(apply(callback(4), 0)));
+		assertFalse(eci.isResyncRequested());
+		assertEquals(5, level(apply(callback(5), 0)));
+	}
+
+	@Test
+	public void testResyncIsAskedAgainAfterDroppedDeltas() {
+		apply(callback(0), 0);
+		callback(1); // lost
+		assertNull(apply(callback(2), 0));
+		assertTrue(eci.takeResyncDue());
+
+		// the request or its reply is lost
+		assertNull(apply(callback(3), 0));
+		assertNull(apply(callback(4), 0));
+		assertFalse(eci.takeResyncDue());
+		assertNull(apply(callback(5), 0));
+		assertTrue(eci.takeResyncDue());
+
+		widget.resync();
+		assertEquals(6, level(apply(callback(6), 0)));
+	}
+
+	@Test
+	public void testResyncIsAskedAgainAfterTheTimeout() {
+		apply(callback(0), 0);
+		callback(1); // lost
+		assertNull(apply(callback(2), 100));
+		assertTrue(eci.takeResyncDue());
+		assertNull(apply(callback(3), 1099));
+		assertFalse(eci.takeResyncDue());
+		assertNull(apply(callback(4), 1100));
+		assertTrue(eci.takeResyncDue());
+	}
+
+	@Test
+	public void testOlderCallbacksAreIgnored() {
+		apply(callback(0), 0);
+		DataObject late = callback(1);
+		DataObject later = callback(2);
+		assertNull(apply(callback(3), 0)); // overtakes the two others: a gap
+		assertTrue(eci.takeResyncDue());
+
+		widget.resync();
+		DataObject full = callback(4);
+		assertEquals(4, level(apply(full, 0)));
+		assertNull(apply(late, 0));
+		assertNull(apply(later, 0));
+		assertNull(apply(full, 0));
+		assertFalse(eci.takeResyncDue());
+		assertEquals(4, level(eci.getCurrentState()));
+
+		// a restarted widget numbers its callbacks from 1 again
+		widget = new CallbackDelta();
+		assertEquals(7, level(apply(callback(7), 0)));
+		assertEquals(8, level(apply(callback(8), 0)));
+	}
+
+}
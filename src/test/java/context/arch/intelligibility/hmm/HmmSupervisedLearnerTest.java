@@ -0,0 +1,137 @@
+package context.arch.intelligibility.hmm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import be.ac.ulg.montefiore.run.jahmm.ObservationInteger;
+import be.ac.ulg.montefiore.run.jahmm.ObservationVector;
+
+/**
+ * Tests that HmmSupervisedLearner counts the same transitions and emissions,
+ * and so learns the same parameters, whether the training data is counted
+ * in one thread or in parallel chunks, in memory or streamed from files.
+ */
+public class HmmSupervisedLearnerTest {
+
+	private static final int STATES = 4;
+	private static final int DIMENSION = 5;
+	private static final int OBSERVATIONS = 5000;
+
+	private List<ObservationVector> observations;
+	private List<ObservationInteger> states;
+	private File observationsFile;
+	private File statesFile;
+
+	@Before
+	public void setUp() throws IOException {
+		Random random = new Random(13);
+		observations = new ArrayList<ObservationVector>();
+		states = new ArrayList<ObservationInteger>();
+		int state = random.nextInt(STATES);
+		for (int t = 0; t < OBSERVATIONS; t++) {
+			if (random.nextInt(10) == 0) {
+				state = random.nextInt(STATES);
+			}
+			double[] values = new double[DIMENSION];
+			for (int f = 0; f < DIMENSION; f++) {
+				values[f] = random.nextInt(STATES + 1) <= state ? 1 : 0;
+			}
+			observations.add(new ObservationVector(values));
+			states.add(new ObservationInteger(state));
+		}
+
+		observationsFile = File.createTempFile("observations", ".seq");
+		statesFile = File.createTempFile("states", ".seq");
+		Writer observationsWriter = new FileWriter(observationsFile);
+		Writer statesWriter = new FileWriter(statesFile);
+		try {
+			for (int t = 0; t < OBSERVATIONS; t++) {
+				observationsWriter.write("[");
+				for (int f = 0; f < DIMENSION; f++) {
+					observationsWriter.write((int) observations.get(t).value(f) + " ");
+				}
+				observationsWriter.write("]; ");
+				statesWriter.write(states.get(t).value + "; ");
+			}
+			observationsWriter.write("\n");
+			statesWriter.write("\n");
+		} finally {
+			observationsWriter.close();
+			statesWriter.close();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		observationsFile.delete();
+		statesFile.delete();
+	}
+
+	private static HmmSupervisedLearner learner(int parallelism, int chunkSize) {
+		HmmSupervisedLearner learner = new HmmSupervisedLearner(STATES, DIMENSION, 2);
+		learner.setParallelism(parallelism);
+		learner.setChunkSize(chunkSize);
+		return learner;
+	}
+
+	private static void assertSameCounts(HmmSupervisedLearner expected, HmmSupervisedLearner actual) {
+		assertEquals(expected.NUM_OBSERVATIONS, actual.NUM_OBSERVATIONS);
+		assertTrue(Arrays.deepEquals(expected.N_STATE_TO_STATE, actual.N_STATE_TO_STATE));
+		assertTrue(Arrays.equals(expected.N_STATE, actual.N_STATE));
+		assertTrue(Arrays.deepEquals(expected.N_STATE_TO_OBS, actual.N_STATE_TO_OBS));
+		assertTrue(Arrays.deepEquals(expected.N_STATE_TO_ATTR, actual.N_STATE_TO_ATTR));
+
+		assertTrue(Arrays.equals(expected.pi, actual.pi));
+		assertTrue(Arrays.deepEquals(expected.a, actual.a));
+		assertTrue(Arrays.deepEquals(expected.b, actual.b));
+		assertTrue(Arrays.deepEquals(expected.b_naive, actual.b_naive));
+	}
+
+	@Test
+	public void testParallelCountsAreTheSequentialCounts() {
+		HmmSupervisedLearner sequential = learner(1, HmmSupervisedLearner.DEFAULT_CHUNK_SIZE);
+		sequential.learn(observations, states);
+		assertEquals(OBSERVATIONS, sequential.NUM_OBSERVATIONS);
+		int transitions = 0;
+		for (int[] row : sequential.N_STATE_TO_STATE) {
+			for (int count : row) {
+				transitions += count;
+			}
+		}
+		assertEquals(OBSERVATIONS, transitions);
+
+		for (int chunkSize : new int[] { 1, 7, 333, OBSERVATIONS - 1 }) {
+			HmmSupervisedLearner parallel = learner(4, chunkSize);
+			parallel.learn(observations, states);
+			assertSameCounts(sequential, parallel);
+		}
+	}
+
+	@Test
+	public void testStreamedCountsAreTheInMemoryCounts() {
+		HmmSupervisedLearner inMemory = learner(1, HmmSupervisedLearner.DEFAULT_CHUNK_SIZE);
+		inMemory.learn(observations, states);
+
+		for (int parallelism : new int[] { 1, 3 }) {
+			for (int chunkSize : new int[] { 1, 250, OBSERVATIONS + 1 }) {
+				HmmSupervisedLearner streaming = learner(parallelism, chunkSize);
+				streaming.learn(observationsFile, statesFile);
+				assertSameCounts(inMemory, streaming);
+			}
+		}
+	}
+
+}
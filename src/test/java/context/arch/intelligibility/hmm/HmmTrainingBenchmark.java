@@ -0,0 +1,71 @@
+package context.arch.intelligibility.hmm;
+
+import java.io.File;
+import java.util.List;
+
+import be.ac.ulg.montefiore.run.jahmm.ObservationInteger;
+import be.ac.ulg.montefiore.run.jahmm.ObservationVector;
+
+/**
+ * Measures the training throughput of HmmSupervisedLearner, in observations per second,
+ * for each number of threads from 1 to the number of processors:
+ * - in memory: counting sequences already loaded, in parallel chunks;
+ * - streaming: reading the sequence files in batches while counting them.
+ *
+ * Usage: HmmTrainingBenchmark [observations.seq states.seq [numStates obsDimension [iterations]]]
+ *
+ * @see HmmSupervisedLearner#setParallelism(int)
+ */
+public class HmmTrainingBenchmark {
+
+	public static int DEFAULT_WARMUP = 3;
+	public static int DEFAULT_ITERATIONS = 10;
+
+	public static void main(String[] args) {
+		File observationsFile = new File(args.length > 1 ? args[0] : "demos/home-hmm/kasteren-jahmm-observations.seq");
+		File statesFile = new File(args.length > 1 ? args[1] : "demos/home-hmm/kasteren-jahmm-states.seq");
+		int numStates = args.length > 3 ? Integer.parseInt(args[2]) : 8;
+		int obsDimension = args.length > 3 ? Integer.parseInt(args[3]) : 14;
+		int iterations = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_ITERATIONS;
+
+		List<ObservationVector> observations = HmmSupervisedLearner.readObservationsSequencesFromFile(observationsFile, obsDimension);
+		List<ObservationInteger> states = HmmSupervisedLearner.readStateSequencesFromFile(statesFile);
+		if (observations == null || states == null) {
+			System.out.println("HmmTrainingBenchmark: could not read " + observationsFile + " and " + statesFile);
+			return;
+		}
+		int size = Math.min(observations.size(), states.size());
+		System.out.println("observations = " + size);
+
+		HmmSupervisedLearner learner = new HmmSupervisedLearner(numStates, obsDimension, 2);
+		int processors = Runtime.getRuntime().availableProcessors();
+		System.out.println("threads\tin memory (obs/s)\tstreaming (obs/s)");
+		for (int threads = 1; threads <= processors; threads++) {
+			learner.setParallelism(threads);
+
+			for (int i = 0; i < DEFAULT_WARMUP; i++) {
+				learner.learn(observations, states);
+				learner.learn(observationsFile, statesFile);
+			}
+
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				learner.learn(observations, states);
+			}
+			double inMemory = throughput(size, iterations, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				learner.learn(observationsFile, statesFile);
+			}
+			double streaming = throughput(size, iterations, System.nanoTime() - start);
+
+			System.out.println(threads + "\t" + (long)inMemory + "\t" + (long)streaming);
+		}
+	}
+
+	private static double throughput(int size, int iterations, long nanos) {
+		return (double)size * iterations / (nanos / 1e9);
+	}
+
+}
@@ -0,0 +1,225 @@
+package context.arch.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import context.arch.comm.DataObject;
+import context.arch.comm.DataObjects;
+
+/**
+ * Tests that retrievals give the same results on the blocks of a SegmentStorage,
+ * where they skip blocks and rows from the index, and on rows not flushed yet,
+ * where they read them all. Also tests columns whose values have different
+ * classes from block to block.
+ */
+public class RetrievalExecutorTest {
+
+	private static final int ROWS = 200;
+	private static final int BLOCK_ROWS = 16;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String defaultDir;
+	private SegmentStorage pruned;
+	private SegmentStorage unflushed;
+
+	@Before
+	public void setUp() throws IOException {
+		defaultDir = SegmentStorage.DEFAULT_DIR;
+		SegmentStorage.DEFAULT_DIR = folder.getRoot().getPath() + File.separator;
+
+		pruned = new SegmentStorage("pruned");
+		unflushed = new SegmentStorage("unflushed");
+		for (int i = 0; i < ROWS; i++) {
+			// the third block is stored in reverse order: its timestamps are not sorted
+			int n = i / BLOCK_ROWS == 2 ? 2 * BLOCK_ROWS + (3 * BLOCK_ROWS - 1 - i) : i;
+			Attributes atts = row(1000 + 10 * n, n, "room" + (n % 5), n * 0.5);
+			pruned.store(atts);
+			unflushed.store(atts);
+			if ((i + 1) % BLOCK_ROWS == 0) {
+				pruned.flushStorage();
+			}
+		}
+	}
+
+	@After
+	public void tearDown() {
+		pruned.close();
+		unflushed.close();
+		SegmentStorage.DEFAULT_DIR = defaultDir;
+	}
+
+	private static Attributes row(long timestamp, Comparable<?> value, String room, double level) {
+		Attributes atts = new Attributes();
+		atts.add(SegmentStorage.attribute(SegmentStorage.TIMESTAMP, timestamp));
+		atts.add(SegmentStorage.attribute("value", value));
+		atts.add(SegmentStorage.attribute("room", room));
+		atts.addAttribute("level", Double.valueOf(level));
+		return atts;
+	}
+
+	private static Retrieval retrieval(Conditions conditions, String... functions) {
+		AttributeFunctions atts = new AttributeFunctions();
+		for (int i = 0; i + 1 < functions.length; i += 2) {
+			atts.put(functions[i], new AttributeFunction<String>(functions[i], functions[i + 1]));
+		}
+		return new Retrieval(atts, conditions);
+	}
+
+	private static Conditions conditions(Object... conditions) {
+		Conditions result = new Conditions();
+		for (int i = 0; i + 2 < conditions.length; i += 3) {
+			result.addCondition((String) conditions[i], (Integer) conditions[i + 1], conditions[i + 2]);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the results, as sorted name=value lists
+	 */
+	private static List<String> results(SegmentStorage storage, Retrieval retrieval) {
+		RetrievalResults results = storage.retrieveAttributes(retrieval);
+		assertNotNull(results);
+		List<String> rows = new ArrayList<String>();
+		for (Attributes atts : results) {
+			TreeMap<String, Object> sorted = new TreeMap<String, Object>();
+			for (Attribute<?> att : atts.values()) {
+				sorted.put(att.getName(), ((AttributeNameValue<?>) att).getValue());
+			}
+			rows.add(sorted.toString());
+		}
+		return rows;
+	}
+
+	/**
+	 * Checks that the retrieval gives the same results with and without pruning,
+	 * and returns them
+	 */
+	private List<String> check(Retrieval retrieval) {
+		List<String> expected = results(unflushed, retrieval);
+		assertEquals(expected, results(pruned, retrieval));
+		return expected;
+	}
+
+	@Test
+	public void testAllRows() {
+		assertEquals(ROWS, check(retrieval(null)).size());
+		assertEquals(ROWS, check(retrieval(null, "value", AttributeFunction.FUNCTION_NONE)).size());
+	}
+
+	@Test
+	public void testTimestampConditions() {
+		List<String> rows = check(retrieval(conditions(
+				SegmentStorage.TIMESTAMP, Storage.GREATERTHANEQUAL, 1300,
+				SegmentStorage.TIMESTAMP, Storage.LESSTHAN, 1600), "value", AttributeFunction.FUNCTION_NONE));
+		assertEquals(30, rows.size());
+		assertEquals(1, check(retrieval(conditions(SegmentStorage.TIMESTAMP, Storage.EQUAL, 1420))).size());
+		assertEquals(0, check(retrieval(conditions(SegmentStorage.TIMESTAMP, Storage.GREATERTHAN, 99999))).size());
+		// in the block whose timestamps are not sorted
+		assertEquals(5, check(retrieval(conditions(
+				SegmentStorage.TIMESTAMP, Storage.GREATERTHAN, 1330,
+				SegmentStorage.TIMESTAMP, Storage.LESSTHANEQUAL, 1380))).size());
+	}
+
+	@Test
+	public void testValueConditions() {
+		assertEquals(10, check(retrieval(conditions("value", Storage.LESSTHAN, 10))).size());
+		assertEquals(1, check(retrieval(conditions("value", Storage.EQUAL, "150"))).size());
+		assertEquals(40, check(retrieval(conditions("room", Storage.EQUAL, "room3"))).size());
+		assertEquals(20, check(retrieval(conditions("level", Storage.GREATERTHANEQUAL, 90.0))).size());
+		assertEquals(0, check(retrieval(conditions("missing", Storage.EQUAL, 1))).size());
+	}
+
+	@Test
+	public void testOrConditions() {
+		Conditions first = conditions("value", Storage.LESSTHAN, 5);
+		first.setORConditions(conditions(
+				SegmentStorage.TIMESTAMP, Storage.GREATERTHAN, 2900,
+				"room", Storage.EQUAL, "room0"));
+		assertEquals(5 + 1, check(retrieval(first)).size());
+	}
+
+	@Test
+	public void testExtremes() {
+		List<String> rows = check(retrieval(null, "value", AttributeFunction.FUNCTION_MAX));
+		assertEquals(1, rows.size());
+		assertEquals("{value=199}", rows.get(0));
+		rows = check(retrieval(conditions("room", Storage.EQUAL, "room2"),
+				"value", AttributeFunction.FUNCTION_MIN, "room", AttributeFunction.FUNCTION_NONE));
+		assertEquals("[{room=room2, value=2}]", rows.toString());
+	}
+
+	@Test
+	public void testAggregates() {
+		List<String> rows = check(retrieval(conditions("value", Storage.LESSTHAN, 100),
+				"value", AttributeFunction.FUNCTION_SUM, "level", AttributeFunction.FUNCTION_AVG,
+				"room", AttributeFunction.FUNCTION_COUNT));
+		assertEquals("[{level=24.75, room=100, value=4950}]", rows.toString());
+	}
+
+	@Test
+	public void testBuckets() {
+		Retrieval retrieval = retrieval(null, "value", AttributeFunction.FUNCTION_COUNT);
+		retrieval.setBucket(500);
+		List<String> rows = check(retrieval);
+		assertEquals(4, rows.size());
+		assertEquals("{timestamp=1000, value=50}", rows.get(0));
+		assertEquals("{timestamp=2500, value=50}", rows.get(3));
+	}
+
+	@Test
+	public void testInvalidBucketIsRejected() {
+		Retrieval retrieval = retrieval(conditions("value", Storage.LESSTHAN, 100));
+		retrieval.setBucket(500);
+		DataObject data = retrieval.toDataObject();
+		Retrieval decoded = new Retrieval(data);
+		assertTrue(decoded.isValid());
+		assertEquals(500, decoded.getBucket());
+
+		DataObjects v = new DataObjects();
+		for (DataObject child : data.getChildren()) {
+			v.addElement(child.getName().equals(Retrieval.RETRIEVAL_BUCKET) ? new DataObject(Retrieval.RETRIEVAL_BUCKET, "500ms") : child);
+		}
+		decoded = new Retrieval(new DataObject(Retrieval.RETRIEVAL_CONDITIONS, v));
+		assertFalse(decoded.isValid());
+		assertNull(pruned.retrieveAttributes(decoded));
+	}
+
+	@Test
+	public void testMixedClassesAreCompared() throws IOException {
+		SegmentStorage storage = new SegmentStorage("mixed");
+		try {
+			storage.store(row(1, 5, "a", 0));
+			storage.store(row(2, 40, "a", 0));
+			storage.flushStorage();
+			storage.store(row(3, "7", "a", 0));
+			storage.store(row(4, 300, "a", 0)); // with "7": kept as strings
+			storage.flushStorage();
+			storage.store(row(5, 12L, "a", 0));
+
+			assertEquals("[{value=300}]", results(storage, retrieval(null, "value", AttributeFunction.FUNCTION_MAX)).toString());
+			assertEquals("[{value=5}]", results(storage, retrieval(null, "value", AttributeFunction.FUNCTION_MIN)).toString());
+			assertEquals(3, results(storage, retrieval(conditions("value", Storage.GREATERTHAN, 10))).size());
+			assertEquals(1, results(storage, retrieval(conditions("value", Storage.EQUAL, "7"))).size());
+		} finally {
+			storage.close();
+		}
+	}
+
+}
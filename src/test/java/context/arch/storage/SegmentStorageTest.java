@@ -0,0 +1,171 @@
+package context.arch.storage;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import context.arch.util.FileDamage;
+
+/**
+ * Tests the rows read back from a SegmentStorage after a reopen, a crash with
+ * damaged blocks and across several segments.
+ */
+public class SegmentStorageTest {
+
+	private static final String TABLE = "widget";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String defaultDir;
+	private long segmentSize;
+	private List<SegmentStorage> storages = new ArrayList<SegmentStorage>();
+
+	@Before
+	public void setUp() {
+		defaultDir = SegmentStorage.DEFAULT_DIR;
+		segmentSize = SegmentStorage.DEFAULT_SEGMENT_SIZE;
+		SegmentStorage.DEFAULT_DIR = folder.getRoot().getPath() + File.separator;
+	}
+
+	@After
+	public void tearDown() {
+		for (SegmentStorage storage : storages) {
+			storage.close();
+		}
+		SegmentStorage.DEFAULT_DIR = defaultDir;
+		SegmentStorage.DEFAULT_SEGMENT_SIZE = segmentSize;
+	}
+
+	private SegmentStorage open() throws IOException {
+		SegmentStorage storage = new SegmentStorage(TABLE);
+		storages.add(storage);
+		return storage;
+	}
+
+	private static void store(SegmentStorage storage, int from, int to) {
+		for (int i = from; i < to; i++) {
+			Attributes atts = new Attributes();
+			atts.addAttribute(SegmentStorage.TIMESTAMP, Long.valueOf(1000 + i));
+			atts.addAttribute("value", Integer.valueOf(i));
+			atts.addAttribute("room", "room" + (i % 3));
+			storage.store(atts);
+		}
+	}
+
+	/**
+	 * Returns the values of the rows retrieved, in order
+	 */
+	private static List<Integer> values(SegmentStorage storage) {
+		List<Integer> values = new ArrayList<Integer>();
+		for (Attributes atts : storage.retrieveAttributes(new Retrieval())) {
+			Integer value = atts.getAttributeValue("value");
+			values.add(value);
+		}
+		return values;
+	}
+
+	private static List<Integer> range(int from, int to) {
+		List<Integer> values = new ArrayList<Integer>();
+		for (int i = from; i < to; i++) {
+			values.add(i);
+		}
+		return values;
+	}
+
+	private File[] segments() {
+		File[] files = new File(folder.getRoot(), TABLE).listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.getName().endsWith(".seg");
+			}
+		});
+		Arrays.sort(files);
+		return files;
+	}
+
+	@Test
+	public void testRowsSurviveReopen() throws IOException {
+		SegmentStorage storage = open();
+		store(storage, 0, 10);
+		storage.flushStorage();
+		store(storage, 10, 15);
+		storage.flushStorage();
+		store(storage, 15, 18);
+		assertEquals(range(0, 18), values(storage));
+		storage.close();
+
+		assertEquals(range(0, 18), values(open()));
+	}
+
+	@Test
+	public void testRowsKeepTheirTypes() throws IOException {
+		SegmentStorage storage = open();
+		store(storage, 0, 3);
+		storage.close();
+
+		Attributes atts = open().retrieveAttributes(new Retrieval()).get(2);
+		Long timestamp = atts.getAttributeValue(SegmentStorage.TIMESTAMP);
+		String room = atts.getAttributeValue("room");
+		assertEquals(Long.valueOf(1002), timestamp);
+		assertEquals("room2", room);
+	}
+
+	@Test
+	public void testSegmentIsTruncatedAtTheFirstDamagedBlock() throws IOException {
+		SegmentStorage storage = open();
+		store(storage, 0, 5);
+		storage.flushStorage();
+		long damaged = segments()[0].length();
+		store(storage, 5, 10);
+		storage.flushStorage();
+		long torn = segments()[0].length();
+		store(storage, 10, 15);
+		storage.flushStorage();
+
+		// never closed, and its last block is torn
+		FileDamage.tear(segments()[0], 7);
+		storage = open();
+		assertEquals(range(0, 10), values(storage));
+		assertEquals(torn, segments()[0].length());
+		storage.close();
+
+		// in the body of the second block, past its magic, length and checksum
+		FileDamage.flip(segments()[0], damaged + 16);
+		storage = open();
+		assertEquals(range(0, 5), values(storage));
+		assertEquals(damaged, segments()[0].length());
+
+		// the next blocks are appended after the last good one
+		store(storage, 20, 22);
+		storage.close();
+		List<Integer> expected = range(0, 5);
+		expected.addAll(range(20, 22));
+		assertEquals(expected, values(open()));
+	}
+
+	@Test
+	public void testRowsAreReadAcrossSegments() throws IOException {
+		SegmentStorage.DEFAULT_SEGMENT_SIZE = 1;
+		SegmentStorage storage = open();
+		for (int i = 0; i < 4; i++) {
+			store(storage, 5 * i, 5 * i + 5);
+			storage.flushStorage();
+		}
+		assertEquals(4, segments().length);
+		storage.close();
+
+		assertEquals(range(0, 20), values(open()));
+	}
+
+}
@@ -0,0 +1,119 @@
+package context.arch.subscriber;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import context.arch.comm.DataObject;
+import context.arch.comm.DataObjects;
+import context.arch.discoverer.ComponentDescription;
+import context.arch.storage.Attributes;
+
+/**
+ * Tests that a CallbackDelta sends the attributes changed since the previous
+ * callback with increasing sequence numbers, full callbacks first and after a
+ * resync, and that patching the state of the subscriber with the deltas
+ * gives the state of the widget.
+ */
+public class CallbackDeltaTest {
+
+	private CallbackDelta delta;
+	private Attributes nonConstant;
+	private Attributes constant;
+
+	@Before
+	public void setUp() {
+		delta = new CallbackDelta();
+		nonConstant = new Attributes();
+		nonConstant.addAttribute("level", 1);
+		nonConstant.addAttribute("temperature", 20.5);
+		nonConstant.addAttribute("presence", "none");
+		constant = new Attributes();
+		constant.addAttribute("room", "hall");
+	}
+
+	private DataObject encode() {
+		return delta.encode("widget", new Attributes(nonConstant), new Attributes(constant));
+	}
+
+	@Test
+	public void testFirstCallbackIsFull() {
+		DataObject data = encode();
+		assertEquals(1, CallbackDelta.getSequence(data));
+		assertFalse(CallbackDelta.isDelta(data));
+
+		ComponentDescription state = ComponentDescription.fromDataObject(data);
+		assertEquals("widget", state.id);
+		assertEquals(3, state.getNonConstantAttributes().size());
+		assertEquals(1, state.getConstantAttributes().size());
+	}
+
+	@Test
+	public void testDeltaContainsTheChangedAttributes() {
+		encode();
+		nonConstant.addAttribute("level", 2);
+		DataObject data = encode();
+		assertEquals(2, CallbackDelta.getSequence(data));
+		assertTrue(CallbackDelta.isDelta(data));
+
+		ComponentDescription changed = ComponentDescription.fromDataObject(data);
+		assertEquals(1, changed.getNonConstantAttributes().size());
+		assertEquals(Integer.valueOf(2), changed.getNonConstantAttributes().getAttributeValue("level"));
+		assertTrue(changed.getConstantAttributes().isEmpty());
+
+		data = encode(); // nothing changed
+		assertEquals(3, CallbackDelta.getSequence(data));
+		assertTrue(ComponentDescription.fromDataObject(data).getNonConstantAttributes().isEmpty());
+	}
+
+	@Test
+	public void testCallbackAfterResyncIsFull() {
+		encode();
+		encode();
+		delta.resync();
+		DataObject data = encode();
+		assertEquals(3, CallbackDelta.getSequence(data));
+		assertFalse(CallbackDelta.isDelta(data));
+		assertEquals(3, ComponentDescription.fromDataObject(data).getNonConstantAttributes().size());
+		assertTrue(CallbackDelta.isDelta(encode()));
+	}
+
+	@Test
+	public void testPatchedStateIsTheWidgetState() {
+		ComponentDescription state = ComponentDescription.fromDataObject(encode());
+		String[] presences = { "none", "one", "many" };
+		for (int i = 0; i < 20; i++) {
+			nonConstant.addAttribute("level", i % 4);
+			if (i % 3 == 0) {
+				nonConstant.addAttribute("presence", presences[i % presences.length]);
+			}
+			if (i == 10) {
+				constant.addAttribute("room", "lab");
+			}
+			DataObject data = encode();
+			assertTrue(CallbackDelta.isDelta(data));
+			state = CallbackDelta.patch(state, ComponentDescription.fromDataObject(data));
+
+			assertEquals("widget", state.id);
+			assertEquals(Integer.valueOf(i % 4), state.getNonConstantAttributes().getAttributeValue("level"));
+			assertEquals(Double.valueOf(20.5), state.getNonConstantAttributes().getAttributeValue("temperature"));
+			assertEquals(nonConstant.getAttributeValue("presence"), state.getNonConstantAttributes().getAttributeValue("presence"));
+			assertEquals(i < 10 ? "hall" : "lab", new Attributes(state.getConstantAttributes()).getAttributeValue("room"));
+		}
+	}
+
+	@Test
+	public void testCallbacksWithoutSequence() {
+		DataObjects v = new DataObjects();
+		v.addElement(new DataObject(CallbackDelta.CALLBACK_SEQUENCE, "not a number"));
+		assertEquals(-1, CallbackDelta.getSequence(new DataObject("registerer", v)));
+		assertEquals(-1, CallbackDelta.getSequence(new DataObject("registerer", new DataObjects())));
+		assertFalse(CallbackDelta.isDelta(new DataObject("registerer", new DataObjects())));
+		assertNull(new DataObject("registerer", new DataObjects()).getDataObject(CallbackDelta.CALLBACK_DELTA));
+	}
+
+}
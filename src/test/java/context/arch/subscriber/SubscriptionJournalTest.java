@@ -0,0 +1,171 @@
+package context.arch.subscriber;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import context.arch.storage.Attributes;
+import context.arch.util.FileDamage;
+
+/**
+ * Tests the subscribers restored by a SubscriptionJournal after a clean
+ * close, a crash with damaged records and a compaction, and that the
+ * journals share their writer thread.
+ */
+public class SubscriptionJournalTest {
+
+	private static final long TIMEOUT = 5000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String filename;
+	private List<SubscriptionJournal> journals = new ArrayList<SubscriptionJournal>();
+
+	@Before
+	public void setUp() {
+		filename = new File(folder.getRoot(), "widget-subscription.journal").getPath();
+	}
+
+	@After
+	public void tearDown() {
+		for (SubscriptionJournal journal : journals) {
+			journal.close(TIMEOUT);
+		}
+	}
+
+	private SubscriptionJournal open(Map<String, AbstractSubscriber> restored) throws IOException {
+		return open(filename, restored);
+	}
+
+	private SubscriptionJournal open(String filename, Map<String, AbstractSubscriber> restored) throws IOException {
+		SubscriptionJournal journal = new SubscriptionJournal(filename);
+		journals.add(journal);
+		restored.clear();
+		for (AbstractSubscriber sub : journal.open()) {
+			restored.put(sub.getSubscriptionId(), sub);
+		}
+		return journal;
+	}
+
+	private static Subscriber subscriber(String id, int port) {
+		Subscriber sub = new Subscriber("app", "localhost", port, "update", null, new Attributes());
+		sub.setSubscriptionId(id);
+		return sub;
+	}
+
+	@Test
+	public void testSubscribersSurviveClose() throws IOException {
+		Map<String, AbstractSubscriber> restored = new HashMap<String, AbstractSubscriber>();
+		SubscriptionJournal journal = open(restored);
+		assertEquals(0, restored.size());
+		journal.put(subscriber("a", 5001));
+		journal.put(subscriber("b", 5002));
+		journal.put(subscriber("c", 5003));
+		journal.put(subscriber("a", 6001));
+		journal.remove("c");
+		journal.close(TIMEOUT);
+
+		open(restored);
+		assertEquals(2, restored.size());
+		assertEquals(6001, restored.get("a").getSubscriberPort());
+		assertEquals(5002, restored.get("b").getSubscriberPort());
+		assertEquals("update", restored.get("b").getSubscriptionCallback());
+		assertTrue(restored.get("b") instanceof Subscriber);
+	}
+
+	@Test
+	public void testScanStopsAtTheFirstDamagedRecord() throws IOException {
+		Map<String, AbstractSubscriber> restored = new HashMap<String, AbstractSubscriber>();
+		SubscriptionJournal journal = open(restored);
+		journal.put(subscriber("a", 5001));
+		assertTrue(journal.flush(TIMEOUT));
+		long damaged = new File(filename).length();
+		journal.put(subscriber("b", 5002));
+		journal.put(subscriber("c", 5003));
+		journal.remove("a");
+		assertTrue(journal.flush(TIMEOUT));
+
+		// never closed, and its last record is torn: the removal is lost
+		FileDamage.tear(new File(filename), 3);
+		open(restored);
+		assertEquals(3, restored.size());
+
+		// opening compacted the journal: damage the record of b
+		FileDamage.flip(new File(filename), damaged + 12); // past the length, checksum and type of the record
+		open(restored);
+		assertEquals(1, restored.size());
+		assertTrue(restored.containsKey("a"));
+	}
+
+	@Test
+	public void testCompactionKeepsTheLiveSubscribers() throws IOException {
+		int compactMinRecords = SubscriptionJournal.DEFAULT_COMPACT_MIN_RECORDS;
+		SubscriptionJournal.DEFAULT_COMPACT_MIN_RECORDS = 4;
+		Map<String, AbstractSubscriber> restored = new HashMap<String, AbstractSubscriber>();
+		SubscriptionJournal journal;
+		try {
+			journal = open(restored);
+		} finally {
+			SubscriptionJournal.DEFAULT_COMPACT_MIN_RECORDS = compactMinRecords;
+		}
+		journal.put(subscriber("kept", 5000));
+		for (int i = 0; i < 50; i++) {
+			journal.put(subscriber("s" + i, 5001));
+			assertTrue(journal.flush(TIMEOUT));
+			journal.remove("s" + i);
+		}
+		assertTrue(journal.flush(TIMEOUT));
+		long compacted = new File(filename).length();
+		journal.close(TIMEOUT);
+
+		open(restored);
+		assertEquals(1, restored.size());
+		assertEquals(5000, restored.get("kept").getSubscriberPort());
+		assertTrue(compacted < 20 * new File(filename).length());
+	}
+
+	@Test
+	public void testJournalsShareTheWriter() throws IOException {
+		Map<String, AbstractSubscriber> restored = new HashMap<String, AbstractSubscriber>();
+		List<SubscriptionJournal> opened = new ArrayList<SubscriptionJournal>();
+		for (int i = 0; i < 5; i++) {
+			SubscriptionJournal journal = open(new File(folder.getRoot(), "widget" + i).getPath(), restored);
+			journal.put(subscriber("s" + i, 5000 + i));
+			opened.add(journal);
+		}
+		for (SubscriptionJournal journal : opened) {
+			assertTrue(journal.flush(TIMEOUT));
+		}
+
+		int writers = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals("SubscriptionJournal writer")) {
+				writers++;
+			}
+		}
+		assertEquals(1, writers);
+
+		for (int i = 0; i < 5; i++) {
+			opened.get(i).close(TIMEOUT);
+			open(new File(folder.getRoot(), "widget" + i).getPath(), restored);
+			assertEquals(1, restored.size());
+			assertFalse(restored.containsKey("s" + ((i + 1) % 5)));
+			assertEquals(5000 + i, restored.get("s" + i).getSubscriberPort());
+		}
+	}
+
+}
@@ -0,0 +1,40 @@
+package context.arch.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Damages the files of the logs and journals as a crash or a bad disk would,
+ * for the tests of their recovery.
+ */
+public class FileDamage {
+
+	/**
+	 * Cuts the last bytes of the file, as a crash during the write of its last record
+	 */
+	public static void tear(File file, int bytes) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(raf.length() - bytes);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Flips the bits of the byte at the position
+	 */
+	public static void flip(File file, long position) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(position);
+			int b = raf.read();
+			raf.seek(position);
+			raf.write(b ^ 0xFF);
+		} finally {
+			raf.close();
+		}
+	}
+
+}
@@ -0,0 +1,118 @@
+package context.arch.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the order and time at which the keys of a TimingWheel expire, near
+ * and far deadlines, renewals and cancellations.
+ */
+public class TimingWheelTest {
+
+	private long start;
+	private TimingWheel<String> wheel;
+
+	@Before
+	public void setUp() {
+		start = System.currentTimeMillis();
+		wheel = new TimingWheel<String>(10);
+	}
+
+	@Test
+	public void testKeysExpireInDeadlineOrder() {
+		wheel.schedule("c", start + 300);
+		wheel.schedule("a", start + 100);
+		wheel.schedule("d", start + 1000);
+		wheel.schedule("b", start + 200);
+
+		assertEquals(Arrays.asList("a", "b", "c", "d"), wheel.advance(start + 2000));
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testKeyDoesNotExpireBeforeItsDeadline() {
+		wheel.schedule("a", start + 105);
+
+		assertEquals(Collections.emptyList(), wheel.advance(start + 104));
+		assertTrue(wheel.contains("a"));
+		assertEquals(Arrays.asList("a"), wheel.advance(start + 105));
+		assertFalse(wheel.contains("a"));
+	}
+
+	@Test
+	public void testKeysExpireOnceEach() {
+		wheel.schedule("a", start + 50);
+		wheel.schedule("b", start + 150);
+
+		assertEquals(Arrays.asList("a"), wheel.advance(start + 100));
+		assertEquals(Arrays.asList("b"), wheel.advance(start + 200));
+		assertEquals(Collections.emptyList(), wheel.advance(start + 300));
+	}
+
+	@Test
+	public void testRenewedKeyExpiresAtItsNewDeadline() {
+		wheel.schedule("a", start + 100);
+		wheel.schedule("b", start + 200);
+		wheel.schedule("a", start + 300);
+
+		assertEquals(start + 300, wheel.getDeadline("a"));
+		assertEquals(Arrays.asList("b"), wheel.advance(start + 250));
+		assertEquals(Arrays.asList("a"), wheel.advance(start + 300));
+	}
+
+	@Test
+	public void testCancelledKeyNeverExpires() {
+		wheel.schedule("a", start + 100);
+		wheel.schedule("b", start + 100);
+
+		assertTrue(wheel.cancel("a"));
+		assertFalse(wheel.cancel("a"));
+		assertEquals(-1, wheel.getDeadline("a"));
+		assertEquals(Arrays.asList("b"), wheel.advance(start + 200));
+	}
+
+	@Test
+	public void testPassedDeadlineExpiresAtNextAdvance() {
+		wheel.schedule("a", start - 1000);
+
+		assertEquals(Arrays.asList("a"), wheel.advance(start));
+	}
+
+	@Test
+	public void testFarDeadlinesCascadeDownTheLevels() {
+		// 64 ticks per lowest level turn: these are placed in upper levels
+		long[] offsets = { 700, 45000, 2700000 };
+		String[] keys = { "level1", "level2", "level3" };
+		for (int i = offsets.length - 1; i >= 0; i--) {
+			wheel.schedule(keys[i], start + offsets[i]);
+		}
+
+		for (int i = 0; i < offsets.length; i++) {
+			assertEquals(Collections.emptyList(), wheel.advance(start + offsets[i] - 1));
+			assertEquals(Arrays.asList(keys[i]), wheel.advance(start + offsets[i]));
+		}
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testDeadlineBeyondTheWheelExpiresInTime() {
+		// more than 64^4 ticks ahead: placed as far as possible, then moved again
+		TimingWheel<String> fine = new TimingWheel<String>(1);
+		long deadline = start + (1L << 24) + 5000;
+		fine.schedule("far", deadline);
+		fine.schedule("near", start + 10);
+
+		List<String> expired = fine.advance(deadline - 1);
+		assertEquals(Arrays.asList("near"), expired);
+		assertEquals(Arrays.asList("far"), fine.advance(deadline));
+	}
+
+}
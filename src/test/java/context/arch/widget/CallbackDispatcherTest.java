@@ -0,0 +1,213 @@
+package context.arch.widget;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import context.arch.comm.DataObject;
+import context.arch.comm.RequestObject;
+import context.arch.comm.clients.IndependentCommunication;
+import context.arch.storage.Attributes;
+import context.arch.subscriber.Subscriber;
+import context.arch.subscriber.Subscribers;
+
+/**
+ * Tests that the CallbackDispatcher sends the updates of a widget in order,
+ * batches the callbacks to the same endpoint when asked to, and gives up
+ * older updates rather than blocking the widget for ever when its queue
+ * stays full.
+ */
+public class CallbackDispatcherTest {
+
+	private static final long TIMEOUT = 5000;
+
+	private boolean useJournal;
+	private RecordingWidget widget;
+	private CallbackDispatcher dispatcher;
+
+	/**
+	 * Widget without server, recording the messages it sends instead of
+	 * sending them. A message may be held until the gate opens.
+	 */
+	private static class RecordingWidget extends Widget {
+		final List<RequestObject> sent = new ArrayList<RequestObject>();
+		volatile CountDownLatch gate = new CountDownLatch(0);
+		volatile CountDownLatch entered = new CountDownLatch(0);
+
+		RecordingWidget() {
+			super(null, null, -1, null, null, false, "dispatcher-test", "RecordingWidget");
+			subscribers = new Subscribers(this, getId());
+		}
+
+		public void independentUserRequest(IndependentCommunication comm) {
+			entered.countDown();
+			try {
+				gate.await();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized (sent) {
+				sent.add(comm.getRequest());
+			}
+		}
+
+		List<RequestObject> sent() {
+			synchronized (sent) {
+				return new ArrayList<RequestObject>(sent);
+			}
+		}
+	}
+
+	@Before
+	public void setUp() {
+		useJournal = Subscribers.USE_JOURNAL;
+		Subscribers.USE_JOURNAL = false; // no subscribers restored from a previous run
+		widget = new RecordingWidget();
+		dispatcher = widget.getCallbackDispatcher();
+	}
+
+	@After
+	public void tearDown() {
+		Subscribers.USE_JOURNAL = useJournal;
+	}
+
+	private void subscribe(String host, int port, String callback) {
+		String id = "subscriber" + widget.subscribers.size(); // equal subscriptions are only added once
+		widget.subscribers.add(new Subscriber(id, host, port, callback, null, new Attributes()));
+	}
+
+	private static CallbackDispatcher.CallbackUpdate update(String callback, String value) {
+		return new CallbackDispatcher.CallbackUpdate(callback, null, new DataObject("value", value),
+				new Attributes(), new Attributes());
+	}
+
+	private void awaitDispatched(long count) throws InterruptedException {
+		long until = System.currentTimeMillis() + TIMEOUT;
+		while (dispatcher.getDispatchedCount() < count && System.currentTimeMillis() < until) {
+			Thread.sleep(5);
+		}
+		assertEquals(count, dispatcher.getDispatchedCount());
+	}
+
+	/**
+	 * Returns the values of the callbacks of a message
+	 */
+	private static List<String> values(RequestObject request) {
+		List<String> values = new ArrayList<String>();
+		DataObject data = request.getNonEncodedData();
+		if (Subscriber.SUBSCRIPTION_CALLBACKS.equals(data.getName())) {
+			for (DataObject callback : data.getChildren()) {
+				values.add(callback.getDataObject("value").getValue());
+			}
+		}
+		else {
+			values.add(data.getDataObject("value").getValue());
+		}
+		return values;
+	}
+
+	@Test
+	public void testUpdatesAreDispatchedInOrder() throws InterruptedException {
+		subscribe("host", 1000, "update");
+		for (int i = 0; i < 50; i++) {
+			dispatcher.submit(update("update", "v" + i));
+		}
+		awaitDispatched(50);
+		List<RequestObject> sent = widget.sent();
+		assertEquals(50, sent.size());
+		for (int i = 0; i < 50; i++) {
+			assertEquals(Subscriber.SUBSCRIPTION_CALLBACK, sent.get(i).getUrl());
+			assertEquals("[v" + i + "]", values(sent.get(i)).toString());
+		}
+		assertEquals(50, dispatcher.getSubmittedCount());
+		assertEquals(50, dispatcher.getMessageCount());
+		assertEquals(0, dispatcher.getDroppedCount());
+	}
+
+	@Test
+	public void testCallbacksToTheSameEndpointAreBatched() throws InterruptedException {
+		subscribe("host", 1000, "update");
+		subscribe("host", 1000, "update");
+		subscribe("host", 1000, "update");
+		subscribe("other", 2000, "update");
+		subscribe("host", 1000, "other callback");
+		dispatcher.setBatching(true);
+
+		dispatcher.submit(update("update", "v"));
+		awaitDispatched(1);
+		List<RequestObject> sent = widget.sent();
+		assertEquals(2, sent.size());
+		int batched = 0;
+		for (RequestObject request : sent) {
+			if (request.getServerHostname().equals("host")) {
+				assertEquals(Subscriber.SUBSCRIPTION_CALLBACKS, request.getUrl());
+				assertEquals("[v, v, v]", values(request).toString());
+				batched++;
+			}
+			else {
+				assertEquals(Subscriber.SUBSCRIPTION_CALLBACK, request.getUrl());
+				assertEquals(2000, request.getPort());
+			}
+		}
+		assertEquals(1, batched);
+		assertEquals(2, dispatcher.getMessageCount());
+		assertEquals(4, dispatcher.getCallbackCount());
+	}
+
+	@Test
+	public void testCallbacksAreNotBatchedByDefault() throws InterruptedException {
+		subscribe("host", 1000, "update");
+		subscribe("host", 1000, "update");
+		dispatcher.setBatching(false);
+
+		dispatcher.submit(update("update", "v"));
+		awaitDispatched(1);
+		for (RequestObject request : widget.sent()) {
+			assertEquals(Subscriber.SUBSCRIPTION_CALLBACK, request.getUrl());
+		}
+		assertEquals(2, dispatcher.getMessageCount());
+		assertEquals(2, dispatcher.getCallbackCount());
+	}
+
+	@Test
+	public void testFullQueueCoalescesOrDropsUpdates() throws InterruptedException {
+		subscribe("host", 1000, "update");
+		subscribe("host", 1000, "other");
+		dispatcher.setQueueCapacity(2);
+		dispatcher.setSubmitTimeout(50);
+		widget.gate = new CountDownLatch(1);
+		widget.entered = new CountDownLatch(1);
+
+		dispatcher.submit(update("update", "held")); // taken by the dispatcher, which waits at the gate
+		assertTrue(widget.entered.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		dispatcher.submit(update("other", "o1"));
+		dispatcher.submit(update("update", "u1"));
+		assertEquals(2, dispatcher.getQueueDepth());
+
+		long start = System.currentTimeMillis();
+		dispatcher.submit(update("update", "u2")); // replaces u1
+		assertTrue(System.currentTimeMillis() - start >= 40);
+		dispatcher.offer(update("third", "t1")); // no update of this callback: o1 is dropped
+		assertEquals(2, dispatcher.getQueueDepth());
+		assertEquals(2, dispatcher.getMaxQueueDepth());
+		assertEquals(1, dispatcher.getBlockedCount());
+		assertEquals(2, dispatcher.getDroppedCount());
+
+		widget.gate.countDown();
+		awaitDispatched(3);
+		List<String> values = new ArrayList<String>();
+		for (RequestObject request : widget.sent()) {
+			values.addAll(values(request));
+		}
+		assertEquals("[held, u2]", values.toString()); // nobody subscribed to "third"
+	}
+
+}
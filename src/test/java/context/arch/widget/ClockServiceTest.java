@@ -0,0 +1,97 @@
+package context.arch.widget;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.SocketException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the ClockService takes the offset of a LocalTimeServer, follows
+ * it when it changes, and stops refreshing it once closed.
+ */
+public class ClockServiceTest {
+
+	private static final long TIMEOUT = 5000;
+	private static final long TOLERANCE = 100;
+
+	private LocalTimeServer server;
+	private ClockService clock;
+
+	@Before
+	public void setUp() throws SocketException {
+		server = new LocalTimeServer(0, 500);
+		clock = new ClockService("localhost", server.getPort());
+	}
+
+	@After
+	public void tearDown() {
+		clock.close();
+		server.close();
+	}
+
+	/**
+	 * Waits for the offset of the clock to be near the expected one
+	 */
+	private void awaitOffset(long expected) throws InterruptedException {
+		long until = System.currentTimeMillis() + TIMEOUT;
+		while ((!clock.isSynchronized() || Math.abs(clock.getOffset() - expected) > TOLERANCE)
+				&& System.currentTimeMillis() < until) {
+			Thread.sleep(10);
+		}
+		assertTrue(clock.isSynchronized());
+		assertEquals(expected, clock.getOffset(), TOLERANCE);
+	}
+
+	@Test
+	public void testOffsetIsTheOffsetOfTheServer() throws InterruptedException {
+		awaitOffset(500);
+		assertTrue(clock.getLastRefresh() > 0);
+		assertEquals(System.currentTimeMillis() + 500, clock.currentTime(), TOLERANCE);
+	}
+
+	@Test
+	public void testOffsetFollowsTheServer() throws InterruptedException {
+		awaitOffset(500);
+
+		// more than DEFAULT_STEP away: the new offset replaces the smoothed one
+		server.setOffset(-3000);
+		clock.refresh();
+		awaitOffset(-3000);
+	}
+
+	@Test
+	public void testClosedServiceKeepsItsOffset() throws InterruptedException {
+		awaitOffset(500);
+		clock.close();
+		server.setOffset(8000);
+		clock.refresh();
+		Thread.sleep(300);
+		assertEquals(500, clock.getOffset(), TOLERANCE);
+	}
+
+	@Test
+	public void testInstanceIsStartedAgainAfterClose() {
+		String defaultServer = ClockService.DEFAULT_SERVER;
+		int defaultPort = ClockService.DEFAULT_PORT;
+		ClockService.DEFAULT_SERVER = "localhost";
+		ClockService.DEFAULT_PORT = server.getPort();
+		try {
+			ClockService.closeInstance();
+			ClockService instance = ClockService.getInstance();
+			assertSame(instance, ClockService.getInstance());
+			ClockService.closeInstance();
+			assertNotSame(instance, ClockService.getInstance());
+			ClockService.closeInstance();
+		} finally {
+			ClockService.DEFAULT_SERVER = defaultServer;
+			ClockService.DEFAULT_PORT = defaultPort;
+		}
+	}
+
+}
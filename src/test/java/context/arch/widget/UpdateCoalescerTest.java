@@ -0,0 +1,107 @@
+package context.arch.widget;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import context.arch.storage.Attributes;
+import context.arch.subscriber.UpdatePolicy;
+
+/**
+ * Tests that an UpdateCoalescer sends the first update of an interval right
+ * away, only the latest one at the end of the interval, and none of the
+ * updates within the deadbands of the last one sent.
+ */
+public class UpdateCoalescerTest {
+
+	private static final long INTERVAL = 100;
+	private static final long TIMEOUT = 5000;
+
+	private final BlockingQueue<String> emitted = new ArrayBlockingQueue<String>(100);
+
+	private UpdateCoalescer<String> coalescer(UpdatePolicy policy) {
+		return new UpdateCoalescer<String>(policy, new UpdateCoalescer.Sink<String>() {
+			public void emit(String update) {
+				emitted.add(update);
+			}
+		});
+	}
+
+	private static Attributes values(double level) {
+		Attributes atts = new Attributes();
+		atts.addAttribute("level", Double.valueOf(level));
+		atts.addAttribute(UpdatePolicy.TIMESTAMP, Long.valueOf(System.nanoTime()));
+		return atts;
+	}
+
+	@Test
+	public void testLatestUpdateOfTheIntervalIsSent() throws InterruptedException {
+		UpdateCoalescer<String> coalescer = coalescer(new UpdatePolicy(INTERVAL));
+		long start = System.currentTimeMillis();
+		assertTrue(coalescer.offer("first", values(1)));
+		assertFalse(coalescer.offer("second", values(2)));
+		assertFalse(coalescer.offer("third", values(3)));
+		assertFalse(coalescer.offer("fourth", values(4)));
+
+		assertEquals("fourth", emitted.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertTrue(System.currentTimeMillis() - start >= INTERVAL - 10);
+		assertNull(emitted.poll(2 * INTERVAL, TimeUnit.MILLISECONDS));
+		assertEquals(2, coalescer.getEmittedCount());
+		assertEquals(2, coalescer.getCoalescedCount());
+		assertEquals(0, coalescer.getDroppedCount());
+
+		// a new interval starts after the one of the update held back
+		assertTrue(coalescer.offer("fifth", values(5)));
+	}
+
+	@Test
+	public void testUpdatesWithinTheDeadbandAreDropped() {
+		UpdateCoalescer<String> coalescer = coalescer(new UpdatePolicy().setDeadband("level", 1.0));
+		assertTrue(coalescer.offer("first", values(10)));
+		assertFalse(coalescer.offer("small", values(10.5)));
+		assertFalse(coalescer.offer("smaller", values(9.2)));
+		assertTrue(coalescer.offer("large", values(11.5)));
+		assertFalse(coalescer.offer("back", values(11.0)));
+		assertEquals(2, coalescer.getEmittedCount());
+		assertEquals(3, coalescer.getDroppedCount());
+		assertTrue(emitted.isEmpty());
+	}
+
+	@Test
+	public void testHeldUpdateBackWithinTheDeadbandIsDropped() throws InterruptedException {
+		UpdateCoalescer<String> coalescer = coalescer(new UpdatePolicy(INTERVAL).setDeadband("level", 1.0));
+		assertTrue(coalescer.offer("first", values(10)));
+		assertFalse(coalescer.offer("away", values(20)));
+		assertFalse(coalescer.offer("back", values(10.2)));
+		assertNull(emitted.poll(3 * INTERVAL, TimeUnit.MILLISECONDS));
+		assertEquals(1, coalescer.getEmittedCount());
+		assertEquals(1, coalescer.getCoalescedCount());
+		assertEquals(1, coalescer.getDroppedCount());
+	}
+
+	@Test
+	public void testMergeCombinesTheHeldUpdates() throws InterruptedException {
+		UpdateCoalescer<String> coalescer = new UpdateCoalescer<String>(new UpdatePolicy(INTERVAL),
+				new UpdateCoalescer.Sink<String>() {
+			public void emit(String update) {
+				emitted.add(update);
+			}
+		}) {
+			protected String merge(String older, String newer) {
+				return older + "+" + newer;
+			}
+		};
+		assertTrue(coalescer.offer("a", values(1)));
+		assertFalse(coalescer.offer("b", values(2)));
+		assertFalse(coalescer.offer("c", values(3)));
+		assertEquals("b+c", emitted.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+	}
+
+}